@@ -0,0 +1,24 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The metadata of one owner in a {@link MetadataBulkDao#upsertAll(String, java.util.List)} call.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkUpsertEntry {
+
+    private String ownerType;
+
+    private String ownerUrn;
+
+    private Map<String, Object> metadata;
+}
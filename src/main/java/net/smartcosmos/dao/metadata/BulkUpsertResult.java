@@ -0,0 +1,50 @@
+package net.smartcosmos.dao.metadata;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The outcome of one entry of a {@link MetadataBulkDao#upsertAll(String, java.util.List)} call.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkUpsertResult {
+
+    public enum Outcome {
+
+        /**
+         * The owner did not exist and was created with the metadata.
+         */
+        CREATED,
+
+        /**
+         * The metadata was written to an existing owner.
+         */
+        UPDATED,
+
+        /**
+         * The entry has no metadata, nothing was written.
+         */
+        SKIPPED,
+
+        /**
+         * The owner URN or the metadata is invalid, nothing was written.
+         */
+        INVALID
+    }
+
+    private String ownerType;
+
+    private String ownerUrn;
+
+    private Outcome outcome;
+
+    /**
+     * The reason of an {@link Outcome#INVALID} outcome, {@code null} otherwise.
+     */
+    private String message;
+}
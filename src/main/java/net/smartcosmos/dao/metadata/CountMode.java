@@ -0,0 +1,24 @@
+package net.smartcosmos.dao.metadata;
+
+/**
+ * Enum of supported ways to determine the total number of results of a paged search.
+ */
+public enum CountMode {
+
+    /**
+     * Counts all matching results in a separate query.
+     */
+    EXACT,
+
+    /**
+     * Does not count at all, but fetches one result more than the page size to tell whether there is a next page. The
+     * total is reported as unknown.
+     */
+    SKIPPED,
+
+    /**
+     * Derives an upper bound of the total from maintained per key-value pair statistics instead of counting. If no
+     * statistics are available yet, the total is the number of results known so far.
+     */
+    ESTIMATED
+}
@@ -0,0 +1,25 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A page of a cursor-based search. The {@code continuationToken} is passed back to fetch the next page, it is
+ * {@code null} on the last page.
+ *
+ * @param <T> the type of the page content
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorPage<T> {
+
+    private List<T> data;
+
+    private String continuationToken;
+}
@@ -0,0 +1,36 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import javax.validation.ConstraintViolationException;
+
+import net.smartcosmos.dto.metadata.MetadataResponse;
+
+/**
+ * Asynchronous variants of the {@link MetadataDao} writes, for ingesting bursts of writes of many owners. With group
+ * commit enabled ({@code smartcosmos.dao.metadata.write.group-commit.enabled}), concurrent writes are merged into
+ * shared transactions, otherwise they are written right away. Writes within a transaction of the caller are always
+ * written right away as part of it.
+ */
+public interface MetadataAsyncDao {
+
+    /**
+     * Inserts or updates metadata of an owner like {@link MetadataDao#upsert(String, String, String, Map)}, without
+     * waiting for the write to be committed.
+     *
+     * @param tenantUrn the tenant URN
+     * @param ownerType the owner type
+     * @param ownerUrn the owner URN
+     * @param metadataMap the metadata to write
+     * @return completes with the written metadata once it is committed, or with an empty optional if there is nothing
+     * to write; completes exceptionally if the write failed
+     * @throws ConstraintViolationException if the owner or the metadata is invalid, in which case nothing is queued
+     */
+    CompletableFuture<Optional<MetadataResponse>> upsertAsync(
+        String tenantUrn,
+        String ownerType,
+        String ownerUrn,
+        Map<String, Object> metadataMap)
+        throws ConstraintViolationException;
+}
@@ -0,0 +1,24 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.List;
+
+/**
+ * Bulk variants of the {@link MetadataDao} writes, for ingesting the metadata of many owners at once.
+ */
+public interface MetadataBulkDao {
+
+    /**
+     * Inserts or updates the metadata of many owners of a tenant in one transaction, like
+     * {@link MetadataDao#upsert(String, String, String, java.util.Map)} does for a single owner. Invalid entries are
+     * skipped and reported, they do not fail the other entries.
+     * <p>
+     * The valid entries are written all or nothing: if writing fails, e.g. on a database error, the transaction is
+     * rolled back and the exception is thrown, so that none of them was written and the call can be repeated as a
+     * whole.
+     *
+     * @param tenantUrn the tenant URN
+     * @param entries the owners and their metadata
+     * @return the outcome of each entry, in the order of the entries
+     */
+    List<BulkUpsertResult> upsertAll(String tenantUrn, List<BulkUpsertEntry> entries);
+}
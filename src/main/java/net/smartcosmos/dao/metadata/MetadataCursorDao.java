@@ -0,0 +1,46 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+
+import net.smartcosmos.dto.metadata.MetadataOwnerResponse;
+
+/**
+ * Cursor-based variants of the {@link MetadataDao} owner searches. Pages are ordered by tenant and owner ID and each
+ * page seeks directly behind the last owner of the previous page, so that deep pages cost the same as the first one.
+ */
+public interface MetadataCursorDao {
+
+    /**
+     * Finds owners of a given type that match all given key-value pairs in the realm of a given tenant.
+     *
+     * @param tenantUrn the tenant URN
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param continuationToken the token of the previous page, or {@code null} for the first page
+     * @param size the page size
+     * @return the page of matching owners
+     * @throws IllegalArgumentException if the continuation token is invalid
+     */
+    CursorPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairs(
+        String tenantUrn,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        String continuationToken,
+        Integer size) throws IllegalArgumentException;
+
+    /**
+     * Finds owners of a given type that match all given key-value pairs across all tenants.
+     *
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param continuationToken the token of the previous page, or {@code null} for the first page
+     * @param size the page size
+     * @return the page of matching owners
+     * @throws IllegalArgumentException if the continuation token is invalid
+     */
+    CursorPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairsNoTenant(
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        String continuationToken,
+        Integer size) throws IllegalArgumentException;
+}
@@ -0,0 +1,78 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Named counters of the Metadata persistence layer, e.g. for execution counts and accumulated times. Counter names
+ * are dot-separated and defined by the components that update them.
+ */
+@Component
+public class MetadataPersistenceMetrics {
+
+    /**
+     * The number of metadata rows written by upserts and updates.
+     */
+    public static final String WRITTEN_ROWS = "write.rows";
+
+    /**
+     * The number of metadata rows not written by upserts and updates because their value was unchanged, as far as the
+     * JDBC driver reports row counts that tell them apart.
+     */
+    public static final String ELIDED_ROWS = "write.elided-rows";
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Increments a counter by one.
+     *
+     * @param name the counter name
+     */
+    public void increment(String name) {
+
+        add(name, 1L);
+    }
+
+    /**
+     * Adds a value to a counter.
+     *
+     * @param name the counter name
+     * @param delta the value to add
+     */
+    public void add(String name, long delta) {
+
+        counters.computeIfAbsent(name, key -> new LongAdder())
+            .add(delta);
+    }
+
+    /**
+     * Gets the current value of a counter.
+     *
+     * @param name the counter name
+     * @return the counter value, {@code 0} if it was never updated
+     */
+    public long get(String name) {
+
+        LongAdder counter = counters.get(name);
+
+        return counter != null ? counter.sum() : 0L;
+    }
+
+    /**
+     * Gets a snapshot of all counters.
+     *
+     * @return the counter values by name
+     */
+    public SortedMap<String, Long> getAll() {
+
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+
+        return snapshot;
+    }
+}
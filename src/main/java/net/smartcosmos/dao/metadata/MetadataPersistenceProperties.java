@@ -0,0 +1,343 @@
+package net.smartcosmos.dao.metadata;
+
+import lombok.Data;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import net.smartcosmos.dao.metadata.repository.KeyValueSearchStrategy;
+import net.smartcosmos.dao.metadata.repository.OwnerIdMode;
+
+/**
+ * Deployment-specific settings of the Metadata persistence layer, bound to {@code smartcosmos.dao.metadata.*}.
+ */
+@Data
+@ConfigurationProperties(prefix = "smartcosmos.dao.metadata")
+public class MetadataPersistenceProperties {
+
+    private Search search = new Search();
+
+    private Statistics statistics = new Statistics();
+
+    private Write write = new Write();
+
+    private OwnerId ownerId = new OwnerId();
+
+    private Purge purge = new Purge();
+
+    private ValueCache valueCache = new ValueCache();
+
+    private SecondLevelCache secondLevelCache = new SecondLevelCache();
+
+    @Data
+    public static class Search {
+
+        /**
+         * The query strategy for owner searches on multiple key-value pairs.
+         */
+        private KeyValueSearchStrategy strategy = KeyValueSearchStrategy.RELATIONAL_DIVISION;
+
+        /**
+         * Whether key-value pairs are ordered from the least to the most frequent one before a search query is built,
+         * according to the maintained statistics. Only strategies that match pairs one after the other benefit from it,
+         * not {@code RELATIONAL_DIVISION}.
+         */
+        private boolean orderBySelectivity = false;
+
+        /**
+         * Whether relational-division searches on plain values run from pre-rendered query templates, keyed by the
+         * shape of the search, instead of building a criteria query each time.
+         */
+        private boolean queryTemplates = true;
+
+        /**
+         * Whether owner searches on plain values run as native SQL where the database supports it, currently on
+         * MariaDB and MySQL. Other databases always use the configured strategy.
+         */
+        private boolean nativeQueries = true;
+
+        private ParallelCount parallelCount = new ParallelCount();
+
+        private ValueHash valueHash = new ValueHash();
+
+        private TypedValues typedValues = new TypedValues();
+    }
+
+    @Data
+    public static class ValueHash {
+
+        /**
+         * Whether value equality lookups probe the indexed value hash before comparing the full value.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Whether missing value hashes of existing rows are filled in after startup. Lookups only use the hash once
+         * this is done.
+         */
+        private boolean backfillOnStartup = true;
+
+        /**
+         * The number of rows migrated per transaction.
+         */
+        private int backfillBatchSize = 1000;
+    }
+
+    @Data
+    public static class TypedValues {
+
+        /**
+         * Whether missing typed values of existing numeric and boolean rows are filled in after startup. Value
+         * conditions are rejected and sorting by value compares strings until this is done, so it should only be
+         * disabled if all rows have them.
+         */
+        private boolean backfillOnStartup = true;
+
+        /**
+         * The number of rows migrated per transaction.
+         */
+        private int backfillBatchSize = 1000;
+    }
+
+    @Data
+    public static class ParallelCount {
+
+        /**
+         * Whether exact counts run concurrently to the page query, on a separate connection. Searches within a
+         * transaction always count on its connection, as a separate one does not see its uncommitted writes.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The number of threads running count queries.
+         */
+        private int threads = 4;
+
+        /**
+         * The maximum number of count queries waiting for a thread, further searches count sequentially.
+         */
+        private int queueCapacity = 100;
+    }
+
+    @Data
+    public static class Statistics {
+
+        /**
+         * How long a maintained key-value pair count is used before it is reloaded in the background, in milliseconds.
+         */
+        private long timeToLive = 300000L;
+
+        /**
+         * The maximum number of maintained key-value pair counts, the least recently used ones are evicted.
+         */
+        private int maxEntries = 10000;
+
+        /**
+         * The maximum number of key-value pair counts waiting to be loaded, further pairs stay unknown until searched
+         * again.
+         */
+        private int queueCapacity = 100;
+    }
+
+    @Data
+    public static class Write {
+
+        /**
+         * Whether upserts write the submitted keys with a single batched native statement where the database supports
+         * it, currently on MariaDB, MySQL and H2, instead of loading and merging all metadata of the owner.
+         */
+        private boolean nativeUpsert = true;
+
+        /**
+         * The number of rows sent per JDBC batch by bulk upserts. On MariaDB and MySQL, batches are only sent as
+         * multi-row statements with {@code rewriteBatchedStatements=true} in the JDBC URL.
+         */
+        private int batchSize = 500;
+
+        /**
+         * Whether writes of keys whose data type and value are unchanged are skipped, so that neither the row nor its
+         * last modification date is updated.
+         */
+        private boolean skipUnchanged = true;
+
+        /**
+         * The minimum length of JSON object and array values that are stored compressed, e.g. 1024, or 0 to store all
+         * values as they are. Compressed values are only decompressed when they are read.
+         */
+        private int compressionThreshold = 0;
+
+        /**
+         * The minimum length of stored values, i.e. after compression, that are kept in a separate table instead of the
+         * {@code value} column, e.g. 2048, or 0 to store all values in the {@code value} column. Such values are only
+         * read when a response contains them, not by searches, counts and owner listings.
+         */
+        private int outOfRowThreshold = 0;
+
+        /**
+         * The minimum length of stored JSON object and array values, i.e. after compression, that are kept once per
+         * distinct value in a table shared by all entries, 0 to never share values. Shared values count their
+         * references and take precedence over out-of-row storage, upserts select the shared references of the owner
+         * for update when this is enabled.
+         */
+        private int sharedValueThreshold = 0;
+
+        private GroupCommit groupCommit = new GroupCommit();
+
+        private OwnerLocks ownerLocks = new OwnerLocks();
+    }
+
+    @Data
+    public static class OwnerLocks {
+
+        /**
+         * The number of in-process locks that writes of the same owner are serialized on. Owners are spread over the
+         * stripes by tenant, type and ID, 0 disables the locks.
+         */
+        private int stripes = 256;
+
+        /**
+         * The maximum number of times a write is retried after a deadlock, a lock wait timeout or a concurrently
+         * inserted owner.
+         */
+        private int maxRetries = 3;
+
+        /**
+         * The delay before the first retry in milliseconds, it doubles with each further retry.
+         */
+        private long retryDelay = 20L;
+    }
+
+    @Data
+    public static class GroupCommit {
+
+        /**
+         * Whether upserts are queued and written by a single committer in shared transactions, instead of each in
+         * its own transaction. Callers still wait for the commit, unless they use the asynchronous upsert.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The maximum number of metadata rows written per transaction.
+         */
+        private int maxRows = 500;
+
+        /**
+         * The maximum time the oldest queued write waits for further writes, in milliseconds.
+         */
+        private long maxDelay = 5L;
+
+        /**
+         * The maximum number of queued writes, further writers wait for space.
+         */
+        private int queueCapacity = 10000;
+    }
+
+    @Data
+    public static class OwnerId {
+
+        /**
+         * How internal IDs of new owners are assigned.
+         */
+        private OwnerIdMode mode = OwnerIdMode.TIME_ORDERED;
+
+        /**
+         * The number of owners checked per batch of the migration to name-based IDs. Each owner is moved in its own
+         * transaction.
+         */
+        private int migrationBatchSize = 1000;
+
+        /**
+         * How long an instance holds the migration lease without renewing it, in milliseconds. It is renewed after each
+         * batch, and a migration interrupted by a crash can be resumed by another instance once it expired.
+         */
+        private long migrationLeaseTime = 300000L;
+
+        private OwnerIdCache cache = new OwnerIdCache();
+    }
+
+    @Data
+    public static class OwnerIdCache {
+
+        /**
+         * The maximum number of cached internal IDs of owners, 0 to look them up on every write.
+         */
+        private int maxEntries = 10000;
+
+        /**
+         * How long the internal ID of an existing owner is cached, in milliseconds.
+         */
+        private long timeToLive = 300000L;
+
+        /**
+         * How long the absence of an owner is cached, in milliseconds, 0 to not cache it. Owners created on other
+         * instances are only seen by updates once it expired, so it should only be enabled on a single instance.
+         */
+        private long negativeTimeToLive = 0L;
+    }
+
+    @Data
+    public static class Purge {
+
+        /**
+         * The maximum number of metadata entries deleted per transaction.
+         */
+        private int chunkSize = 1000;
+
+        /**
+         * The maximum number of metadata entries deleted per second by each purge, 0 for no limit.
+         */
+        private int maxRowsPerSecond = 5000;
+
+        /**
+         * Whether purges interrupted by a restart are resumed after startup.
+         */
+        private boolean resumeOnStartup = true;
+
+        /**
+         * How long an instance holds the lease of a purge without renewing it, in milliseconds. It is renewed after each
+         * chunk, and a purge whose lease expired, e.g. because its instance crashed, is resumed by the next instance
+         * that starts.
+         */
+        private long leaseTime = 300000L;
+    }
+
+    @Data
+    public static class ValueCache {
+
+        /**
+         * Whether the values of single-key lookups are cached in process. Writes on other instances are not seen until
+         * a cached value expires.
+         */
+        private boolean enabled = false;
+
+        /**
+         * How long a cached value is used before it is loaded again, in milliseconds.
+         */
+        private long timeToLive = 60000L;
+
+        /**
+         * The maximum number of cached values.
+         */
+        private int maxEntries = 10000;
+
+        /**
+         * The maximum total length of the cached values, in characters.
+         */
+        private long maxWeight = 16777216L;
+    }
+
+    @Data
+    public static class SecondLevelCache {
+
+        /**
+         * Whether owners, the resolution of their natural IDs, their metadata collections and metadata entries are kept
+         * in the Hibernate second-level cache. Unless set explicitly in {@code spring.jpa.properties}, this enables the
+         * cache with the Ehcache region factory, and disables it otherwise.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The classpath resource of the Ehcache configuration with the cache regions.
+         */
+        private String configurationResource = "/metadata-ehcache.xml";
+    }
+}
@@ -0,0 +1,26 @@
+package net.smartcosmos.dao.metadata;
+
+/**
+ * Purges of all metadata of a tenant or an owner type, e.g. when offboarding a tenant. Purges delete in throttled
+ * chunks of short transactions, so they take a while but do not block online traffic, and are resumed after a restart
+ * if they were interrupted.
+ */
+public interface MetadataPurgeDao {
+
+    /**
+     * Deletes all metadata and owners of a tenant.
+     *
+     * @param tenantUrn the tenant URN
+     * @return the number of deleted metadata entries
+     */
+    long purgeTenant(String tenantUrn);
+
+    /**
+     * Deletes all metadata and owners of a given type in the realm of a tenant.
+     *
+     * @param tenantUrn the tenant URN
+     * @param ownerType the owner type
+     * @return the number of deleted metadata entries
+     */
+    long purgeOwnerType(String tenantUrn, String ownerType);
+}
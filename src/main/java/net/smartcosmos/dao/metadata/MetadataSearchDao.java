@@ -0,0 +1,55 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+
+import net.smartcosmos.dto.metadata.MetadataOwnerResponse;
+
+/**
+ * Variants of the {@link MetadataDao} owner searches with control over how the total number of results is determined.
+ */
+public interface MetadataSearchDao {
+
+    /**
+     * Finds owners of a given type that match all given key-value pairs in the realm of a given tenant.
+     *
+     * @param tenantUrn the tenant URN
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param page the page number (1-based)
+     * @param size the page size
+     * @param sortOrder the sort order
+     * @param sortBy the name of the field to sort by
+     * @param countMode how to determine the total number of matching owners
+     * @return the page of matching owners
+     */
+    SearchPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairs(
+        String tenantUrn,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        Integer page,
+        Integer size,
+        SortOrder sortOrder,
+        String sortBy,
+        CountMode countMode);
+
+    /**
+     * Finds owners of a given type that match all given key-value pairs across all tenants.
+     *
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param page the page number (1-based)
+     * @param size the page size
+     * @param sortOrder the sort order
+     * @param sortBy the name of the field to sort by
+     * @param countMode how to determine the total number of matching owners
+     * @return the page of matching owners
+     */
+    SearchPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairsNoTenant(
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        Integer page,
+        Integer size,
+        SortOrder sortOrder,
+        String sortBy,
+        CountMode countMode);
+}
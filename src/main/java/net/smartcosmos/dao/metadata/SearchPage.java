@@ -0,0 +1,31 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import net.smartcosmos.dto.metadata.PageInformation;
+
+/**
+ * A page of a search with a selectable {@link CountMode}. Totals in the page information are exact, estimated or
+ * unknown ({@code -1}) depending on the {@code countMode}, while {@code hasNext} is always reliable.
+ *
+ * @param <T> the type of the page content
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SearchPage<T> {
+
+    private PageInformation page;
+
+    private List<T> data;
+
+    private CountMode countMode;
+
+    private boolean hasNext;
+}
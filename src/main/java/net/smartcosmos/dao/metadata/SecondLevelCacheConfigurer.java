@@ -0,0 +1,71 @@
+package net.smartcosmos.dao.metadata;
+
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.bind.RelaxedPropertyResolver;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.jpa.AbstractEntityManagerFactoryBean;
+import org.springframework.stereotype.Component;
+
+/**
+ * Adds the second-level cache settings to the JPA properties of the entity manager factory before it is built, see
+ * {@link MetadataPersistenceProperties.SecondLevelCache}. Settings given in {@code spring.jpa.properties} win.
+ * <p>
+ * The entities are annotated as cacheable, and Hibernate refuses to start with cached entities but no region factory,
+ * so the cache is explicitly disabled unless it is enabled here. The properties are read from the environment, as
+ * post-processors are created before configuration properties are bound.
+ */
+@Slf4j
+@Component
+public class SecondLevelCacheConfigurer implements BeanPostProcessor, EnvironmentAware {
+
+    static final String REGION_FACTORY = "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory";
+    static final String SHARED_CACHE_MODE = "javax.persistence.sharedCache.mode";
+    static final String EHCACHE_CONFIGURATION_RESOURCE = "net.sf.ehcache.configurationResourceName";
+
+    private final MetadataPersistenceProperties.SecondLevelCache config = new MetadataPersistenceProperties.SecondLevelCache();
+
+    @Override
+    public void setEnvironment(Environment environment) {
+
+        RelaxedPropertyResolver resolver = new RelaxedPropertyResolver(environment, "smartcosmos.dao.metadata.second-level-cache.");
+        config.setEnabled(resolver.getProperty("enabled", Boolean.class, config.isEnabled()));
+        config.setConfigurationResource(resolver.getProperty("configuration-resource", config.getConfigurationResource()));
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+
+        if (bean instanceof AbstractEntityManagerFactoryBean) {
+            configure(((AbstractEntityManagerFactoryBean) bean).getJpaPropertyMap());
+        }
+
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+
+        return bean;
+    }
+
+    void configure(Map<String, Object> jpaProperties) {
+
+        if (!config.isEnabled()) {
+            jpaProperties.putIfAbsent(AvailableSettings.USE_SECOND_LEVEL_CACHE, "false");
+            return;
+        }
+
+        jpaProperties.putIfAbsent(AvailableSettings.USE_SECOND_LEVEL_CACHE, "true");
+        jpaProperties.putIfAbsent(AvailableSettings.CACHE_REGION_FACTORY, REGION_FACTORY);
+        jpaProperties.putIfAbsent(SHARED_CACHE_MODE, "ENABLE_SELECTIVE");
+        jpaProperties.putIfAbsent(EHCACHE_CONFIGURATION_RESOURCE, config.getConfigurationResource());
+        log.info("Second-level cache enabled with {}.", jpaProperties.get(AvailableSettings.CACHE_REGION_FACTORY));
+    }
+}
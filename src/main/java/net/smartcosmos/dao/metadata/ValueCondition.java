@@ -0,0 +1,104 @@
+package net.smartcosmos.dao.metadata;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A comparison on a typed metadata value, to be used in place of a plain value in the key-value pairs of owner
+ * searches, e.g. {@code keyValuePairs.put("temperature", ValueCondition.greaterThan(40))}.
+ * <p>
+ * Numeric conditions match {@code Integer}, {@code Long}, {@code Short}, {@code Byte}, {@code Float} and {@code Double}
+ * values, boolean conditions match {@code Boolean} values. Values of any other type never match. Searches with
+ * conditions fail while the typed values of metadata written by earlier versions are still being backfilled.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class ValueCondition {
+
+    public enum Operator {
+        EQUAL,
+        NOT_EQUAL,
+        LESS_THAN,
+        LESS_THAN_OR_EQUAL,
+        GREATER_THAN,
+        GREATER_THAN_OR_EQUAL,
+        BETWEEN
+    }
+
+    private final Operator operator;
+
+    /**
+     * The compared value, i.e. the lower bound for {@link Operator#BETWEEN}.
+     */
+    private final Object value;
+
+    /**
+     * The inclusive upper bound for {@link Operator#BETWEEN}, {@code null} otherwise.
+     */
+    private final Number upperBound;
+
+    public static ValueCondition equalTo(Object value) {
+
+        return new ValueCondition(Operator.EQUAL, checkComparable(value), null);
+    }
+
+    public static ValueCondition notEqualTo(Object value) {
+
+        return new ValueCondition(Operator.NOT_EQUAL, checkComparable(value), null);
+    }
+
+    public static ValueCondition lessThan(Number value) {
+
+        return new ValueCondition(Operator.LESS_THAN, checkNumber(value), null);
+    }
+
+    public static ValueCondition lessThanOrEqualTo(Number value) {
+
+        return new ValueCondition(Operator.LESS_THAN_OR_EQUAL, checkNumber(value), null);
+    }
+
+    public static ValueCondition greaterThan(Number value) {
+
+        return new ValueCondition(Operator.GREATER_THAN, checkNumber(value), null);
+    }
+
+    public static ValueCondition greaterThanOrEqualTo(Number value) {
+
+        return new ValueCondition(Operator.GREATER_THAN_OR_EQUAL, checkNumber(value), null);
+    }
+
+    /**
+     * Creates a condition matching numbers in a closed range.
+     *
+     * @param lowerBound the inclusive lower bound
+     * @param upperBound the inclusive upper bound
+     * @return the condition
+     */
+    public static ValueCondition between(Number lowerBound, Number upperBound) {
+
+        return new ValueCondition(Operator.BETWEEN, checkNumber(lowerBound), checkNumber(upperBound));
+    }
+
+    private static Number checkNumber(Number value) {
+
+        if (value == null) {
+            throw new IllegalArgumentException("Compared value must not be null");
+        }
+
+        return value;
+    }
+
+    private static Object checkComparable(Object value) {
+
+        if (!(value instanceof Number || value instanceof Boolean)) {
+            throw new IllegalArgumentException(String.format("Only numbers and booleans can be compared, not '%s'", value));
+        }
+
+        return value;
+    }
+}
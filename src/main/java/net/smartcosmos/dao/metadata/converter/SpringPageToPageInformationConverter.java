@@ -6,14 +6,30 @@ import org.springframework.format.FormatterRegistrar;
 import org.springframework.format.FormatterRegistry;
 import org.springframework.stereotype.Component;
 
+import net.smartcosmos.dao.metadata.CountMode;
+import net.smartcosmos.dao.metadata.repository.CountedPage;
 import net.smartcosmos.dto.metadata.PageInformation;
 
 @Component
 public class SpringPageToPageInformationConverter implements Converter<PageImpl<?>, PageInformation>, FormatterRegistrar {
 
+    /**
+     * The total number of elements and pages reported if the count was skipped.
+     */
+    public static final int UNKNOWN_TOTAL = CountedPage.UNKNOWN_TOTAL;
+
     @Override
     public PageInformation convert(PageImpl<?> page) {
 
+        if (CountMode.SKIPPED == getCountMode(page)) {
+            return PageInformation.builder()
+                .number((page.getNumberOfElements() > 0 ? page.getNumber() + 1 : 0))
+                .totalElements(UNKNOWN_TOTAL)
+                .size(page.getNumberOfElements())
+                .totalPages(UNKNOWN_TOTAL)
+                .build();
+        }
+
         return PageInformation.builder()
             .number((page.getTotalElements() > 0 ? page.getNumber() + 1 : 0))
             .totalElements(page.getTotalElements())
@@ -22,6 +38,21 @@ public class SpringPageToPageInformationConverter implements Converter<PageImpl<
             .build();
     }
 
+    /**
+     * Gets the mode that determined the totals of a page, {@link CountMode#EXACT} for pages from derived repository queries.
+     *
+     * @param page the page
+     * @return the count mode
+     */
+    private CountMode getCountMode(PageImpl<?> page) {
+
+        if (page instanceof CountedPage) {
+            return ((CountedPage<?>) page).getCountMode();
+        }
+
+        return CountMode.EXACT;
+    }
+
     @Override
     public void registerFormatters(FormatterRegistry registry) {
 
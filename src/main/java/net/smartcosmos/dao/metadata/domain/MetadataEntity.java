@@ -2,6 +2,8 @@ package net.smartcosmos.dao.metadata.domain;
 
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Objects;
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Convert;
 import javax.persistence.Entity;
@@ -9,10 +11,14 @@ import javax.persistence.EntityListeners;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
+import javax.persistence.Index;
 import javax.persistence.ManyToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
@@ -21,7 +27,10 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Type;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.springframework.data.annotation.CreatedDate;
@@ -29,15 +38,26 @@ import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 
 import net.smartcosmos.dao.metadata.converter.attribute.MetadataDataTypeConverter;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 
 @Entity(name = "metadata")
 @IdClass(MetadataId.class)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = MetadataEntity.CACHE_REGION)
 @NoArgsConstructor(access = AccessLevel.PROTECTED)
 @Builder
 @AllArgsConstructor
 @Data
 @EntityListeners({ AuditingEntityListener.class })
-@Table(name = "metadata")
+@Table(
+    name = "metadata",
+    indexes = {
+        @Index(name = MetadataEntity.VALUE_HASH_INDEX_NAME, columnList = "keyName, dataType, valueHash"),
+        @Index(name = "metadata_key_long_value_idx", columnList = "keyName, longValue"),
+        @Index(name = "metadata_key_double_value_idx", columnList = "keyName, doubleValue"),
+        @Index(name = "metadata_key_boolean_value_idx", columnList = "keyName, booleanValue")
+    }
+)
 public class MetadataEntity implements Serializable {
 
     public static final String OWNER_FIELD_NAME = "owner";
@@ -47,15 +67,26 @@ public class MetadataEntity implements Serializable {
     public static final String DATA_TYPE_FIELD_NAME = "dataType";
     public static final String KEY_NAME_FIELD_NAME = "keyName";
     public static final String VALUE_FIELD_NAME = "value";
+    public static final String VALUE_HASH_FIELD_NAME = "valueHash";
+    public static final String LONG_VALUE_FIELD_NAME = "longValue";
+    public static final String DOUBLE_VALUE_FIELD_NAME = "doubleValue";
+    public static final String BOOLEAN_VALUE_FIELD_NAME = "booleanValue";
+    public static final String COMPRESSED_FIELD_NAME = "compressed";
+    public static final String OUT_OF_ROW_FIELD_NAME = "outOfRow";
+    public static final String VALUE_REF_FIELD_NAME = "valueRef";
+    public static final String VALUE_HASH_INDEX_NAME = "metadata_key_value_hash_idx";
     public static final String TENANT_ID_FIELD_NAME = "tenantId";
     public static final String CREATED_FIELD_NAME = "created";
     public static final String LAST_MODIFIED_FIELD_NAME = "lastModified";
 
+    public static final String CACHE_REGION = "metadata";
+
     protected static final int UUID_LENGTH = 16;
     protected static final int KEY_NAME_LENGTH = 255;
     protected static final int DATA_TYPE_LENGTH = 255;
     protected static final int OWNER_TYPE_LENGTH = 255;
     protected static final int VALUE_LENGTH = 16383;
+    protected static final int VALUE_REF_LENGTH = 64;
 
     @Id
     @NotNull
@@ -78,6 +109,64 @@ public class MetadataEntity implements Serializable {
     @Column(name = VALUE_FIELD_NAME, length = VALUE_LENGTH, nullable = true, updatable = true)
     private String value;
 
+    /**
+     * Fixed-width hash of {@code value} for indexed equality lookups, maintained on every write.
+     */
+    @Setter(AccessLevel.NONE)
+    @Column(name = VALUE_HASH_FIELD_NAME, nullable = true, updatable = true)
+    private Long valueHash;
+
+    /**
+     * Typed copy of {@code value} for {@code Integer}, {@code Long}, {@code Short} and {@code Byte} values, so that
+     * range queries compare numbers instead of strings.
+     */
+    @Setter(AccessLevel.NONE)
+    @Column(name = LONG_VALUE_FIELD_NAME, nullable = true, updatable = true)
+    private Long longValue;
+
+    /**
+     * Typed copy of {@code value} for {@code Float} and {@code Double} values.
+     */
+    @Setter(AccessLevel.NONE)
+    @Column(name = DOUBLE_VALUE_FIELD_NAME, nullable = true, updatable = true)
+    private Double doubleValue;
+
+    /**
+     * Typed copy of {@code value} for {@code Boolean} values.
+     */
+    @Setter(AccessLevel.NONE)
+    @Column(name = BOOLEAN_VALUE_FIELD_NAME, nullable = true, updatable = true)
+    private Boolean booleanValue;
+
+    /**
+     * Whether {@code value} holds the compressed form of a large JSON value, see {@link #getPlainValue()}. Rows written
+     * before values were compressed have {@code null}.
+     */
+    @Column(name = COMPRESSED_FIELD_NAME, nullable = true, updatable = true)
+    private Boolean compressed;
+
+    /**
+     * Whether the stored value is kept in the {@code metadataValue} table instead of {@code value}, which is
+     * {@code null} then, see {@link MetadataValueEntity}. Rows written before values were stored out of row have
+     * {@code null}.
+     */
+    @Column(name = OUT_OF_ROW_FIELD_NAME, nullable = true, updatable = true)
+    private Boolean outOfRow;
+
+    /**
+     * The hash of a stored value that is kept once for all entries with the same value in the
+     * {@code metadataSharedValue} table, see {@link MetadataSharedValueEntity}. Such values are out of row as well.
+     */
+    @Size(max = VALUE_REF_LENGTH)
+    @Column(name = VALUE_REF_FIELD_NAME, length = VALUE_REF_LENGTH, nullable = true, updatable = true)
+    private String valueRef;
+
+    /**
+     * The stored value of an entry whose value is out of row, once it is loaded or moved there.
+     */
+    @Transient
+    private String outOfRowValue;
+
     @CreatedDate
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name = CREATED_FIELD_NAME, nullable = false, insertable = true, updatable = false)
@@ -87,4 +176,155 @@ public class MetadataEntity implements Serializable {
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name = LAST_MODIFIED_FIELD_NAME, nullable = false, insertable = true, updatable = true)
     private Date lastModified;
+
+    /**
+     * Checks if another metadata entity has the same data type and value, i.e. if writing it over this one would not
+     * change anything but the audit timestamps.
+     *
+     * @param other the other metadata entity
+     * @return {@code true} if data type and value are equal
+     */
+    public boolean hasSameValue(MetadataEntity other) {
+
+        if (other == null || dataType != other.getDataType()) {
+            return false;
+        }
+        if (isValueShared() && other.isValueShared()) {
+            // the hashes identify the stored values, which need not be loaded to compare them
+            return valueRef.equals(other.getValueRef());
+        }
+
+        return Objects.equals(getStoredValue(), other.getStoredValue());
+    }
+
+    /**
+     * Checks if {@code value} holds the compressed form of the value.
+     *
+     * @return {@code true} if the value is compressed
+     */
+    public boolean isValueCompressed() {
+
+        return Boolean.TRUE.equals(compressed);
+    }
+
+    /**
+     * Checks if the stored value is kept out of row, i.e. in the {@code metadataValue} table, or in the
+     * {@code metadataSharedValue} table if {@link #isValueShared()}.
+     *
+     * @return {@code true} if the value is out of row
+     */
+    public boolean isValueOutOfRow() {
+
+        return Boolean.TRUE.equals(outOfRow);
+    }
+
+    /**
+     * Checks if the stored value is kept once for all entries with the same value, see {@link #getValueRef()}.
+     *
+     * @return {@code true} if the value is shared
+     */
+    public boolean isValueShared() {
+
+        return valueRef != null;
+    }
+
+    /**
+     * Gets the stored value, which is compressed if {@link #isValueCompressed()}.
+     *
+     * @return the stored value
+     * @throws IllegalStateException if the value is out of row and was not loaded
+     */
+    public String getStoredValue() {
+
+        if (!isValueOutOfRow()) {
+            return value;
+        }
+        if (outOfRowValue == null) {
+            throw new IllegalStateException(String.format("The value of key '%s' is stored out of row and was not loaded", keyName));
+        }
+
+        return outOfRowValue;
+    }
+
+    /**
+     * Gets the String representation of the value, decompressing it if it is stored compressed.
+     *
+     * @return the value's string representation
+     * @throws IllegalStateException if the value is out of row and was not loaded
+     */
+    public String getPlainValue() {
+
+        String storedValue = getStoredValue();
+
+        return isValueCompressed() ? MetadataValueParser.decompress(storedValue) : storedValue;
+    }
+
+    /**
+     * Compresses a JSON object or array value if it is longer than a given threshold. Values that are too long to be
+     * stored are left alone, so that they are rejected as before.
+     *
+     * @param threshold the minimum length of compressed values, {@code 0} to never compress
+     */
+    public void compressValue(int threshold) {
+
+        if (threshold > 0 && !isValueCompressed() && MetadataValueParser.isCompressible(dataType) && value != null
+            && value.length() > threshold && value.length() <= VALUE_LENGTH) {
+            value = MetadataValueParser.compress(value);
+            compressed = true;
+        }
+    }
+
+    /**
+     * Moves the stored value out of row if it is longer than a given threshold, so that it is written to the
+     * {@code metadataValue} table. Values that are too long to be stored are left alone, so that they are rejected as
+     * before.
+     *
+     * @param threshold the minimum length of stored values that are moved, {@code 0} to never move them
+     */
+    public void moveValueOutOfRow(int threshold) {
+
+        if (threshold > 0 && !isValueOutOfRow() && value != null && value.length() > threshold && value.length() <= VALUE_LENGTH) {
+            // copies merged into the persistence context lose the value, but keep these derived values
+            updateDerivedValues();
+            outOfRowValue = value;
+            value = null;
+            outOfRow = true;
+        }
+    }
+
+    /**
+     * Shares a JSON object or array value with all other entries with the same value if its stored form is longer
+     * than a given threshold, so that it is written to the {@code metadataSharedValue} table once. Values that are
+     * too long to be stored are left alone, so that they are rejected as before.
+     *
+     * @param threshold the minimum length of stored values that are shared, {@code 0} to never share them
+     */
+    public void shareValue(int threshold) {
+
+        if (threshold > 0 && !isValueOutOfRow() && MetadataValueParser.isCompressible(dataType) && value != null
+            && value.length() > threshold && value.length() <= VALUE_LENGTH) {
+            updateDerivedValues();
+            outOfRowValue = value;
+            value = null;
+            outOfRow = true;
+            valueRef = MetadataValueParser.getContentHash(outOfRowValue);
+        }
+    }
+
+    @PrePersist
+    @PreUpdate
+    protected void updateDerivedValues() {
+
+        if (isValueOutOfRow() && outOfRowValue == null) {
+            // a merged copy or a loaded entry whose value was not read, its derived values are up to date
+            return;
+        }
+
+        // the hash is of the plain value, so that lookups do not depend on the compression
+        String plainValue = getPlainValue();
+        valueHash = MetadataValueParser.getValueHash(plainValue);
+        longValue = MetadataValueParser.getLongValue(dataType, plainValue);
+        doubleValue = MetadataValueParser.getDoubleValue(dataType, plainValue);
+        booleanValue = MetadataValueParser.getBooleanValue(dataType, plainValue);
+    }
 }
@@ -0,0 +1,66 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.Size;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import org.hibernate.validator.constraints.NotEmpty;
+
+/**
+ * The state of a one-shot data migration shared by all instances. An instance runs the migration only while it holds
+ * the lease of this row, and the completion time tells all instances that the migration is done.
+ */
+@Entity(name = "metadataMigration")
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@Table(name = "metadataMigration")
+public class MetadataMigrationEntity implements Serializable {
+
+    public static final String NAME_FIELD_NAME = "name";
+    public static final String LOCKED_BY_FIELD_NAME = "lockedBy";
+    public static final String LOCKED_UNTIL_FIELD_NAME = "lockedUntil";
+    public static final String COMPLETED_FIELD_NAME = "completed";
+
+    private static final int NAME_LENGTH = 64;
+
+    @Id
+    @NotEmpty
+    @Size(max = NAME_LENGTH)
+    @Column(name = NAME_FIELD_NAME, length = NAME_LENGTH)
+    private String name;
+
+    /**
+     * The instance that holds the lease, or {@code null} if none does.
+     */
+    @Size(max = NAME_LENGTH)
+    @Column(name = LOCKED_BY_FIELD_NAME, length = NAME_LENGTH, nullable = true)
+    private String lockedBy;
+
+    /**
+     * When the lease expires unless it is renewed, so that a migration of a crashed instance can be resumed.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = LOCKED_UNTIL_FIELD_NAME, nullable = true)
+    private Date lockedUntil;
+
+    /**
+     * When the migration completed, or {@code null} if it did not yet.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = COMPLETED_FIELD_NAME, nullable = true)
+    private Date completed;
+}
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -28,11 +29,24 @@ import lombok.Setter;
 import lombok.ToString;
 
 import org.apache.commons.collections4.MapUtils;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
 import org.hibernate.annotations.Type;
 import org.hibernate.validator.constraints.NotEmpty;
 
+/**
+ * An owner of metadata, identified by its tenant ID, type and ID, which are its natural ID.
+ * <p>
+ * Owners, the resolution of their natural IDs and their metadata collections are kept in the second-level cache once
+ * it is enabled, see {@code smartcosmos.dao.metadata.second-level-cache.enabled}.
+ */
 @Entity(name = "metadataOwner")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = MetadataOwnerEntity.CACHE_REGION)
+@NaturalIdCache(region = MetadataOwnerEntity.NATURAL_ID_CACHE_REGION)
 @Data
 @NoArgsConstructor(access = AccessLevel.PROTECTED)
 @EqualsAndHashCode(exclude = { "metadataEntities" })
@@ -47,29 +61,37 @@ public class MetadataOwnerEntity implements Serializable {
     public static final String OWNER_TYPE_FIELD_NAME = "type";
     public static final String OWNER_ID_FIELD_NAME = "id";
     public static final String TENANT_ID_FIELD_NAME = "tenantId";
+    public static final String METADATA_ENTITIES_FIELD_NAME = "metadataEntities";
+
+    public static final String CACHE_REGION = "metadataOwner";
+    public static final String NATURAL_ID_CACHE_REGION = "metadataOwner.naturalId";
+    public static final String METADATA_ENTITIES_CACHE_REGION = "metadataOwner.metadataEntities";
 
     private static final int UUID_LENGTH = 16;
     private static final int OWNER_TYPE_LENGTH = 255;
 
     @Id
-    @GeneratedValue(generator = "uuid2")
-    @GenericGenerator(name = "uuid2", strategy = "uuid2")
+    @GeneratedValue(generator = "ownerId")
+    @GenericGenerator(name = "ownerId", strategy = "net.smartcosmos.dao.metadata.domain.OwnerIdGenerator")
     @Type(type = "uuid-binary")
     @Column(name = ID_FIELD_NAME, length = UUID_LENGTH)
     private UUID internalId;
 
     @NotEmpty
     @Size(max = OWNER_TYPE_LENGTH)
+    @NaturalId
     @Column(name = OWNER_TYPE_FIELD_NAME, length = OWNER_TYPE_LENGTH, nullable = false, updatable = false)
     private String type;
 
     @NotNull
     @Type(type = "uuid-binary")
+    @NaturalId
     @Column(name = OWNER_ID_FIELD_NAME, length = UUID_LENGTH, nullable = false, updatable = false)
     private UUID id;
 
     @NotNull
     @Type(type = "uuid-binary")
+    @NaturalId
     @Column(name = TENANT_ID_FIELD_NAME, length = UUID_LENGTH, nullable = false, updatable = false)
     private UUID tenantId;
 
@@ -80,6 +102,7 @@ public class MetadataOwnerEntity implements Serializable {
                orphanRemoval = true,
                fetch = FetchType.LAZY)
     @MapKeyColumn(name = MetadataEntity.KEY_NAME_FIELD_NAME)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = METADATA_ENTITIES_CACHE_REGION)
     private Map<String, MetadataEntity> metadataEntities = new HashMap<>();
 
     @Builder
@@ -0,0 +1,93 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Type;
+
+/**
+ * A pending purge of all metadata of a tenant, or of one owner type of a tenant. The row exists until the purge is
+ * complete, so that purges interrupted by a restart are resumed. An instance runs the purge only while it holds the
+ * lease of this row.
+ */
+@Entity(name = "metadataPurge")
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@Table(name = "metadataPurge")
+public class MetadataPurgeEntity implements Serializable {
+
+    public static final String ID_FIELD_NAME = "id";
+    public static final String TENANT_ID_FIELD_NAME = "tenantId";
+    public static final String OWNER_TYPE_FIELD_NAME = "ownerType";
+    public static final String CREATED_FIELD_NAME = "created";
+    public static final String DELETED_FIELD_NAME = "deleted";
+    public static final String LOCKED_BY_FIELD_NAME = "lockedBy";
+    public static final String LOCKED_UNTIL_FIELD_NAME = "lockedUntil";
+
+    private static final int UUID_LENGTH = 16;
+    private static final int OWNER_TYPE_LENGTH = 255;
+    private static final int LOCKED_BY_LENGTH = 64;
+
+    @Id
+    @GeneratedValue(generator = "uuid2")
+    @GenericGenerator(name = "uuid2", strategy = "uuid2")
+    @Type(type = "uuid-binary")
+    @Column(name = ID_FIELD_NAME, length = UUID_LENGTH)
+    private UUID id;
+
+    @NotNull
+    @Type(type = "uuid-binary")
+    @Column(name = TENANT_ID_FIELD_NAME, length = UUID_LENGTH, nullable = false, updatable = false)
+    private UUID tenantId;
+
+    /**
+     * The owner type to purge, or {@code null} to purge all owners of the tenant.
+     */
+    @Size(max = OWNER_TYPE_LENGTH)
+    @Column(name = OWNER_TYPE_FIELD_NAME, length = OWNER_TYPE_LENGTH, nullable = true, updatable = false)
+    private String ownerType;
+
+    @NotNull
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = CREATED_FIELD_NAME, nullable = false, updatable = false)
+    private Date created;
+
+    /**
+     * The number of metadata entries deleted so far.
+     */
+    @Column(name = DELETED_FIELD_NAME, nullable = false)
+    private long deleted;
+
+    /**
+     * The instance that holds the lease, or {@code null} if none does.
+     */
+    @Size(max = LOCKED_BY_LENGTH)
+    @Column(name = LOCKED_BY_FIELD_NAME, length = LOCKED_BY_LENGTH, nullable = true)
+    private String lockedBy;
+
+    /**
+     * When the lease expires unless it is renewed, so that a purge of a crashed instance can be resumed.
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = LOCKED_UNTIL_FIELD_NAME, nullable = true)
+    private Date lockedUntil;
+}
@@ -0,0 +1,47 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A stored value that is shared by all metadata entries with the same large JSON value, see
+ * {@link MetadataEntity#isValueShared()}. It is identified by the hash of the stored value and counts the entries
+ * that reference it, so that it is deleted together with its last reference.
+ */
+@Entity(name = "metadataSharedValue")
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@Table(name = "metadataSharedValue")
+public class MetadataSharedValueEntity implements Serializable {
+
+    public static final String HASH_FIELD_NAME = "hash";
+    public static final String VALUE_FIELD_NAME = "value";
+    public static final String REFERENCES_FIELD_NAME = "refCount";
+
+    @Id
+    @NotNull
+    @Size(max = MetadataEntity.VALUE_REF_LENGTH)
+    @Column(name = HASH_FIELD_NAME, length = MetadataEntity.VALUE_REF_LENGTH, nullable = false, updatable = false)
+    private String hash;
+
+    @NotNull
+    @Size(max = MetadataEntity.VALUE_LENGTH)
+    @Column(name = VALUE_FIELD_NAME, length = MetadataEntity.VALUE_LENGTH, nullable = false, updatable = false)
+    private String value;
+
+    @Column(name = REFERENCES_FIELD_NAME, nullable = false)
+    private long refCount;
+}
@@ -0,0 +1,55 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+import java.util.UUID;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import org.hibernate.annotations.Type;
+
+/**
+ * The stored value of a metadata entry that is kept out of the {@code metadata} row because it is large, see
+ * {@link MetadataEntity#isValueOutOfRow()}. It has the primary key of its metadata entry, but no foreign key, so that
+ * neither table has to be written first.
+ */
+@Entity(name = "metadataValue")
+@IdClass(MetadataValueId.class)
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@Table(name = "metadataValue")
+public class MetadataValueEntity implements Serializable {
+
+    public static final String OWNER_INTERNAL_ID_FIELD_NAME = "ownerInternalId";
+    public static final String KEY_NAME_FIELD_NAME = "keyName";
+    public static final String VALUE_FIELD_NAME = "value";
+
+    @Id
+    @NotNull
+    @Type(type = "uuid-binary")
+    @Column(name = OWNER_INTERNAL_ID_FIELD_NAME, length = MetadataEntity.UUID_LENGTH, nullable = false, updatable = false)
+    private UUID ownerInternalId;
+
+    @Id
+    @NotNull
+    @Size(max = MetadataEntity.KEY_NAME_LENGTH)
+    @Column(name = KEY_NAME_FIELD_NAME, length = MetadataEntity.KEY_NAME_LENGTH, nullable = false, updatable = false)
+    private String keyName;
+
+    @NotNull
+    @Size(max = MetadataEntity.VALUE_LENGTH)
+    @Column(name = VALUE_FIELD_NAME, length = MetadataEntity.VALUE_LENGTH, nullable = false, updatable = true)
+    private String value;
+}
@@ -0,0 +1,16 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class MetadataValueId implements Serializable {
+
+    private UUID ownerInternalId;
+
+    private String keyName;
+}
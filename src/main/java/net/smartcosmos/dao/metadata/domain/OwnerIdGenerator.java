@@ -0,0 +1,25 @@
+package net.smartcosmos.dao.metadata.domain;
+
+import java.io.Serializable;
+
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+
+/**
+ * Generates time-ordered internal IDs for new owners, see {@link UuidUtil#getNewUuid()}, unless an internal ID was
+ * assigned before the owner is persisted, e.g. a name-based one.
+ */
+public class OwnerIdGenerator implements IdentifierGenerator {
+
+    @Override
+    public Serializable generate(SessionImplementor session, Object object) {
+
+        if (object instanceof MetadataOwnerEntity && ((MetadataOwnerEntity) object).getInternalId() != null) {
+            return ((MetadataOwnerEntity) object).getInternalId();
+        }
+
+        return UuidUtil.getNewUuid();
+    }
+}
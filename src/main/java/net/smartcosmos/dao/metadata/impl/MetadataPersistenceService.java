@@ -2,12 +2,19 @@ package net.smartcosmos.dao.metadata.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 
 import lombok.extern.slf4j.Slf4j;
@@ -18,19 +25,48 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.ConversionService;
 import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionException;
-
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import net.smartcosmos.dao.metadata.BulkUpsertEntry;
+import net.smartcosmos.dao.metadata.BulkUpsertResult;
+import net.smartcosmos.dao.metadata.CountMode;
+import net.smartcosmos.dao.metadata.CursorPage;
+import net.smartcosmos.dao.metadata.MetadataAsyncDao;
+import net.smartcosmos.dao.metadata.MetadataBulkDao;
+import net.smartcosmos.dao.metadata.MetadataCursorDao;
 import net.smartcosmos.dao.metadata.MetadataDao;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPurgeDao;
+import net.smartcosmos.dao.metadata.MetadataSearchDao;
+import net.smartcosmos.dao.metadata.SearchPage;
 import net.smartcosmos.dao.metadata.SortOrder;
+import net.smartcosmos.dao.metadata.ValueCondition;
 import net.smartcosmos.dao.metadata.domain.MetadataDataType;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.repository.CountedPage;
+import net.smartcosmos.dao.metadata.repository.GroupCommitQueue;
 import net.smartcosmos.dao.metadata.repository.MetadataOwnerRepository;
+import net.smartcosmos.dao.metadata.repository.MetadataPurge;
 import net.smartcosmos.dao.metadata.repository.MetadataRepository;
+import net.smartcosmos.dao.metadata.repository.MetadataValueCache;
+import net.smartcosmos.dao.metadata.repository.NativeMetadataUpsert;
+import net.smartcosmos.dao.metadata.repository.OutOfRowValues;
+import net.smartcosmos.dao.metadata.repository.OwnerIdCache;
+import net.smartcosmos.dao.metadata.repository.OwnerInternalIds;
+import net.smartcosmos.dao.metadata.repository.OwnerLocks;
+import net.smartcosmos.dao.metadata.repository.SecondLevelCache;
+import net.smartcosmos.dao.metadata.repository.ValueHashBackfill;
+import net.smartcosmos.dao.metadata.util.ContinuationToken;
 import net.smartcosmos.dao.metadata.util.MetadataPersistenceUtil;
 import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 import net.smartcosmos.dao.metadata.util.UuidUtil;
@@ -43,21 +79,65 @@ import net.smartcosmos.dto.metadata.PageInformation;
 
 @Slf4j
 @Service
-public class MetadataPersistenceService implements MetadataDao {
+public class MetadataPersistenceService implements MetadataDao, MetadataCursorDao, MetadataSearchDao, MetadataBulkDao, MetadataPurgeDao,
+                                                   MetadataAsyncDao {
 
     private final MetadataRepository metadataRepository;
     private final MetadataOwnerRepository ownerRepository;
     private final ConversionService conversionService;
+    private final ValueHashBackfill valueHashBackfill;
+    private final NativeMetadataUpsert nativeUpsert;
+    private final OwnerInternalIds ownerInternalIds;
+    private final MetadataPurge metadataPurge;
+    private final GroupCommitQueue groupCommit;
+    private final OwnerLocks ownerLocks;
+    private final OutOfRowValues outOfRowValues;
+    private final MetadataValueCache valueCache;
+    private final OwnerIdCache ownerIdCache;
+    private final SecondLevelCache secondLevelCache;
+    private final TransactionTemplate transactionTemplate;
+    private final int compressionThreshold;
+    private final int outOfRowThreshold;
+    private final int sharedValueThreshold;
 
     @Autowired
     public MetadataPersistenceService(
         MetadataRepository metadataRepository,
         MetadataOwnerRepository ownerRepository,
-        ConversionService conversionService) {
+        ConversionService conversionService,
+        ValueHashBackfill valueHashBackfill,
+        NativeMetadataUpsert nativeUpsert,
+        OwnerInternalIds ownerInternalIds,
+        MetadataPurge metadataPurge,
+        GroupCommitQueue groupCommit,
+        OwnerLocks ownerLocks,
+        OutOfRowValues outOfRowValues,
+        MetadataValueCache valueCache,
+        OwnerIdCache ownerIdCache,
+        SecondLevelCache secondLevelCache,
+        PlatformTransactionManager transactionManager,
+        MetadataPersistenceProperties properties) {
 
         this.metadataRepository = metadataRepository;
         this.ownerRepository = ownerRepository;
         this.conversionService = conversionService;
+        this.valueHashBackfill = valueHashBackfill;
+        this.nativeUpsert = nativeUpsert;
+        this.ownerInternalIds = ownerInternalIds;
+        this.metadataPurge = metadataPurge;
+        this.groupCommit = groupCommit;
+        this.ownerLocks = ownerLocks;
+        this.outOfRowValues = outOfRowValues;
+        this.valueCache = valueCache;
+        this.ownerIdCache = ownerIdCache;
+        this.secondLevelCache = secondLevelCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.compressionThreshold = properties.getWrite()
+            .getCompressionThreshold();
+        this.outOfRowThreshold = properties.getWrite()
+            .getOutOfRowThreshold();
+        this.sharedValueThreshold = properties.getWrite()
+            .getSharedValueThreshold();
     }
 
     @Override
@@ -94,20 +174,113 @@ public class MetadataPersistenceService implements MetadataDao {
         return createOrUpdate(ownerType, metadataMap, tenantId, ownerId);
     }
 
-    private MetadataOwnerEntity getOwner(UUID tenantId, String ownerType, UUID ownerId) {
+    @Override
+    public CompletableFuture<Optional<MetadataResponse>> upsertAsync(
+        String tenantUrn,
+        String ownerType,
+        String ownerUrn,
+        Map<String, Object> metadataMap)
+        throws ConstraintViolationException {
 
-        Optional<MetadataOwnerEntity> owner = ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId);
+        UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
+        UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
+
+        if (isGroupCommitted() && MapUtils.isNotEmpty(metadataMap)) {
+            return submit(ownerType, metadataMap, tenantId, ownerId);
+        }
+
+        return CompletableFuture.completedFuture(createOrUpdate(ownerType, metadataMap, tenantId, ownerId));
+    }
+
+    /**
+     * Checks if writes are group committed. Writes within a transaction of the caller are not, as the group would be
+     * committed apart from it, and may wait for row locks the transaction holds.
+     */
+    private boolean isGroupCommitted() {
 
-        if (owner.isPresent()) {
-            return owner.get();
+        return groupCommit.isActive() && !TransactionSynchronizationManager.isActualTransactionActive();
+    }
+
+    private CompletableFuture<Optional<MetadataResponse>> submit(
+        String ownerType, Map<String, Object> metadataMap, UUID tenantId, UUID ownerId) throws ConstraintViolationException {
+
+        MetadataOwnerEntity ownerEntity = MetadataOwnerEntity.builder()
+            .type(ownerType)
+            .id(ownerId)
+            .tenantId(tenantId)
+            .build();
+        List<MetadataEntity> entityList = getMetadataEntities(metadataMap, metadataMap.keySet(), ownerEntity);
+
+        Set<ConstraintViolation<?>> violations = nativeUpsert.getViolations(ownerEntity, entityList);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+
+        entityList.forEach(entity -> ownerEntity.getMetadataEntities()
+            .put(entity.getKeyName(), entity));
+        MetadataResponse response = conversionService.convert(entityList, MetadataResponse.class);
+
+        return groupCommit.submit(ownerEntity)
+            .whenComplete((created, e) -> valueCache.invalidate(tenantId, ownerType, ownerId, metadataMap.keySet()))
+            .thenApply(created -> Optional.ofNullable(response));
+    }
+
+    private UUID getInternalId(UUID tenantId, String ownerType, UUID ownerId) {
+
+        Optional<UUID> internalId = findInternalId(tenantId, ownerType, ownerId);
+
+        if (internalId.isPresent()) {
+            return internalId.get();
         } else {
             MetadataOwnerEntity newOwner = MetadataOwnerEntity.builder()
+                .internalId(ownerInternalIds.getNewInternalId(tenantId, ownerType, ownerId))
                 .type(ownerType)
                 .id(ownerId)
                 .tenantId(tenantId)
                 .build();
 
-            return ownerRepository.persist(newOwner);
+            try {
+                newOwner = ownerRepository.persist(newOwner);
+            } catch (RuntimeException e) {
+                // e.g. created concurrently, the retried write looks it up again
+                ownerIdCache.evict(tenantId, ownerType, ownerId);
+                throw e;
+            }
+            ownerIdCache.put(tenantId, ownerType, ownerId, newOwner.getInternalId());
+
+            return newOwner.getInternalId();
+        }
+    }
+
+    private Optional<UUID> findInternalId(UUID tenantId, String ownerType, UUID ownerId) {
+
+        return ownerIdCache.get(tenantId, ownerType, ownerId, () -> findOwner(tenantId, ownerType, ownerId)
+            .map(MetadataOwnerEntity::getInternalId));
+    }
+
+    private Optional<MetadataOwnerEntity> findOwner(UUID tenantId, String ownerType, UUID ownerId) {
+
+        // without the second-level cache, loading by natural ID takes a query for the internal ID and one for the owner
+        return secondLevelCache.isEnabled() ? ownerRepository.findByNaturalId(tenantId, ownerType, ownerId)
+                                            : ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId);
+    }
+
+    /**
+     * Runs a write or read by internal ID once more if the owner of a cached internal ID no longer exists, i.e. it was
+     * deleted or migrated by another instance.
+     */
+    private <T> T retryOnMissingOwner(UUID tenantId, String ownerType, UUID ownerId, Supplier<T> write) {
+
+        try {
+            return write.get();
+        } catch (IllegalArgumentException | InvalidDataAccessApiUsageException e) {
+            // the repository translates the IllegalArgumentException of a missing owner
+            if (!ownerIdCache.isEnabled() || !(e instanceof IllegalArgumentException || e.getCause() instanceof IllegalArgumentException)) {
+                throw e;
+            }
+            ownerIdCache.evict(tenantId, ownerType, ownerId);
+
+            return write.get();
         }
     }
 
@@ -116,11 +289,63 @@ public class MetadataPersistenceService implements MetadataDao {
         if (MapUtils.isNotEmpty(metadataMap)) {
             Set<String> keys = metadataMap.keySet();
 
-            MetadataOwnerEntity ownerEntity = getOwner(tenantId, ownerType, ownerId);
+            if (isGroupCommitted()) {
+                // waits for the commit of the group, so that the write is as durable as a synchronous one
+                try {
+                    return submit(ownerType, metadataMap, tenantId, ownerId).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            List<MetadataEntity> entityList;
+            try {
+                entityList = writeMetadata(ownerType, metadataMap, tenantId, ownerId);
+            } finally {
+                valueCache.invalidate(tenantId, ownerType, ownerId, keys);
+            }
+
+            MetadataResponse response = conversionService.convert(entityList, MetadataResponse.class);
+
+            return Optional.ofNullable(response);
+        }
+
+        return Optional.empty();
+    }
+
+    private List<MetadataEntity> writeMetadata(String ownerType, Map<String, Object> metadataMap, UUID tenantId, UUID ownerId) {
 
-            List<MetadataEntity> entityList = getMetadataEntities(metadataMap, keys, ownerEntity);
+        Set<String> keys = metadataMap.keySet();
+
+        return ownerLocks.write(tenantId, ownerType, ownerId, () -> {
+            if (nativeUpsert.isActive()) {
+                // writes the submitted keys only, without loading the owner and its other metadata
+                MetadataOwnerEntity ownerEntity = MetadataOwnerEntity.builder()
+                    .type(ownerType)
+                    .id(ownerId)
+                    .tenantId(tenantId)
+                    .build();
+                List<MetadataEntity> entities = getMetadataEntities(metadataMap, keys, ownerEntity);
+                nativeUpsert.upsert(ownerEntity, entities);
+
+                return entities;
+            }
+
+            MetadataOwnerEntity ownerEntity = MetadataOwnerEntity.builder()
+                .type(ownerType)
+                .id(ownerId)
+                .tenantId(tenantId)
+                .build();
+
+            List<MetadataEntity> entities = getMetadataEntities(metadataMap, keys, ownerEntity);
             try {
-                ownerRepository.addMetadataEntitiesToOwner(ownerEntity.getInternalId(), entityList);
+                retryOnMissingOwner(tenantId, ownerType, ownerId, () -> {
+                    ownerRepository.addMetadataEntitiesToOwner(getInternalId(tenantId, ownerType, ownerId), entities);
+                    return null;
+                });
             } catch (TransactionException e) {
                 // we expect constraint violations to be the root cause for exceptions here,
                 // so we throw this particular exception back to the caller
@@ -131,12 +356,112 @@ public class MetadataPersistenceService implements MetadataDao {
                 }
             }
 
-            MetadataResponse response = conversionService.convert(entityList, MetadataResponse.class);
+            return entities;
+        });
+    }
 
-            return Optional.ofNullable(response);
+    @Override
+    public List<BulkUpsertResult> upsertAll(String tenantUrn, List<BulkUpsertEntry> entries) {
+
+        UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
+
+        List<BulkUpsertResult> results = new ArrayList<>(entries.size());
+        List<MetadataOwnerEntity> owners = new ArrayList<>();
+        List<BulkUpsertResult> ownerResults = new ArrayList<>();
+        List<BulkUpsertEntry> ownerEntries = new ArrayList<>();
+
+        for (BulkUpsertEntry entry : entries) {
+            BulkUpsertResult result = BulkUpsertResult.builder()
+                .ownerType(entry.getOwnerType())
+                .ownerUrn(entry.getOwnerUrn())
+                .build();
+            results.add(result);
+
+            if (MapUtils.isEmpty(entry.getMetadata())) {
+                result.setOutcome(BulkUpsertResult.Outcome.SKIPPED);
+                continue;
+            }
+            if (StringUtils.isBlank(entry.getOwnerUrn())) {
+                result.setOutcome(BulkUpsertResult.Outcome.INVALID);
+                result.setMessage("ownerUrn must not be blank");
+                continue;
+            }
+
+            try {
+                MetadataOwnerEntity owner = MetadataOwnerEntity.builder()
+                    .type(entry.getOwnerType())
+                    .id(UuidUtil.getUuidFromUrn(entry.getOwnerUrn()))
+                    .tenantId(tenantId)
+                    .build();
+                List<MetadataEntity> entityList = getMetadataEntities(entry.getMetadata(), entry.getMetadata()
+                    .keySet(), owner);
+
+                Set<ConstraintViolation<?>> violations = nativeUpsert.getViolations(owner, entityList);
+                if (!violations.isEmpty()) {
+                    result.setOutcome(BulkUpsertResult.Outcome.INVALID);
+                    result.setMessage(violations.stream()
+                                          .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                                          .sorted()
+                                          .collect(Collectors.joining(", ")));
+                    continue;
+                }
+
+                entityList.forEach(entity -> owner.getMetadataEntities()
+                    .put(entity.getKeyName(), entity));
+                owners.add(owner);
+                ownerResults.add(result);
+                ownerEntries.add(entry);
+            } catch (IllegalArgumentException e) {
+                result.setOutcome(BulkUpsertResult.Outcome.INVALID);
+                result.setMessage(e.getMessage());
+            }
         }
 
-        return Optional.empty();
+        if (nativeUpsert.isActive()) {
+            if (!owners.isEmpty()) {
+                List<Boolean> created;
+                try {
+                    created = nativeUpsert.upsertAll(tenantId, owners);
+                } finally {
+                    owners.forEach(owner -> valueCache.invalidate(tenantId, owner.getType(), owner.getId(), owner.getMetadataEntities()
+                        .keySet()));
+                }
+                for (int i = 0; i < ownerResults.size(); i++) {
+                    ownerResults.get(i)
+                        .setOutcome(created.get(i) ? BulkUpsertResult.Outcome.CREATED : BulkUpsertResult.Outcome.UPDATED);
+                }
+            }
+        } else if (!owners.isEmpty()) {
+            // one transaction like the native upsert, bypassing the group commit, so that a failure writes no entry;
+            // the owners are written in the order of their natural key, so that concurrent bulk writes lock rows in the
+            // same order, and the entries of an owner stay in the order of the request
+            List<Integer> writeOrder = new ArrayList<>(owners.size());
+            for (int i = 0; i < owners.size(); i++) {
+                writeOrder.add(i);
+            }
+            writeOrder.sort(Comparator.comparing((Integer i) -> UuidUtil.normalizeOwnerType(owners.get(i)
+                                                                                                .getType()))
+                                .thenComparing(i -> owners.get(i)
+                                    .getId()));
+            try {
+                ownerLocks.writeAll(owners, () -> transactionTemplate.execute(status -> {
+                    for (int i : writeOrder) {
+                        MetadataOwnerEntity owner = owners.get(i);
+                        boolean exists = findInternalId(tenantId, owner.getType(), owner.getId()).isPresent();
+                        writeMetadata(owner.getType(), ownerEntries.get(i)
+                            .getMetadata(), tenantId, owner.getId());
+                        ownerResults.get(i)
+                            .setOutcome(exists ? BulkUpsertResult.Outcome.UPDATED : BulkUpsertResult.Outcome.CREATED);
+                    }
+                    return null;
+                }));
+            } finally {
+                owners.forEach(owner -> valueCache.invalidate(tenantId, owner.getType(), owner.getId(), owner.getMetadataEntities()
+                    .keySet()));
+            }
+        }
+
+        return results;
     }
 
     private List<MetadataEntity> getMetadataEntities(Map<String, Object> metadataMap, Set<String> keys, MetadataOwnerEntity owner) {
@@ -147,12 +472,17 @@ public class MetadataPersistenceService implements MetadataDao {
                 String value = MetadataValueParser.getValue(object);
                 MetadataDataType dataType = MetadataValueParser.getDataType(object);
 
-                return MetadataEntity.builder()
+                MetadataEntity metadataEntity = MetadataEntity.builder()
                     .owner(owner)
                     .keyName(key)
                     .value(value)
                     .dataType(dataType)
                     .build();
+                metadataEntity.compressValue(compressionThreshold);
+                metadataEntity.shareValue(sharedValueThreshold);
+                metadataEntity.moveValueOutOfRow(outOfRowThreshold);
+
+                return metadataEntity;
             })
             .collect(Collectors.toList());
     }
@@ -169,41 +499,65 @@ public class MetadataPersistenceService implements MetadataDao {
         UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
 
-        Optional<MetadataOwnerEntity> owner = ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId);
-        if (owner.isPresent()) {
+        Optional<MetadataEntity> entity;
+        try {
+            entity = updateMetadata(tenantId, ownerType, ownerId, key, value);
+        } finally {
+            valueCache.invalidate(tenantId, ownerType, ownerId, Collections.singleton(key));
+        }
+
+        if (entity.isPresent()) {
+            MetadataResponse response = conversionService.convert(entity.get(), MetadataResponse.class);
+
+            return Optional.ofNullable(response);
+        }
+
+        return Optional.empty();
+    }
+
+    private Optional<MetadataEntity> updateMetadata(UUID tenantId, String ownerType, UUID ownerId, String key, Object value) {
+
+        return ownerLocks.write(tenantId, ownerType, ownerId, () -> retryOnMissingOwner(tenantId, ownerType, ownerId, () -> {
+            Optional<UUID> internalId = findInternalId(tenantId, ownerType, ownerId);
+            if (!internalId.isPresent()) {
+                return Optional.empty();
+            }
 
             MetadataDataType dataType = MetadataValueParser.getDataType(value);
             String stringValue = MetadataValueParser.getValue(value);
 
             MetadataEntity metadataEntity = MetadataEntity.builder()
-                .owner(owner.get())
+                .owner(MetadataOwnerEntity.builder()
+                           .type(ownerType)
+                           .id(ownerId)
+                           .tenantId(tenantId)
+                           .build())
                 .keyName(key)
                 .dataType(dataType)
                 .value(stringValue)
                 .build();
+            metadataEntity.compressValue(compressionThreshold);
+            metadataEntity.shareValue(sharedValueThreshold);
+            metadataEntity.moveValueOutOfRow(outOfRowThreshold);
 
-            Optional<MetadataEntity> entity = ownerRepository.updateMetadataEntity(owner.get()
-                                                                                       .getInternalId(), metadataEntity);
-
-            if (entity.isPresent()) {
-                MetadataResponse response = conversionService.convert(entity.get(), MetadataResponse.class);
-
-                return Optional.ofNullable(response);
-            }
-        }
-
-        return Optional.empty();
+            return ownerRepository.updateMetadataEntity(internalId.get(), metadataEntity);
+        }));
     }
 
     @Override
     public List<MetadataResponse> delete(String tenantUrn, String ownerType, String ownerUrn, String key) {
 
         UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
-        List<MetadataEntity> deleteList = new ArrayList<>();
-
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
-        deleteList = metadataRepository.deleteByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, key);
-        ownerRepository.orphanDelete(tenantId, ownerType, ownerId);
+
+        List<MetadataEntity> deleteList;
+        try {
+            // the owner is deleted with its last key, which must not interleave with a write adding keys to it
+            deleteList = ownerLocks.write(tenantId, ownerType, ownerId,
+                                          () -> ownerRepository.deleteMetadataEntity(tenantId, ownerType, ownerId, key));
+        } finally {
+            valueCache.invalidate(tenantId, ownerType, ownerId, Collections.singleton(key));
+        }
 
         return convertList(deleteList, MetadataEntity.class, MetadataResponse.class);
     }
@@ -212,40 +566,47 @@ public class MetadataPersistenceService implements MetadataDao {
     public List<MetadataResponse> deleteAllByOwner(String tenantUrn, String ownerType, String ownerUrn) {
 
         UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
-        List<MetadataEntity> deleteList = new ArrayList<>();
-
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
-        List<MetadataOwnerEntity> ownerList = ownerRepository.deleteByTenantIdAndTypeAndId(tenantId, ownerType, ownerId);
-        if (!ownerList.isEmpty()) {
-            deleteList.addAll(ownerList.get(0)
-                                  .getAllMetadataEntities());
-        }
+
+        List<MetadataEntity> deleteList = ownerLocks.write(tenantId, ownerType, ownerId,
+                                                           () -> ownerRepository.deleteOwner(tenantId, ownerType, ownerId));
+        // entries deleted before were invalidated then, so the keys of this delete are all that can be cached
+        valueCache.invalidate(tenantId, ownerType, ownerId, deleteList.stream()
+            .map(MetadataEntity::getKeyName)
+            .collect(Collectors.toList()));
 
         return convertList(deleteList, MetadataEntity.class, MetadataResponse.class);
     }
 
+    @Override
+    public long purgeTenant(String tenantUrn) {
+
+        return metadataPurge.purge(UuidUtil.getUuidFromUrn(tenantUrn), null);
+    }
+
+    @Override
+    public long purgeOwnerType(String tenantUrn, String ownerType) {
+
+        Assert.hasText(ownerType, "ownerType must not be empty");
+
+        return metadataPurge.purge(UuidUtil.getUuidFromUrn(tenantUrn), ownerType);
+    }
+
     @Override
     public Optional<MetadataValueResponse> findByKey(String tenantUrn, String ownerType, String ownerUrn, String key) {
 
         UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
 
-        Optional<MetadataEntity> entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId,
-                                                                                                                    ownerType,
-                                                                                                                    ownerId,
-                                                                                                                    key);
-
-        if (entity.isPresent()) {
-            Object value = MetadataValueParser.parseValue(entity.get());
-            String responseTenantUrn = UuidUtil.getTenantUrnFromUuid(entity.get()
-                                                                         .getOwner()
-                                                                         .getTenantId());
-            MetadataValueResponse response = new MetadataValueResponse(value, responseTenantUrn);
+        return valueCache.get(tenantId, ownerType, ownerId, key, () -> {
+            Optional<MetadataEntity> entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId,
+                                                                                                                        ownerType,
+                                                                                                                        ownerId,
+                                                                                                                        key);
+            entity.ifPresent(metadataEntity -> outOfRowValues.load(Collections.singletonList(metadataEntity)));
 
-            return Optional.ofNullable(response);
-        }
-
-        return Optional.empty();
+            return entity;
+        });
     }
 
     @Override
@@ -253,21 +614,14 @@ public class MetadataPersistenceService implements MetadataDao {
 
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
 
-        Optional<MetadataEntity> entity = metadataRepository.findByOwner_TypeAndOwner_IdAndKeyName(ownerType,
-                                                                                                   ownerId,
-                                                                                                   key);
-
-        if (entity.isPresent()) {
-            Object value = MetadataValueParser.parseValue(entity.get());
-            String responseTenantUrn = UuidUtil.getTenantUrnFromUuid(entity.get()
-                                                                         .getOwner()
-                                                                         .getTenantId());
-            MetadataValueResponse response = new MetadataValueResponse(value, responseTenantUrn);
-
-            return Optional.ofNullable(response);
-        }
+        return valueCache.get(null, ownerType, ownerId, key, () -> {
+            Optional<MetadataEntity> entity = metadataRepository.findByOwner_TypeAndOwner_IdAndKeyName(ownerType,
+                                                                                                       ownerId,
+                                                                                                       key);
+            entity.ifPresent(metadataEntity -> outOfRowValues.load(Collections.singletonList(metadataEntity)));
 
-        return Optional.empty();
+            return entity;
+        });
     }
 
     @Override
@@ -281,7 +635,9 @@ public class MetadataPersistenceService implements MetadataDao {
         UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
 
         Collection<MetadataEntity> responseCollection;
-        if (keys == null || keys.isEmpty()) {
+        if (secondLevelCache.isEnabled()) {
+            responseCollection = findCachedMetadata(tenantId, ownerType, ownerId, keys);
+        } else if (keys == null || keys.isEmpty()) {
             responseCollection = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_Id(tenantId, ownerType, ownerId);
         } else {
             responseCollection = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyNameIn(tenantId,
@@ -289,11 +645,34 @@ public class MetadataPersistenceService implements MetadataDao {
                                                                                                              ownerId,
                                                                                                              keys);
         }
+        outOfRowValues.load(responseCollection);
         MetadataResponse response = conversionService.convert(responseCollection, MetadataResponse.class);
 
         return Optional.ofNullable(response);
     }
 
+    /**
+     * Reads the metadata of an owner through its internal ID and its metadata collection, which the second-level cache
+     * serves once they were read, instead of querying the entries.
+     */
+    private Collection<MetadataEntity> findCachedMetadata(UUID tenantId, String ownerType, UUID ownerId, Collection<String> keys) {
+
+        Map<String, MetadataEntity> metadataEntities = retryOnMissingOwner(tenantId, ownerType, ownerId, () -> findInternalId(tenantId,
+                                                                                                                             ownerType,
+                                                                                                                             ownerId)
+            .map(ownerRepository::getAssociatedMetadataEntities)
+            .orElse(Collections.emptyMap()));
+
+        if (keys == null || keys.isEmpty()) {
+            return new ArrayList<>(metadataEntities.values());
+        }
+
+        return keys.stream()
+            .map(metadataEntities::get)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    }
+
     @Override
     public Page<MetadataSingleResponse> findByOwnerType(String tenantUrn, String ownerType, Integer page, Integer size) {
 
@@ -322,9 +701,9 @@ public class MetadataPersistenceService implements MetadataDao {
         }
 
         Sort.Direction direction = MetadataPersistenceUtil.getSortDirection(sortOrder);
-        sortBy = MetadataPersistenceUtil.getSortByFieldName(sortBy, MetadataOwnerEntity.OWNER_ID_FIELD_NAME);
+        sortBy = MetadataPersistenceUtil.getOwnerSortByFieldName(sortBy);
 
-        if (keyValuePairs.size() == 1) {
+        if (isSinglePlainKeyValuePair(keyValuePairs) && !MetadataPersistenceUtil.isSortByMetadataKey(sortBy)) {
             return findOwnerBySingleKeyValuePair(tenantId, ownerType, keyValuePairs, getPageable(page, size, sortBy, direction));
         } else {
             org.springframework.data.domain.Page<MetadataOwnerEntity> ownerPage =
@@ -339,9 +718,9 @@ public class MetadataPersistenceService implements MetadataDao {
         String ownerType,
         Map<String, Object> keyValuePairs, Integer page, Integer size, SortOrder sortOrder, String sortBy) {
 
-        if (keyValuePairs.size() == 1) {
+        if (isSinglePlainKeyValuePair(keyValuePairs) && !MetadataPersistenceUtil.isSortByMetadataKey(sortBy)) {
             Sort.Direction direction = MetadataPersistenceUtil.getSortDirection(sortOrder);
-            sortBy = MetadataPersistenceUtil.getSortByFieldName(sortBy, MetadataOwnerEntity.OWNER_ID_FIELD_NAME);
+            sortBy = MetadataPersistenceUtil.getOwnerSortByFieldName(sortBy);
 
             return findOwnerBySingleKeyValuePairNoTenant(ownerType, keyValuePairs, getPageable(page, size, sortBy, direction));
         }
@@ -349,6 +728,114 @@ public class MetadataPersistenceService implements MetadataDao {
         return findOwnersByTypeAndKeyValuePairs(null, ownerType, keyValuePairs, page, size, sortOrder, sortBy);
     }
 
+    @Override
+    public SearchPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairs(
+        String tenantUrn, String ownerType, Map<String, Object> keyValuePairs,
+        Integer page, Integer size, SortOrder sortOrder, String sortBy, CountMode countMode) {
+
+        UUID tenantId = null;
+        if (StringUtils.isNotBlank(tenantUrn)) {
+            tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
+        }
+        if (countMode == null) {
+            countMode = CountMode.EXACT;
+        }
+
+        Sort.Direction direction = MetadataPersistenceUtil.getSortDirection(sortOrder);
+        sortBy = MetadataPersistenceUtil.getOwnerSortByFieldName(sortBy);
+
+        CountedPage<MetadataOwnerEntity> ownerPage = metadataRepository
+            .findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs, getPageable(page, size, sortBy, direction),
+                                                                 countMode);
+
+        return convertSearchPage(ownerPage, MetadataOwnerEntity.class, MetadataOwnerResponse.class);
+    }
+
+    @Override
+    public SearchPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairsNoTenant(
+        String ownerType, Map<String, Object> keyValuePairs,
+        Integer page, Integer size, SortOrder sortOrder, String sortBy, CountMode countMode) {
+
+        return findOwnersByTypeAndKeyValuePairs(null, ownerType, keyValuePairs, page, size, sortOrder, sortBy, countMode);
+    }
+
+    @Override
+    public CursorPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairs(
+        String tenantUrn, String ownerType, Map<String, Object> keyValuePairs,
+        String continuationToken, Integer size) throws IllegalArgumentException {
+
+        UUID tenantId = null;
+        if (StringUtils.isNotBlank(tenantUrn)) {
+            tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
+        }
+
+        return findOwnersAfter(tenantId, ownerType, keyValuePairs, continuationToken, size);
+    }
+
+    @Override
+    public CursorPage<MetadataOwnerResponse> findOwnersByTypeAndKeyValuePairsNoTenant(
+        String ownerType, Map<String, Object> keyValuePairs,
+        String continuationToken, Integer size) throws IllegalArgumentException {
+
+        return findOwnersAfter(null, ownerType, keyValuePairs, continuationToken, size);
+    }
+
+    /**
+     * Fetches one owner more than requested to find out whether there is a next page, without counting all matches.
+     */
+    private CursorPage<MetadataOwnerResponse> findOwnersAfter(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        String continuationToken,
+        Integer size) throws IllegalArgumentException {
+
+        if (size == null) {
+            size = DEFAULT_SIZE;
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("Page size must not be less than one!");
+        }
+
+        ContinuationToken after = null;
+        if (StringUtils.isNotBlank(continuationToken)) {
+            after = ContinuationToken.decode(continuationToken);
+        }
+
+        List<MetadataOwnerEntity> owners = metadataRepository
+            .findProjectedByTenantIdAndOwnerTypeAndKeyValuePairsAfter(tenantId, ownerType, keyValuePairs, after, size + 1);
+
+        String nextToken = null;
+        if (owners.size() > size) {
+            owners = owners.subList(0, size);
+            MetadataOwnerEntity last = owners.get(size - 1);
+            nextToken = new ContinuationToken(last.getTenantId(), last.getId()).encode();
+        }
+
+        return CursorPage.<MetadataOwnerResponse>builder()
+            .data(convertList(owners, MetadataOwnerEntity.class, MetadataOwnerResponse.class))
+            .continuationToken(nextToken)
+            .build();
+    }
+
+    /**
+     * Checks if a search matches a single key-value pair by value, i.e. can use the simpler single-pair queries unless
+     * sorted by a metadata value. JSON objects and arrays are not, as they may be stored compressed, and neither are
+     * values that may be stored out of row.
+     */
+    private boolean isSinglePlainKeyValuePair(Map<String, Object> keyValuePairs) {
+
+        if (keyValuePairs.size() != 1) {
+            return false;
+        }
+
+        Object value = keyValuePairs.values()
+            .iterator()
+            .next();
+
+        return !(value instanceof ValueCondition) && MetadataValueParser.isStoredInline(value, outOfRowThreshold);
+    }
+
     private Page<MetadataOwnerResponse> findOwnerBySingleKeyValuePair(
         UUID tenantId,
         String ownerType,
@@ -359,10 +846,16 @@ public class MetadataPersistenceService implements MetadataDao {
             .iterator()
             .next();
         String value = MetadataValueParser.getValue(keyValuePairs.get(keyName));
-        MetadataDataType dataType = MetadataValueParser.getDataType(keyValuePairs.get(keyName));
+        Set<MetadataDataType> dataTypes = MetadataValueParser.getMatchingDataTypes(keyValuePairs.get(keyName));
 
-        org.springframework.data.domain.Page<MetadataEntity> ownerPage = metadataRepository
-            .findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeAndValue(tenantId, ownerType, keyName, dataType, value, pageable);
+        org.springframework.data.domain.Page<MetadataEntity> ownerPage;
+        if (valueHashBackfill.isLookupEnabled()) {
+            ownerPage = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeInAndValueHashAndValue(
+                tenantId, ownerType, keyName, dataTypes, MetadataValueParser.getValueHash(value), value, pageable);
+        } else {
+            ownerPage = metadataRepository
+                .findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeInAndValue(tenantId, ownerType, keyName, dataTypes, value, pageable);
+        }
 
         return convertPage(ownerPage, MetadataEntity.class, MetadataOwnerResponse.class);
     }
@@ -376,10 +869,16 @@ public class MetadataPersistenceService implements MetadataDao {
             .iterator()
             .next();
         String value = MetadataValueParser.getValue(keyValuePairs.get(keyName));
-        MetadataDataType dataType = MetadataValueParser.getDataType(keyValuePairs.get(keyName));
+        Set<MetadataDataType> dataTypes = MetadataValueParser.getMatchingDataTypes(keyValuePairs.get(keyName));
 
-        org.springframework.data.domain.Page<MetadataEntity> ownerPage = metadataRepository
-            .findByOwnerTypeAndKeyNameAndDataTypeAndValue(ownerType, keyName, dataType, value, pageable);
+        org.springframework.data.domain.Page<MetadataEntity> ownerPage;
+        if (valueHashBackfill.isLookupEnabled()) {
+            ownerPage = metadataRepository.findByOwnerTypeAndKeyNameAndDataTypeInAndValueHashAndValue(
+                ownerType, keyName, dataTypes, MetadataValueParser.getValueHash(value), value, pageable);
+        } else {
+            ownerPage = metadataRepository
+                .findByOwnerTypeAndKeyNameAndDataTypeInAndValue(ownerType, keyName, dataTypes, value, pageable);
+        }
 
         return convertPage(ownerPage, MetadataEntity.class, MetadataOwnerResponse.class);
     }
@@ -389,6 +888,7 @@ public class MetadataPersistenceService implements MetadataDao {
         UUID tenantId = UuidUtil.getUuidFromUrn(tenantUrn);
         org.springframework.data.domain.Page<MetadataEntity> pageEntity = metadataRepository
             .findByOwner_TenantIdAndOwner_Type(tenantId, ownerType, pageable);
+        outOfRowValues.load(pageEntity.getContent());
 
         return convertPage(pageEntity, MetadataEntity.class, MetadataSingleResponse.class);
     }
@@ -430,6 +930,27 @@ public class MetadataPersistenceService implements MetadataDao {
             .build();
     }
 
+    /**
+     * Uses the conversion service to convert a {@link CountedPage} into a typed {@link SearchPage}, i.e. converts the
+     * page information and the content list and reports how the totals were determined.
+     *
+     * @param page the page
+     * @param sourceClass the class of the source type
+     * @param targetClass the class of the target type
+     * @param <S> the generic source type
+     * @param <T> the generic target type
+     * @return the converted typed search page
+     */
+    private <S, T> SearchPage<T> convertSearchPage(CountedPage<S> page, Class sourceClass, Class targetClass) {
+
+        return SearchPage.<T>builder()
+            .page(conversionService.convert(page, PageInformation.class))
+            .data(convertList(page.getContent(), sourceClass, targetClass))
+            .countMode(page.getCountMode())
+            .hasNext(page.hasNext())
+            .build();
+    }
+
     /**
      * Builds the pageable for repository calls, including translation of 1-based page numbering on the API level to
      * 0-based page numbering on the repository level.
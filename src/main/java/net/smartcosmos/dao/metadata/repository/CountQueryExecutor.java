@@ -0,0 +1,190 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+
+/**
+ * Runs count queries concurrently to the page query of a search, each on its own entity manager and thus on its own
+ * pooled connection. The pool and its queue are bounded, searches fall back to counting sequentially if it is full.
+ * <p>
+ * A count on its own connection does not see the uncommitted writes of the caller's transaction, and may see a
+ * different snapshot than the page query, so searches within a transaction always count sequentially.
+ */
+@Slf4j
+@Component
+public class CountQueryExecutor {
+
+    public static final String EXECUTIONS = "search.parallel-count.executions";
+    public static final String REJECTIONS = "search.parallel-count.rejections";
+    public static final String PAGE_TIME = "search.parallel-count.page-time-nanos";
+    public static final String COUNT_TIME = "search.parallel-count.count-time-nanos";
+    public static final String ELAPSED_TIME = "search.parallel-count.elapsed-time-nanos";
+    public static final String SAVED_TIME = "search.parallel-count.saved-time-nanos";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final MetadataPersistenceMetrics metrics;
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public CountQueryExecutor(
+        EntityManagerFactory entityManagerFactory,
+        MetadataPersistenceProperties properties,
+        MetadataPersistenceMetrics metrics) {
+
+        this.entityManagerFactory = entityManagerFactory;
+        this.metrics = metrics;
+
+        MetadataPersistenceProperties.ParallelCount config = properties.getSearch()
+            .getParallelCount();
+        if (config.isEnabled()) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor(config.getThreads(),
+                                              config.getThreads(),
+                                              0L,
+                                              TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                                              runnable -> {
+                                                  Thread thread = new Thread(runnable, "metadata-count-" + threadNumber.incrementAndGet());
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              });
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Starts a count query in the background.
+     *
+     * @param countQuery runs the count query on the entity manager provided
+     * @return the running count, or {@code null} if parallel counting is disabled, a transaction is active or the
+     * executor is saturated
+     */
+    public ParallelCount submit(Function<EntityManager, Long> countQuery) {
+
+        if (executor == null || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
+        }
+
+        ParallelCount count = new ParallelCount();
+        try {
+            count.future = executor.submit(() -> {
+                long start = System.nanoTime();
+                EntityManager entityManager = entityManagerFactory.createEntityManager();
+                try {
+                    if (!count.start(entityManager.unwrap(Session.class))) {
+                        return null;
+                    }
+                    return countQuery.apply(entityManager);
+                } finally {
+                    entityManager.close();
+                    count.countNanos = System.nanoTime() - start;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Count query executor is saturated, counting sequentially");
+            metrics.increment(REJECTIONS);
+            return null;
+        }
+
+        return count;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A count query running concurrently to a page query.
+     */
+    public class ParallelCount {
+
+        private final long started = System.nanoTime();
+        private volatile long countNanos;
+        private Future<Long> future;
+        private Session session;
+        private boolean cancelled;
+
+        private synchronized boolean start(Session session) {
+
+            this.session = session;
+
+            return !cancelled;
+        }
+
+        /**
+         * Waits for the count and records how much time running it concurrently to the page query saved.
+         *
+         * @param pageNanos the time the page query took
+         * @return the count
+         */
+        public long join(long pageNanos) {
+
+            Long count;
+            try {
+                count = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+                throw new IllegalStateException("Interrupted while waiting for count query", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Count query failed", e.getCause());
+            }
+
+            long elapsedNanos = System.nanoTime() - started;
+            metrics.increment(EXECUTIONS);
+            metrics.add(PAGE_TIME, pageNanos);
+            metrics.add(COUNT_TIME, countNanos);
+            metrics.add(ELAPSED_TIME, elapsedNanos);
+            metrics.add(SAVED_TIME, Math.max(0L, pageNanos + countNanos - elapsedNanos));
+
+            return count;
+        }
+
+        /**
+         * Abandons the count if the page query already revealed the total or failed. A count that did not start yet is
+         * skipped, and the statement of a running one is cancelled, so that it releases its connection.
+         */
+        public void cancel() {
+
+            future.cancel(false);
+            synchronized (this) {
+                cancelled = true;
+                if (session != null) {
+                    try {
+                        session.cancelQuery();
+                    } catch (HibernateException e) {
+                        log.debug("Could not cancel count query: {}", e.toString());
+                    }
+                }
+            }
+        }
+    }
+}
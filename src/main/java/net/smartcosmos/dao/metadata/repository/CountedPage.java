@@ -0,0 +1,54 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.List;
+
+import lombok.Getter;
+
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import net.smartcosmos.dao.metadata.CountMode;
+
+/**
+ * A {@link PageImpl} that knows how its total was determined. For {@link CountMode#SKIPPED} the totals are unknown and
+ * reported as {@link #UNKNOWN_TOTAL}, so whether there is a next page is tracked separately.
+ *
+ * @param <T> the type of the page content
+ */
+public class CountedPage<T> extends PageImpl<T> {
+
+    /**
+     * The total number of elements and pages of a page whose count was skipped.
+     */
+    public static final int UNKNOWN_TOTAL = -1;
+
+    @Getter
+    private final CountMode countMode;
+
+    private final boolean hasNext;
+
+    public CountedPage(List<T> content, Pageable pageable, long total, CountMode countMode, boolean hasNext) {
+
+        super(content, pageable, total);
+        this.countMode = countMode;
+        this.hasNext = hasNext;
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        return hasNext;
+    }
+
+    @Override
+    public long getTotalElements() {
+
+        return CountMode.SKIPPED == countMode ? UNKNOWN_TOTAL : super.getTotalElements();
+    }
+
+    @Override
+    public int getTotalPages() {
+
+        return CountMode.SKIPPED == countMode ? UNKNOWN_TOTAL : super.getTotalPages();
+    }
+}
@@ -0,0 +1,260 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+/**
+ * Coalesces concurrent upserts into shared transactions. Writes enter a bounded queue, and a single committer thread
+ * takes as many of them as fit into {@code maxRows} metadata rows, waiting at most {@code maxDelay} after the oldest
+ * one, and writes them with {@link NativeMetadataUpsert#upsertAll(UUID, List)} in one transaction. The future of each
+ * write completes once that transaction is committed, so a completed write is as durable as a synchronous one.
+ * <p>
+ * Each group holds the owner locks of all its owners while it is written, see {@link OwnerLocks#writeAll}, so that its
+ * writes are serialized against synchronous writes and deletes of the same owners in this process.
+ * <p>
+ * If a group fails, its writes are retried one by one, so that a failing write does not fail the others.
+ */
+@Slf4j
+@Component
+public class GroupCommitQueue {
+
+    public static final String COMMITS = "write.group-commit.commits";
+    public static final String WRITES = "write.group-commit.writes";
+    public static final String RETRIES = "write.group-commit.retries";
+
+    private static final long POLL_MILLIS = 100L;
+
+    private final NativeMetadataUpsert nativeUpsert;
+    private final TransactionTemplate transactionTemplate;
+    private final OwnerLocks ownerLocks;
+    private final MetadataPersistenceMetrics metrics;
+
+    private final boolean enabled;
+    private final int maxRows;
+    private final long maxDelayNanos;
+    private final BlockingQueue<PendingWrite> queue;
+
+    private volatile boolean running;
+    private Thread committer;
+
+    @Autowired
+    public GroupCommitQueue(
+        NativeMetadataUpsert nativeUpsert,
+        PlatformTransactionManager transactionManager,
+        OwnerLocks ownerLocks,
+        MetadataPersistenceMetrics metrics,
+        MetadataPersistenceProperties properties) {
+
+        this.nativeUpsert = nativeUpsert;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.ownerLocks = ownerLocks;
+        this.metrics = metrics;
+
+        MetadataPersistenceProperties.GroupCommit config = properties.getWrite()
+            .getGroupCommit();
+        this.enabled = config.isEnabled();
+        this.maxRows = config.getMaxRows();
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxDelay());
+        this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+    }
+
+    @PostConstruct
+    public void start() {
+
+        if (!enabled) {
+            return;
+        }
+        if (!nativeUpsert.isActive()) {
+            log.warn("Group commit requires native upserts, upserts are written in their own transactions.");
+            return;
+        }
+
+        running = true;
+        committer = new Thread(this::run, "metadata-group-commit");
+        committer.setDaemon(true);
+        committer.start();
+        log.info("Upserts are group committed, up to {} rows per transaction.", maxRows);
+    }
+
+    /**
+     * Writes the queued writes and stops the committer.
+     */
+    @PreDestroy
+    public void shutdown() {
+
+        running = false;
+        if (committer != null) {
+            try {
+                committer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+            }
+        }
+    }
+
+    /**
+     * Checks if writes are group committed, i.e. if it is enabled and native upserts are used.
+     *
+     * @return {@code true} if {@link #submit(MetadataOwnerEntity)} can be called
+     */
+    public boolean isActive() {
+
+        return running;
+    }
+
+    /**
+     * Queues an upsert of the metadata of an owner, and waits for space in the queue if it is full. The owner and its
+     * entries must have been validated, see {@link NativeMetadataUpsert#getViolations(MetadataOwnerEntity,
+     * java.util.Collection)}.
+     *
+     * @param owner the owner, identified by tenant ID, type and ID, with the metadata entries to write
+     * @return completes with whether the owner was created once the write is committed, or exceptionally if it failed
+     */
+    public CompletableFuture<Boolean> submit(MetadataOwnerEntity owner) {
+
+        PendingWrite write = new PendingWrite(owner);
+        if (!running) {
+            write.future.completeExceptionally(new IllegalStateException("Group commit is not running"));
+            return write.future;
+        }
+
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                .interrupt();
+            write.future.completeExceptionally(e);
+            return write.future;
+        }
+
+        // the committer may have stopped after it found the queue empty, it takes all writes queued before it stopped
+        if (!running && queue.remove(write)) {
+            write.future.completeExceptionally(new IllegalStateException("Group commit is not running"));
+        }
+
+        return write.future;
+    }
+
+    private void run() {
+
+        List<PendingWrite> group = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+
+                int rows = first.rows;
+                long deadline = first.queued + maxDelayNanos;
+                while (rows < maxRows) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    rows += next.rows;
+                }
+            } catch (InterruptedException e) {
+                log.warn("Group committer interrupted, writing {} queued writes.", group.size() + queue.size());
+                running = false;
+                queue.drainTo(group);
+            }
+
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite> group) {
+
+        List<MetadataOwnerEntity> owners = new ArrayList<>(group.size());
+        group.forEach(write -> owners.add(write.owner));
+
+        try {
+            ownerLocks.writeAll(owners, () -> transactionTemplate.execute(status -> {
+                write(group);
+                return null;
+            }));
+            metrics.increment(COMMITS);
+            metrics.add(WRITES, group.size());
+            group.forEach(write -> write.future.complete(write.created));
+        } catch (RuntimeException e) {
+            if (group.size() == 1) {
+                group.get(0).future.completeExceptionally(e);
+                return;
+            }
+
+            log.warn("Group commit of {} writes failed, retrying them one by one.", group.size(), e);
+            metrics.add(RETRIES, group.size());
+            for (PendingWrite write : group) {
+                commit(Collections.singletonList(write));
+            }
+        }
+    }
+
+    private void write(List<PendingWrite> group) {
+
+        // upserts of many owners are per tenant, the order of the writes is kept within each tenant
+        Map<UUID, List<PendingWrite>> writesByTenant = new LinkedHashMap<>();
+        for (PendingWrite write : group) {
+            writesByTenant.computeIfAbsent(write.owner.getTenantId(), tenantId -> new ArrayList<>())
+                .add(write);
+        }
+
+        for (Map.Entry<UUID, List<PendingWrite>> tenantWrites : writesByTenant.entrySet()) {
+            List<MetadataOwnerEntity> owners = new ArrayList<>(tenantWrites.getValue()
+                                                                   .size());
+            tenantWrites.getValue()
+                .forEach(write -> owners.add(write.owner));
+
+            List<Boolean> created = nativeUpsert.upsertAll(tenantWrites.getKey(), owners);
+            for (int i = 0; i < created.size(); i++) {
+                tenantWrites.getValue()
+                    .get(i).created = created.get(i);
+            }
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final MetadataOwnerEntity owner;
+        private final int rows;
+        private final long queued = System.nanoTime();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private boolean created;
+
+        PendingWrite(MetadataOwnerEntity owner) {
+
+            this.owner = owner;
+            this.rows = owner.getMetadataEntities()
+                .size();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.persistence.Query;
+
+import lombok.Value;
+
+import net.smartcosmos.dao.metadata.ValueCondition;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DATA_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity.TENANT_ID_FIELD_NAME;
+
+/**
+ * Pre-rendered JPQL of relational-division owner searches, keyed by the shape of the query rather than its values.
+ * <p>
+ * The number of key-value pairs is padded to the next power of two by repeating the last pair, which neither changes
+ * the {@code IN} list nor the disjunction of pair predicates, so there are only a few distinct query strings. Each of
+ * them is rendered once here and parsed once into Hibernate's query plan cache, and every search only binds parameters.
+ */
+public class KeyValueQueryTemplates {
+
+    private static final Pattern SORT_PROPERTY = Pattern.compile("[A-Za-z]+(\\.[A-Za-z]+)?");
+
+    private final Map<QueryShape, String> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Checks if a search can be run from a template, i.e. compares plain values only and sorts by an entity field. JSON
+     * objects and arrays are not compared by templates, as they may be stored compressed, and neither are values that
+     * may be stored out of row.
+     *
+     * @param keyValuePairs the key-value pairs to match
+     * @param sortProperty the property to sort by, {@code null} for count queries
+     * @param outOfRowThreshold the minimum length of values stored out of row, {@code 0} if no values are
+     * @return {@code true} if the search has a template
+     */
+    public static boolean isApplicable(Map<String, Object> keyValuePairs, String sortProperty, int outOfRowThreshold) {
+
+        if (sortProperty != null && !SORT_PROPERTY.matcher(sortProperty)
+            .matches()) {
+            return false;
+        }
+
+        // Long values may still be stored as strings, the JPA queries match both
+        return !keyValuePairs.isEmpty() && keyValuePairs.values()
+            .stream()
+            .noneMatch(value -> value instanceof ValueCondition || !MetadataValueParser.isStoredInline(value, outOfRowThreshold)
+                                || MetadataValueParser.getMatchingDataTypes(value)
+                                       .size() > 1);
+    }
+
+    /**
+     * Gets the number of pairs of the template for a given number of key-value pairs.
+     *
+     * @param pairCount the actual number of key-value pairs
+     * @return the padded number of pairs
+     */
+    public static int getBucketSize(int pairCount) {
+
+        return pairCount <= 1 ? 1 : Integer.highestOneBit(pairCount - 1) << 1;
+    }
+
+    /**
+     * Gets the query selecting the distinct owners matching all key-value pairs.
+     *
+     * @param tenant {@code true} if the search is restricted to a tenant
+     * @param pairCount the number of key-value pairs
+     * @param valueHash {@code true} if values are looked up by their hash
+     * @param sortProperty the property of the metadata entity to sort by
+     * @param ascending the sort direction
+     * @return the JPQL query string
+     */
+    public String getPageQuery(boolean tenant, int pairCount, boolean valueHash, String sortProperty, boolean ascending) {
+
+        return templates.computeIfAbsent(new QueryShape(false, tenant, getBucketSize(pairCount), valueHash, sortProperty, ascending),
+                                         KeyValueQueryTemplates::render);
+    }
+
+    /**
+     * Gets the query counting the distinct owners matching all key-value pairs.
+     *
+     * @param tenant {@code true} if the search is restricted to a tenant
+     * @param pairCount the number of key-value pairs
+     * @param valueHash {@code true} if values are looked up by their hash
+     * @return the JPQL query string
+     */
+    public String getCountQuery(boolean tenant, int pairCount, boolean valueHash) {
+
+        return templates.computeIfAbsent(new QueryShape(true, tenant, getBucketSize(pairCount), valueHash, null, true),
+                                         KeyValueQueryTemplates::render);
+    }
+
+    /**
+     * Binds the parameters of a query obtained from this class.
+     *
+     * @param query the query
+     * @param tenantId the tenant ID, or {@code null} for searches across all tenants
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs, in the order they are matched
+     * @param valueHash {@code true} if values are looked up by their hash
+     * @return the query
+     */
+    public static <Q extends Query> Q bind(Q query, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs,
+                                           boolean valueHash) {
+
+        if (tenantId != null) {
+            query.setParameter("tenantId", tenantId);
+        }
+        query.setParameter("ownerType", ownerType);
+        query.setParameter("pairCount", (long) keyValuePairs.size());
+
+        int bucketSize = getBucketSize(keyValuePairs.size());
+        for (int i = 0; i < bucketSize; i++) {
+            Map.Entry<String, Object> keyValuePair = keyValuePairs.get(Math.min(i, keyValuePairs.size() - 1));
+            String value = MetadataValueParser.getValue(keyValuePair.getValue());
+
+            query.setParameter("key" + i, keyValuePair.getKey());
+            query.setParameter("dataType" + i, MetadataValueParser.getDataType(keyValuePair.getValue()));
+            query.setParameter("value" + i, value);
+            if (valueHash) {
+                query.setParameter("valueHash" + i, MetadataValueParser.getValueHash(value));
+            }
+        }
+
+        return query;
+    }
+
+    /**
+     * Gets the number of rendered templates.
+     *
+     * @return the number of templates
+     */
+    public int size() {
+
+        return templates.size();
+    }
+
+    private static String render(QueryShape shape) {
+
+        StringBuilder query = new StringBuilder();
+        query.append(shape.isCount() ? "select count(distinct m." + OWNER_FIELD_NAME + ")" : "select distinct m." + OWNER_FIELD_NAME)
+            .append(" from metadata m where m.")
+            .append(OWNER_FIELD_NAME)
+            .append(" in (select s.")
+            .append(OWNER_FIELD_NAME)
+            .append(" from metadata s where s.")
+            .append(OWNER_FIELD_NAME)
+            .append(".")
+            .append(TENANT_ID_FIELD_NAME)
+            .append(shape.isTenant() ? " = :tenantId" : " is not null")
+            .append(" and s.")
+            .append(OWNER_FIELD_NAME)
+            .append(".")
+            .append(OWNER_TYPE_FIELD_NAME)
+            .append(" = :ownerType and s.")
+            .append(KEY_NAME_FIELD_NAME)
+            .append(" in (");
+
+        for (int i = 0; i < shape.getBucketSize(); i++) {
+            query.append(i > 0 ? ", " : "")
+                .append(":key")
+                .append(i);
+        }
+        query.append(") and (");
+
+        for (int i = 0; i < shape.getBucketSize(); i++) {
+            query.append(i > 0 ? " or " : "")
+                .append("(s.")
+                .append(KEY_NAME_FIELD_NAME)
+                .append(" = :key")
+                .append(i)
+                .append(" and s.")
+                .append(DATA_TYPE_FIELD_NAME)
+                .append(" = :dataType")
+                .append(i);
+            if (shape.isValueHash()) {
+                query.append(" and s.")
+                    .append(VALUE_HASH_FIELD_NAME)
+                    .append(" = :valueHash")
+                    .append(i);
+            }
+            query.append(" and s.")
+                .append(VALUE_FIELD_NAME)
+                .append(" = :value")
+                .append(i)
+                .append(")");
+        }
+
+        query.append(") group by s.")
+            .append(OWNER_FIELD_NAME)
+            .append(" having count(s.")
+            .append(KEY_NAME_FIELD_NAME)
+            .append(") = :pairCount)");
+
+        if (!shape.isCount()) {
+            query.append(" order by m.")
+                .append(shape.getSortProperty())
+                .append(shape.isAscending() ? " asc" : " desc");
+        }
+
+        return query.toString();
+    }
+
+    @Value
+    private static class QueryShape {
+
+        boolean count;
+        boolean tenant;
+        int bucketSize;
+        boolean valueHash;
+        String sortProperty;
+        boolean ascending;
+    }
+}
@@ -0,0 +1,19 @@
+package net.smartcosmos.dao.metadata.repository;
+
+/**
+ * Enum of supported query strategies for owner searches on multiple key-value pairs.
+ */
+public enum KeyValueSearchStrategy {
+
+    /**
+     * Nests one {@code owner IN (select distinct owner ...)} subquery per key-value pair.
+     * The query depth grows with the number of pairs, so this is only kept as a fallback.
+     */
+    RECURSIVE,
+
+    /**
+     * Matches all key-value pairs in a single subquery and keeps the owners that matched each of them, i.e.
+     * {@code ... WHERE (keyName, dataType, value) IN (...) GROUP BY owner HAVING COUNT(*) = n}.
+     */
+    RELATIONAL_DIVISION
+}
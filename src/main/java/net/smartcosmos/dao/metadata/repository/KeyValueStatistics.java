@@ -0,0 +1,172 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.annotation.PreDestroy;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+
+/**
+ * Maintains the number of metadata entities matching a single key-value pair, per tenant and owner type. Counts are
+ * loaded in the background, when a pair is first seen and again once its count expired, so that searches never wait
+ * for them: they are cheap but possibly stale approximations, and unknown until the first load finished. Values are
+ * only kept as hashes, and the least recently used counts are evicted once the configured number is reached.
+ */
+@Slf4j
+@Component
+public class KeyValueStatistics {
+
+    private final long timeToLive;
+    private final int maxEntries;
+    private final Executor executor;
+
+    private final LinkedHashMap<PairKey, PairCount> counts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<PairKey> loading = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public KeyValueStatistics(MetadataPersistenceProperties properties) {
+
+        this(properties, new ThreadPoolExecutor(1,
+                                                1,
+                                                0L,
+                                                TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<>(properties.getStatistics()
+                                                                             .getQueueCapacity()),
+                                                runnable -> {
+                                                    Thread thread = new Thread(runnable, "metadata-statistics");
+                                                    thread.setDaemon(true);
+                                                    return thread;
+                                                }));
+    }
+
+    KeyValueStatistics(MetadataPersistenceProperties properties, Executor executor) {
+
+        this.timeToLive = properties.getStatistics()
+            .getTimeToLive();
+        this.maxEntries = properties.getStatistics()
+            .getMaxEntries();
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the number of entities matching a key-value pair, and starts loading it in the background if it is unknown
+     * or expired. An expired count is returned until it is reloaded.
+     *
+     * @param tenantId the tenant ID, or {@code null} for all tenants
+     * @param ownerType the owner type
+     * @param keyName the key name
+     * @param dataType the data type
+     * @param value the string representation of the value
+     * @param loader counts the matching entities in the database
+     * @return the number of matching entities, or {@code OptionalLong.empty()} if it is not known yet
+     */
+    public OptionalLong getMatchCount(UUID tenantId, String ownerType, String keyName, MetadataDataType dataType, String value, LongSupplier loader) {
+
+        PairKey key = new PairKey(tenantId, ownerType, keyName, dataType, MetadataValueParser.getValueHash(value));
+
+        PairCount count = get(key);
+        if (count == null || count.getExpires() < System.currentTimeMillis()) {
+            load(key, loader);
+            count = get(key);
+        }
+
+        return count != null ? OptionalLong.of(count.getCount()) : OptionalLong.empty();
+    }
+
+    /**
+     * Discards all maintained counts.
+     */
+    public void clear() {
+
+        synchronized (counts) {
+            counts.clear();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+
+        if (executor instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) executor).shutdownNow();
+        }
+    }
+
+    private PairCount get(PairKey key) {
+
+        synchronized (counts) {
+            return counts.get(key);
+        }
+    }
+
+    private void load(PairKey key, LongSupplier loader) {
+
+        if (!loading.add(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    put(key, new PairCount(loader.getAsLong(), System.currentTimeMillis() + timeToLive));
+                } catch (RuntimeException e) {
+                    log.warn("Could not load the number of matches of key '{}': {}", key.getKeyName(), e.toString());
+                } finally {
+                    loading.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Statistics loader is saturated, count of key '{}' stays unknown", key.getKeyName());
+            loading.remove(key);
+        }
+    }
+
+    private void put(PairKey key, PairCount count) {
+
+        synchronized (counts) {
+            counts.put(key, count);
+
+            Iterator<Map.Entry<PairKey, PairCount>> eldest = counts.entrySet()
+                .iterator();
+            while (counts.size() > maxEntries) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    @Value
+    private static class PairKey {
+
+        UUID tenantId;
+        String ownerType;
+        String keyName;
+        MetadataDataType dataType;
+        long valueHash;
+    }
+
+    @Value
+    private static class PairCount {
+
+        long count;
+        long expires;
+    }
+}
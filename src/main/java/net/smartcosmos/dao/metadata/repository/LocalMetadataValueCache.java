@@ -0,0 +1,324 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.Value;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+import net.smartcosmos.dto.metadata.MetadataValueResponse;
+
+/**
+ * The default {@link MetadataValueCache}, caching in process. Entries expire after a configurable time, and the least
+ * recently used ones are evicted once the number of entries or their total weight, i.e. the length of their plain
+ * values, exceeds its limit. Lookups without a match are not cached.
+ * <p>
+ * Writers invalidate the keys they write right away, and again once their transaction completed. Each invalidation
+ * also advances a stamp of the key, and a lookup only caches what it loaded if the stamp did not change meanwhile, so
+ * that a lookup that read a row before a concurrent write committed cannot cache the old value afterwards. Writes on
+ * other instances are not seen, so the time to live bounds how stale a value can be in a cluster.
+ */
+@Component
+public class LocalMetadataValueCache implements MetadataValueCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int STAMPS = 1024;
+
+    private final MetadataPersistenceMetrics metrics;
+    private final boolean enabled;
+    private final long timeToLive;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+    private final AtomicLong epoch = new AtomicLong();
+
+    @Autowired
+    public LocalMetadataValueCache(MetadataPersistenceMetrics metrics, MetadataPersistenceProperties properties) {
+
+        MetadataPersistenceProperties.ValueCache config = properties.getValueCache();
+        this.metrics = metrics;
+        this.enabled = config.isEnabled() && config.getMaxEntries() > 0;
+        this.timeToLive = config.getTimeToLive();
+
+        int maxEntries = Math.max(1, config.getMaxEntries() / SEGMENTS);
+        long maxWeight = Math.max(1L, config.getMaxWeight() / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxEntries, maxWeight);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+
+        return enabled;
+    }
+
+    @Override
+    public Optional<MetadataValueResponse> get(
+        UUID tenantId, String ownerType, UUID ownerId, String keyName, Supplier<Optional<MetadataEntity>> loader) {
+
+        if (!enabled) {
+            return loader.get()
+                .map(metadataEntity -> new MetadataValueResponse(MetadataValueParser.parseValue(metadataEntity),
+                                                                 getTenantUrn(metadataEntity)));
+        }
+
+        CacheKey key = new CacheKey(tenantId, ownerType, ownerId, keyName);
+        int hash = key.getLookupHash();
+        Segment segment = getSegment(hash);
+        long now = System.currentTimeMillis();
+
+        CachedValue cached = segment.get(key, now);
+        if (cached != null) {
+            metrics.increment(HITS);
+            return Optional.of(toResponse(cached));
+        }
+        metrics.increment(MISSES);
+
+        long epochBefore = epoch.get();
+        long stampBefore = stamps.get(getStampIndex(hash));
+        Optional<CachedValue> loaded = loader.get()
+            .map(LocalMetadataValueCache::load);
+
+        if (loaded.isPresent()) {
+            CachedValue value = loaded.get()
+                .expiringAt(now + timeToLive);
+            // the segment lock orders this check before any removal of a later invalidation
+            segment.putIf(key, value, () -> epoch.get() == epochBefore && stamps.get(getStampIndex(hash)) == stampBefore);
+        }
+
+        return loaded.map(LocalMetadataValueCache::toResponse);
+    }
+
+    @Override
+    public void invalidate(UUID tenantId, String ownerType, UUID ownerId, Collection<String> keyNames) {
+
+        if (!enabled) {
+            return;
+        }
+
+        List<String> invalidated = new ArrayList<>(keyNames);
+        remove(tenantId, ownerType, ownerId, invalidated);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+
+                    remove(tenantId, ownerType, ownerId, invalidated);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void invalidateTenant(UUID tenantId, String ownerType) {
+
+        if (!enabled) {
+            return;
+        }
+
+        String tenantUrn = UuidUtil.getTenantUrnFromUuid(tenantId);
+        String normalizedType = ownerType != null ? UuidUtil.normalizeOwnerType(ownerType) : null;
+        // lookups running meanwhile may have loaded a value of the tenant, so none of them is cached
+        epoch.incrementAndGet();
+        for (Segment segment : segments) {
+            segment.removeIf((key, value) -> (tenantId.equals(key.getTenantId()) || tenantUrn.equals(value.getTenantUrn()))
+                                             && (normalizedType == null || normalizedType.equals(UuidUtil.normalizeOwnerType(key.getOwnerType()))));
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        if (!enabled) {
+            return;
+        }
+
+        epoch.incrementAndGet();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private void remove(UUID tenantId, String ownerType, UUID ownerId, Collection<String> keyNames) {
+
+        for (String keyName : keyNames) {
+            CacheKey key = new CacheKey(tenantId, ownerType, ownerId, keyName);
+            int hash = key.getLookupHash();
+            stamps.incrementAndGet(getStampIndex(hash));
+            getSegment(hash).remove(key, new CacheKey(null, ownerType, ownerId, keyName));
+        }
+    }
+
+    private Segment getSegment(int hash) {
+
+        return segments[(hash >>> 16) & (SEGMENTS - 1)];
+    }
+
+    private static int getStampIndex(int hash) {
+
+        return hash & (STAMPS - 1);
+    }
+
+    private static CachedValue load(MetadataEntity metadataEntity) {
+
+        Object value = MetadataValueParser.parseValue(metadataEntity);
+        String storedValue = metadataEntity.getStoredValue();
+        int weight = 0;
+        if (storedValue != null) {
+            weight = metadataEntity.isValueCompressed() ? metadataEntity.getPlainValue()
+                .length() : storedValue.length();
+        }
+
+        return new CachedValue(value, getTenantUrn(metadataEntity), weight, 0L);
+    }
+
+    private static String getTenantUrn(MetadataEntity metadataEntity) {
+
+        return UuidUtil.getTenantUrnFromUuid(metadataEntity.getOwner()
+                                                 .getTenantId());
+    }
+
+    private static MetadataValueResponse toResponse(CachedValue cached) {
+
+        // JSON values are mutable, so every response gets its own copy
+        Object value = cached.getValue() instanceof JsonNode ? ((JsonNode) cached.getValue()).deepCopy() : cached.getValue();
+
+        return new MetadataValueResponse(value, cached.getTenantUrn());
+    }
+
+    @Value
+    private static class CacheKey {
+
+        UUID tenantId;
+        String ownerType;
+        UUID ownerId;
+        String keyName;
+
+        /**
+         * Gets a hash that lookups with and without tenant share, so that both are in the same segment and stamp.
+         */
+        int getLookupHash() {
+
+            int hash = Objects.hash(ownerType, ownerId, keyName);
+
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    @Value
+    private static class CachedValue {
+
+        Object value;
+        String tenantUrn;
+        int weight;
+        long expires;
+
+        CachedValue expiringAt(long expires) {
+
+            return new CachedValue(value, tenantUrn, weight, expires);
+        }
+    }
+
+    /**
+     * A least recently used part of the cache, guarded by its own lock.
+     */
+    private class Segment {
+
+        private final int maxEntries;
+        private final long maxWeight;
+        private final LinkedHashMap<CacheKey, CachedValue> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        Segment(int maxEntries, long maxWeight) {
+
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized CachedValue get(CacheKey key, long now) {
+
+            CachedValue cached = entries.get(key);
+            if (cached != null && cached.getExpires() < now) {
+                entries.remove(key);
+                weight -= cached.getWeight();
+                metrics.increment(EVICTIONS);
+                return null;
+            }
+
+            return cached;
+        }
+
+        synchronized void putIf(CacheKey key, CachedValue value, Supplier<Boolean> condition) {
+
+            if (value.getWeight() > maxWeight || !condition.get()) {
+                return;
+            }
+
+            CachedValue previous = entries.put(key, value);
+            weight += value.getWeight() - (previous != null ? previous.getWeight() : 0);
+
+            Iterator<Map.Entry<CacheKey, CachedValue>> eldest = entries.entrySet()
+                .iterator();
+            while (entries.size() > maxEntries || weight > maxWeight) {
+                weight -= eldest.next()
+                    .getValue()
+                    .getWeight();
+                eldest.remove();
+                metrics.increment(EVICTIONS);
+            }
+        }
+
+        synchronized void remove(CacheKey... keys) {
+
+            for (CacheKey key : keys) {
+                CachedValue removed = entries.remove(key);
+                if (removed != null) {
+                    weight -= removed.getWeight();
+                }
+            }
+        }
+
+        synchronized void removeIf(BiPredicate<CacheKey, CachedValue> condition) {
+
+            Iterator<Map.Entry<CacheKey, CachedValue>> iterator = entries.entrySet()
+                .iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<CacheKey, CachedValue> entry = iterator.next();
+                if (condition.test(entry.getKey(), entry.getValue())) {
+                    weight -= entry.getValue()
+                        .getWeight();
+                    iterator.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
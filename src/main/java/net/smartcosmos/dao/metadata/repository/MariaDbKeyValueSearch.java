@@ -0,0 +1,338 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.sql.DataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.ValueCondition;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.util.MetadataPersistenceUtil;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DATA_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_INDEX_NAME;
+
+/**
+ * Native owner searches for MariaDB and MySQL, active if the MariaDB driver is used.
+ * <p>
+ * The matching owner IDs are grouped in a derived table that MariaDB reads first ({@code STRAIGHT_JOIN}), probing the
+ * key-value index for all pairs at once with a row constructor, before the owners are joined by primary key for sorting.
+ * The value hash index is forced only for lookups by value hash, and the optimizer hints are only rendered if the
+ * MariaDB driver is active. Table and column names are taken from the Hibernate mapping, so they follow the configured
+ * naming strategy.
+ */
+@Slf4j
+@Component
+public class MariaDbKeyValueSearch implements NativeKeyValueSearch {
+
+    private static final String DRIVER_NAME = "mariadb";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final DataSource dataSource;
+    private final boolean nativeQueries;
+    private final int outOfRowThreshold;
+
+    private boolean active;
+    private boolean indexHint;
+
+    private String metadataTable;
+    private String ownerColumn;
+    private String keyNameColumn;
+    private String dataTypeColumn;
+    private String valueColumn;
+    private String valueHashColumn;
+
+    private AbstractEntityPersister ownerPersister;
+    private String ownerTable;
+    private String ownerIdColumn;
+    private String ownerTenantIdColumn;
+    private String ownerTypeColumn;
+
+    @Autowired
+    public MariaDbKeyValueSearch(EntityManagerFactory entityManagerFactory, DataSource dataSource, MetadataPersistenceProperties properties) {
+
+        this.entityManagerFactory = entityManagerFactory;
+        this.dataSource = dataSource;
+        this.nativeQueries = properties.getSearch()
+            .isNativeQueries();
+        this.outOfRowThreshold = properties.getWrite()
+            .getOutOfRowThreshold();
+    }
+
+    @PostConstruct
+    public void init() {
+
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        AbstractEntityPersister metadataPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataEntity.class.getName());
+        ownerPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataOwnerEntity.class.getName());
+
+        metadataTable = metadataPersister.getTableName();
+        ownerColumn = metadataPersister.getPropertyColumnNames(OWNER_FIELD_NAME)[0];
+        keyNameColumn = metadataPersister.getPropertyColumnNames(KEY_NAME_FIELD_NAME)[0];
+        dataTypeColumn = metadataPersister.getPropertyColumnNames(DATA_TYPE_FIELD_NAME)[0];
+        valueColumn = metadataPersister.getPropertyColumnNames(VALUE_FIELD_NAME)[0];
+        valueHashColumn = metadataPersister.getPropertyColumnNames(VALUE_HASH_FIELD_NAME)[0];
+
+        ownerTable = ownerPersister.getTableName();
+        ownerIdColumn = ownerPersister.getIdentifierColumnNames()[0];
+        ownerTenantIdColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.TENANT_ID_FIELD_NAME)[0];
+        ownerTypeColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME)[0];
+
+        if (nativeQueries) {
+            try (Connection connection = dataSource.getConnection()) {
+                DatabaseMetaData databaseMetaData = connection.getMetaData();
+                active = StringUtils.containsIgnoreCase(databaseMetaData.getDriverName(), DRIVER_NAME);
+                indexHint = active && hasIndex(databaseMetaData, connection.getCatalog(), metadataTable, VALUE_HASH_INDEX_NAME);
+            } catch (SQLException e) {
+                log.warn("Could not determine the database driver, owner searches use JPA queries.", e);
+                active = false;
+            }
+        }
+
+        if (active) {
+            log.info("Owner searches on key-value pairs use native MariaDB queries{}.", indexHint ? "" : " without index hints");
+        }
+    }
+
+    /**
+     * Renders the statements for MariaDB regardless of the detected driver, for tests.
+     *
+     * @param indexHint {@code true} if the value hash index exists
+     */
+    void activate(boolean indexHint) {
+
+        this.active = true;
+        this.indexHint = indexHint;
+    }
+
+    /**
+     * Checks if native queries are used, i.e. if they are enabled and the MariaDB driver is active.
+     *
+     * @return {@code true} if native queries are used
+     */
+    public boolean isActive() {
+
+        return active;
+    }
+
+    @Override
+    public boolean isApplicable(Map<String, Object> keyValuePairs, Sort.Order order) {
+
+        if (!active || keyValuePairs.isEmpty()) {
+            return false;
+        }
+
+        if (order != null && getSortColumn(order) == null) {
+            return false;
+        }
+
+        // JSON objects and arrays may be stored compressed and long values out of row, and Long values may still be
+        // stored as strings, the JPA queries compare them
+        return keyValuePairs.values()
+            .stream()
+            .noneMatch(value -> value instanceof ValueCondition || !MetadataValueParser.isStoredInline(value, outOfRowThreshold)
+                                || MetadataValueParser.getMatchingDataTypes(value)
+                                       .size() > 1);
+    }
+
+    @Override
+    public Query createPageQuery(
+        EntityManager entityManager, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs, Sort.Order order,
+        boolean valueHash) {
+
+        Query query = entityManager.createNativeQuery(getPageSql(tenantId != null, keyValuePairs.size(), valueHash, getSortColumn(order),
+                                                                 order.isAscending()),
+                                                      MetadataOwnerEntity.class);
+
+        return bind(query, tenantId, ownerType, keyValuePairs, valueHash);
+    }
+
+    @Override
+    public Query createCountQuery(
+        EntityManager entityManager, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs, boolean valueHash) {
+
+        Query query = entityManager.createNativeQuery(getCountSql(tenantId != null, keyValuePairs.size(), valueHash));
+
+        return bind(query, tenantId, ownerType, keyValuePairs, valueHash);
+    }
+
+    /**
+     * Renders the statement selecting the matching owners.
+     *
+     * @param tenant {@code true} if the search is restricted to a tenant
+     * @param pairCount the number of key-value pairs
+     * @param valueHash {@code true} if values are looked up by their hash
+     * @param sortColumn the owner column to sort by
+     * @param ascending the sort direction
+     * @return the SQL statement
+     */
+    public String getPageSql(boolean tenant, int pairCount, boolean valueHash, String sortColumn, boolean ascending) {
+
+        return "SELECT " + (active ? "STRAIGHT_JOIN " : "") + "o.* FROM (" + getMatchSql(tenant, pairCount, valueHash) + ") matches"
+               + " JOIN " + ownerTable + " o ON o." + ownerIdColumn + " = matches.owner_id"
+               + " ORDER BY o." + sortColumn + (ascending ? " ASC" : " DESC");
+    }
+
+    /**
+     * Renders the statement counting the matching owners.
+     *
+     * @param tenant {@code true} if the search is restricted to a tenant
+     * @param pairCount the number of key-value pairs
+     * @param valueHash {@code true} if values are looked up by their hash
+     * @return the SQL statement
+     */
+    public String getCountSql(boolean tenant, int pairCount, boolean valueHash) {
+
+        return "SELECT COUNT(*) FROM (" + getMatchSql(tenant, pairCount, valueHash) + ") matches";
+    }
+
+    /**
+     * Gets the owner column for a sort order on an owner field, i.e. {@code owner.<fieldName>}.
+     *
+     * @param order the sort order
+     * @return the column name, or {@code null} if the results cannot be sorted natively
+     */
+    public String getSortColumn(Sort.Order order) {
+
+        String prefix = OWNER_FIELD_NAME + ".";
+        if (order == null || !StringUtils.startsWith(order.getProperty(), prefix)) {
+            return null;
+        }
+
+        String fieldName = StringUtils.removeStart(order.getProperty(), prefix);
+        if (!MetadataPersistenceUtil.isFieldInClass(fieldName, MetadataOwnerEntity.class)
+            || MetadataOwnerEntity.METADATA_ENTITIES_FIELD_NAME.equals(fieldName)) {
+            return null;
+        }
+
+        return fieldName.equals(ownerPersister.getIdentifierPropertyName())
+               ? ownerIdColumn
+               : ownerPersister.getPropertyColumnNames(fieldName)[0];
+    }
+
+    private String getMatchSql(boolean tenant, int pairCount, boolean valueHash) {
+
+        // (keyName, dataType, valueHash) is the prefix of the index, the value comparison rules out hash collisions
+        String pairColumns = valueHash
+                             ? "(m." + keyNameColumn + ", m." + dataTypeColumn + ", m." + valueHashColumn + ")"
+                             : "(m." + keyNameColumn + ", m." + dataTypeColumn + ", m." + valueColumn + ")";
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT m.")
+            .append(ownerColumn)
+            .append(" AS owner_id FROM ")
+            .append(metadataTable)
+            .append(" m");
+        // without the value hash, e.g. while it is backfilled, the index would be scanned for the key names only
+        if (indexHint && valueHash) {
+            sql.append(" FORCE INDEX (")
+                .append(VALUE_HASH_INDEX_NAME)
+                .append(")");
+        }
+        sql.append(" JOIN ")
+            .append(ownerTable)
+            .append(" mo ON mo.")
+            .append(ownerIdColumn)
+            .append(" = m.")
+            .append(ownerColumn)
+            .append(" WHERE ")
+            .append(pairColumns)
+            .append(" IN (");
+        for (int i = 0; i < pairCount; i++) {
+            sql.append(i > 0 ? ", " : "")
+                .append(valueHash ? "(:key" + i + ", :dataType" + i + ", :valueHash" + i + ")" : "(:key" + i + ", :dataType" + i + ", :value" + i + ")");
+        }
+        sql.append(")");
+
+        if (valueHash) {
+            sql.append(" AND (m.")
+                .append(keyNameColumn)
+                .append(", m.")
+                .append(valueColumn)
+                .append(") IN (");
+            for (int i = 0; i < pairCount; i++) {
+                sql.append(i > 0 ? ", " : "")
+                    .append("(:key")
+                    .append(i)
+                    .append(", :value")
+                    .append(i)
+                    .append(")");
+            }
+            sql.append(")");
+        }
+
+        sql.append(" AND mo.")
+            .append(ownerTenantIdColumn)
+            .append(tenant ? " = :tenantId" : " IS NOT NULL")
+            .append(" AND mo.")
+            .append(ownerTypeColumn)
+            .append(" = :ownerType GROUP BY m.")
+            .append(ownerColumn)
+            .append(" HAVING COUNT(*) = :pairCount");
+
+        return sql.toString();
+    }
+
+    private static Query bind(Query query, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs, boolean valueHash) {
+
+        if (tenantId != null) {
+            query.setParameter("tenantId", tenantId);
+        }
+        query.setParameter("ownerType", ownerType);
+        query.setParameter("pairCount", keyValuePairs.size());
+
+        for (int i = 0; i < keyValuePairs.size(); i++) {
+            Map.Entry<String, Object> keyValuePair = keyValuePairs.get(i);
+            String value = MetadataValueParser.getValue(keyValuePair.getValue());
+
+            query.setParameter("key" + i, keyValuePair.getKey());
+            // native queries bypass the attribute converter
+            query.setParameter("dataType" + i, MetadataValueParser.getDataType(keyValuePair.getValue())
+                .getId());
+            query.setParameter("value" + i, value);
+            if (valueHash) {
+                query.setParameter("valueHash" + i, MetadataValueParser.getValueHash(value));
+            }
+        }
+
+        return query;
+    }
+
+    private static boolean hasIndex(DatabaseMetaData databaseMetaData, String catalog, String table, String indexName) throws SQLException {
+
+        try (ResultSet indexes = databaseMetaData.getIndexInfo(catalog, null, table, false, true)) {
+            while (indexes.next()) {
+                if (StringUtils.equalsIgnoreCase(indexName, indexes.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
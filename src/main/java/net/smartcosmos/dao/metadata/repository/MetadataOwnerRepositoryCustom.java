@@ -1,6 +1,7 @@
 package net.smartcosmos.dao.metadata.repository;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
@@ -43,6 +44,31 @@ public interface MetadataOwnerRepositoryCustom {
     @Transactional
     void orphanDelete(UUID tenantID, String ownerType, UUID ownerId);
 
+    /**
+     * Deletes a metadata entity with a single set-based statement, and its owner if it is not associated to any other
+     * metadata entities.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type
+     * @param ownerId the owner ID
+     * @param keyName the key name
+     * @return the deleted metadata entity, or an empty list if it does not exist
+     */
+    @Transactional
+    List<MetadataEntity> deleteMetadataEntity(UUID tenantId, String ownerType, UUID ownerId, String keyName);
+
+    /**
+     * Deletes a metadata owner entity and all associated metadata entities with one set-based statement per table,
+     * instead of loading and removing each entity.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type
+     * @param ownerId the owner ID
+     * @return the deleted metadata entities
+     */
+    @Transactional
+    List<MetadataEntity> deleteOwner(UUID tenantId, String ownerType, UUID ownerId);
+
     /**
      * Gets all metadata entities associated to a given owner.
      *
@@ -52,6 +78,18 @@ public interface MetadataOwnerRepositoryCustom {
     @Transactional
     Map<String, MetadataEntity> getAssociatedMetadataEntities(UUID internalId);
 
+    /**
+     * Gets a metadata owner entity by its natural ID, which the second-level cache resolves without a query once it is
+     * enabled and the owner was read before.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type
+     * @param ownerId the owner ID
+     * @return the owner entity, or empty if it does not exist
+     */
+    @Transactional
+    Optional<MetadataOwnerEntity> findByNaturalId(UUID tenantId, String ownerType, UUID ownerId);
+
     /**
      * Saves a metadata owner entity in an {@link MetadataOwnerRepository}.
      *
@@ -1,19 +1,36 @@
 package net.smartcosmos.dao.metadata.repository;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Fetch;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
 import javax.validation.ConstraintViolationException;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.TransactionException;
 import org.springframework.util.Assert;
 
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
 
@@ -22,12 +39,32 @@ public class MetadataOwnerRepositoryImpl implements MetadataOwnerRepositoryCusto
 
     @Lazy
     private final MetadataOwnerRepository repository;
+    private final EntityManager entityManager;
+    private final MetadataPersistenceMetrics metrics;
+    private final OutOfRowValues outOfRowValues;
+    private final SharedValues sharedValues;
+    private final OwnerIdCache ownerIdCache;
+    private final boolean skipUnchanged;
 
     @Lazy
     @Autowired
-    public MetadataOwnerRepositoryImpl(MetadataOwnerRepository repository) {
+    public MetadataOwnerRepositoryImpl(
+        MetadataOwnerRepository repository,
+        EntityManager entityManager,
+        MetadataPersistenceMetrics metrics,
+        OutOfRowValues outOfRowValues,
+        SharedValues sharedValues,
+        OwnerIdCache ownerIdCache,
+        MetadataPersistenceProperties properties) {
 
         this.repository = repository;
+        this.entityManager = entityManager;
+        this.metrics = metrics;
+        this.outOfRowValues = outOfRowValues;
+        this.sharedValues = sharedValues;
+        this.ownerIdCache = ownerIdCache;
+        this.skipUnchanged = properties.getWrite()
+            .isSkipUnchanged();
     }
 
     @Override
@@ -40,13 +77,37 @@ public class MetadataOwnerRepositoryImpl implements MetadataOwnerRepositoryCusto
             throw new IllegalArgumentException(String.format("No MetadataOwnerEntity with internal ID '%s'", internalId));
         }
 
+        Map<String, String> sharedReferences = lockSharedReferences(internalId);
         Map<String, MetadataEntity> ownerMetadataEntities = initMetadataEntities(owner);
+        List<MetadataEntity> existingEntities = new ArrayList<>();
+        for (MetadataEntity metadataEntity : metadataEntities) {
+            MetadataEntity existing = ownerMetadataEntities.get(metadataEntity.getKeyName());
+            if (existing != null) {
+                existingEntities.add(existing);
+            }
+        }
+        if (skipUnchanged) {
+            outOfRowValues.load(existingEntities);
+        }
+
+        List<MetadataEntity> writtenEntities = new ArrayList<>();
         for (MetadataEntity metadataEntity : metadataEntities) {
             metadataEntity.setOwner(owner);
+            if (skipUnchanged && metadataEntity.hasSameValue(ownerMetadataEntities.get(metadataEntity.getKeyName()))) {
+                continue;
+            }
 
             ownerMetadataEntities.put(metadataEntity.getKeyName(), metadataEntity);
+            writtenEntities.add(metadataEntity);
+        }
+        countWrites(writtenEntities.size(), metadataEntities.size() - writtenEntities.size());
+
+        if (!writtenEntities.isEmpty()) {
+            Set<String> outOfRowKeys = clearOutOfRowValues(existingEntities);
+            persist(owner);
+            writeOutOfRowValues(internalId, writtenEntities, outOfRowKeys);
+            writeSharedValues(writtenEntities, sharedReferences);
         }
-        persist(owner);
     }
 
     @Override
@@ -59,12 +120,26 @@ public class MetadataOwnerRepositoryImpl implements MetadataOwnerRepositoryCusto
             throw new IllegalArgumentException(String.format("No MetadataOwnerEntity with internal ID '%s'", internalId));
         }
 
+        Map<String, String> sharedReferences = lockSharedReferences(internalId);
         Map<String, MetadataEntity> map = initMetadataEntities(owner);
 
         if (map.containsKey(metadataEntity.getKeyName())) {
+            MetadataEntity existing = map.get(metadataEntity.getKeyName());
+            if (skipUnchanged) {
+                outOfRowValues.load(Collections.singletonList(existing));
+                if (existing.hasSameValue(metadataEntity)) {
+                    countWrites(0, 1);
+                    return Optional.of(existing);
+                }
+            }
+            countWrites(1, 0);
+
             metadataEntity.setOwner(owner);
             map.replace(metadataEntity.getKeyName(), metadataEntity);
+            Set<String> outOfRowKeys = clearOutOfRowValues(Collections.singletonList(existing));
             persist(owner);
+            writeOutOfRowValues(internalId, Collections.singletonList(metadataEntity), outOfRowKeys);
+            writeSharedValues(Collections.singletonList(metadataEntity), sharedReferences);
 
             return Optional.ofNullable(metadataEntity);
         }
@@ -84,7 +159,135 @@ public class MetadataOwnerRepositoryImpl implements MetadataOwnerRepositoryCusto
             .getMetadataEntities()
             .isEmpty()) {
             repository.delete(owner.get());
+            ownerIdCache.evict(tenantId, type, id);
+        }
+    }
+
+    @Override
+    public List<MetadataEntity> deleteMetadataEntity(UUID tenantId, String type, UUID id, String keyName) {
+
+        Assert.notNull(tenantId, "tenantId must not be null");
+        Assert.notNull(id, "id must not be null");
+
+        List<MetadataEntity> metadataEntities = findMetadataEntities(tenantId, type, id, keyName);
+        if (metadataEntities.isEmpty()) {
+            return metadataEntities;
+        }
+
+        UUID internalId = metadataEntities.get(0)
+            .getOwner()
+            .getInternalId();
+        outOfRowValues.load(metadataEntities);
+        outOfRowValues.delete(internalId, keyName);
+        releaseSharedValues(lockSharedReferences(internalId), Collections.singleton(keyName));
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+
+        CriteriaDelete<MetadataEntity> metadataDelete = builder.createCriteriaDelete(MetadataEntity.class);
+        Root<MetadataEntity> metadata = metadataDelete.from(MetadataEntity.class);
+        metadataDelete.where(builder.equal(metadata.get(MetadataEntity.OWNER_FIELD_NAME)
+                                               .get(MetadataOwnerEntity.ID_FIELD_NAME), internalId),
+                             builder.equal(metadata.get(MetadataEntity.KEY_NAME_FIELD_NAME), keyName));
+        entityManager.createQuery(metadataDelete)
+            .executeUpdate();
+
+        // the owner is only deleted if no other metadata entity refers to it
+        CriteriaDelete<MetadataOwnerEntity> ownerDelete = builder.createCriteriaDelete(MetadataOwnerEntity.class);
+        Root<MetadataOwnerEntity> owner = ownerDelete.from(MetadataOwnerEntity.class);
+        Subquery<String> remaining = ownerDelete.subquery(String.class);
+        Root<MetadataEntity> remainingMetadata = remaining.from(MetadataEntity.class);
+        remaining.select(remainingMetadata.get(MetadataEntity.KEY_NAME_FIELD_NAME))
+            .where(builder.equal(remainingMetadata.get(MetadataEntity.OWNER_FIELD_NAME)
+                                     .get(MetadataOwnerEntity.ID_FIELD_NAME), internalId));
+        ownerDelete.where(builder.equal(owner.get(MetadataOwnerEntity.ID_FIELD_NAME), internalId),
+                          builder.not(builder.exists(remaining)));
+        if (entityManager.createQuery(ownerDelete)
+                .executeUpdate() > 0) {
+            ownerIdCache.evict(tenantId, type, id);
+        }
+
+        return metadataEntities;
+    }
+
+    @Override
+    public List<MetadataEntity> deleteOwner(UUID tenantId, String type, UUID id) {
+
+        Assert.notNull(tenantId, "tenantId must not be null");
+        Assert.notNull(id, "id must not be null");
+
+        List<MetadataEntity> metadataEntities = findMetadataEntities(tenantId, type, id, null);
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+
+        CriteriaDelete<MetadataOwnerEntity> ownerDelete = builder.createCriteriaDelete(MetadataOwnerEntity.class);
+        Root<MetadataOwnerEntity> owner = ownerDelete.from(MetadataOwnerEntity.class);
+
+        if (metadataEntities.isEmpty()) {
+            // an owner without metadata, if any
+            ownerDelete.where(builder.equal(owner.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), tenantId),
+                              builder.equal(owner.get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME), type),
+                              builder.equal(owner.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME), id));
+        } else {
+            UUID internalId = metadataEntities.get(0)
+                .getOwner()
+                .getInternalId();
+            outOfRowValues.load(metadataEntities);
+            outOfRowValues.delete(internalId, null);
+            Map<String, String> sharedReferences = lockSharedReferences(internalId);
+            releaseSharedValues(sharedReferences, sharedReferences.keySet());
+
+            CriteriaDelete<MetadataEntity> metadataDelete = builder.createCriteriaDelete(MetadataEntity.class);
+            Root<MetadataEntity> metadata = metadataDelete.from(MetadataEntity.class);
+            metadataDelete.where(builder.equal(metadata.get(MetadataEntity.OWNER_FIELD_NAME)
+                                                   .get(MetadataOwnerEntity.ID_FIELD_NAME), internalId));
+            entityManager.createQuery(metadataDelete)
+                .executeUpdate();
+
+            ownerDelete.where(builder.equal(owner.get(MetadataOwnerEntity.ID_FIELD_NAME), internalId));
+        }
+        entityManager.createQuery(ownerDelete)
+            .executeUpdate();
+        ownerIdCache.evict(tenantId, type, id);
+
+        return metadataEntities;
+    }
+
+    /**
+     * Loads the metadata entities to delete together with their owner in one query, as set-based deletes cannot return
+     * the deleted rows on all supported databases.
+     */
+    private List<MetadataEntity> findMetadataEntities(UUID tenantId, String type, UUID id, String keyName) {
+
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<MetadataEntity> query = builder.createQuery(MetadataEntity.class);
+        Root<MetadataEntity> metadata = query.from(MetadataEntity.class);
+        Fetch<MetadataEntity, MetadataOwnerEntity> ownerFetch = metadata.fetch(MetadataEntity.OWNER_FIELD_NAME);
+        // Hibernate implements fetches as joins, so the owner can be filtered without joining it twice
+        Join<MetadataEntity, MetadataOwnerEntity> owner = (Join<MetadataEntity, MetadataOwnerEntity>) ownerFetch;
+
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(builder.equal(owner.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), tenantId));
+        predicates.add(builder.equal(owner.get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME), type));
+        predicates.add(builder.equal(owner.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME), id));
+        if (keyName != null) {
+            predicates.add(builder.equal(metadata.get(MetadataEntity.KEY_NAME_FIELD_NAME), keyName));
         }
+        query.select(metadata)
+            .where(predicates.toArray(new Predicate[predicates.size()]));
+
+        return entityManager.createQuery(query)
+            .getResultList();
+    }
+
+    @Override
+    public Optional<MetadataOwnerEntity> findByNaturalId(UUID tenantId, String ownerType, UUID ownerId) {
+
+        Object owner = entityManager.unwrap(Session.class)
+            .byNaturalId(MetadataOwnerEntity.class)
+            .using(MetadataOwnerEntity.TENANT_ID_FIELD_NAME, tenantId)
+            .using(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME, ownerType)
+            .using(MetadataOwnerEntity.OWNER_ID_FIELD_NAME, ownerId)
+            .load();
+
+        return Optional.ofNullable((MetadataOwnerEntity) owner);
     }
 
     @Override
@@ -102,6 +305,76 @@ public class MetadataOwnerRepositoryImpl implements MetadataOwnerRepositoryCusto
         throw new IllegalArgumentException(String.format("No MetadataOwnerEntity with internal ID '%s'", internalId));
     }
 
+    /**
+     * Gets the keys of entries about to be replaced whose value is out of row, and clears their loaded values, as the
+     * replacing entries are merged into them and their derived values must not be computed from the old value.
+     */
+    private static Set<String> clearOutOfRowValues(Collection<MetadataEntity> replacedEntities) {
+
+        replacedEntities.forEach(metadataEntity -> metadataEntity.setOutOfRowValue(null));
+
+        return replacedEntities.stream()
+            .filter(OutOfRowValues::hasOwnValue)
+            .map(MetadataEntity::getKeyName)
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * Writes the out-of-row values of written entries, and deletes the ones of replaced entries whose new value is in
+     * their row.
+     */
+    private void writeOutOfRowValues(UUID internalId, Collection<MetadataEntity> writtenEntities, Set<String> outOfRowKeys) {
+
+        outOfRowValues.save(internalId, writtenEntities);
+
+        writtenEntities.stream()
+            .filter(metadataEntity -> !OutOfRowValues.hasOwnValue(metadataEntity))
+            .map(MetadataEntity::getKeyName)
+            .filter(outOfRowKeys::contains)
+            .forEach(keyName -> outOfRowValues.delete(internalId, keyName));
+    }
+
+    /**
+     * Selects the shared references of an owner for update, if values are shared, before its metadata is read.
+     */
+    private Map<String, String> lockSharedReferences(UUID internalId) {
+
+        return sharedValues.isEnabled() ? sharedValues.lockReferences(internalId) : Collections.emptyMap();
+    }
+
+    /**
+     * Replaces the shared references of the written entries.
+     */
+    private void writeSharedValues(Collection<MetadataEntity> writtenEntities, Map<String, String> sharedReferences) {
+
+        SharedValues.Changes changes = new SharedValues.Changes();
+        for (MetadataEntity metadataEntity : writtenEntities) {
+            changes.remove(sharedReferences.get(metadataEntity.getKeyName()));
+            changes.add(metadataEntity);
+        }
+        if (!changes.isEmpty()) {
+            sharedValues.apply(changes);
+        }
+    }
+
+    /**
+     * Removes the shared references of deleted keys.
+     */
+    private void releaseSharedValues(Map<String, String> sharedReferences, Collection<String> keyNames) {
+
+        SharedValues.Changes changes = new SharedValues.Changes();
+        keyNames.forEach(keyName -> changes.remove(sharedReferences.get(keyName)));
+        if (!changes.isEmpty()) {
+            sharedValues.apply(changes);
+        }
+    }
+
+    private void countWrites(int written, int elided) {
+
+        metrics.add(MetadataPersistenceMetrics.WRITTEN_ROWS, written);
+        metrics.add(MetadataPersistenceMetrics.ELIDED_ROWS, elided);
+    }
+
     private Map<String, MetadataEntity> initMetadataEntities(MetadataOwnerEntity owner) {
 
         Map<String, MetadataEntity> metadataEntities = owner.getMetadataEntities();
@@ -0,0 +1,469 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataPurgeEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueEntity;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_REF_FIELD_NAME;
+
+/**
+ * Deletes all metadata of a tenant, or of one owner type of a tenant, in chunks of rows in primary key order. Each
+ * chunk is one short transaction that deletes a bounded primary key range, so that online traffic on the other rows
+ * is not blocked, and chunks are throttled to a maximum row rate. Owners are deleted once their metadata is gone.
+ * <p>
+ * Pending purges are recorded in the {@code metadataPurge} table and resumed after startup if they were interrupted.
+ * As each chunk only selects the rows that are left, resuming a purge simply continues where it stopped. An instance
+ * only runs a purge while it holds the lease of its row, renewing it with each chunk, so that instances starting at
+ * the same time do not resume the same purges concurrently. Chunks commit in transactions of their own, also when a
+ * purge is called within a transaction.
+ * <p>
+ * If values are shared, each chunk selects its rows for update and releases their shared references. Cached values
+ * of single-key lookups of the purged owners are discarded after each chunk, see {@link MetadataValueCache}, and their
+ * cached internal IDs after owners were deleted, see {@link OwnerIdCache}.
+ */
+@Slf4j
+@Component
+public class MetadataPurge implements ApplicationListener<ApplicationReadyEvent> {
+
+    private final EntityManager entityManager;
+    private final CriteriaBuilder builder;
+    private final TransactionTemplate transactionTemplate;
+    private final MetadataPurgeRepository purgeRepository;
+    private final SharedValues sharedValues;
+    private final MetadataValueCache valueCache;
+    private final OwnerIdCache ownerIdCache;
+
+    private final int chunkSize;
+    private final int maxRowsPerSecond;
+    private final boolean resumeOnStartup;
+    private final long leaseTime;
+    private final String instanceId = UUID.randomUUID()
+        .toString();
+
+    @Autowired
+    public MetadataPurge(
+        EntityManager entityManager,
+        PlatformTransactionManager transactionManager,
+        MetadataPurgeRepository purgeRepository,
+        SharedValues sharedValues,
+        MetadataValueCache valueCache,
+        OwnerIdCache ownerIdCache,
+        MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.builder = entityManager.getCriteriaBuilder();
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.purgeRepository = purgeRepository;
+        this.sharedValues = sharedValues;
+        this.valueCache = valueCache;
+        this.ownerIdCache = ownerIdCache;
+
+        MetadataPersistenceProperties.Purge config = properties.getPurge();
+        this.chunkSize = config.getChunkSize();
+        this.maxRowsPerSecond = config.getMaxRowsPerSecond();
+        this.resumeOnStartup = config.isResumeOnStartup();
+        this.leaseTime = config.getLeaseTime();
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+
+        if (resumeOnStartup) {
+            Thread thread = new Thread(this::resumeAll, "metadata-purge");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Deletes all metadata and owners of a tenant, or of one owner type of a tenant, in the calling thread.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type, or {@code null} for all owner types
+     * @return the number of deleted metadata entries
+     */
+    public long purge(UUID tenantId, String ownerType) {
+
+        Assert.notNull(tenantId, "tenantId must not be null");
+
+        Date now = new Date();
+        // committed before the chunks, which run in transactions of their own and update it
+        MetadataPurgeEntity purge = transactionTemplate.execute(status -> purgeRepository.save(MetadataPurgeEntity.builder()
+                                                                                                   .tenantId(tenantId)
+                                                                                                   .ownerType(ownerType)
+                                                                                                   .created(now)
+                                                                                                   .lockedBy(instanceId)
+                                                                                                   .lockedUntil(new Date(now.getTime() + leaseTime))
+                                                                                                   .build()));
+
+        return run(purge);
+    }
+
+    /**
+     * Resumes all pending purges whose lease is not held by another instance, e.g. the ones interrupted by a restart.
+     *
+     * @return the number of deleted metadata entries
+     */
+    public long resumeAll() {
+
+        long total = 0;
+        for (MetadataPurgeEntity purge : purgeRepository.findAll()) {
+            if (!acquireLease(purge)) {
+                log.info("Purge of tenant {}, owner type {} is running on another instance.", purge.getTenantId(), purge.getOwnerType());
+                continue;
+            }
+            try {
+                log.info("Resuming purge of tenant {}, owner type {}.", purge.getTenantId(), purge.getOwnerType());
+                total += run(purge);
+            } catch (RuntimeException e) {
+                log.error("Purge of tenant {}, owner type {} failed, it is resumed on the next startup.",
+                          purge.getTenantId(), purge.getOwnerType(), e);
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Runs a purge while this instance holds its lease.
+     */
+    private long run(MetadataPurgeEntity purge) {
+
+        try {
+            return runLeased(purge);
+        } catch (RuntimeException e) {
+            releaseLease(purge);
+            throw e;
+        }
+    }
+
+    private long runLeased(MetadataPurgeEntity purge) {
+
+        long startNanos = System.nanoTime();
+        long deleted = 0;
+
+        int selected;
+        do {
+            int[] chunk = transactionTemplate.execute(status -> {
+                int[] deletedChunk = deleteMetadataChunk(purge);
+                if (!renewLease(purge, deletedChunk[1])) {
+                    status.setRollbackOnly();
+                    return null;
+                }
+                return deletedChunk;
+            });
+            if (chunk == null) {
+                log.warn("Purge of tenant {}, owner type {} lost its lease after {} metadata entries, another instance continues it.",
+                         purge.getTenantId(), purge.getOwnerType(), deleted);
+                return deleted;
+            }
+            if (chunk[1] > 0) {
+                valueCache.invalidateTenant(purge.getTenantId(), purge.getOwnerType());
+            }
+            selected = chunk[0];
+            deleted += chunk[1];
+            if (!throttle(deleted, startNanos)) {
+                log.warn("Purge of tenant {}, owner type {} interrupted after {} metadata entries.",
+                         purge.getTenantId(), purge.getOwnerType(), deleted);
+                releaseLease(purge);
+                return deleted;
+            }
+        } while (selected > 0);
+
+        UUID after = null;
+        List<UUID> owners;
+        do {
+            owners = getOwnerChunk(purge, after);
+            if (!owners.isEmpty()) {
+                List<UUID> chunk = owners;
+                Integer deletedOwners = transactionTemplate.execute(status -> {
+                    int deletedChunk = deleteOwners(chunk);
+                    if (!renewLease(purge, 0)) {
+                        status.setRollbackOnly();
+                        return null;
+                    }
+                    return deletedChunk;
+                });
+                if (deletedOwners == null) {
+                    log.warn("Purge of tenant {}, owner type {} lost its lease while deleting owners, another instance continues it.",
+                             purge.getTenantId(), purge.getOwnerType());
+                    return deleted;
+                }
+                if (deletedOwners > 0) {
+                    ownerIdCache.evictTenant(purge.getTenantId(), purge.getOwnerType());
+                }
+                if (deletedOwners < chunk.size()) {
+                    log.warn("{} owners of tenant {} received new metadata during the purge and were kept.",
+                             chunk.size() - deletedOwners, purge.getTenantId());
+                }
+                after = owners.get(owners.size() - 1);
+            }
+        } while (owners.size() >= chunkSize);
+
+        transactionTemplate.execute(status -> {
+            CriteriaDelete<MetadataPurgeEntity> delete = builder.createCriteriaDelete(MetadataPurgeEntity.class);
+            Root<MetadataPurgeEntity> root = delete.from(MetadataPurgeEntity.class);
+            delete.where(builder.equal(root.get(MetadataPurgeEntity.ID_FIELD_NAME), purge.getId()));
+            return entityManager.createQuery(delete)
+                .executeUpdate();
+        });
+        log.info("Purge of tenant {}, owner type {} complete, deleted {} metadata entries.",
+                 purge.getTenantId(), purge.getOwnerType(), purge.getDeleted() + deleted);
+
+        return deleted;
+    }
+
+    /**
+     * Deletes the first chunk of the remaining metadata rows of a purge, i.e. all of its rows up to the primary key of
+     * the last selected row.
+     *
+     * @return the number of selected and deleted rows
+     */
+    private int[] deleteMetadataChunk(MetadataPurgeEntity purge) {
+
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<MetadataEntity> root = query.from(MetadataEntity.class);
+        Path<UUID> owner = root.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.ID_FIELD_NAME);
+        Path<String> keyName = root.get(KEY_NAME_FIELD_NAME);
+
+        // the owners are scoped in a subquery, as locking reads must not join
+        Subquery<UUID> queryOwners = query.subquery(UUID.class);
+        Root<MetadataOwnerEntity> queryOwner = queryOwners.from(MetadataOwnerEntity.class);
+        queryOwners.select(queryOwner.get(MetadataOwnerEntity.ID_FIELD_NAME))
+            .where(getScope(queryOwner, purge));
+
+        query.multiselect(owner, keyName, root.get(VALUE_REF_FIELD_NAME))
+            .where(owner.in(queryOwners))
+            .orderBy(builder.asc(owner), builder.asc(keyName));
+
+        // shared references are counted down, so the rows must not change until they are deleted
+        List<Object[]> rows = entityManager.createQuery(query)
+            .setMaxResults(chunkSize)
+            .setLockMode(sharedValues.isEnabled() ? LockModeType.PESSIMISTIC_WRITE : LockModeType.NONE)
+            .getResultList();
+        if (rows.isEmpty()) {
+            return new int[] { 0, 0 };
+        }
+
+        UUID lastOwner = (UUID) rows.get(rows.size() - 1)[0];
+        String lastKeyName = (String) rows.get(rows.size() - 1)[1];
+
+        CriteriaDelete<MetadataEntity> delete = builder.createCriteriaDelete(MetadataEntity.class);
+        Root<MetadataEntity> deleteRoot = delete.from(MetadataEntity.class);
+        Path<UUID> deleteOwner = deleteRoot.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.ID_FIELD_NAME);
+        Path<String> deleteKeyName = deleteRoot.get(KEY_NAME_FIELD_NAME);
+
+        Subquery<UUID> scopeOwners = delete.subquery(UUID.class);
+        Root<MetadataOwnerEntity> scopeOwner = scopeOwners.from(MetadataOwnerEntity.class);
+        scopeOwners.select(scopeOwner.get(MetadataOwnerEntity.ID_FIELD_NAME))
+            .where(getScope(scopeOwner, purge));
+
+        delete.where(deleteOwner.in(scopeOwners),
+                     builder.or(builder.lessThan(deleteOwner, lastOwner),
+                                builder.and(builder.equal(deleteOwner, lastOwner),
+                                            builder.lessThanOrEqualTo(deleteKeyName, lastKeyName))));
+        int deleted = entityManager.createQuery(delete)
+            .executeUpdate();
+        deleteOutOfRowValues(purge, lastOwner, lastKeyName);
+
+        SharedValues.Changes changes = new SharedValues.Changes();
+        rows.forEach(row -> changes.remove((String) row[2]));
+        if (!changes.isEmpty()) {
+            sharedValues.apply(changes);
+        }
+
+        return new int[] { rows.size(), deleted };
+    }
+
+    /**
+     * Takes the lease of a pending purge unless another instance holds it.
+     *
+     * @return {@code true} if this instance holds the lease now
+     */
+    private boolean acquireLease(MetadataPurgeEntity purge) {
+
+        Date now = new Date();
+
+        return transactionTemplate.execute(status -> {
+            CriteriaUpdate<MetadataPurgeEntity> update = builder.createCriteriaUpdate(MetadataPurgeEntity.class);
+            Root<MetadataPurgeEntity> root = update.from(MetadataPurgeEntity.class);
+            update.set(root.get(MetadataPurgeEntity.LOCKED_BY_FIELD_NAME), instanceId)
+                .set(root.get(MetadataPurgeEntity.LOCKED_UNTIL_FIELD_NAME), new Date(now.getTime() + leaseTime))
+                .where(builder.equal(root.get(MetadataPurgeEntity.ID_FIELD_NAME), purge.getId()),
+                       builder.or(builder.isNull(root.get(MetadataPurgeEntity.LOCKED_UNTIL_FIELD_NAME)),
+                                  builder.lessThan(root.<Date>get(MetadataPurgeEntity.LOCKED_UNTIL_FIELD_NAME), now)));
+
+            return entityManager.createQuery(update)
+                       .executeUpdate() == 1;
+        });
+    }
+
+    /**
+     * Records the progress of a purge and renews its lease, within the transaction of a chunk.
+     *
+     * @return {@code false} if this instance no longer holds the lease, so that the chunk must be rolled back
+     */
+    private boolean renewLease(MetadataPurgeEntity purge, int deleted) {
+
+        CriteriaUpdate<MetadataPurgeEntity> update = builder.createCriteriaUpdate(MetadataPurgeEntity.class);
+        Root<MetadataPurgeEntity> root = update.from(MetadataPurgeEntity.class);
+        Path<Long> purgeDeleted = root.get(MetadataPurgeEntity.DELETED_FIELD_NAME);
+        update.set(purgeDeleted, builder.sum(purgeDeleted, (long) deleted))
+            .set(root.get(MetadataPurgeEntity.LOCKED_UNTIL_FIELD_NAME), new Date(System.currentTimeMillis() + leaseTime))
+            .where(builder.equal(root.get(MetadataPurgeEntity.ID_FIELD_NAME), purge.getId()),
+                   builder.equal(root.get(MetadataPurgeEntity.LOCKED_BY_FIELD_NAME), instanceId));
+
+        return entityManager.createQuery(update)
+                   .executeUpdate() == 1;
+    }
+
+    private void releaseLease(MetadataPurgeEntity purge) {
+
+        try {
+            transactionTemplate.execute(status -> {
+                CriteriaUpdate<MetadataPurgeEntity> update = builder.createCriteriaUpdate(MetadataPurgeEntity.class);
+                Root<MetadataPurgeEntity> root = update.from(MetadataPurgeEntity.class);
+                update.set(root.get(MetadataPurgeEntity.LOCKED_BY_FIELD_NAME), (String) null)
+                    .set(root.get(MetadataPurgeEntity.LOCKED_UNTIL_FIELD_NAME), (Date) null)
+                    .where(builder.equal(root.get(MetadataPurgeEntity.ID_FIELD_NAME), purge.getId()),
+                           builder.equal(root.get(MetadataPurgeEntity.LOCKED_BY_FIELD_NAME), instanceId));
+
+                return entityManager.createQuery(update)
+                    .executeUpdate();
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not release the lease of the purge of tenant {}, it expires in {} ms.", purge.getTenantId(), leaseTime, e);
+        }
+    }
+
+    /**
+     * Deletes the out-of-row values of a purge up to a primary key, which is shared with their metadata rows.
+     */
+    private void deleteOutOfRowValues(MetadataPurgeEntity purge, UUID lastOwner, String lastKeyName) {
+
+        CriteriaDelete<MetadataValueEntity> delete = builder.createCriteriaDelete(MetadataValueEntity.class);
+        Root<MetadataValueEntity> root = delete.from(MetadataValueEntity.class);
+        Path<UUID> owner = root.get(MetadataValueEntity.OWNER_INTERNAL_ID_FIELD_NAME);
+        Path<String> keyName = root.get(MetadataValueEntity.KEY_NAME_FIELD_NAME);
+
+        Subquery<UUID> scopeOwners = delete.subquery(UUID.class);
+        Root<MetadataOwnerEntity> scopeOwner = scopeOwners.from(MetadataOwnerEntity.class);
+        scopeOwners.select(scopeOwner.get(MetadataOwnerEntity.ID_FIELD_NAME))
+            .where(getScope(scopeOwner, purge));
+
+        delete.where(owner.in(scopeOwners),
+                     builder.or(builder.lessThan(owner, lastOwner),
+                                builder.and(builder.equal(owner, lastOwner),
+                                            builder.lessThanOrEqualTo(keyName, lastKeyName))));
+        entityManager.createQuery(delete)
+            .executeUpdate();
+    }
+
+    private List<UUID> getOwnerChunk(MetadataPurgeEntity purge, UUID after) {
+
+        return transactionTemplate.execute(status -> {
+            CriteriaQuery<UUID> query = builder.createQuery(UUID.class);
+            Root<MetadataOwnerEntity> root = query.from(MetadataOwnerEntity.class);
+            Path<UUID> internalId = root.get(MetadataOwnerEntity.ID_FIELD_NAME);
+
+            List<Predicate> predicates = new ArrayList<>();
+            predicates.add(getScope(root, purge));
+            if (after != null) {
+                predicates.add(builder.greaterThan(internalId, after));
+            }
+            query.select(internalId)
+                .where(predicates.toArray(new Predicate[predicates.size()]))
+                .orderBy(builder.asc(internalId));
+
+            return entityManager.createQuery(query)
+                .setMaxResults(chunkSize)
+                .getResultList();
+        });
+    }
+
+    private int deleteOwners(List<UUID> internalIds) {
+
+        CriteriaDelete<MetadataOwnerEntity> delete = builder.createCriteriaDelete(MetadataOwnerEntity.class);
+        Root<MetadataOwnerEntity> root = delete.from(MetadataOwnerEntity.class);
+
+        Subquery<String> remaining = delete.subquery(String.class);
+        Root<MetadataEntity> remainingRoot = remaining.from(MetadataEntity.class);
+        remaining.select(remainingRoot.get(KEY_NAME_FIELD_NAME))
+            .where(builder.equal(remainingRoot.get(OWNER_FIELD_NAME), root));
+
+        delete.where(root.get(MetadataOwnerEntity.ID_FIELD_NAME)
+                         .in(internalIds),
+                     builder.not(builder.exists(remaining)));
+
+        return entityManager.createQuery(delete)
+            .executeUpdate();
+    }
+
+    private Predicate getScope(Path<MetadataOwnerEntity> owner, MetadataPurgeEntity purge) {
+
+        Predicate tenant = builder.equal(owner.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), purge.getTenantId());
+        if (purge.getOwnerType() == null) {
+            return tenant;
+        }
+
+        return builder.and(tenant, builder.equal(owner.get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME), purge.getOwnerType()));
+    }
+
+    /**
+     * Waits until the rows deleted so far are within the rate limit.
+     *
+     * @return {@code false} if the thread was interrupted
+     */
+    private boolean throttle(long rows, long startNanos) {
+
+        if (maxRowsPerSecond <= 0) {
+            return true;
+        }
+
+        long dueMillis = rows * 1000 / maxRowsPerSecond - (System.nanoTime() - startNanos) / 1000000;
+        if (dueMillis > 0) {
+            try {
+                Thread.sleep(dueMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,10 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.UUID;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import net.smartcosmos.dao.metadata.domain.MetadataPurgeEntity;
+
+public interface MetadataPurgeRepository extends JpaRepository<MetadataPurgeEntity, UUID> {
+}
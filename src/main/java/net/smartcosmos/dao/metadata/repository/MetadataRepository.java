@@ -43,14 +43,26 @@ public interface MetadataRepository extends JpaRepository<MetadataEntity, UUID>,
 
     List<MetadataEntity> findByOwner_TenantIdAndOwner_TypeAndOwner_Id(UUID tenantId, String ownerType, UUID ownerId);
 
-    Page<MetadataEntity> findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeAndValue(
+    Page<MetadataEntity> findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeInAndValue(
         UUID tenantId, String ownerType, String keyName,
-        MetadataDataType dataType,
+        Collection<MetadataDataType> dataTypes,
         String value, Pageable pageable);
 
-    Page<MetadataEntity> findByOwnerTypeAndKeyNameAndDataTypeAndValue(
+    Page<MetadataEntity> findByOwnerTypeAndKeyNameAndDataTypeInAndValue(
         String ownerType, String keyName,
-        MetadataDataType dataType,
+        Collection<MetadataDataType> dataTypes,
+        String value, Pageable pageable);
+
+    Page<MetadataEntity> findByOwner_TenantIdAndOwner_TypeAndKeyNameAndDataTypeInAndValueHashAndValue(
+        UUID tenantId, String ownerType, String keyName,
+        Collection<MetadataDataType> dataTypes,
+        Long valueHash,
+        String value, Pageable pageable);
+
+    Page<MetadataEntity> findByOwnerTypeAndKeyNameAndDataTypeInAndValueHashAndValue(
+        String ownerType, String keyName,
+        Collection<MetadataDataType> dataTypes,
+        Long valueHash,
         String value, Pageable pageable);
 
     @Transactional
@@ -1,12 +1,15 @@
 package net.smartcosmos.dao.metadata.repository;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
+import net.smartcosmos.dao.metadata.CountMode;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.util.ContinuationToken;
 
 public interface MetadataRepositoryCustom {
 
@@ -15,4 +18,39 @@ public interface MetadataRepositoryCustom {
         String ownerType,
         Map<String, Object> keyValuePairs,
         Pageable pageable);
+
+    /**
+     * Finds owners matching all key-value pairs and determines the total number of matching owners as requested.
+     *
+     * @param tenantId the tenant ID, or {@code null} to search across all tenants
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param pageable the page request
+     * @param countMode how to determine the total number of matching owners
+     * @return the page of matching owners
+     */
+    CountedPage<MetadataOwnerEntity> findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        Pageable pageable,
+        CountMode countMode);
+
+    /**
+     * Finds owners matching all key-value pairs, ordered by tenant ID and owner ID, seeking behind a given sort key
+     * instead of skipping the rows of previous pages.
+     *
+     * @param tenantId the tenant ID, or {@code null} to search across all tenants
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs to match
+     * @param after the sort key of the last owner of the previous page, or {@code null} for the first page
+     * @param limit the maximum number of owners to return
+     * @return the matching owners
+     */
+    List<MetadataOwnerEntity> findProjectedByTenantIdAndOwnerTypeAndKeyValuePairsAfter(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        ContinuationToken after,
+        int limit);
 }
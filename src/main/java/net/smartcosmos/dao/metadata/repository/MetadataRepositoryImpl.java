@@ -2,14 +2,21 @@ package net.smartcosmos.dao.metadata.repository;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.UUID;
 import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
+import javax.persistence.Query;
+import javax.persistence.criteria.AbstractQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.MapJoin;
 import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
@@ -21,33 +28,73 @@ import org.apache.commons.collections4.MapUtils;
 import org.hibernate.jpa.criteria.OrderImpl;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
 
+import net.smartcosmos.dao.metadata.CountMode;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.ValueCondition;
+import net.smartcosmos.dao.metadata.ValueCondition.Operator;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.repository.CountQueryExecutor.ParallelCount;
+import net.smartcosmos.dao.metadata.util.ContinuationToken;
+import net.smartcosmos.dao.metadata.util.MetadataPersistenceUtil;
 import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.BOOLEAN_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.COMPRESSED_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DATA_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DOUBLE_VALUE_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.LONG_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OUT_OF_ROW_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_ID_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.TENANT_ID_FIELD_NAME;
 import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity.METADATA_ENTITIES_FIELD_NAME;
 
 @Component
 public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
 
     private final EntityManager entityManager;
     private final CriteriaBuilder builder;
+    private final KeyValueSearchStrategy searchStrategy;
+    private final boolean orderBySelectivity;
+    private final KeyValueStatistics statistics;
+    private final CountQueryExecutor countQueryExecutor;
+    private final ValueHashBackfill valueHashBackfill;
+    private final KeyValueQueryTemplates queryTemplates;
+    private final NativeKeyValueSearch nativeSearch;
+    private final int outOfRowThreshold;
 
     @Autowired
-    public MetadataRepositoryImpl(EntityManager entityManager) {
+    public MetadataRepositoryImpl(
+        EntityManager entityManager,
+        MetadataPersistenceProperties properties,
+        KeyValueStatistics statistics,
+        CountQueryExecutor countQueryExecutor,
+        ValueHashBackfill valueHashBackfill,
+        NativeKeyValueSearch nativeSearch) {
 
         this.entityManager = entityManager;
+        this.statistics = statistics;
+        this.countQueryExecutor = countQueryExecutor;
+        this.valueHashBackfill = valueHashBackfill;
+        this.nativeSearch = nativeSearch;
+        this.searchStrategy = properties.getSearch()
+            .getStrategy();
+        this.orderBySelectivity = properties.getSearch()
+            .isOrderBySelectivity();
+        this.queryTemplates = properties.getSearch()
+                                  .isQueryTemplates() ? new KeyValueQueryTemplates() : null;
+        this.outOfRowThreshold = properties.getWrite()
+            .getOutOfRowThreshold();
 
         builder = entityManager.getCriteriaBuilder();
     }
@@ -59,19 +106,209 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
         Map<String, Object> keyValuePairs,
         Pageable pageable) {
 
-        CriteriaQuery<MetadataOwnerEntity> query = getMetadataOwnerCriteriaQuery(tenantId, ownerType, keyValuePairs, pageable);
-        List<MetadataOwnerEntity> result = getResults(pageable, query);
+        return findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs, pageable, CountMode.EXACT);
+    }
+
+    @Override
+    public CountedPage<MetadataOwnerEntity> findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        Pageable pageable,
+        CountMode countMode) {
+
+        return findProjectedByOrderedKeyValuePairs(tenantId, ownerType, getPairsBySelectivity(tenantId, ownerType, keyValuePairs), pageable,
+                                                   countMode);
+    }
+
+    private CountedPage<MetadataOwnerEntity> findProjectedByOrderedKeyValuePairs(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        Pageable pageable,
+        CountMode countMode) {
 
-        if (result.size() > 0 && result.size() < pageable.getPageSize()) {
+        Query query = createMetadataOwnerQuery(tenantId, ownerType, keyValuePairs, pageable);
+
+        int pageSize = pageable.getPageSize();
+        int offset = pageable.getPageNumber() * pageSize;
+
+        ParallelCount parallelCount = null;
+        if (CountMode.EXACT == countMode) {
+            parallelCount = countQueryExecutor.submit(countEntityManager -> getResultCount(countEntityManager, tenantId, ownerType, keyValuePairs));
+        }
+
+        // one more result tells whether there is a next page, independent of the count
+        long pageStart = System.nanoTime();
+        List<MetadataOwnerEntity> result;
+        try {
+            result = getResults(offset, pageSize + 1, query);
+        } catch (RuntimeException e) {
+            if (parallelCount != null) {
+                parallelCount.cancel();
+            }
+            throw e;
+        }
+        long pageNanos = System.nanoTime() - pageStart;
+        boolean hasNext = result.size() > pageSize;
+        if (hasNext) {
+            result = result.subList(0, pageSize);
+        }
+
+        if (result.size() > 0 && result.size() < pageSize) {
             pageable = new PageRequest(pageable.getPageNumber(), result.size(), pageable.getSort());
         }
 
-        long totalElements = getResultCount(tenantId, ownerType, keyValuePairs);
+        long totalElements;
+        if (!hasNext && (result.size() > 0 || offset == 0)) {
+            // the last page tells the total without counting
+            totalElements = offset + result.size();
+            countMode = CountMode.EXACT;
+            if (parallelCount != null) {
+                parallelCount.cancel();
+            }
+        } else if (CountMode.SKIPPED == countMode) {
+            // also past the last page, where the total is less than the offset
+            totalElements = CountedPage.UNKNOWN_TOTAL;
+        } else if (CountMode.ESTIMATED == countMode) {
+            totalElements = Math.max(getEstimatedResultCount(tenantId, ownerType, keyValuePairs), offset + result.size() + (hasNext ? 1 : 0));
+        } else if (parallelCount != null) {
+            totalElements = parallelCount.join(pageNanos);
+        } else {
+            totalElements = getResultCount(entityManager, tenantId, ownerType, keyValuePairs);
+            countMode = CountMode.EXACT;
+        }
+
+        return new CountedPage<>(result, pageable, totalElements, countMode, hasNext);
+    }
+
+    /**
+     * Orders key-value pairs from the least to the most frequent one according to the maintained statistics, so that
+     * the most selective pair is matched first. Pairs with unknown counts come last. As the counts may be stale, a pair
+     * without matches is left to the search query, which it makes cheap by coming first.
+     *
+     * @return the ordered key-value pairs
+     */
+    private Map<String, Object> getPairsBySelectivity(UUID tenantId, String ownerType, Map<String, Object> keyValuePairs) {
+
+        if (!orderBySelectivity) {
+            return keyValuePairs;
+        }
+
+        Map<String, Long> pairCounts = new HashMap<>();
+        for (Map.Entry<String, Object> keyValuePair : keyValuePairs.entrySet()) {
+            pairCounts.put(keyValuePair.getKey(), getPairCount(tenantId, ownerType, keyValuePair.getKey(), keyValuePair.getValue())
+                .orElse(Long.MAX_VALUE));
+        }
+
+        Map<String, Object> orderedPairs = new LinkedHashMap<>();
+        pairCounts.entrySet()
+            .stream()
+            .sorted(Map.Entry.comparingByValue())
+            .forEach(pairCount -> orderedPairs.put(pairCount.getKey(), keyValuePairs.get(pairCount.getKey())));
+
+        return orderedPairs;
+    }
+
+    /**
+     * Estimates the number of owners matching all key-value pairs by the least frequent pair with a known count, i.e. an
+     * upper bound, or {@code 0} if no count is known yet. Only counts already maintained are used, so estimating never
+     * queries the database.
+     */
+    private long getEstimatedResultCount(UUID tenantId, String ownerType, Map<String, Object> keyValuePairs) {
+
+        return keyValuePairs.entrySet()
+            .stream()
+            .map(keyValuePair -> getPairCount(tenantId, ownerType, keyValuePair.getKey(), keyValuePair.getValue()))
+            .filter(OptionalLong::isPresent)
+            .mapToLong(OptionalLong::getAsLong)
+            .min()
+            .orElse(0L);
+    }
+
+    private OptionalLong getPairCount(UUID tenantId, String ownerType, String key, Object value) {
+
+        MetadataDataType dataType = MetadataValueParser.getDataType(value);
+        String stringValue = MetadataValueParser.getValue(value);
+
+        return statistics.getMatchCount(tenantId, ownerType, key, dataType, stringValue, () -> {
+            CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+            Root<MetadataEntity> entityRoot = countQuery.from(MetadataEntity.class);
+
+            countQuery.select(builder.count(entityRoot))
+                .where(getOwnerPredicate(entityRoot, tenantId, ownerType), getKeyValuePredicate(key, value, entityRoot));
+
+            return entityManager.createQuery(countQuery)
+                .getSingleResult();
+        });
+    }
+
+    @Override
+    public List<MetadataOwnerEntity> findProjectedByTenantIdAndOwnerTypeAndKeyValuePairsAfter(
+        UUID tenantId,
+        String ownerType,
+        Map<String, Object> keyValuePairs,
+        ContinuationToken after,
+        int limit) {
+
+        Map<String, Object> orderedPairs = getPairsBySelectivity(tenantId, ownerType, keyValuePairs);
+
+        CriteriaQuery<MetadataOwnerEntity> criteriaQuery = builder.createQuery(MetadataOwnerEntity.class);
+        Root<MetadataEntity> root = criteriaQuery.from(MetadataEntity.class);
+
+        Path<UUID> tenantIdPath = root.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME);
+        Path<UUID> ownerIdPath = root.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME);
+
+        Predicate predicate = getKeyValuePredicates(criteriaQuery, root, tenantId, ownerType, orderedPairs);
+        if (after != null) {
+            predicate = builder.and(predicate, getSeekPredicate(tenantIdPath, ownerIdPath, tenantId, after));
+        }
+
+        criteriaQuery.select(root.get(OWNER_FIELD_NAME))
+            .distinct(true)
+            .where(predicate)
+            .orderBy(builder.asc(tenantIdPath), builder.asc(ownerIdPath));
 
-        return new PageImpl<>(result, pageable, totalElements);
+        return entityManager.createQuery(criteriaQuery)
+            .setMaxResults(limit)
+            .getResultList();
     }
 
-    private Long getResultCount(UUID tenantId, String ownerType, Map<String, Object> keyValuePairs) {
+    private Predicate getSeekPredicate(Path<UUID> tenantIdPath, Path<UUID> ownerIdPath, UUID tenantId, ContinuationToken after) {
+
+        if (tenantId != null) {
+            if (!tenantId.equals(after.getTenantId())) {
+                throw new IllegalArgumentException("Provided continuation token does not belong to the requested tenant");
+            }
+
+            return builder.greaterThan(ownerIdPath, after.getOwnerId());
+        }
+
+        return builder.or(builder.greaterThan(tenantIdPath, after.getTenantId()),
+                          builder.and(builder.equal(tenantIdPath, after.getTenantId()),
+                                      builder.greaterThan(ownerIdPath, after.getOwnerId())));
+    }
+
+    private Long getResultCount(EntityManager entityManager, UUID tenantId, String ownerType, Map<String, Object> keyValuePairs) {
+
+        if (nativeSearch.isApplicable(keyValuePairs, null)) {
+            Number count = (Number) nativeSearch.createCountQuery(entityManager, tenantId, ownerType, new ArrayList<>(keyValuePairs.entrySet()),
+                                                                   valueHashBackfill.isLookupEnabled())
+                .getSingleResult();
+
+            return count.longValue();
+        }
+
+        if (isTemplateApplicable(keyValuePairs, null)) {
+            boolean valueHash = valueHashBackfill.isLookupEnabled();
+            String countQuery = queryTemplates.getCountQuery(tenantId != null, keyValuePairs.size(), valueHash);
+
+            return KeyValueQueryTemplates.bind(entityManager.createQuery(countQuery, Long.class), tenantId, ownerType,
+                                               new ArrayList<>(keyValuePairs.entrySet()), valueHash)
+                .getSingleResult();
+        }
 
         CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
         Root<MetadataEntity> entityRoot = countQuery.from(MetadataEntity.class);
@@ -83,16 +320,52 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
             .getSingleResult();
     }
 
-    private List<MetadataOwnerEntity> getResults(Pageable pageable, CriteriaQuery<MetadataOwnerEntity> resultQuery) {
-
-        TypedQuery<MetadataOwnerEntity> q = entityManager.createQuery(resultQuery);
+    @SuppressWarnings("unchecked")
+    private List<MetadataOwnerEntity> getResults(int firstResult, int maxResults, Query q) {
 
-        q.setFirstResult(pageable.getPageNumber() * pageable.getPageSize());
-        q.setMaxResults(pageable.getPageSize());
+        q.setFirstResult(firstResult);
+        q.setMaxResults(maxResults);
 
         return q.getResultList();
     }
 
+    /**
+     * Creates the query of a search page, preferring native SQL over query templates over criteria queries.
+     */
+    private Query createMetadataOwnerQuery(
+        UUID tenantId, String ownerType, Map<String, Object> keyValuePairs,
+        Pageable pageable) {
+
+        Sort.Order order = getFirstOrder(pageable.getSort());
+
+        if (order != null && nativeSearch.isApplicable(keyValuePairs, order)) {
+            return nativeSearch.createPageQuery(entityManager, tenantId, ownerType, new ArrayList<>(keyValuePairs.entrySet()), order,
+                                                valueHashBackfill.isLookupEnabled());
+        }
+
+        if (order != null && isTemplateApplicable(keyValuePairs, order.getProperty())) {
+            boolean valueHash = valueHashBackfill.isLookupEnabled();
+            String query = queryTemplates.getPageQuery(tenantId != null, keyValuePairs.size(), valueHash, order.getProperty(),
+                                                       order.isAscending());
+
+            return KeyValueQueryTemplates.bind(entityManager.createQuery(query, MetadataOwnerEntity.class), tenantId, ownerType,
+                                               new ArrayList<>(keyValuePairs.entrySet()), valueHash);
+        }
+
+        return entityManager.createQuery(getMetadataOwnerCriteriaQuery(tenantId, ownerType, keyValuePairs, pageable));
+    }
+
+    /**
+     * Checks if a search runs from a pre-rendered query template instead of a criteria query.
+     */
+    private boolean isTemplateApplicable(Map<String, Object> keyValuePairs, String sortProperty) {
+
+        return queryTemplates != null
+               && KeyValueSearchStrategy.RELATIONAL_DIVISION == searchStrategy
+               && !MetadataPersistenceUtil.isSortByMetadataKey(sortProperty)
+               && KeyValueQueryTemplates.isApplicable(keyValuePairs, sortProperty, outOfRowThreshold);
+    }
+
     private CriteriaQuery<MetadataOwnerEntity> getMetadataOwnerCriteriaQuery(
         UUID tenantId, String ownerType, Map<String, Object> keyValuePairs,
         Pageable pageable) {
@@ -129,6 +402,11 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
          */
         // endregion
 
+        Sort.Order metadataOrder = getMetadataOrder(pageable.getSort());
+        if (metadataOrder != null) {
+            return getMetadataOwnerCriteriaQueryByValue(tenantId, ownerType, keyValuePairs, metadataOrder);
+        }
+
         CriteriaQuery<MetadataOwnerEntity> criteriaQuery = builder.createQuery(MetadataOwnerEntity.class);
         Root<MetadataEntity> root = criteriaQuery.from(MetadataEntity.class);
 
@@ -140,8 +418,165 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
         return criteriaQuery;
     }
 
+    /**
+     * Builds a query for matching owners sorted by the value of another metadata key.
+     */
+    private CriteriaQuery<MetadataOwnerEntity> getMetadataOwnerCriteriaQueryByValue(
+        UUID tenantId, String ownerType, Map<String, Object> keyValuePairs, Sort.Order metadataOrder) {
+
+        // region SQL Statement
+        /*
+            The generated SQL (actually HQL), with the key-value predicates of the search strategy in the subquery:
+
+            select generatedAlias0
+            from net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity as generatedAlias0
+            left join generatedAlias0.metadataEntities as generatedAlias1 with generatedAlias1.keyName=:param0
+            where generatedAlias0 in (
+                select generatedAlias2.owner
+                from net.smartcosmos.dao.metadata.domain.MetadataEntity as generatedAlias2
+                where generatedAlias2.owner in ( ... ) )
+            order by case when generatedAlias1.keyName is null then 1 else 0 end asc,
+            coalesce(generatedAlias1.longValue, generatedAlias1.doubleValue) asc, generatedAlias1.value asc,
+            generatedAlias0.tenantId asc, generatedAlias0.id asc
+
+            Key names are unique per owner, so the join adds at most one row per owner and no distinct is needed.
+            Owners without the sort key come last in both directions.
+         */
+        // endregion
+
+        String sortKey = MetadataPersistenceUtil.getSortByMetadataKey(metadataOrder.getProperty());
+
+        CriteriaQuery<MetadataOwnerEntity> criteriaQuery = builder.createQuery(MetadataOwnerEntity.class);
+        Root<MetadataOwnerEntity> ownerRoot = criteriaQuery.from(MetadataOwnerEntity.class);
+
+        MapJoin<MetadataOwnerEntity, String, MetadataEntity> sortJoin = ownerRoot.joinMap(METADATA_ENTITIES_FIELD_NAME, JoinType.LEFT);
+        sortJoin.on(builder.equal(sortJoin.get(KEY_NAME_FIELD_NAME), sortKey));
+
+        Subquery<MetadataOwnerEntity> ownerQuery = criteriaQuery.subquery(MetadataOwnerEntity.class);
+        Root<MetadataEntity> root = ownerQuery.from(MetadataEntity.class);
+        ownerQuery.select(root.get(OWNER_FIELD_NAME))
+            .where(getKeyValuePredicates(ownerQuery, root, tenantId, ownerType, keyValuePairs));
+
+        Expression<Integer> missingValue = builder.<Integer>selectCase()
+            .when(builder.isNull(sortJoin.get(KEY_NAME_FIELD_NAME)), 1)
+            .otherwise(0);
+        Expression<Number> numberValue = builder.coalesce(sortJoin.<Number>get(LONG_VALUE_FIELD_NAME),
+                                                          sortJoin.<Number>get(DOUBLE_VALUE_FIELD_NAME));
+        boolean ascending = metadataOrder.isAscending();
+
+        List<Order> orderList = new ArrayList<>();
+        orderList.add(new OrderImpl(missingValue, true));
+        // until existing rows have their typed values, numbers would be sorted apart from them
+        if (valueHashBackfill.isTypedValuesComplete()) {
+            orderList.add(new OrderImpl(numberValue, ascending));
+        }
+        orderList.add(new OrderImpl(sortJoin.get(VALUE_FIELD_NAME), ascending));
+        orderList.add(new OrderImpl(ownerRoot.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), true));
+        orderList.add(new OrderImpl(ownerRoot.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME), true));
+
+        criteriaQuery.select(ownerRoot)
+            .where(builder.in(ownerRoot)
+                       .value(ownerQuery))
+            .orderBy(orderList);
+
+        return criteriaQuery;
+    }
+
+    private static Sort.Order getMetadataOrder(Sort sort) {
+
+        Sort.Order order = getFirstOrder(sort);
+        if (order != null && MetadataPersistenceUtil.isSortByMetadataKey(order.getProperty())) {
+            return order;
+        }
+
+        return null;
+    }
+
+    private static Sort.Order getFirstOrder(Sort sort) {
+
+        if (sort != null && !IteratorUtils.isEmpty(sort.iterator())) {
+            return sort.iterator()
+                .next();
+        }
+
+        return null;
+    }
+
     private Predicate getKeyValuePredicates(
-        CriteriaQuery<?> criteriaQuery, Root<MetadataEntity> root, UUID tenantId, String ownerType, Map<String,
+        AbstractQuery<?> criteriaQuery, Root<MetadataEntity> root, UUID tenantId, String ownerType, Map<String,
+        Object> keyValuePairs) {
+
+        if (KeyValueSearchStrategy.RECURSIVE == searchStrategy) {
+            return getRecursiveKeyValuePredicates(criteriaQuery, root, tenantId, ownerType, keyValuePairs);
+        }
+
+        return getRelationalDivisionKeyValuePredicates(criteriaQuery, root, tenantId, ownerType, keyValuePairs);
+    }
+
+    private Predicate getRelationalDivisionKeyValuePredicates(
+        AbstractQuery<?> criteriaQuery, Root<MetadataEntity> root, UUID tenantId, String ownerType, Map<String,
+        Object> keyValuePairs) {
+
+        // region SQL Statement
+        /*
+            The generated SQL (actually HQL) of the subquery, independent of the number of key-value pairs:
+
+            select generatedAlias1.owner
+            from net.smartcosmos.dao.metadata.domain.MetadataEntity as generatedAlias1
+            where ( generatedAlias1.owner.tenantId=:param0 ) and ( generatedAlias1.owner.type=:param1 ) and (
+            generatedAlias1.keyName in (:param2, :param3, :param4) ) and (
+                ( ( generatedAlias1.keyName=:param5 ) and ( generatedAlias1.dataType=:param6 ) and ( generatedAlias1.value=:param7 ) ) or
+                ( ( generatedAlias1.keyName=:param8 ) and ( generatedAlias1.dataType=:param9 ) and ( generatedAlias1.value=:param10 ) ) or
+                ( ( generatedAlias1.keyName=:param11 ) and ( generatedAlias1.dataType=:param12 ) and ( generatedAlias1.value=:param13 ) ) )
+            group by generatedAlias1.owner
+            having count(generatedAlias1.keyName)=:param14
+
+            Key names are unique per owner, so an owner matches all pairs exactly if it matches as many rows as there are pairs.
+         */
+        // endregion
+
+        Subquery<MetadataOwnerEntity> ownerQuery = criteriaQuery.subquery(MetadataOwnerEntity.class);
+        Root<MetadataEntity> subRoot = ownerQuery.from(MetadataEntity.class);
+
+        Predicate[] keyValuePredicates = keyValuePairs.entrySet()
+            .stream()
+            .map(keyValuePair -> getKeyValuePredicate(keyValuePair.getKey(), keyValuePair.getValue(), subRoot))
+            .toArray(Predicate[]::new);
+
+        Predicate predicate = builder.and(getOwnerPredicate(subRoot, tenantId, ownerType),
+                                          subRoot.get(KEY_NAME_FIELD_NAME)
+                                              .in(keyValuePairs.keySet()),
+                                          builder.or(keyValuePredicates));
+
+        ownerQuery.select(subRoot.get(OWNER_FIELD_NAME))
+            .where(predicate)
+            .groupBy(subRoot.get(OWNER_FIELD_NAME))
+            .having(builder.equal(builder.count(subRoot.get(KEY_NAME_FIELD_NAME)), (long) keyValuePairs.size()));
+
+        return builder.in(root.get(OWNER_FIELD_NAME))
+            .value(ownerQuery);
+    }
+
+    private Predicate getOwnerPredicate(Root<MetadataEntity> root, UUID tenantId, String ownerType) {
+
+        Path<MetadataEntity> tenantIdPath = root.get(OWNER_FIELD_NAME)
+            .get(TENANT_ID_FIELD_NAME);
+        Path<MetadataEntity> ownerTypePath = root.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME);
+
+        Predicate typePredicate = builder.equal(ownerTypePath, ownerType);
+        Predicate tenantPredicate;
+        if (tenantId != null) {
+            tenantPredicate = builder.equal(tenantIdPath, tenantId);
+        } else {
+            tenantPredicate = builder.isNotNull(tenantIdPath);
+        }
+
+        return builder.and(tenantPredicate, typePredicate);
+    }
+
+    private Predicate getRecursiveKeyValuePredicates(
+        AbstractQuery<?> criteriaQuery, Root<MetadataEntity> root, UUID tenantId, String ownerType, Map<String,
         Object> keyValuePairs) {
 
         Path<MetadataEntity> tenantIdPath = root.get(OWNER_FIELD_NAME)
@@ -150,7 +585,7 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
             .get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME);
         Path<MetadataEntity> keyNamePath = root.get(KEY_NAME_FIELD_NAME);
 
-        Map<String, Object> metadataMap = new HashMap<>();
+        Map<String, Object> metadataMap = new LinkedHashMap<>();
         metadataMap.putAll(keyValuePairs);
 
         Predicate typePredicate = builder.equal(ownerTypePath, ownerType);
@@ -228,9 +663,117 @@ public class MetadataRepositoryImpl implements MetadataRepositoryCustom {
     private Predicate getKeyValuePredicate(String key, Object value, From root) {
 
         Predicate keyNamePredicate = builder.equal(root.get(KEY_NAME_FIELD_NAME), key);
-        Predicate valuePredicate = builder.equal(root.get(VALUE_FIELD_NAME), MetadataValueParser.getValue(value));
-        Predicate dataTypePredicate = builder.equal(root.get(DATA_TYPE_FIELD_NAME), MetadataValueParser.getDataType(value));
+        if (value instanceof ValueCondition) {
+            return builder.and(keyNamePredicate, getValueConditionPredicate((ValueCondition) value, root));
+        }
+
+        String stringValue = MetadataValueParser.getValue(value);
+        Set<MetadataDataType> dataTypes = MetadataValueParser.getMatchingDataTypes(value);
+        Predicate valuePredicate = builder.equal(root.get(VALUE_FIELD_NAME), stringValue);
+        Predicate dataTypePredicate = dataTypes.size() > 1
+                                      ? root.get(DATA_TYPE_FIELD_NAME)
+                                          .in(dataTypes)
+                                      : builder.equal(root.get(DATA_TYPE_FIELD_NAME), dataTypes.iterator()
+                                          .next());
+        Predicate valueHashPredicate = builder.equal(root.get(VALUE_HASH_FIELD_NAME), MetadataValueParser.getValueHash(stringValue));
+
+        if (!MetadataValueParser.isStoredInline(value, outOfRowThreshold)) {
+            // compressed and out-of-row values can only be compared by the hash of their plain value, which they always
+            // have
+            valuePredicate = builder.or(valuePredicate, builder.and(builder.or(builder.isTrue(root.get(COMPRESSED_FIELD_NAME)),
+                                                                               builder.isTrue(root.get(OUT_OF_ROW_FIELD_NAME))),
+                                                                    valueHashPredicate));
+        }
+
+        if (valueHashBackfill.isLookupEnabled()) {
+            // the indexed hash narrows the rows down, the value comparison rules out hash collisions
+            return builder.and(keyNamePredicate, dataTypePredicate, valueHashPredicate, valuePredicate);
+        }
 
         return builder.and(keyNamePredicate, dataTypePredicate, valuePredicate);
     }
+
+    private Predicate getValueConditionPredicate(ValueCondition condition, From root) {
+
+        if (!valueHashBackfill.isTypedValuesComplete()) {
+            throw new IllegalStateException("Value conditions are not available until the typed values of existing metadata are backfilled");
+        }
+
+        if (condition.getValue() instanceof Boolean) {
+            Path<Boolean> booleanPath = root.get(BOOLEAN_VALUE_FIELD_NAME);
+            Boolean value = (Boolean) condition.getValue();
+
+            return Operator.EQUAL == condition.getOperator() ? builder.equal(booleanPath, value) : builder.notEqual(booleanPath, value);
+        }
+
+        // every number is stored in exactly one of the typed columns, the other one is null
+        return builder.or(getLongValuePredicate(condition, root.get(LONG_VALUE_FIELD_NAME)),
+                          getDoubleValuePredicate(condition, root.get(DOUBLE_VALUE_FIELD_NAME)));
+    }
+
+    private Predicate getDoubleValuePredicate(ValueCondition condition, Path<Double> path) {
+
+        double value = MetadataValueParser.toDouble((Number) condition.getValue());
+
+        switch (condition.getOperator()) {
+            case EQUAL:
+                return builder.equal(path, value);
+            case NOT_EQUAL:
+                return builder.notEqual(path, value);
+            case LESS_THAN:
+                return builder.lessThan(path, value);
+            case LESS_THAN_OR_EQUAL:
+                return builder.lessThanOrEqualTo(path, value);
+            case GREATER_THAN:
+                return builder.greaterThan(path, value);
+            case GREATER_THAN_OR_EQUAL:
+                return builder.greaterThanOrEqualTo(path, value);
+            case BETWEEN:
+            default:
+                return builder.between(path, value, MetadataValueParser.toDouble(condition.getUpperBound()));
+        }
+    }
+
+    /**
+     * Compares integral values. Fractional operands are rounded towards the matching integers, e.g. {@code > 40.5}
+     * becomes {@code > 40} and {@code >= 40.5} becomes {@code >= 41}, so that the index can still be used.
+     */
+    private Predicate getLongValuePredicate(ValueCondition condition, Path<Long> path) {
+
+        Number value = (Number) condition.getValue();
+
+        switch (condition.getOperator()) {
+            case EQUAL:
+                return isIntegral(value) ? builder.equal(path, value.longValue()) : builder.disjunction();
+            case NOT_EQUAL:
+                return isIntegral(value) ? builder.notEqual(path, value.longValue()) : builder.isNotNull(path);
+            case LESS_THAN:
+                return builder.lessThan(path, ceil(value));
+            case LESS_THAN_OR_EQUAL:
+                return builder.lessThanOrEqualTo(path, floor(value));
+            case GREATER_THAN:
+                return builder.greaterThan(path, floor(value));
+            case GREATER_THAN_OR_EQUAL:
+                return builder.greaterThanOrEqualTo(path, ceil(value));
+            case BETWEEN:
+            default:
+                return builder.between(path, ceil(value), floor(condition.getUpperBound()));
+        }
+    }
+
+    private static boolean isIntegral(Number value) {
+
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+               || value.doubleValue() == Math.rint(value.doubleValue());
+    }
+
+    private static long floor(Number value) {
+
+        return isIntegral(value) ? value.longValue() : (long) Math.floor(value.doubleValue());
+    }
+
+    private static long ceil(Number value) {
+
+        return isIntegral(value) ? value.longValue() : (long) Math.ceil(value.doubleValue());
+    }
 }
@@ -0,0 +1,66 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dto.metadata.MetadataValueResponse;
+
+/**
+ * Caches the parsed values of single-key lookups in front of the database. {@link LocalMetadataValueCache} caches in
+ * process; applications may replace it with a {@code @Primary} bean of their own.
+ */
+public interface MetadataValueCache {
+
+    String HITS = "read.value-cache.hits";
+    String MISSES = "read.value-cache.misses";
+    String EVICTIONS = "read.value-cache.evictions";
+
+    /**
+     * Checks if lookups are cached.
+     *
+     * @return {@code true} if lookups are cached
+     */
+    boolean isEnabled();
+
+    /**
+     * Gets the value of a key of an owner, loading it from the database if it is not cached.
+     *
+     * @param tenantId the tenant ID, or {@code null} for lookups across all tenants
+     * @param ownerType the owner type
+     * @param ownerId the owner ID
+     * @param keyName the key name
+     * @param loader loads the metadata entry, with its out-of-row value
+     * @return the value response, empty if the owner has no such key
+     */
+    Optional<MetadataValueResponse> get(
+        UUID tenantId, String ownerType, UUID ownerId, String keyName, Supplier<Optional<MetadataEntity>> loader);
+
+    /**
+     * Discards the cached values of written or deleted keys of an owner, for lookups with and without tenant. Within a
+     * transaction, the keys are discarded again once the transaction completed, so that values loaded by other
+     * transactions before the write committed are not kept.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type
+     * @param ownerId the owner ID
+     * @param keyNames the key names
+     */
+    void invalidate(UUID tenantId, String ownerType, UUID ownerId, Collection<String> keyNames);
+
+    /**
+     * Discards the cached values of all owners of a tenant, or of one owner type of a tenant, for lookups with and
+     * without tenant, e.g. after a purge deleted some of their metadata.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerType the owner type, or {@code null} for all owner types
+     */
+    void invalidateTenant(UUID tenantId, String ownerType);
+
+    /**
+     * Discards all cached values.
+     */
+    void clear();
+}
@@ -0,0 +1,53 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.springframework.data.domain.Sort;
+
+/**
+ * Database-specific native SQL for owner searches on key-value pairs, used by {@link MetadataRepositoryImpl} in place
+ * of the portable criteria queries where available.
+ */
+public interface NativeKeyValueSearch {
+
+    /**
+     * Checks if a search can run as native SQL on the current database.
+     *
+     * @param keyValuePairs the key-value pairs to match
+     * @param order the sort order of the results, {@code null} for count queries
+     * @return {@code true} if the search is supported
+     */
+    boolean isApplicable(Map<String, Object> keyValuePairs, Sort.Order order);
+
+    /**
+     * Creates a query selecting the owners matching all key-value pairs, the caller sets offset and limit.
+     *
+     * @param entityManager the entity manager
+     * @param tenantId the tenant ID, or {@code null} for searches across all tenants
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs
+     * @param order the sort order of the results
+     * @param valueHash {@code true} if values may be looked up by their hash
+     * @return the query, returning {@link net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity} instances
+     */
+    Query createPageQuery(
+        EntityManager entityManager, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs, Sort.Order order,
+        boolean valueHash);
+
+    /**
+     * Creates a query counting the owners matching all key-value pairs.
+     *
+     * @param entityManager the entity manager
+     * @param tenantId the tenant ID, or {@code null} for searches across all tenants
+     * @param ownerType the owner type
+     * @param keyValuePairs the key-value pairs
+     * @param valueHash {@code true} if values may be looked up by their hash
+     * @return the query, returning a single {@link Number}
+     */
+    Query createCountQuery(
+        EntityManager entityManager, UUID tenantId, String ownerType, List<Map.Entry<String, Object>> keyValuePairs, boolean valueHash);
+}
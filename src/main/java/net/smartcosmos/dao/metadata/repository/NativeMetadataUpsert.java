@@ -0,0 +1,903 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.lang.annotation.ElementType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.sql.DataSource;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Path;
+import javax.validation.TraversableResolver;
+import javax.validation.Validation;
+import javax.validation.Validator;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueEntity;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.BOOLEAN_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.COMPRESSED_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.CREATED_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DATA_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DOUBLE_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.LAST_MODIFIED_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.LONG_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OUT_OF_ROW_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_REF_FIELD_NAME;
+
+/**
+ * Writes metadata with native upserts, touching only the submitted keys and never loading the owner or its other
+ * metadata. The owner is inserted unless it exists, then all entries are sent as one JDBC batch of
+ * {@code INSERT ... ON DUPLICATE KEY UPDATE} on MariaDB and MySQL, or {@code MERGE} on H2, in one transaction.
+ * <p>
+ * The owner is resolved by its natural key within each statement, so existing owners are never selected up front.
+ * Derived value columns and audit timestamps are set here, as entity listeners do not run for native statements, and
+ * the creation date of existing entries is kept.
+ * <p>
+ * Bulk upserts of many owners resolve the existing owners of a tenant in one query, insert the missing ones in a batch
+ * and write all entries ordered by owner and key, so that concurrent bulk writes lock rows in the same order.
+ * <p>
+ * Once all internal IDs are name-based, see {@link OwnerInternalIds#isDerivable()}, entries reference their owner by
+ * its derived internal ID and bulk upserts skip resolving existing owners.
+ * <p>
+ * Values stored out of row are upserted into the {@code metadataValue} table in a batch of their own before the
+ * entries. Such entries are always written, even if unchanged, and an entry whose value moves back into its row
+ * leaves its old out-of-row value behind until it is written out of row again or deleted, as finding it would take
+ * another statement per upsert.
+ * <p>
+ * If values are shared, see {@link SharedValues}, the shared references of the written owners are selected for update
+ * and their counts changed before the entries are written.
+ */
+@Slf4j
+@Component
+public class NativeMetadataUpsert {
+
+    enum Dialect {
+        MARIADB,
+        H2
+    }
+
+    private final EntityManager entityManager;
+    private final EntityManagerFactory entityManagerFactory;
+    private final DataSource dataSource;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
+    private final OwnerInternalIds ownerInternalIds;
+    private final SharedValues sharedValues;
+    private final OwnerIdCache ownerIdCache;
+    private final SecondLevelCache secondLevelCache;
+    private final MetadataPersistenceMetrics metrics;
+    private final boolean nativeUpsert;
+    private final int batchSize;
+    private final boolean skipUnchanged;
+
+    private Dialect dialect;
+
+    private String ownerInsertSql;
+    private String metadataUpsertSql;
+    private String metadataUpsertByIdSql;
+    private String metadataInsertByIdSql;
+    private String valueUpsertSql;
+    private String valueUpsertByIdSql;
+
+    @Autowired
+    public NativeMetadataUpsert(
+        EntityManager entityManager,
+        EntityManagerFactory entityManagerFactory,
+        DataSource dataSource,
+        PlatformTransactionManager transactionManager,
+        OwnerInternalIds ownerInternalIds,
+        SharedValues sharedValues,
+        OwnerIdCache ownerIdCache,
+        SecondLevelCache secondLevelCache,
+        MetadataPersistenceMetrics metrics,
+        MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.entityManagerFactory = entityManagerFactory;
+        this.dataSource = dataSource;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.validator = Validation.byDefaultProvider()
+            .configure()
+            .traversableResolver(new ReachableTraversableResolver())
+            .buildValidatorFactory()
+            .getValidator();
+        this.ownerInternalIds = ownerInternalIds;
+        this.sharedValues = sharedValues;
+        this.ownerIdCache = ownerIdCache;
+        this.secondLevelCache = secondLevelCache;
+        this.metrics = metrics;
+        this.nativeUpsert = properties.getWrite()
+            .isNativeUpsert();
+        this.batchSize = properties.getWrite()
+            .getBatchSize();
+        this.skipUnchanged = properties.getWrite()
+            .isSkipUnchanged();
+    }
+
+    @PostConstruct
+    public void init() {
+
+        if (!nativeUpsert) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            dialect = getDialect(connection.getMetaData()
+                                     .getDriverName());
+        } catch (SQLException e) {
+            log.warn("Could not determine the database driver, upserts merge owner entities.", e);
+        }
+
+        if (dialect != null) {
+            renderStatements();
+            log.info("Upserts use native {} statements.", dialect);
+        }
+    }
+
+    /**
+     * Checks if native upserts are used, i.e. if they are enabled and supported by the database.
+     *
+     * @return {@code true} if {@link #upsert(MetadataOwnerEntity, Collection)} can be called
+     */
+    public boolean isActive() {
+
+        return dialect != null;
+    }
+
+    /**
+     * Inserts or updates metadata entries of an owner, and creates the owner if it does not exist yet.
+     *
+     * @param owner the owner, identified by tenant ID, type and ID
+     * @param metadataEntities the metadata entries to write
+     * @throws ConstraintViolationException if the owner or an entry is invalid, in which case nothing is written
+     */
+    public void upsert(MetadataOwnerEntity owner, Collection<MetadataEntity> metadataEntities) throws ConstraintViolationException {
+
+        Set<ConstraintViolation<?>> violations = getViolations(owner, metadataEntities);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+
+        UUID internalId = transactionTemplate.execute(status -> {
+            if (sharedValues.isEnabled()) {
+                writeSharedValues(owner.getTenantId(), Collections.singletonMap(OwnerKey.of(owner), metadataEntities));
+            }
+            entityManager.unwrap(Session.class)
+                .doWork(connection -> write(connection, owner, metadataEntities));
+
+            if (ownerInternalIds.isDerivable()) {
+                return ownerInternalIds.getNewInternalId(owner.getTenantId(), owner.getType(), owner.getId());
+            }
+            // only looked up to evict the cached metadata of the owner, which Hibernate does not know was written
+            return secondLevelCache.isEnabled() ? resolveOwners(owner.getTenantId(), Collections.singleton(OwnerKey.of(owner)))
+                .get(OwnerKey.of(owner)) : null;
+        });
+
+        // the owner exists now, but its internal ID is only known if it is derived or was looked up
+        if (internalId != null) {
+            ownerIdCache.put(owner.getTenantId(), owner.getType(), owner.getId(), internalId);
+            secondLevelCache.evictMetadata(internalId, getKeyNames(metadataEntities));
+        } else {
+            ownerIdCache.evict(owner.getTenantId(), owner.getType(), owner.getId());
+            secondLevelCache.evictAllMetadata();
+        }
+    }
+
+    /**
+     * Inserts or updates the metadata entries of many owners of a tenant in one transaction, and creates the owners
+     * that do not exist yet. The owners and their entries must have been validated, see
+     * {@link #getViolations(MetadataOwnerEntity, Collection)}.
+     *
+     * @param tenantId the tenant ID
+     * @param owners the owners, identified by type and ID, with the metadata entries to write
+     * @return for each owner, whether it was created; on MariaDB with derived internal IDs, an owner that another
+     *         process creates concurrently may be reported as created by both writes
+     */
+    public List<Boolean> upsertAll(UUID tenantId, List<MetadataOwnerEntity> owners) {
+
+        Map<OwnerKey, UUID> internalIds = new HashMap<>();
+        List<Boolean> created = transactionTemplate.execute(status -> {
+            Set<OwnerKey> absentOwners = new HashSet<>();
+            if (!ownerInternalIds.isDerivable()) {
+                internalIds.putAll(resolveOwners(tenantId, getOwnerKeys(owners)));
+            } else if (Dialect.MARIADB == dialect) {
+                // the row counts of the owner insert do not tell which owners were inserted, see insertOwners, so
+                // owners that did not exist before are reported as created, their entries are still upserted
+                Map<OwnerKey, UUID> existingOwners = resolveOwners(tenantId, getOwnerKeys(owners));
+                internalIds.putAll(existingOwners);
+                getOwnerKeys(owners).stream()
+                    .filter(ownerKey -> !existingOwners.containsKey(ownerKey))
+                    .forEach(absentOwners::add);
+            }
+            Set<OwnerKey> createdOwners = new HashSet<>();
+            if (sharedValues.isEnabled()) {
+                Map<OwnerKey, Collection<MetadataEntity>> entries = new LinkedHashMap<>();
+                owners.forEach(owner -> entries.computeIfAbsent(OwnerKey.of(owner), ownerKey -> new ArrayList<>())
+                    .addAll(owner.getMetadataEntities()
+                                .values()));
+                writeSharedValues(tenantId, entries);
+            }
+
+            entityManager.unwrap(Session.class)
+                .doWork(connection -> {
+                    insertOwners(connection, tenantId, getOwnerKeys(owners), internalIds, createdOwners);
+                    writeAll(connection, owners, internalIds, createdOwners);
+                });
+
+            return owners.stream()
+                .map(owner -> createdOwners.contains(OwnerKey.of(owner)) || absentOwners.contains(OwnerKey.of(owner)))
+                .collect(Collectors.toList());
+        });
+
+        // all owners exist now, with the resolved or inserted internal IDs
+        internalIds.forEach((ownerKey, internalId) -> ownerIdCache.put(tenantId, ownerKey.getType(), ownerKey.getId(), internalId));
+        for (MetadataOwnerEntity owner : owners) {
+            secondLevelCache.evictMetadata(internalIds.get(OwnerKey.of(owner)), owner.getMetadataEntities()
+                .keySet());
+        }
+
+        return created;
+    }
+
+    /**
+     * Validates an owner and its metadata entries, as native statements bypass bean validation.
+     *
+     * @param owner the owner
+     * @param metadataEntities the metadata entries
+     * @return the constraint violations, empty if all are valid
+     */
+    public Set<ConstraintViolation<?>> getViolations(MetadataOwnerEntity owner, Collection<MetadataEntity> metadataEntities) {
+
+        Set<ConstraintViolation<?>> violations = new HashSet<>(validator.validate(owner));
+        for (MetadataEntity metadataEntity : metadataEntities) {
+            violations.addAll(validator.validate(metadataEntity));
+        }
+
+        return violations;
+    }
+
+    private static Set<String> getKeyNames(Collection<MetadataEntity> metadataEntities) {
+
+        return metadataEntities.stream()
+            .map(MetadataEntity::getKeyName)
+            .collect(Collectors.toSet());
+    }
+
+    static Dialect getDialect(String driverName) {
+
+        if (StringUtils.containsIgnoreCase(driverName, "mariadb") || StringUtils.containsIgnoreCase(driverName, "mysql")) {
+            return Dialect.MARIADB;
+        }
+        if (StringUtils.containsIgnoreCase(driverName, "h2")) {
+            return Dialect.H2;
+        }
+
+        return null;
+    }
+
+    private void write(Connection connection, MetadataOwnerEntity owner, Collection<MetadataEntity> metadataEntities) throws SQLException {
+
+        byte[] ownerId = UuidUtil.getBytesFromUuid(owner.getId());
+        byte[] tenantId = UuidUtil.getBytesFromUuid(owner.getTenantId());
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        UUID internalId = ownerInternalIds.getNewInternalId(owner.getTenantId(), owner.getType(), owner.getId());
+
+        try (PreparedStatement statement = connection.prepareStatement(ownerInsertSql)) {
+            bindOwnerInsert(statement, internalId, owner.getType(), ownerId, tenantId);
+            statement.executeUpdate();
+        }
+
+        OwnerBinder ownerBinder;
+        String sql;
+        if (ownerInternalIds.isDerivable()) {
+            byte[] internalIdBytes = UuidUtil.getBytesFromUuid(internalId);
+            ownerBinder = (ownerStatement, index) -> {
+                ownerStatement.setBytes(index, internalIdBytes);
+                return index + 1;
+            };
+            sql = metadataUpsertByIdSql;
+        } else {
+            ownerBinder = (ownerStatement, index) -> {
+                ownerStatement.setString(index, owner.getType());
+                ownerStatement.setBytes(index + 1, ownerId);
+                ownerStatement.setBytes(index + 2, tenantId);
+                return index + 3;
+            };
+            sql = metadataUpsertSql;
+        }
+
+        List<MetadataEntity> outOfRowEntities = metadataEntities.stream()
+            .filter(OutOfRowValues::hasOwnValue)
+            .collect(Collectors.toList());
+        if (!outOfRowEntities.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement(ownerInternalIds.isDerivable() ? valueUpsertByIdSql : valueUpsertSql)) {
+                for (MetadataEntity metadataEntity : outOfRowEntities) {
+                    bindValueRow(statement, ownerBinder, metadataEntity);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (MetadataEntity metadataEntity : metadataEntities) {
+                bindMetadataRow(statement, ownerBinder, metadataEntity, now, true);
+                statement.addBatch();
+            }
+            countWrites(statement.executeBatch());
+        }
+    }
+
+    private Map<OwnerKey, UUID> resolveOwners(UUID tenantId, Collection<OwnerKey> ownerKeys) {
+
+        Map<OwnerKey, UUID> internalIds = new HashMap<>();
+        Set<UUID> ids = ownerKeys.stream()
+            .map(OwnerKey::getId)
+            .collect(Collectors.toSet());
+
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (List<UUID> idChunk : ListUtils.partition(new ArrayList<>(ids), batchSize)) {
+            CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+            Root<MetadataOwnerEntity> root = query.from(MetadataOwnerEntity.class);
+            query.multiselect(root.get(MetadataOwnerEntity.ID_FIELD_NAME),
+                              root.get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME),
+                              root.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME))
+                .where(builder.equal(root.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), tenantId),
+                       root.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME)
+                           .in(idChunk));
+
+            for (Object[] row : entityManager.createQuery(query)
+                .getResultList()) {
+                OwnerKey ownerKey = new OwnerKey((String) row[1], (UUID) row[2]);
+                if (ownerKeys.contains(ownerKey)) {
+                    internalIds.put(ownerKey, (UUID) row[0]);
+                }
+            }
+        }
+
+        return internalIds;
+    }
+
+    private void insertOwners(
+        Connection connection, UUID tenantId, Collection<OwnerKey> ownerKeys, Map<OwnerKey, UUID> internalIds, Set<OwnerKey> createdOwners)
+        throws SQLException {
+
+        Map<OwnerKey, UUID> newInternalIds = new LinkedHashMap<>();
+        ownerKeys.stream()
+            .filter(ownerKey -> !internalIds.containsKey(ownerKey))
+            .forEach(ownerKey -> newInternalIds.put(ownerKey, ownerInternalIds.getNewInternalId(tenantId, ownerKey.getType(), ownerKey.getId())));
+
+        if (newInternalIds.isEmpty()) {
+            return;
+        }
+
+        byte[] tenantIdBytes = UuidUtil.getBytesFromUuid(tenantId);
+        List<Integer> updateCounts = new ArrayList<>(newInternalIds.size());
+        try (PreparedStatement statement = connection.prepareStatement(ownerInsertSql)) {
+            int pending = 0;
+            for (Map.Entry<OwnerKey, UUID> newInternalId : newInternalIds.entrySet()) {
+                bindOwnerInsert(statement, newInternalId.getValue(), newInternalId.getKey()
+                    .getType(), UuidUtil.getBytesFromUuid(newInternalId.getKey()
+                                                              .getId()), tenantIdBytes);
+                statement.addBatch();
+                if (++pending == batchSize) {
+                    addUpdateCounts(updateCounts, statement.executeBatch());
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                addUpdateCounts(updateCounts, statement.executeBatch());
+            }
+        }
+
+        // on MariaDB and MySQL, a skipped duplicate reports 1 like an insert unless the driver reports affected rows
+        // instead of found rows, so only the counts of other databases tell which owners were inserted
+        boolean countsInserts = Dialect.MARIADB != dialect;
+
+        if (ownerInternalIds.isDerivable()) {
+            // the internal IDs are right either way, only owners known to be inserted here count as created and get
+            // plain inserts of their entries, the others are written with upserts
+            int i = 0;
+            for (Map.Entry<OwnerKey, UUID> newInternalId : newInternalIds.entrySet()) {
+                internalIds.put(newInternalId.getKey(), newInternalId.getValue());
+                if (countsInserts && updateCounts.get(i) == 1) {
+                    createdOwners.add(newInternalId.getKey());
+                }
+                i++;
+            }
+            return;
+        }
+
+        if (!countsInserts || !updateCounts.stream()
+            .allMatch(count -> count == 1)) {
+            // owners created concurrently were skipped, or the row counts do not tell
+            Map<OwnerKey, UUID> actualInternalIds = resolveOwners(tenantId, newInternalIds.keySet());
+            newInternalIds.entrySet()
+                .removeIf(newInternalId -> !newInternalId.getValue()
+                    .equals(actualInternalIds.get(newInternalId.getKey())));
+            internalIds.putAll(actualInternalIds);
+        }
+
+        internalIds.putAll(newInternalIds);
+        createdOwners.addAll(newInternalIds.keySet());
+    }
+
+    private void writeAll(Connection connection, List<MetadataOwnerEntity> owners, Map<OwnerKey, UUID> internalIds,
+                          Set<OwnerKey> createdOwners) throws SQLException {
+
+        // later entries of the same owner and key win
+        Map<OwnerMetadataKey, OwnerMetadata> rowsByKey = new LinkedHashMap<>();
+        for (MetadataOwnerEntity owner : owners) {
+            OwnerKey ownerKey = OwnerKey.of(owner);
+            UUID internalId = internalIds.get(ownerKey);
+            boolean created = createdOwners.contains(ownerKey);
+            for (MetadataEntity metadataEntity : owner.getMetadataEntities()
+                .values()) {
+                rowsByKey.put(new OwnerMetadataKey(internalId, metadataEntity.getKeyName()), new OwnerMetadata(internalId, metadataEntity, created));
+            }
+        }
+
+        // the order of the primary key, i.e. of the binary owner ID and the key name
+        List<OwnerMetadata> rows = new ArrayList<>(rowsByKey.values());
+        rows.sort(Comparator.comparing(OwnerMetadata::getInternalId, NativeMetadataUpsert::compareUnsigned)
+                      .thenComparing(row -> row.getMetadataEntity()
+                          .getKeyName()));
+
+        writeOutOfRowValues(connection, rows);
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement insert = connection.prepareStatement(metadataInsertByIdSql);
+             PreparedStatement upsert = connection.prepareStatement(metadataUpsertByIdSql)) {
+            int pendingInserts = 0;
+            int pendingUpserts = 0;
+            for (OwnerMetadata row : rows) {
+                byte[] internalId = UuidUtil.getBytesFromUuid(row.getInternalId());
+                OwnerBinder ownerBinder = (ownerStatement, index) -> {
+                    ownerStatement.setBytes(index, internalId);
+                    return index + 1;
+                };
+
+                // owners created here have no metadata yet, so their rows are plain inserts
+                if (row.isNewOwner()) {
+                    bindMetadataRow(insert, ownerBinder, row.getMetadataEntity(), now, false);
+                    insert.addBatch();
+                    if (++pendingInserts == batchSize) {
+                        countWrites(insert.executeBatch());
+                        pendingInserts = 0;
+                    }
+                } else {
+                    bindMetadataRow(upsert, ownerBinder, row.getMetadataEntity(), now, true);
+                    upsert.addBatch();
+                    if (++pendingUpserts == batchSize) {
+                        countWrites(upsert.executeBatch());
+                        pendingUpserts = 0;
+                    }
+                }
+            }
+            if (pendingInserts > 0) {
+                countWrites(insert.executeBatch());
+            }
+            if (pendingUpserts > 0) {
+                countWrites(upsert.executeBatch());
+            }
+        }
+    }
+
+    private void writeOutOfRowValues(Connection connection, List<OwnerMetadata> rows) throws SQLException {
+
+        if (rows.stream()
+            .noneMatch(row -> OutOfRowValues.hasOwnValue(row.getMetadataEntity()))) {
+            return;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(valueUpsertByIdSql)) {
+            int pending = 0;
+            for (OwnerMetadata row : rows) {
+                if (!OutOfRowValues.hasOwnValue(row.getMetadataEntity())) {
+                    continue;
+                }
+
+                byte[] internalId = UuidUtil.getBytesFromUuid(row.getInternalId());
+                bindValueRow(statement, (ownerStatement, index) -> {
+                    ownerStatement.setBytes(index, internalId);
+                    return index + 1;
+                }, row.getMetadataEntity());
+                statement.addBatch();
+                if (++pending == batchSize) {
+                    statement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Replaces the shared references of the written entries, after selecting the current ones for update. Later
+     * entries of the same owner and key win, as they do when the entries are written.
+     */
+    private void writeSharedValues(UUID tenantId, Map<OwnerKey, Collection<MetadataEntity>> entries) {
+
+        Map<OwnerKey, Map<String, MetadataEntity>> written = new LinkedHashMap<>();
+        entries.forEach((ownerKey, metadataEntities) -> {
+            Map<String, MetadataEntity> ownerEntries = written.computeIfAbsent(ownerKey, key -> new LinkedHashMap<>());
+            metadataEntities.forEach(metadataEntity -> ownerEntries.put(metadataEntity.getKeyName(), metadataEntity));
+        });
+        Set<UUID> ownerIds = written.keySet()
+            .stream()
+            .map(OwnerKey::getId)
+            .collect(Collectors.toSet());
+
+        SharedValues.Changes changes = new SharedValues.Changes();
+        for (SharedValues.Reference reference : sharedValues.lockReferences(tenantId, ownerIds)) {
+            Map<String, MetadataEntity> ownerEntries = written.get(new OwnerKey(reference.getOwnerType(), reference.getOwnerId()));
+            if (ownerEntries != null && ownerEntries.containsKey(reference.getKeyName())) {
+                changes.remove(reference.getHash());
+            }
+        }
+        written.values()
+            .forEach(ownerEntries -> ownerEntries.values()
+                .forEach(changes::add));
+
+        if (!changes.isEmpty()) {
+            sharedValues.apply(changes);
+        }
+    }
+
+    private void bindValueRow(PreparedStatement statement, OwnerBinder ownerBinder, MetadataEntity metadataEntity) throws SQLException {
+
+        int i = ownerBinder.bind(statement, 1);
+        statement.setString(i++, metadataEntity.getKeyName());
+        statement.setString(i, metadataEntity.getStoredValue());
+    }
+
+    private void bindOwnerInsert(PreparedStatement statement, UUID internalId, String type, byte[] ownerId, byte[] tenantId)
+        throws SQLException {
+
+        statement.setBytes(1, UuidUtil.getBytesFromUuid(internalId));
+        statement.setString(2, type);
+        statement.setBytes(3, ownerId);
+        statement.setBytes(4, tenantId);
+        if (Dialect.H2 == dialect) {
+            statement.setString(5, type);
+            statement.setBytes(6, ownerId);
+            statement.setBytes(7, tenantId);
+            // a derived internal ID is taken by the owner whose type only differs in case, as on MariaDB
+            statement.setBytes(8, UuidUtil.getBytesFromUuid(internalId));
+        }
+    }
+
+    private void bindMetadataRow(PreparedStatement statement, OwnerBinder ownerBinder, MetadataEntity metadataEntity, Timestamp now,
+                                 boolean merge) throws SQLException {
+
+        String value = metadataEntity.getValue();
+        String plainValue = metadataEntity.getPlainValue();
+        long valueHash = MetadataValueParser.getValueHash(plainValue);
+
+        int i = ownerBinder.bind(statement, 1);
+        statement.setString(i++, metadataEntity.getKeyName());
+        statement.setInt(i++, metadataEntity.getDataType()
+            .getId());
+        setObject(statement, i++, value, Types.VARCHAR);
+        setObject(statement, i++, valueHash, Types.BIGINT);
+        setObject(statement, i++, MetadataValueParser.getLongValue(metadataEntity.getDataType(), plainValue), Types.BIGINT);
+        setObject(statement, i++, MetadataValueParser.getDoubleValue(metadataEntity.getDataType(), plainValue), Types.DOUBLE);
+        setObject(statement, i++, MetadataValueParser.getBooleanValue(metadataEntity.getDataType(), plainValue), Types.BOOLEAN);
+        statement.setBoolean(i++, metadataEntity.isValueCompressed());
+        statement.setBoolean(i++, metadataEntity.isValueOutOfRow());
+        statement.setString(i++, metadataEntity.getValueRef());
+        statement.setTimestamp(i++, now);
+        if (merge && Dialect.H2 == dialect) {
+            i = ownerBinder.bind(statement, i);
+            statement.setString(i++, metadataEntity.getKeyName());
+        }
+        statement.setTimestamp(i++, now);
+        if (merge && skipUnchanged && Dialect.H2 == dialect) {
+            i = ownerBinder.bind(statement, i);
+            statement.setString(i++, metadataEntity.getKeyName());
+            statement.setInt(i++, metadataEntity.getDataType()
+                .getId());
+            setObject(statement, i++, valueHash, Types.BIGINT);
+            setObject(statement, i++, value, Types.VARCHAR);
+            // entries stored out of row have no value in their row, but are never unchanged
+            statement.setInt(i, plainValue == null ? 1 : 0);
+        }
+    }
+
+    /**
+     * Counts the written and elided rows of a batch. Statements that skipped an unchanged row report no update, inserts
+     * report 1 and updates by {@code ON DUPLICATE KEY UPDATE} 2. Drivers reporting found instead of affected rows report
+     * skipped rows as written, and rows of batches without row counts, e.g. rewritten into multi-row statements, are not
+     * counted at all.
+     */
+    private void countWrites(int[] updateCounts) {
+
+        metrics.add(MetadataPersistenceMetrics.WRITTEN_ROWS, Arrays.stream(updateCounts)
+            .filter(count -> count > 0)
+            .count());
+        metrics.add(MetadataPersistenceMetrics.ELIDED_ROWS, Arrays.stream(updateCounts)
+            .filter(count -> count == 0)
+            .count());
+    }
+
+    private static Set<OwnerKey> getOwnerKeys(List<MetadataOwnerEntity> owners) {
+
+        return owners.stream()
+            .map(OwnerKey::of)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private static void addUpdateCounts(List<Integer> updateCounts, int[] batchUpdateCounts) {
+
+        Arrays.stream(batchUpdateCounts)
+            .forEach(updateCounts::add);
+    }
+
+    private static int compareUnsigned(UUID a, UUID b) {
+
+        int result = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+
+        return result != 0 ? result : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    private static void setObject(PreparedStatement statement, int index, Object value, int sqlType) throws SQLException {
+
+        if (value == null) {
+            statement.setNull(index, sqlType);
+        } else {
+            statement.setObject(index, value, sqlType);
+        }
+    }
+
+    private void renderStatements() {
+
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        AbstractEntityPersister metadataPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataEntity.class.getName());
+        AbstractEntityPersister ownerPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataOwnerEntity.class.getName());
+
+        String ownerTable = ownerPersister.getTableName();
+        String ownerIdColumn = ownerPersister.getIdentifierColumnNames()[0];
+        String ownerTypeColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME)[0];
+        String ownerOwnerIdColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.OWNER_ID_FIELD_NAME)[0];
+        String ownerTenantIdColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.TENANT_ID_FIELD_NAME)[0];
+
+        String metadataTable = metadataPersister.getTableName();
+        String ownerColumn = metadataPersister.getPropertyColumnNames(OWNER_FIELD_NAME)[0];
+        String keyNameColumn = metadataPersister.getPropertyColumnNames(KEY_NAME_FIELD_NAME)[0];
+        String createdColumn = metadataPersister.getPropertyColumnNames(CREATED_FIELD_NAME)[0];
+        String[] updatedColumns = {
+            metadataPersister.getPropertyColumnNames(DATA_TYPE_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(VALUE_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(VALUE_HASH_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(LONG_VALUE_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(DOUBLE_VALUE_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(BOOLEAN_VALUE_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(COMPRESSED_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(OUT_OF_ROW_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(VALUE_REF_FIELD_NAME)[0],
+            metadataPersister.getPropertyColumnNames(LAST_MODIFIED_FIELD_NAME)[0]
+        };
+
+        String ownerNaturalKey = ownerTypeColumn + " = ? AND " + ownerOwnerIdColumn + " = ? AND " + ownerTenantIdColumn + " = ?";
+        String ownerSelect = "(SELECT " + ownerIdColumn + " FROM " + ownerTable + " WHERE " + ownerNaturalKey + ")";
+        String ownerColumns = ownerIdColumn + ", " + ownerTypeColumn + ", " + ownerOwnerIdColumn + ", " + ownerTenantIdColumn;
+
+        if (Dialect.MARIADB == dialect) {
+            // unlike INSERT IGNORE, this only skips duplicates, other errors such as truncation still fail the statement
+            ownerInsertSql = "INSERT INTO " + ownerTable + " (" + ownerColumns + ") VALUES (?, ?, ?, ?)"
+                             + " ON DUPLICATE KEY UPDATE " + ownerIdColumn + " = " + ownerIdColumn;
+        } else {
+            ownerInsertSql = "INSERT INTO " + ownerTable + " (" + ownerColumns + ")"
+                             + " SELECT ?, ?, ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM " + ownerTable + " WHERE " + ownerNaturalKey
+                             + " OR " + ownerIdColumn + " = ?)";
+        }
+
+        AbstractEntityPersister valuePersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataValueEntity.class.getName());
+        String valueTable = valuePersister.getTableName();
+        String valueColumns = valuePersister.getPropertyColumnNames(MetadataValueEntity.OWNER_INTERNAL_ID_FIELD_NAME)[0] + ", "
+                              + valuePersister.getPropertyColumnNames(MetadataValueEntity.KEY_NAME_FIELD_NAME)[0];
+        String valueColumn = valuePersister.getPropertyColumnNames(MetadataValueEntity.VALUE_FIELD_NAME)[0];
+        valueUpsertSql = renderValueUpsert(valueTable, valueColumns, valueColumn, ownerSelect);
+        valueUpsertByIdSql = renderValueUpsert(valueTable, valueColumns, valueColumn, "?");
+
+        metadataUpsertSql = renderMetadataUpsert(metadataTable, ownerColumn, keyNameColumn, updatedColumns, createdColumn, ownerSelect);
+        metadataUpsertByIdSql = renderMetadataUpsert(metadataTable, ownerColumn, keyNameColumn, updatedColumns, createdColumn, "?");
+        metadataInsertByIdSql = "INSERT INTO " + metadataTable + " (" + ownerColumn + ", " + keyNameColumn + ", "
+                                + StringUtils.join(updatedColumns, ", ") + ", " + createdColumn + ")"
+                                + " VALUES (?, ?" + StringUtils.repeat(", ?", updatedColumns.length) + ", ?)";
+    }
+
+    private String renderMetadataUpsert(
+        String metadataTable, String ownerColumn, String keyNameColumn, String[] updatedColumns, String createdColumn, String owner) {
+
+        String dataTypeColumn = updatedColumns[0];
+        String valueColumn = updatedColumns[1];
+        String valueHashColumn = updatedColumns[2];
+
+        String columns = ownerColumn + ", " + keyNameColumn + ", " + StringUtils.join(updatedColumns, ", ") + ", " + createdColumn;
+        String parameters = StringUtils.repeat(", ?", updatedColumns.length);
+
+        if (Dialect.MARIADB == dialect) {
+            return "INSERT INTO " + metadataTable + " (" + columns + ") VALUES (" + owner + ", ?" + parameters + ", ?)"
+                   + " ON DUPLICATE KEY UPDATE " + renderMetadataUpdates(updatedColumns);
+        }
+
+        // the value hash is compared as well, as the value may be compared case-insensitively
+        String rowStart = " VALUES (";
+        String rowEnd = ")";
+        if (skipUnchanged) {
+            rowStart = " SELECT ";
+            rowEnd = " FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM " + metadataTable + " u WHERE u." + ownerColumn + " = " + owner
+                     + " AND u." + keyNameColumn + " = ? AND u." + dataTypeColumn + " = ?"
+                     + " AND (u." + valueHashColumn + " = ? AND u." + valueColumn + " = ? OR u." + valueColumn + " IS NULL AND ? = 1))";
+        }
+
+        // MERGE replaces all listed columns, so the creation date of an existing row is selected back
+        String createdSelect = "COALESCE((SELECT c." + createdColumn + " FROM " + metadataTable + " c WHERE c." + ownerColumn + " = "
+                               + owner + " AND c." + keyNameColumn + " = ?), ?)";
+
+        return "MERGE INTO " + metadataTable + " (" + columns + ") KEY (" + ownerColumn + ", " + keyNameColumn + ")"
+               + rowStart + owner + ", ?" + parameters + ", " + createdSelect + rowEnd;
+    }
+
+    /**
+     * Renders the assignments of an upsert to an existing row. To skip unchanged rows, every column keeps its value if
+     * data type, value hash and value are unchanged and the new value is not stored out of row. Assignments see the
+     * columns assigned before them, so these three come last, each assigned only while another one still differs.
+     */
+    private String renderMetadataUpdates(String[] updatedColumns) {
+
+        String dataTypeColumn = updatedColumns[0];
+        String valueColumn = updatedColumns[1];
+        String valueHashColumn = updatedColumns[2];
+        String outOfRowColumn = updatedColumns[7];
+
+        List<String> columns = new ArrayList<>(Arrays.asList(updatedColumns).subList(3, updatedColumns.length));
+        columns.add(valueColumn);
+        columns.add(valueHashColumn);
+        columns.add(dataTypeColumn);
+
+        // the value hash is compared as well, as the value may be compared case-insensitively
+        String unchanged = dataTypeColumn + " = VALUES(" + dataTypeColumn + ") AND " + valueHashColumn + " <=> VALUES(" + valueHashColumn + ")"
+                           + " AND " + valueColumn + " <=> VALUES(" + valueColumn + ") AND NOT VALUES(" + outOfRowColumn + ")";
+
+        StringBuilder updates = new StringBuilder();
+        for (String column : columns) {
+            updates.append(updates.length() > 0 ? ", " : "")
+                .append(column)
+                .append(" = ");
+            if (skipUnchanged) {
+                updates.append("IF(")
+                    .append(unchanged)
+                    .append(", ")
+                    .append(column)
+                    .append(", VALUES(")
+                    .append(column)
+                    .append("))");
+            } else {
+                updates.append("VALUES(")
+                    .append(column)
+                    .append(")");
+            }
+        }
+
+        return updates.toString();
+    }
+
+    private String renderValueUpsert(String valueTable, String keyColumns, String valueColumn, String owner) {
+
+        if (Dialect.MARIADB == dialect) {
+            return "INSERT INTO " + valueTable + " (" + keyColumns + ", " + valueColumn + ") VALUES (" + owner + ", ?, ?)"
+                   + " ON DUPLICATE KEY UPDATE " + valueColumn + " = VALUES(" + valueColumn + ")";
+        }
+
+        return "MERGE INTO " + valueTable + " (" + keyColumns + ", " + valueColumn + ") KEY (" + keyColumns + ") VALUES (" + owner + ", ?, ?)";
+    }
+
+    /**
+     * Binds the parameters identifying the owner of a metadata row, starting at a given index.
+     */
+    @FunctionalInterface
+    private interface OwnerBinder {
+
+        int bind(PreparedStatement statement, int index) throws SQLException;
+    }
+
+    @Value
+    private static class OwnerKey {
+
+        String type;
+        UUID id;
+
+        static OwnerKey of(MetadataOwnerEntity owner) {
+
+            return new OwnerKey(owner.getType(), owner.getId());
+        }
+    }
+
+    @Value
+    private static class OwnerMetadataKey {
+
+        UUID internalId;
+        String keyName;
+    }
+
+    @Value
+    private static class OwnerMetadata {
+
+        UUID internalId;
+        MetadataEntity metadataEntity;
+        boolean newOwner;
+    }
+
+    /**
+     * Treats all properties as reachable. The default resolver asks the JPA provider whether each property is loaded,
+     * which is needless for the new, detached entities validated here and dominates the cost of bulk validation.
+     */
+    private static class ReachableTraversableResolver implements TraversableResolver {
+
+        @Override
+        public boolean isReachable(
+            Object traversableObject, Path.Node traversableProperty, Class<?> rootBeanType, Path pathToTraversableObject,
+            ElementType elementType) {
+
+            return true;
+        }
+
+        @Override
+        public boolean isCascadable(
+            Object traversableObject, Path.Node traversableProperty, Class<?> rootBeanType, Path pathToTraversableObject,
+            ElementType elementType) {
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.apache.commons.collections4.ListUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataSharedValueEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueId;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataValueEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataValueEntity.OWNER_INTERNAL_ID_FIELD_NAME;
+
+/**
+ * Reads and writes the values of metadata entries that are stored out of row, see
+ * {@link MetadataEntity#isValueOutOfRow()}. Queries on metadata entries never read these values, so they are loaded
+ * here in one query for all entries of a response, right before it is converted.
+ * <p>
+ * Native upserts write the values themselves, see {@link NativeMetadataUpsert}. Shared values are loaded here as well,
+ * but written by {@link SharedValues}.
+ */
+@Component
+public class OutOfRowValues {
+
+    public static final String LOADED_VALUES = "read.out-of-row-values";
+
+    private final EntityManager entityManager;
+    private final CriteriaBuilder builder;
+    private final MetadataPersistenceMetrics metrics;
+    private final int batchSize;
+
+    @Autowired
+    public OutOfRowValues(EntityManager entityManager, MetadataPersistenceMetrics metrics, MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.builder = entityManager.getCriteriaBuilder();
+        this.metrics = metrics;
+        this.batchSize = properties.getWrite()
+            .getBatchSize();
+    }
+
+    /**
+     * Loads the values of the given metadata entries that are stored out of row and not loaded yet, including shared
+     * values.
+     *
+     * @param metadataEntities the metadata entries, with their owners
+     */
+    public void load(Collection<MetadataEntity> metadataEntities) {
+
+        Map<MetadataValueId, MetadataEntity> pending = new HashMap<>();
+        Map<String, List<MetadataEntity>> pendingShared = new HashMap<>();
+        for (MetadataEntity metadataEntity : metadataEntities) {
+            if (metadataEntity.isValueOutOfRow() && metadataEntity.getOutOfRowValue() == null) {
+                if (metadataEntity.isValueShared()) {
+                    pendingShared.computeIfAbsent(metadataEntity.getValueRef(), hash -> new ArrayList<>())
+                        .add(metadataEntity);
+                } else {
+                    pending.put(getId(metadataEntity.getOwner()
+                                          .getInternalId(), metadataEntity.getKeyName()), metadataEntity);
+                }
+            }
+        }
+        if (!pendingShared.isEmpty()) {
+            loadShared(pendingShared);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        int requested = pending.size();
+
+        Set<UUID> ownerIds = pending.keySet()
+            .stream()
+            .map(MetadataValueId::getOwnerInternalId)
+            .collect(Collectors.toSet());
+        Set<String> keyNames = pending.keySet()
+            .stream()
+            .map(MetadataValueId::getKeyName)
+            .collect(Collectors.toSet());
+
+        // selects a superset of the entries of a page, i.e. all of their keys of all of their owners
+        for (List<UUID> ownerIdChunk : ListUtils.partition(new ArrayList<>(ownerIds), batchSize)) {
+            CriteriaQuery<MetadataValueEntity> query = builder.createQuery(MetadataValueEntity.class);
+            Root<MetadataValueEntity> root = query.from(MetadataValueEntity.class);
+            query.select(root)
+                .where(root.get(OWNER_INTERNAL_ID_FIELD_NAME)
+                           .in(ownerIdChunk),
+                       root.get(KEY_NAME_FIELD_NAME)
+                           .in(keyNames));
+
+            for (MetadataValueEntity valueEntity : entityManager.createQuery(query)
+                .getResultList()) {
+                MetadataEntity metadataEntity = pending.remove(getId(valueEntity.getOwnerInternalId(), valueEntity.getKeyName()));
+                if (metadataEntity != null) {
+                    metadataEntity.setOutOfRowValue(valueEntity.getValue());
+                }
+                entityManager.detach(valueEntity);
+            }
+        }
+        metrics.add(LOADED_VALUES, requested - pending.size());
+
+        if (!pending.isEmpty()) {
+            MetadataEntity missing = pending.values()
+                .iterator()
+                .next();
+            throw new IllegalStateException(String.format("The out-of-row value of key '%s' of owner '%s' does not exist",
+                                                          missing.getKeyName(), missing.getOwner()
+                                                              .getInternalId()));
+        }
+    }
+
+    /**
+     * Writes the out-of-row values of metadata entries of an owner, within the surrounding transaction.
+     *
+     * @param internalId the internal ID of the owner
+     * @param metadataEntities the metadata entries, entries whose value is in their row or shared are skipped
+     */
+    public void save(UUID internalId, Collection<MetadataEntity> metadataEntities) {
+
+        metadataEntities.stream()
+            .filter(OutOfRowValues::hasOwnValue)
+            .filter(metadataEntity -> metadataEntity.getOutOfRowValue() != null)
+            .forEach(metadataEntity -> entityManager.merge(MetadataValueEntity.builder()
+                                                               .ownerInternalId(internalId)
+                                                               .keyName(metadataEntity.getKeyName())
+                                                               .value(metadataEntity.getOutOfRowValue())
+                                                               .build()));
+    }
+
+    /**
+     * Deletes the out-of-row values of an owner, within the surrounding transaction.
+     *
+     * @param internalId the internal ID of the owner
+     * @param keyName the key name, {@code null} for all keys of the owner
+     * @return the number of deleted values
+     */
+    public int delete(UUID internalId, String keyName) {
+
+        CriteriaDelete<MetadataValueEntity> delete = builder.createCriteriaDelete(MetadataValueEntity.class);
+        Root<MetadataValueEntity> root = delete.from(MetadataValueEntity.class);
+
+        Predicate owner = builder.equal(root.get(OWNER_INTERNAL_ID_FIELD_NAME), internalId);
+        delete.where(keyName == null ? owner : builder.and(owner, builder.equal(root.get(KEY_NAME_FIELD_NAME), keyName)));
+
+        return entityManager.createQuery(delete)
+            .executeUpdate();
+    }
+
+    /**
+     * Checks if the value of a metadata entry is kept in the {@code metadataValue} table, i.e. out of row, but not
+     * shared.
+     *
+     * @param metadataEntity the metadata entry
+     * @return {@code true} if the entry has a row of its own in the {@code metadataValue} table
+     */
+    public static boolean hasOwnValue(MetadataEntity metadataEntity) {
+
+        return metadataEntity.isValueOutOfRow() && !metadataEntity.isValueShared();
+    }
+
+    private void loadShared(Map<String, List<MetadataEntity>> pending) {
+
+        for (List<String> hashChunk : ListUtils.partition(new ArrayList<>(pending.keySet()), batchSize)) {
+            CriteriaQuery<MetadataSharedValueEntity> query = builder.createQuery(MetadataSharedValueEntity.class);
+            Root<MetadataSharedValueEntity> root = query.from(MetadataSharedValueEntity.class);
+            query.select(root)
+                .where(root.get(MetadataSharedValueEntity.HASH_FIELD_NAME)
+                           .in(hashChunk));
+
+            for (MetadataSharedValueEntity sharedValue : entityManager.createQuery(query)
+                .getResultList()) {
+                List<MetadataEntity> metadataEntities = pending.remove(sharedValue.getHash());
+                if (metadataEntities != null) {
+                    metadataEntities.forEach(metadataEntity -> metadataEntity.setOutOfRowValue(sharedValue.getValue()));
+                    metrics.add(LOADED_VALUES, metadataEntities.size());
+                }
+                entityManager.detach(sharedValue);
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            throw new IllegalStateException(String.format("The shared value '%s' does not exist", pending.keySet()
+                .iterator()
+                .next()));
+        }
+    }
+
+    private static MetadataValueId getId(UUID internalId, String keyName) {
+
+        MetadataValueId id = new MetadataValueId();
+        id.setOwnerInternalId(Objects.requireNonNull(internalId));
+        id.setKeyName(keyName);
+
+        return id;
+    }
+}
@@ -0,0 +1,250 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import lombok.Value;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+
+/**
+ * Caches the internal IDs of owners by tenant ID, type and ID, and optionally the absence of owners that do not exist,
+ * so that writers need not look them up. The least recently used entries are evicted once the cache is full, and
+ * entries expire after a configurable time, absent owners sooner than existing ones.
+ * <p>
+ * Deletes and migrations evict their owners right away and again after their transaction completed, and a lookup only
+ * caches what it loaded if no eviction of the owner happened meanwhile. Writes on other instances are not seen, so a
+ * cached internal ID may refer to an owner that no longer exists, which writers detect when they load the owner by it,
+ * see {@link #evict(UUID, String, UUID)}.
+ */
+@Component
+public class OwnerIdCache {
+
+    public static final String HITS = "read.owner-id-cache.hits";
+    public static final String MISSES = "read.owner-id-cache.misses";
+    public static final String EVICTIONS = "read.owner-id-cache.evictions";
+
+    private static final int STAMPS = 1024;
+
+    private final MetadataPersistenceMetrics metrics;
+    private final int maxEntries;
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+
+    private final LinkedHashMap<OwnerIdentity, CachedId> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+    private final AtomicLong epoch = new AtomicLong();
+
+    @Autowired
+    public OwnerIdCache(MetadataPersistenceMetrics metrics, MetadataPersistenceProperties properties) {
+
+        MetadataPersistenceProperties.OwnerIdCache config = properties.getOwnerId()
+            .getCache();
+        this.metrics = metrics;
+        this.maxEntries = config.getMaxEntries();
+        this.timeToLive = config.getTimeToLive();
+        this.negativeTimeToLive = config.getNegativeTimeToLive();
+    }
+
+    /**
+     * Checks if internal IDs are cached.
+     *
+     * @return {@code true} if internal IDs are cached
+     */
+    public boolean isEnabled() {
+
+        return maxEntries > 0;
+    }
+
+    /**
+     * Gets the internal ID of an owner, loading it from the database if it is not cached.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type
+     * @param id the owner ID
+     * @param loader looks up the internal ID
+     * @return the internal ID, empty if the owner does not exist
+     */
+    public Optional<UUID> get(UUID tenantId, String type, UUID id, Supplier<Optional<UUID>> loader) {
+
+        if (!isEnabled()) {
+            return loader.get();
+        }
+
+        OwnerIdentity key = new OwnerIdentity(tenantId, type, id);
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            CachedId cached = entries.get(key);
+            if (cached != null && cached.getExpires() >= now) {
+                metrics.increment(HITS);
+                return Optional.ofNullable(cached.getInternalId());
+            }
+            if (cached != null) {
+                entries.remove(key);
+                metrics.increment(EVICTIONS);
+            }
+        }
+        metrics.increment(MISSES);
+
+        long epochBefore = epoch.get();
+        long stampBefore = stamps.get(getStampIndex(key));
+        Optional<UUID> internalId = loader.get();
+
+        synchronized (entries) {
+            // checked under the lock, so that a later eviction removes what is put here
+            if ((internalId.isPresent() || negativeTimeToLive > 0)
+                && epoch.get() == epochBefore && stamps.get(getStampIndex(key)) == stampBefore) {
+                put(key, internalId.orElse(null), now);
+            }
+        }
+
+        return internalId;
+    }
+
+    /**
+     * Caches the internal ID of an owner that was just created or resolved by a committed write.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type
+     * @param id the owner ID
+     * @param internalId the internal ID
+     */
+    public void put(UUID tenantId, String type, UUID id, UUID internalId) {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (entries) {
+            put(new OwnerIdentity(tenantId, type, id), internalId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Discards the cached internal ID or absence of an owner, e.g. because it is deleted, created or migrated. Within a
+     * transaction, the owner is evicted again once the transaction completed, so that lookups of other transactions in
+     * the meantime are not kept.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type
+     * @param id the owner ID
+     */
+    public void evict(UUID tenantId, String type, UUID id) {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        OwnerIdentity key = new OwnerIdentity(tenantId, type, id);
+        remove(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+
+                    remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Discards the cached internal IDs of all owners of a tenant, or of one owner type of a tenant, e.g. after owners
+     * were deleted by a purge. Owner types are compared like the database does, see
+     * {@link UuidUtil#normalizeOwnerType(String)}.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type, or {@code null} for all owner types
+     */
+    public void evictTenant(UUID tenantId, String type) {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        String normalizedType = type != null ? UuidUtil.normalizeOwnerType(type) : null;
+        synchronized (entries) {
+            // lookups running meanwhile may have loaded an owner of the tenant, so none of them is cached
+            epoch.incrementAndGet();
+            entries.keySet()
+                .removeIf(key -> tenantId.equals(key.getTenantId())
+                                 && (normalizedType == null || normalizedType.equals(UuidUtil.normalizeOwnerType(key.getType()))));
+        }
+    }
+
+    /**
+     * Discards all cached internal IDs.
+     */
+    public void clear() {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (entries) {
+            epoch.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    private void remove(OwnerIdentity key) {
+
+        synchronized (entries) {
+            stamps.incrementAndGet(getStampIndex(key));
+            entries.remove(key);
+        }
+    }
+
+    private void put(OwnerIdentity key, UUID internalId, long now) {
+
+        entries.put(key, new CachedId(internalId, now + (internalId != null ? timeToLive : negativeTimeToLive)));
+
+        Iterator<Map.Entry<OwnerIdentity, CachedId>> eldest = entries.entrySet()
+            .iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+            metrics.increment(EVICTIONS);
+        }
+    }
+
+    private static int getStampIndex(OwnerIdentity key) {
+
+        int hash = key.hashCode();
+
+        return (hash ^ (hash >>> 16)) & (STAMPS - 1);
+    }
+
+    @Value
+    private static class OwnerIdentity {
+
+        UUID tenantId;
+        String type;
+        UUID id;
+    }
+
+    @Value
+    private static class CachedId {
+
+        /**
+         * The internal ID, {@code null} if the owner does not exist.
+         */
+        UUID internalId;
+        long expires;
+    }
+}
@@ -0,0 +1,25 @@
+package net.smartcosmos.dao.metadata.repository;
+
+/**
+ * Enum of supported ways to assign internal IDs to new metadata owners.
+ */
+public enum OwnerIdMode {
+
+    /**
+     * Random UUIDs, so the internal ID of an existing owner has to be looked up by tenant, type and ID.
+     */
+    RANDOM,
+
+    /**
+     * Time-based UUIDs with the timestamp fields reordered so that their binary form increases over time, see
+     * {@link net.smartcosmos.dao.metadata.util.UuidUtil#getNewUuid()}. New owners are appended to the end of the
+     * primary key and foreign key indexes instead of random pages.
+     */
+    TIME_ORDERED,
+
+    /**
+     * Name-based UUIDs derived from tenant, type and ID, so writers compute the internal ID of an owner instead of
+     * looking it up. Existing owners with random IDs are migrated on startup.
+     */
+    NAME_BASED
+}
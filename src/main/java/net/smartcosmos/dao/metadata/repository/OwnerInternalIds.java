@@ -0,0 +1,388 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Root;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataMigrationEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueEntity;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+
+/**
+ * Assigns internal IDs to new owners according to the configured {@link OwnerIdMode}, and migrates existing owners to
+ * name-based IDs when {@link #migrate()} is called once all instances assign name-based IDs. Writers must not derive
+ * internal IDs before that is done, see {@link #isDerivable()}.
+ * <p>
+ * The migration is coordinated through a row of the {@code metadataMigration} table: an instance only migrates while
+ * it holds the lease of that row, renewing it after each batch, and marks the row complete at the end, which all
+ * instances check until they see it. A migration interrupted by a crash is resumed by the next call once the lease
+ * expired.
+ * <p>
+ * Each owner is migrated in one transaction while holding its owner lock, see {@link OwnerLocks}: its natural key is
+ * released by moving the tenant ID aside, a copy with the name-based ID is inserted, its metadata and out-of-row values
+ * are moved to the copy and the old row is deleted. Other transactions see either the old or the new owner, and the
+ * cached internal ID and second-level cache entries of the owner are evicted afterwards.
+ */
+@Slf4j
+@Component
+public class OwnerInternalIds {
+
+    static final String MIGRATION_NAME = "owner-internal-ids";
+
+    private static final long COMPLETION_CHECK_INTERVAL = 30000L;
+
+    private final EntityManager entityManager;
+    private final EntityManagerFactory entityManagerFactory;
+    private final CriteriaBuilder builder;
+    private final TransactionTemplate transactionTemplate;
+    private final OwnerIdCache ownerIdCache;
+    private final SecondLevelCache secondLevelCache;
+    private final OwnerLocks ownerLocks;
+
+    private final OwnerIdMode mode;
+    private final boolean nameBased;
+    private final int batchSize;
+    private final long leaseTime;
+    private final String instanceId = UUID.randomUUID()
+        .toString();
+
+    /**
+     * Whether this instance saw the migration marked complete, which it stays once it is.
+     */
+    private volatile boolean complete;
+    private volatile long nextCompletionCheck;
+
+    private String releaseSql;
+    private String copySql;
+    private String moveMetadataSql;
+    private String moveValuesSql;
+    private String deleteSql;
+
+    @Autowired
+    public OwnerInternalIds(
+        EntityManager entityManager,
+        EntityManagerFactory entityManagerFactory,
+        PlatformTransactionManager transactionManager,
+        OwnerIdCache ownerIdCache,
+        SecondLevelCache secondLevelCache,
+        OwnerLocks ownerLocks,
+        MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.entityManagerFactory = entityManagerFactory;
+        this.builder = entityManager.getCriteriaBuilder();
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.ownerIdCache = ownerIdCache;
+        this.secondLevelCache = secondLevelCache;
+        this.ownerLocks = ownerLocks;
+
+        MetadataPersistenceProperties.OwnerId config = properties.getOwnerId();
+        this.mode = config.getMode();
+        this.nameBased = OwnerIdMode.NAME_BASED == mode;
+        this.batchSize = config.getMigrationBatchSize();
+        this.leaseTime = config.getMigrationLeaseTime();
+    }
+
+    @PostConstruct
+    public void init() {
+
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        AbstractEntityPersister metadataPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataEntity.class.getName());
+        AbstractEntityPersister ownerPersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataOwnerEntity.class.getName());
+
+        String ownerTable = ownerPersister.getTableName();
+        String internalIdColumn = ownerPersister.getIdentifierColumnNames()[0];
+        String typeColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME)[0];
+        String idColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.OWNER_ID_FIELD_NAME)[0];
+        String tenantIdColumn = ownerPersister.getPropertyColumnNames(MetadataOwnerEntity.TENANT_ID_FIELD_NAME)[0];
+        String ownerColumn = metadataPersister.getPropertyColumnNames(MetadataEntity.OWNER_FIELD_NAME)[0];
+
+        // the old internal ID is unique, so it keeps (type, id, tenantId) unique while the copy takes the natural key
+        releaseSql = "UPDATE " + ownerTable + " SET " + tenantIdColumn + " = " + internalIdColumn + " WHERE " + internalIdColumn + " = :oldId";
+        copySql = "INSERT INTO " + ownerTable + " (" + internalIdColumn + ", " + typeColumn + ", " + idColumn + ", " + tenantIdColumn + ")"
+                  + " VALUES (:newId, :type, :id, :tenantId)";
+        moveMetadataSql = "UPDATE " + metadataPersister.getTableName() + " SET " + ownerColumn + " = :newId WHERE " + ownerColumn + " = :oldId";
+        AbstractEntityPersister valuePersister = (AbstractEntityPersister) sessionFactory.getEntityPersister(MetadataValueEntity.class.getName());
+        String valueOwnerColumn = valuePersister.getPropertyColumnNames(MetadataValueEntity.OWNER_INTERNAL_ID_FIELD_NAME)[0];
+        moveValuesSql = "UPDATE " + valuePersister.getTableName() + " SET " + valueOwnerColumn + " = :newId WHERE " + valueOwnerColumn + " = :oldId";
+        deleteSql = "DELETE FROM " + ownerTable + " WHERE " + internalIdColumn + " = :oldId";
+    }
+
+    /**
+     * Gets the internal ID of a new owner, i.e. a name-based, random or time-ordered one depending on the mode.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type
+     * @param id the owner ID
+     * @return the internal ID
+     */
+    public UUID getNewInternalId(UUID tenantId, String type, UUID id) {
+
+        switch (mode) {
+            case NAME_BASED:
+                return UuidUtil.getOwnerInternalId(tenantId, type, id);
+            case RANDOM:
+                return UUID.randomUUID();
+            default:
+                return UuidUtil.getNewUuid();
+        }
+    }
+
+    /**
+     * Checks if the internal ID of any owner, new or existing, is its name-based one, i.e. if the migration was marked
+     * complete by any instance. Until then, this checks the mark at most every 30 seconds.
+     *
+     * @return {@code true} if writers may derive internal IDs instead of looking them up
+     */
+    public boolean isDerivable() {
+
+        if (!nameBased) {
+            return false;
+        }
+        if (!complete && System.currentTimeMillis() >= nextCompletionCheck) {
+            nextCompletionCheck = System.currentTimeMillis() + COMPLETION_CHECK_INTERVAL;
+            complete = isMarkedComplete();
+        }
+
+        return complete;
+    }
+
+    /**
+     * Migrates all owners with other internal IDs to name-based ones, one batch of owners at a time, and marks the
+     * migration complete. To be called once, e.g. by an administrative task, after all instances were switched to
+     * {@link OwnerIdMode#NAME_BASED}, as instances in another mode keep creating owners that would need migrating.
+     * Calls while another instance holds the migration lease, or after the migration is complete, return right away.
+     *
+     * @return the number of migrated owners
+     * @throws IllegalStateException if the mode is not name-based, or the lease expired during the migration
+     */
+    public long migrate() {
+
+        if (!nameBased) {
+            throw new IllegalStateException("Owners are only migrated to name-based internal IDs in NAME_BASED mode");
+        }
+        if (!acquireLease()) {
+            log.info("Owner ID migration is complete or running on another instance.");
+            complete = isMarkedComplete();
+            return 0;
+        }
+
+        long total = 0;
+        try {
+            List<MetadataOwnerEntity> owners = getOwners(null);
+            while (!owners.isEmpty()) {
+                for (MetadataOwnerEntity owner : owners) {
+                    total += migrateOwner(owner) ? 1 : 0;
+                }
+                if (!renewLease()) {
+                    throw new IllegalStateException("Owner ID migration lost its lease, the batch took longer than the lease time");
+                }
+                owners = owners.size() < batchSize ? Collections.emptyList() : getOwners(owners.get(owners.size() - 1)
+                    .getInternalId());
+            }
+
+            markComplete();
+            complete = true;
+            log.info("Owner ID migration complete, migrated {} owners.", total);
+        } catch (RuntimeException e) {
+            log.error("Owner ID migration failed after {} owners, writers will look up internal IDs.", total, e);
+            releaseLease();
+            throw e;
+        }
+
+        return total;
+    }
+
+    private List<MetadataOwnerEntity> getOwners(UUID after) {
+
+        return transactionTemplate.execute(status -> {
+            CriteriaQuery<MetadataOwnerEntity> query = builder.createQuery(MetadataOwnerEntity.class);
+            Root<MetadataOwnerEntity> root = query.from(MetadataOwnerEntity.class);
+            query.select(root)
+                .orderBy(builder.asc(root.get(MetadataOwnerEntity.ID_FIELD_NAME)));
+            if (after != null) {
+                query.where(builder.greaterThan(root.get(MetadataOwnerEntity.ID_FIELD_NAME), after));
+            }
+
+            List<MetadataOwnerEntity> owners = entityManager.createQuery(query)
+                .setMaxResults(batchSize)
+                .getResultList();
+            entityManager.clear();
+
+            return owners;
+        });
+    }
+
+    private boolean migrateOwner(MetadataOwnerEntity owner) {
+
+        UUID oldId = owner.getInternalId();
+        UUID newId = UuidUtil.getOwnerInternalId(owner.getTenantId(), owner.getType(), owner.getId());
+        if (newId.equals(oldId)) {
+            return false;
+        }
+
+        List<String> keyNames = ownerLocks.write(owner.getTenantId(), owner.getType(), owner.getId(),
+                                                 () -> transactionTemplate.execute(status -> moveOwner(owner, newId)));
+        ownerIdCache.evict(owner.getTenantId(), owner.getType(), owner.getId());
+        secondLevelCache.evictOwner(oldId, keyNames);
+
+        return true;
+    }
+
+    /**
+     * Moves an owner with its metadata to a new internal ID.
+     *
+     * @return the key names of the moved metadata, for evicting them from the second-level cache
+     */
+    private List<String> moveOwner(MetadataOwnerEntity owner, UUID newId) {
+
+        byte[] oldIdBytes = UuidUtil.getBytesFromUuid(owner.getInternalId());
+        byte[] newIdBytes = UuidUtil.getBytesFromUuid(newId);
+
+        CriteriaQuery<String> keyQuery = builder.createQuery(String.class);
+        Root<MetadataEntity> metadata = keyQuery.from(MetadataEntity.class);
+        keyQuery.select(metadata.get(MetadataEntity.KEY_NAME_FIELD_NAME))
+            .where(builder.equal(metadata.get(MetadataEntity.OWNER_FIELD_NAME)
+                                     .get(MetadataOwnerEntity.ID_FIELD_NAME), owner.getInternalId()));
+        List<String> keyNames = entityManager.createQuery(keyQuery)
+            .getResultList();
+
+        entityManager.createNativeQuery(releaseSql)
+            .setParameter("oldId", oldIdBytes)
+            .executeUpdate();
+        entityManager.createNativeQuery(copySql)
+            .setParameter("newId", newIdBytes)
+            .setParameter("type", owner.getType())
+            .setParameter("id", UuidUtil.getBytesFromUuid(owner.getId()))
+            .setParameter("tenantId", UuidUtil.getBytesFromUuid(owner.getTenantId()))
+            .executeUpdate();
+        entityManager.createNativeQuery(moveMetadataSql)
+            .setParameter("newId", newIdBytes)
+            .setParameter("oldId", oldIdBytes)
+            .executeUpdate();
+        entityManager.createNativeQuery(moveValuesSql)
+            .setParameter("newId", newIdBytes)
+            .setParameter("oldId", oldIdBytes)
+            .executeUpdate();
+        entityManager.createNativeQuery(deleteSql)
+            .setParameter("oldId", oldIdBytes)
+            .executeUpdate();
+
+        return keyNames;
+    }
+
+    private boolean isMarkedComplete() {
+
+        return transactionTemplate.execute(status -> {
+            CriteriaQuery<Date> query = builder.createQuery(Date.class);
+            Root<MetadataMigrationEntity> root = query.from(MetadataMigrationEntity.class);
+            query.select(root.get(MetadataMigrationEntity.COMPLETED_FIELD_NAME))
+                .where(builder.equal(root.get(MetadataMigrationEntity.NAME_FIELD_NAME), MIGRATION_NAME));
+
+            return entityManager.createQuery(query)
+                .getResultList()
+                .stream()
+                .anyMatch(completed -> completed != null);
+        });
+    }
+
+    /**
+     * Takes the lease of the migration row, inserting the row first if it does not exist yet.
+     *
+     * @return {@code true} if this instance holds the lease now, {@code false} if another instance holds it or the
+     * migration is complete
+     */
+    private boolean acquireLease() {
+
+        try {
+            transactionTemplate.execute(status -> {
+                if (entityManager.find(MetadataMigrationEntity.class, MIGRATION_NAME) == null) {
+                    entityManager.persist(MetadataMigrationEntity.builder()
+                                              .name(MIGRATION_NAME)
+                                              .build());
+                }
+                return null;
+            });
+        } catch (DataIntegrityViolationException e) {
+            log.debug("Owner ID migration row was inserted concurrently: {}", e.toString());
+        }
+
+        Date now = new Date();
+
+        return transactionTemplate.execute(status -> {
+            CriteriaUpdate<MetadataMigrationEntity> update = builder.createCriteriaUpdate(MetadataMigrationEntity.class);
+            Root<MetadataMigrationEntity> root = update.from(MetadataMigrationEntity.class);
+            update.set(root.get(MetadataMigrationEntity.LOCKED_BY_FIELD_NAME), instanceId)
+                .set(root.get(MetadataMigrationEntity.LOCKED_UNTIL_FIELD_NAME), new Date(now.getTime() + leaseTime))
+                .where(builder.equal(root.get(MetadataMigrationEntity.NAME_FIELD_NAME), MIGRATION_NAME),
+                       builder.isNull(root.get(MetadataMigrationEntity.COMPLETED_FIELD_NAME)),
+                       builder.or(builder.isNull(root.get(MetadataMigrationEntity.LOCKED_UNTIL_FIELD_NAME)),
+                                  builder.lessThan(root.<Date>get(MetadataMigrationEntity.LOCKED_UNTIL_FIELD_NAME), now)));
+
+            return entityManager.createQuery(update)
+                       .executeUpdate() == 1;
+        });
+    }
+
+    private boolean renewLease() {
+
+        return updateLease(new Date(System.currentTimeMillis() + leaseTime), null);
+    }
+
+    private void markComplete() {
+
+        if (!updateLease(null, new Date())) {
+            throw new IllegalStateException("Owner ID migration lost its lease before it was marked complete");
+        }
+    }
+
+    private void releaseLease() {
+
+        try {
+            updateLease(null, null);
+        } catch (RuntimeException e) {
+            log.warn("Could not release the owner ID migration lease, it expires in {} ms.", leaseTime, e);
+        }
+    }
+
+    /**
+     * Updates the migration row while this instance holds its lease, releasing the lease unless it is extended.
+     */
+    private boolean updateLease(Date lockedUntil, Date completed) {
+
+        return transactionTemplate.execute(status -> {
+            CriteriaUpdate<MetadataMigrationEntity> update = builder.createCriteriaUpdate(MetadataMigrationEntity.class);
+            Root<MetadataMigrationEntity> root = update.from(MetadataMigrationEntity.class);
+            update.set(root.get(MetadataMigrationEntity.LOCKED_BY_FIELD_NAME), lockedUntil != null ? instanceId : null)
+                .set(root.get(MetadataMigrationEntity.LOCKED_UNTIL_FIELD_NAME), lockedUntil)
+                .set(root.get(MetadataMigrationEntity.COMPLETED_FIELD_NAME), completed)
+                .where(builder.equal(root.get(MetadataMigrationEntity.NAME_FIELD_NAME), MIGRATION_NAME),
+                       builder.equal(root.get(MetadataMigrationEntity.LOCKED_BY_FIELD_NAME), instanceId));
+
+            return entityManager.createQuery(update)
+                       .executeUpdate() == 1;
+        });
+    }
+}
@@ -0,0 +1,220 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PessimisticLockException;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.hibernate.exception.LockAcquisitionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+/**
+ * Serializes the writes and deletes of an owner within this process on striped locks, so that concurrent
+ * read-modify-write transactions of the same owner do not deadlock, insert the owner twice or delete it while another
+ * one adds keys to it. A lock is held for a whole write, i.e. it
+ * is taken before its transactions begin and released after they have completed.
+ * <p>
+ * Writes of the same owner in other processes are not serialized, so writes that lose a deadlock, time out waiting for
+ * a row lock or conflict with a concurrently inserted owner are retried a bounded number of times with an increasing
+ * delay. Writes called within a surrounding transaction are not retried, as that transaction is rolled back anyway.
+ */
+@Slf4j
+@Component
+public class OwnerLocks {
+
+    public static final String ACQUISITIONS = "write.owner-lock.acquisitions";
+    public static final String CONTENTIONS = "write.owner-lock.contentions";
+    public static final String WAIT_TIME = "write.owner-lock.wait-time-nanos";
+    public static final String RETRIES = "write.owner-lock.retries";
+
+    private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int MYSQL_DEADLOCK = 1213;
+    private static final int MYSQL_DUPLICATE_KEY = 1062;
+    private static final String SQL_STATE_SERIALIZATION_FAILURE = "40001";
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+    private static final String SQL_STATE_H2_LOCK_TIMEOUT = "HYT00";
+
+    private final MetadataPersistenceMetrics metrics;
+    private final ReentrantLock[] stripes;
+    private final int maxRetries;
+    private final long retryDelay;
+
+    @Autowired
+    public OwnerLocks(MetadataPersistenceMetrics metrics, MetadataPersistenceProperties properties) {
+
+        this.metrics = metrics;
+
+        MetadataPersistenceProperties.OwnerLocks config = properties.getWrite()
+            .getOwnerLocks();
+        this.stripes = new ReentrantLock[Math.max(config.getStripes(), 0)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.maxRetries = config.getMaxRetries();
+        this.retryDelay = config.getRetryDelay();
+    }
+
+    /**
+     * Runs a write of an owner while holding its lock, and retries it if it failed on a transient conflict.
+     *
+     * @param tenantId the tenant ID of the owner
+     * @param type the owner type
+     * @param id the owner ID
+     * @param write the write, which runs in transactions of its own
+     * @param <T> the result type
+     * @return the result of the write
+     */
+    public <T> T write(UUID tenantId, String type, UUID id, Supplier<T> write) {
+
+        ReentrantLock lock = getStripe(tenantId, type, id);
+        if (lock != null) {
+            acquire(lock);
+        }
+        try {
+            return retry(write);
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs a write of many owners while holding the locks of all of them, and retries it if it failed on a transient
+     * conflict. The locks are taken in the order of their stripes, so that writes of overlapping owners cannot deadlock.
+     *
+     * @param owners the owners, identified by tenant ID, type and ID
+     * @param write the write, which runs in transactions of its own
+     * @param <T> the result type
+     * @return the result of the write
+     */
+    public <T> T writeAll(Collection<MetadataOwnerEntity> owners, Supplier<T> write) {
+
+        SortedMap<Integer, ReentrantLock> locks = new TreeMap<>();
+        for (MetadataOwnerEntity owner : owners) {
+            int index = getStripeIndex(owner.getTenantId(), owner.getType(), owner.getId());
+            if (index >= 0) {
+                locks.put(index, stripes[index]);
+            }
+        }
+
+        List<ReentrantLock> acquired = new ArrayList<>(locks.size());
+        try {
+            for (ReentrantLock lock : locks.values()) {
+                acquire(lock);
+                acquired.add(lock);
+            }
+
+            return retry(write);
+        } finally {
+            acquired.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    private <T> T retry(Supplier<T> write) {
+
+        boolean retryable = !TransactionSynchronizationManager.isActualTransactionActive();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return write.get();
+            } catch (RuntimeException e) {
+                if (!retryable || attempt >= maxRetries || !isTransientConflict(e)) {
+                    throw e;
+                }
+
+                long delay = retryDelay << attempt;
+                log.debug("Write failed on a concurrent write, retrying in {} ms: {}", delay, e.toString());
+                metrics.increment(RETRIES);
+                try {
+                    Thread.sleep(delay + ThreadLocalRandom.current()
+                        .nextLong(delay + 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread()
+                        .interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void acquire(ReentrantLock lock) {
+
+        metrics.increment(ACQUISITIONS);
+        if (lock.tryLock()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        metrics.increment(CONTENTIONS);
+        metrics.add(WAIT_TIME, System.nanoTime() - start);
+    }
+
+    private ReentrantLock getStripe(UUID tenantId, String type, UUID id) {
+
+        int index = getStripeIndex(tenantId, type, id);
+
+        return index >= 0 ? stripes[index] : null;
+    }
+
+    private int getStripeIndex(UUID tenantId, String type, UUID id) {
+
+        if (stripes.length == 0) {
+            return -1;
+        }
+
+        // owner types are matched case-insensitively in some places, sharing a stripe is harmless
+        int hash = Objects.hash(tenantId, StringUtils.lowerCase(type), id);
+
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Checks if an exception was caused by a conflict with a concurrent write, i.e. by a deadlock, a lock wait timeout
+     * or a duplicate key, after which the write may succeed when it is repeated.
+     *
+     * @param e the exception
+     * @return {@code true} if repeating the write may succeed
+     */
+    static boolean isTransientConflict(Throwable e) {
+
+        for (Throwable cause : ExceptionUtils.getThrowables(e)) {
+            if (cause instanceof PessimisticLockingFailureException || cause instanceof LockAcquisitionException
+                || cause instanceof PessimisticLockException || cause instanceof LockTimeoutException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                int errorCode = sqlException.getErrorCode();
+                String sqlState = sqlException.getSQLState();
+                if (errorCode == MYSQL_DEADLOCK || errorCode == MYSQL_LOCK_WAIT_TIMEOUT || errorCode == MYSQL_DUPLICATE_KEY
+                    || SQL_STATE_SERIALIZATION_FAILURE.equals(sqlState) || SQL_STATE_UNIQUE_VIOLATION.equals(sqlState)
+                    || SQL_STATE_H2_LOCK_TIMEOUT.equals(sqlState)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Collection;
+import java.util.UUID;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataId;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+/**
+ * Evicts metadata from the Hibernate second-level cache after writes that bypass Hibernate, i.e. native upserts and
+ * owner ID migrations, see {@link net.smartcosmos.dao.metadata.SecondLevelCacheConfigurer}. Entity writes keep the
+ * cache up to date, and bulk and native statements run through the entity manager evict the regions of the tables
+ * they change.
+ */
+@Component
+public class SecondLevelCache {
+
+    private static final String METADATA_ENTITIES_ROLE = MetadataOwnerEntity.class.getName() + "."
+                                                         + MetadataOwnerEntity.METADATA_ENTITIES_FIELD_NAME;
+
+    private final boolean enabled;
+    private final Cache cache;
+
+    @Autowired
+    public SecondLevelCache(EntityManagerFactory entityManagerFactory) {
+
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) entityManagerFactory.unwrap(SessionFactory.class);
+        this.enabled = sessionFactory.getSettings()
+            .isSecondLevelCacheEnabled();
+        this.cache = sessionFactory.getCache();
+    }
+
+    /**
+     * Checks if the second-level cache is enabled, so that loading owners by their natural ID and reading their
+     * metadata collections can be served from it.
+     *
+     * @return {@code true} if the second-level cache is enabled
+     */
+    public boolean isEnabled() {
+
+        return enabled;
+    }
+
+    /**
+     * Discards the cached metadata collection of an owner and its cached entries with the given keys.
+     *
+     * @param internalId the owner's internal ID
+     * @param keyNames the key names of the written entries
+     */
+    public void evictMetadata(UUID internalId, Collection<String> keyNames) {
+
+        if (!enabled) {
+            return;
+        }
+
+        cache.evictCollection(METADATA_ENTITIES_ROLE, internalId);
+        for (String keyName : keyNames) {
+            MetadataId metadataId = new MetadataId();
+            metadataId.setOwner(internalId);
+            metadataId.setKeyName(keyName);
+            cache.evictEntity(MetadataEntity.class, metadataId);
+        }
+    }
+
+    /**
+     * Discards a cached owner, its metadata collection and entries, and the cached natural IDs of all owners, e.g.
+     * because the owner was moved to another internal ID.
+     *
+     * @param internalId the owner's internal ID
+     * @param keyNames the key names of the owner's entries
+     */
+    public void evictOwner(UUID internalId, Collection<String> keyNames) {
+
+        if (!enabled) {
+            return;
+        }
+
+        // Hibernate cannot evict the natural ID of a single owner
+        cache.evictNaturalIdRegion(MetadataOwnerEntity.class);
+        cache.evictEntity(MetadataOwnerEntity.class, internalId);
+        evictMetadata(internalId, keyNames);
+    }
+
+    /**
+     * Discards all cached metadata collections and entries, if the owners of written entries are unknown.
+     */
+    public void evictAllMetadata() {
+
+        if (!enabled) {
+            return;
+        }
+
+        cache.evictCollectionRegion(METADATA_ENTITIES_ROLE);
+        cache.evictEntityRegion(MetadataEntity.class);
+    }
+}
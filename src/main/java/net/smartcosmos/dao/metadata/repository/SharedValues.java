@@ -0,0 +1,279 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+
+import lombok.Value;
+
+import org.apache.commons.collections4.ListUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataSharedValueEntity;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_REF_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataSharedValueEntity.HASH_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataSharedValueEntity.REFERENCES_FIELD_NAME;
+
+/**
+ * Maintains the reference counts of shared values, see {@link MetadataEntity#isValueShared()}. Writes and deletes
+ * first select the shared references of the affected owners for update, then apply the difference between the old
+ * and the new references of the written entries in the same transaction. A shared value is inserted with its first
+ * reference and deleted once it has none left.
+ * <p>
+ * Counts are changed in hash order, so that concurrent writers of the same shared values lock them in the same
+ * order. Writers that both insert the same new value conflict on its primary key and are retried, see
+ * {@link OwnerLocks}.
+ */
+@Component
+public class SharedValues {
+
+    public static final String ADDED_REFERENCES = "write.shared-values.added-references";
+    public static final String REMOVED_REFERENCES = "write.shared-values.removed-references";
+    public static final String DELETED_VALUES = "write.shared-values.deleted";
+
+    private final EntityManager entityManager;
+    private final CriteriaBuilder builder;
+    private final MetadataPersistenceMetrics metrics;
+    private final int threshold;
+    private final int batchSize;
+
+    @Autowired
+    public SharedValues(EntityManager entityManager, MetadataPersistenceMetrics metrics, MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.builder = entityManager.getCriteriaBuilder();
+        this.metrics = metrics;
+        this.threshold = properties.getWrite()
+            .getSharedValueThreshold();
+        this.batchSize = properties.getWrite()
+            .getBatchSize();
+    }
+
+    /**
+     * Checks if large JSON values are shared, in which case writes and deletes have to maintain the references.
+     *
+     * @return {@code true} if values are shared
+     */
+    public boolean isEnabled() {
+
+        return threshold > 0;
+    }
+
+    /**
+     * Selects the shared references of the metadata entries of an owner for update, within the surrounding
+     * transaction.
+     *
+     * @param internalId the internal ID of the owner
+     * @return the hashes of the shared values by key name
+     */
+    public Map<String, String> lockReferences(UUID internalId) {
+
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<MetadataEntity> root = query.from(MetadataEntity.class);
+        query.multiselect(root.get(KEY_NAME_FIELD_NAME), root.get(VALUE_REF_FIELD_NAME))
+            .where(builder.equal(root.get(OWNER_FIELD_NAME)
+                                     .get(MetadataOwnerEntity.ID_FIELD_NAME), internalId),
+                   builder.isNotNull(root.get(VALUE_REF_FIELD_NAME)));
+
+        Map<String, String> references = new HashMap<>();
+        for (Object[] row : entityManager.createQuery(query)
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .getResultList()) {
+            references.put((String) row[0], (String) row[1]);
+        }
+
+        return references;
+    }
+
+    /**
+     * Selects the shared references of the metadata entries of owners of a tenant for update, within the surrounding
+     * transaction.
+     *
+     * @param tenantId the tenant ID
+     * @param ownerIds the owner IDs, of any owner type
+     * @return the shared references
+     */
+    public List<Reference> lockReferences(UUID tenantId, Collection<UUID> ownerIds) {
+
+        List<Reference> references = new ArrayList<>();
+        for (List<UUID> ownerIdChunk : ListUtils.partition(new ArrayList<>(ownerIds), batchSize)) {
+            // the owners are resolved first, as locking reads must not join
+            CriteriaQuery<Object[]> ownerQuery = builder.createQuery(Object[].class);
+            Root<MetadataOwnerEntity> owner = ownerQuery.from(MetadataOwnerEntity.class);
+            ownerQuery.multiselect(owner.get(MetadataOwnerEntity.ID_FIELD_NAME), owner.get(MetadataOwnerEntity.OWNER_TYPE_FIELD_NAME),
+                                   owner.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME))
+                .where(builder.equal(owner.get(MetadataOwnerEntity.TENANT_ID_FIELD_NAME), tenantId),
+                       owner.get(MetadataOwnerEntity.OWNER_ID_FIELD_NAME)
+                           .in(ownerIdChunk));
+
+            Map<UUID, Object[]> owners = new HashMap<>();
+            for (Object[] row : entityManager.createQuery(ownerQuery)
+                .getResultList()) {
+                owners.put((UUID) row[0], row);
+            }
+            if (owners.isEmpty()) {
+                continue;
+            }
+
+            CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+            Root<MetadataEntity> root = query.from(MetadataEntity.class);
+            Path<UUID> internalId = root.get(OWNER_FIELD_NAME)
+                .get(MetadataOwnerEntity.ID_FIELD_NAME);
+            query.multiselect(internalId, root.get(KEY_NAME_FIELD_NAME), root.get(VALUE_REF_FIELD_NAME))
+                .where(internalId.in(owners.keySet()), builder.isNotNull(root.get(VALUE_REF_FIELD_NAME)));
+
+            for (Object[] row : entityManager.createQuery(query)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList()) {
+                Object[] ownerRow = owners.get(row[0]);
+                references.add(new Reference((String) ownerRow[1], (UUID) ownerRow[2], (String) row[1], (String) row[2]));
+            }
+        }
+
+        return references;
+    }
+
+    /**
+     * Applies changed references to the reference counts of the shared values, within the surrounding transaction.
+     *
+     * @param changes the changed references
+     * @throws IllegalStateException if a shared value has to be inserted, but was not loaded
+     */
+    public void apply(Changes changes) {
+
+        List<String> released = new ArrayList<>();
+        for (Map.Entry<String, Integer> change : changes.counts.entrySet()) {
+            String hash = change.getKey();
+            int delta = change.getValue();
+            if (delta > 0) {
+                if (updateCount(hash, delta) == 0) {
+                    insert(hash, delta, changes.values.get(hash));
+                }
+                metrics.add(ADDED_REFERENCES, delta);
+            } else if (delta < 0) {
+                updateCount(hash, delta);
+                released.add(hash);
+                metrics.add(REMOVED_REFERENCES, -delta);
+            }
+        }
+
+        for (String hash : released) {
+            CriteriaDelete<MetadataSharedValueEntity> delete = builder.createCriteriaDelete(MetadataSharedValueEntity.class);
+            Root<MetadataSharedValueEntity> root = delete.from(MetadataSharedValueEntity.class);
+            delete.where(builder.equal(root.get(HASH_FIELD_NAME), hash),
+                         builder.le(root.get(REFERENCES_FIELD_NAME), 0L));
+            metrics.add(DELETED_VALUES, entityManager.createQuery(delete)
+                .executeUpdate());
+        }
+    }
+
+    private int updateCount(String hash, int delta) {
+
+        CriteriaUpdate<MetadataSharedValueEntity> update = builder.createCriteriaUpdate(MetadataSharedValueEntity.class);
+        Root<MetadataSharedValueEntity> root = update.from(MetadataSharedValueEntity.class);
+        Path<Long> refCount = root.get(REFERENCES_FIELD_NAME);
+        update.set(refCount, builder.sum(refCount, (long) delta))
+            .where(builder.equal(root.get(HASH_FIELD_NAME), hash));
+
+        return entityManager.createQuery(update)
+            .executeUpdate();
+    }
+
+    private void insert(String hash, int references, String value) {
+
+        if (value == null) {
+            throw new IllegalStateException(String.format("The shared value '%s' does not exist and was not loaded", hash));
+        }
+
+        MetadataSharedValueEntity sharedValue = MetadataSharedValueEntity.builder()
+            .hash(hash)
+            .value(value)
+            .refCount(references)
+            .build();
+        // inserted right away, so that a concurrently inserted value fails here
+        entityManager.persist(sharedValue);
+        entityManager.flush();
+        entityManager.detach(sharedValue);
+    }
+
+    /**
+     * A shared reference of a metadata entry.
+     */
+    @Value
+    public static class Reference {
+
+        String ownerType;
+        UUID ownerId;
+        String keyName;
+        String hash;
+    }
+
+    /**
+     * The references added and removed by the writes and deletes of a transaction.
+     */
+    public static class Changes {
+
+        // in hash order, the order the counts are locked in
+        private final Map<String, Integer> counts = new TreeMap<>();
+        private final Map<String, String> values = new HashMap<>();
+
+        /**
+         * Adds the reference of a written metadata entry, if its value is shared.
+         *
+         * @param metadataEntity the written metadata entry, with its shared value
+         */
+        public void add(MetadataEntity metadataEntity) {
+
+            if (metadataEntity.isValueShared()) {
+                counts.merge(metadataEntity.getValueRef(), 1, Integer::sum);
+                if (metadataEntity.getOutOfRowValue() != null) {
+                    values.put(metadataEntity.getValueRef(), metadataEntity.getOutOfRowValue());
+                }
+            }
+        }
+
+        /**
+         * Removes the reference of a replaced or deleted metadata entry.
+         *
+         * @param hash the hash of the shared value, {@code null} if the entry did not share its value
+         */
+        public void remove(String hash) {
+
+            if (hash != null) {
+                counts.merge(hash, -1, Integer::sum);
+            }
+        }
+
+        /**
+         * Checks if any reference count changes.
+         *
+         * @return {@code true} if all references were added as often as they were removed
+         */
+        public boolean isEmpty() {
+
+            return counts.values()
+                .stream()
+                .allMatch(count -> count == 0);
+        }
+    }
+}
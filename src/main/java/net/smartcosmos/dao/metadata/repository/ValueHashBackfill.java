@@ -0,0 +1,290 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.BOOLEAN_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DATA_TYPE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.DOUBLE_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.KEY_NAME_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.LONG_VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.OWNER_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAME;
+import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_HASH_FIELD_NAME;
+
+/**
+ * Fills in the value hash and typed value columns of metadata rows written before they existed, in batches on a
+ * background thread once the application is ready. Both are maintained on every write, and each is backfilled on its
+ * own, as either may be disabled. Value lookups must not rely on the hash before it is done, see
+ * {@link #isLookupEnabled()}, and value conditions and sorting by value must not rely on the typed values, see
+ * {@link #isTypedValuesComplete()}.
+ */
+@Slf4j
+@Component
+public class ValueHashBackfill implements ApplicationListener<ApplicationReadyEvent> {
+
+    private final EntityManager entityManager;
+    private final CriteriaBuilder builder;
+    private final TransactionTemplate transactionTemplate;
+
+    private final boolean lookupEnabled;
+    private final int batchSize;
+    private final int typedValuesBatchSize;
+
+    private volatile boolean complete;
+    private volatile boolean typedValuesComplete;
+
+    @Autowired
+    public ValueHashBackfill(
+        EntityManager entityManager,
+        PlatformTransactionManager transactionManager,
+        MetadataPersistenceProperties properties) {
+
+        this.entityManager = entityManager;
+        this.builder = entityManager.getCriteriaBuilder();
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        MetadataPersistenceProperties.ValueHash config = properties.getSearch()
+            .getValueHash();
+        this.lookupEnabled = config.isEnabled();
+        this.batchSize = config.getBackfillBatchSize();
+
+        complete = !(lookupEnabled && config.isBackfillOnStartup());
+
+        MetadataPersistenceProperties.TypedValues typedValues = properties.getSearch()
+            .getTypedValues();
+        this.typedValuesBatchSize = typedValues.getBackfillBatchSize();
+        typedValuesComplete = !typedValues.isBackfillOnStartup();
+    }
+
+    /**
+     * Checks if value equality lookups may probe the value hash, i.e. if it is enabled and all rows have one.
+     *
+     * @return {@code true} if the value hash can be used for lookups
+     */
+    public boolean isLookupEnabled() {
+
+        return lookupEnabled && complete;
+    }
+
+    /**
+     * Checks if all numeric and boolean rows have their typed values, so that value conditions and sorting by value
+     * see all of them.
+     *
+     * @return {@code true} if the typed values are complete
+     */
+    public boolean isTypedValuesComplete() {
+
+        return typedValuesComplete;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+
+        // checked right away, so that value conditions are available from the start if no row lacks typed values
+        if (!typedValuesComplete && findMissingTypedValues(null, null, 1).isEmpty()) {
+            typedValuesComplete = true;
+        }
+
+        if (!complete || !typedValuesComplete) {
+            Thread thread = new Thread(() -> {
+                if (!typedValuesComplete) {
+                    backfillTypedValues();
+                }
+                if (!complete) {
+                    backfill();
+                }
+            }, "metadata-value-hash-backfill");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Fills in all missing value hashes, one transaction per batch.
+     *
+     * @return the number of migrated rows
+     */
+    public long backfill() {
+
+        long total = 0;
+        try {
+            int migrated;
+            do {
+                migrated = transactionTemplate.execute(status -> backfillBatch());
+                total += migrated;
+            } while (migrated >= batchSize);
+
+            complete = true;
+            log.info("Value backfill complete, migrated {} metadata rows.", total);
+        } catch (RuntimeException e) {
+            log.error("Value backfill failed after {} metadata rows, lookups will not use the hash.", total, e);
+        }
+
+        return total;
+    }
+
+    /**
+     * Fills in all missing typed values of numeric and boolean rows, one transaction per batch. Rows are visited in key
+     * order, so that values that cannot be parsed are only visited once.
+     *
+     * @return the number of migrated rows
+     */
+    public long backfillTypedValues() {
+
+        long total = 0;
+        try {
+            UUID lastOwner = null;
+            String lastKeyName = null;
+            List<Object[]> rows;
+            do {
+                final UUID afterOwner = lastOwner;
+                final String afterKeyName = lastKeyName;
+                rows = transactionTemplate.execute(status -> {
+                    List<Object[]> batch = findMissingTypedValues(afterOwner, afterKeyName, typedValuesBatchSize);
+                    for (Object[] row : batch) {
+                        CriteriaUpdate<MetadataEntity> update = builder.createCriteriaUpdate(MetadataEntity.class);
+                        Root<MetadataEntity> updateRoot = update.from(MetadataEntity.class);
+                        if (setTypedValues(update, updateRoot, (MetadataDataType) row[3], (String) row[2])) {
+                            updateRow(update, updateRoot, row);
+                        }
+                    }
+                    return batch;
+                });
+                total += rows.size();
+                if (!rows.isEmpty()) {
+                    lastOwner = (UUID) rows.get(rows.size() - 1)[0];
+                    lastKeyName = (String) rows.get(rows.size() - 1)[1];
+                }
+            } while (rows.size() >= typedValuesBatchSize);
+
+            typedValuesComplete = true;
+            log.info("Typed value backfill complete, migrated {} metadata rows.", total);
+        } catch (RuntimeException e) {
+            log.error("Typed value backfill failed after {} metadata rows, value conditions are not available.", total, e);
+        }
+
+        return total;
+    }
+
+    private int backfillBatch() {
+
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<MetadataEntity> root = query.from(MetadataEntity.class);
+        query.multiselect(root.get(OWNER_FIELD_NAME)
+                              .get(MetadataOwnerEntity.ID_FIELD_NAME),
+                          root.get(KEY_NAME_FIELD_NAME),
+                          root.get(VALUE_FIELD_NAME),
+                          root.get(DATA_TYPE_FIELD_NAME))
+            .where(builder.isNull(root.get(VALUE_HASH_FIELD_NAME)));
+
+        List<Object[]> rows = entityManager.createQuery(query)
+            .setMaxResults(batchSize)
+            .getResultList();
+
+        for (Object[] row : rows) {
+            CriteriaUpdate<MetadataEntity> update = builder.createCriteriaUpdate(MetadataEntity.class);
+            Root<MetadataEntity> updateRoot = update.from(MetadataEntity.class);
+            String value = (String) row[2];
+            MetadataDataType dataType = (MetadataDataType) row[3];
+
+            update.set(updateRoot.<Long>get(VALUE_HASH_FIELD_NAME), MetadataValueParser.getValueHash(value));
+            setTypedValues(update, updateRoot, dataType, value);
+            updateRow(update, updateRoot, row);
+        }
+
+        return rows.size();
+    }
+
+    private List<Object[]> findMissingTypedValues(UUID afterOwner, String afterKeyName, int maxResults) {
+
+        CriteriaQuery<Object[]> query = builder.createQuery(Object[].class);
+        Root<MetadataEntity> root = query.from(MetadataEntity.class);
+        Path<UUID> ownerPath = root.get(OWNER_FIELD_NAME)
+            .get(MetadataOwnerEntity.ID_FIELD_NAME);
+        Path<String> keyNamePath = root.get(KEY_NAME_FIELD_NAME);
+        Path<MetadataDataType> dataTypePath = root.get(DATA_TYPE_FIELD_NAME);
+
+        Predicate missing = builder.or(builder.and(dataTypePath.in(Arrays.asList(MetadataDataType.INTEGER, MetadataDataType.LONG,
+                                                                                  MetadataDataType.SHORT, MetadataDataType.BYTE)),
+                                                   builder.isNull(root.get(LONG_VALUE_FIELD_NAME))),
+                                       builder.and(dataTypePath.in(Arrays.asList(MetadataDataType.FLOAT, MetadataDataType.DOUBLE)),
+                                                   builder.isNull(root.get(DOUBLE_VALUE_FIELD_NAME))),
+                                       builder.and(builder.equal(dataTypePath, MetadataDataType.BOOLEAN),
+                                                   builder.isNull(root.get(BOOLEAN_VALUE_FIELD_NAME))));
+        Predicate after = afterOwner == null
+                          ? builder.conjunction()
+                          : builder.or(builder.greaterThan(ownerPath, afterOwner),
+                                       builder.and(builder.equal(ownerPath, afterOwner), builder.greaterThan(keyNamePath, afterKeyName)));
+
+        query.multiselect(ownerPath, keyNamePath, root.get(VALUE_FIELD_NAME), dataTypePath)
+            .where(missing, after)
+            .orderBy(builder.asc(ownerPath), builder.asc(keyNamePath));
+
+        return entityManager.createQuery(query)
+            .setMaxResults(maxResults)
+            .getResultList();
+    }
+
+    /**
+     * Sets the typed value columns of a row.
+     *
+     * @return {@code true} if any typed value was set, i.e. the value is numeric or boolean and could be parsed
+     */
+    private boolean setTypedValues(CriteriaUpdate<MetadataEntity> update, Root<MetadataEntity> updateRoot, MetadataDataType dataType,
+                                   String value) {
+
+        boolean set = false;
+        Long longValue = MetadataValueParser.getLongValue(dataType, value);
+        if (longValue != null) {
+            update.set(updateRoot.<Long>get(LONG_VALUE_FIELD_NAME), longValue);
+            set = true;
+        }
+        Double doubleValue = MetadataValueParser.getDoubleValue(dataType, value);
+        if (doubleValue != null) {
+            update.set(updateRoot.<Double>get(DOUBLE_VALUE_FIELD_NAME), doubleValue);
+            set = true;
+        }
+        Boolean booleanValue = MetadataValueParser.getBooleanValue(dataType, value);
+        if (booleanValue != null) {
+            update.set(updateRoot.<Boolean>get(BOOLEAN_VALUE_FIELD_NAME), booleanValue);
+            set = true;
+        }
+
+        return set;
+    }
+
+    private void updateRow(CriteriaUpdate<MetadataEntity> update, Root<MetadataEntity> updateRoot, Object[] row) {
+
+        // a bulk update leaves the audit timestamps alone
+        update.where(builder.equal(updateRoot.get(OWNER_FIELD_NAME)
+                                       .get(MetadataOwnerEntity.ID_FIELD_NAME), (UUID) row[0]),
+                     builder.equal(updateRoot.get(KEY_NAME_FIELD_NAME), row[1]));
+
+        entityManager.createQuery(update)
+            .executeUpdate();
+    }
+}
@@ -0,0 +1,68 @@
+package net.smartcosmos.dao.metadata.util;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.UUID;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Sort key of the last owner on a page of a cursor-based search, i.e. the position to seek from for the next page.
+ * Callers only ever see the opaque {@link #encode() encoded} form.
+ */
+@Data
+@AllArgsConstructor
+public class ContinuationToken {
+
+    private static final int TOKEN_LENGTH = 32;
+
+    private final UUID tenantId;
+    private final UUID ownerId;
+
+    /**
+     * Encodes the sort key as an opaque, URL-safe token.
+     *
+     * @return the encoded token
+     */
+    public String encode() {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TOKEN_LENGTH)
+            .putLong(tenantId.getMostSignificantBits())
+            .putLong(tenantId.getLeastSignificantBits())
+            .putLong(ownerId.getMostSignificantBits())
+            .putLong(ownerId.getLeastSignificantBits());
+
+        return Base64.getUrlEncoder()
+            .withoutPadding()
+            .encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes a token previously created by {@link #encode()}.
+     *
+     * @param token the encoded token
+     * @return the decoded sort key
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static ContinuationToken decode(String token) throws IllegalArgumentException {
+
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder()
+                .decode(token);
+        } catch (IllegalArgumentException e) {
+            bytes = new byte[0];
+        }
+
+        if (bytes.length != TOKEN_LENGTH) {
+            throw new IllegalArgumentException(String.format("Provided continuation token '%s' is invalid", token));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        UUID tenantId = new UUID(buffer.getLong(), buffer.getLong());
+        UUID ownerId = new UUID(buffer.getLong(), buffer.getLong());
+
+        return new ContinuationToken(tenantId, ownerId);
+    }
+}
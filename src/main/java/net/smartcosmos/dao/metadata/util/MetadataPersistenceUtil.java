@@ -20,6 +20,11 @@ import static net.smartcosmos.dao.metadata.domain.MetadataEntity.VALUE_FIELD_NAM
 
 public class MetadataPersistenceUtil {
 
+    /**
+     * Prefix of {@code sortBy} values that sort owners by one of their metadata values, e.g. {@code metadata.priority}.
+     */
+    public static final String METADATA_SORT_PREFIX = "metadata.";
+
     /**
      * Creates an empty {@link Page<T>} instance.
      *
@@ -131,6 +136,44 @@ public class MetadataPersistenceUtil {
         return sortBy;
     }
 
+    /**
+     * Checks if a {@code sortBy} value refers to a metadata value, i.e. has the form {@code metadata.<keyName>}.
+     *
+     * @param sortBy the input field name
+     * @return {@code true} if owners are sorted by a metadata value
+     */
+    public static boolean isSortByMetadataKey(String sortBy) {
+
+        return StringUtils.startsWith(sortBy, METADATA_SORT_PREFIX) && StringUtils.isNotBlank(getSortByMetadataKey(sortBy));
+    }
+
+    /**
+     * Gets the metadata key name of a {@code sortBy} value that refers to a metadata value.
+     *
+     * @param sortBy the field name in the form {@code metadata.<keyName>}
+     * @return the key name
+     */
+    public static String getSortByMetadataKey(String sortBy) {
+
+        return StringUtils.removeStart(sortBy, METADATA_SORT_PREFIX);
+    }
+
+    /**
+     * Gets a valid field name for a {@code sortBy} query in owner searches. Besides the entity fields handled by
+     * {@link #getSortByFieldName(String, String)}, owners can be sorted by a metadata value ({@code metadata.<keyName>}).
+     *
+     * @param sortBy the input field name
+     * @return the field name to sort by, {@code owner.id} by default
+     */
+    public static String getOwnerSortByFieldName(String sortBy) {
+
+        if (isSortByMetadataKey(sortBy)) {
+            return sortBy;
+        }
+
+        return getSortByFieldName(sortBy, MetadataOwnerEntity.OWNER_ID_FIELD_NAME);
+    }
+
     /**
      * Converts the {@link SortOrder} value to a Spring-compatible {@link org.springframework.data.domain.Sort.Direction} sort direction.
      *
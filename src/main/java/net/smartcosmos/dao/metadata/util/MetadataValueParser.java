@@ -1,10 +1,24 @@
 package net.smartcosmos.dao.metadata.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
 import lombok.extern.slf4j.Slf4j;
@@ -18,6 +32,22 @@ import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 @Slf4j
 public class MetadataValueParser {
 
+    private static final int PARSED_SHARED_VALUES_SIZE = 256;
+
+    /**
+     * The parsed JSON trees of shared values by their hash, see {@link MetadataEntity#isValueShared()}, least recently
+     * used first. A hash always identifies the same value, so the trees never go stale.
+     */
+    private static final Map<String, JsonNode> PARSED_SHARED_VALUES = Collections.synchronizedMap(
+        new LinkedHashMap<String, JsonNode>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JsonNode> eldest) {
+
+                return size() > PARSED_SHARED_VALUES_SIZE;
+            }
+        });
+
     /**
      * Convert the MetadataEntity value into a typed Object depending on dataType
      *
@@ -26,9 +56,18 @@ public class MetadataValueParser {
      */
     public static Object parseValue(MetadataEntity entity) {
 
-        if (entity != null && entity.getValue() != null) {
+        if (entity != null && entity.isValueShared() && isCompressible(entity.getDataType())) {
+            JsonNode tree = PARSED_SHARED_VALUES.get(entity.getValueRef());
+            if (tree != null) {
+                // trees are mutable, callers get a copy of their own
+                return tree.deepCopy();
+            }
+        }
+
+        if (entity != null && (entity.isValueOutOfRow() || entity.getValue() != null)) {
 
-            String value = entity.getValue();
+            // compressed values are only inflated here, when they are actually read
+            String value = entity.getPlainValue();
 
             switch (entity.getDataType()) {
 
@@ -50,7 +89,12 @@ public class MetadataValueParser {
                 case JSON_OBJECT:
                     ObjectMapper mapper = new ObjectMapper();
                     try {
-                        return mapper.readTree(entity.getValue());
+                        JsonNode tree = mapper.readTree(value);
+                        if (entity.isValueShared()) {
+                            PARSED_SHARED_VALUES.put(entity.getValueRef(), tree.deepCopy());
+                        }
+
+                        return tree;
                     } catch (IOException e) {
                         log.warn("MetadataValueParser.parseValue: Error parsing JSON, returning String instead.");
                     }
@@ -92,6 +136,244 @@ public class MetadataValueParser {
         return null;
     }
 
+    /**
+     * Gets a fixed-width hash of the String representation of a value, i.e. the first 64 bits of its SHA-256 digest.
+     *
+     * @param value the value's string representation
+     * @return the hash, {@code 0} for {@code null}
+     */
+    public static long getValueHash(String value) {
+
+        if (value == null) {
+            return 0L;
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(value.getBytes(StandardCharsets.UTF_8));
+
+            return ByteBuffer.wrap(digest)
+                .getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Gets the hash that identifies a stored value in the {@code metadataSharedValue} table, i.e. the hex-encoded
+     * SHA-256 digest of its UTF-8 bytes.
+     *
+     * @param storedValue the stored value
+     * @return the 64 character hash
+     */
+    public static String getContentHash(String storedValue) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(storedValue.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Checks if values of a data type are stored compressed when they are large, i.e. if they are JSON objects or
+     * arrays.
+     *
+     * @param dataType the data type
+     * @return {@code true} for JSON objects and arrays
+     */
+    public static boolean isCompressible(MetadataDataType dataType) {
+
+        return MetadataDataType.JSON_OBJECT == dataType || MetadataDataType.JSON_ARRAY == dataType;
+    }
+
+    /**
+     * Checks if a search value can only match values stored as they are in the {@code value} column, i.e. if it is
+     * neither a JSON object or array, which may be stored compressed, nor longer than the out-of-row threshold.
+     *
+     * @param value the search value
+     * @param outOfRowThreshold the minimum length of values stored out of row, {@code 0} if no values are
+     * @return {@code true} if matching values are compared by the {@code value} column
+     */
+    public static boolean isStoredInline(Object value, int outOfRowThreshold) {
+
+        if (isCompressible(getDataType(value))) {
+            return false;
+        }
+
+        String stringValue = getValue(value);
+
+        return outOfRowThreshold <= 0 || stringValue == null || stringValue.length() <= outOfRowThreshold;
+    }
+
+    /**
+     * Compresses the String representation of a value, i.e. deflates its UTF-8 bytes and encodes them in Base64, so
+     * that it still fits the {@code value} column.
+     *
+     * @param value the value's string representation
+     * @return the compressed value
+     */
+    public static String compress(String value) {
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(value.length() / 4);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return Base64.getEncoder()
+                .encodeToString(output.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a value compressed by {@link #compress(String)}.
+     *
+     * @param compressedValue the compressed value
+     * @return the value's string representation
+     */
+    public static String decompress(String compressedValue) {
+
+        Inflater inflater = new Inflater();
+        try {
+            byte[] input = Base64.getDecoder()
+                .decode(compressedValue);
+            inflater.setInput(input);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed value");
+                }
+                output.write(buffer, 0, length);
+            }
+
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Gets the integral value of a stored {@code Integer}, {@code Long}, {@code Short} or {@code Byte} value.
+     *
+     * @param dataType the stored data type
+     * @param value the value's string representation
+     * @return the value, or {@code null} for any other data type
+     */
+    public static Long getLongValue(MetadataDataType dataType, String value) {
+
+        if (value != null && dataType != null) {
+            switch (dataType) {
+                case INTEGER:
+                case LONG:
+                case SHORT:
+                case BYTE:
+                    try {
+                        return Long.valueOf(value);
+                    } catch (NumberFormatException e) {
+                        log.warn("MetadataValueParser.getLongValue: Invalid {} value '{}'.", dataType, value);
+                    }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the floating-point value of a stored {@code Float} or {@code Double} value. Values are parsed from their
+     * decimal representation, so a {@code Float} keeps the value it is written as, see {@link #toDouble(Number)}.
+     *
+     * @param dataType the stored data type
+     * @param value the value's string representation
+     * @return the value, or {@code null} for any other data type
+     */
+    public static Double getDoubleValue(MetadataDataType dataType, String value) {
+
+        if (value != null && dataType != null) {
+            switch (dataType) {
+                case FLOAT:
+                case DOUBLE:
+                    try {
+                        return Double.valueOf(value);
+                    } catch (NumberFormatException e) {
+                        log.warn("MetadataValueParser.getDoubleValue: Invalid {} value '{}'.", dataType, value);
+                    }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Converts a number to the value it has as stored floating-point value, i.e. a {@code Float} by its decimal
+     * representation instead of widening it, which would turn {@code 40.1f} into {@code 40.099998474121094}.
+     *
+     * @param number the number
+     * @return the value
+     */
+    public static double toDouble(Number number) {
+
+        if (number instanceof Float) {
+            return Double.valueOf(number.toString());
+        }
+
+        return number.doubleValue();
+    }
+
+    /**
+     * Gets the value of a stored {@code Boolean} value.
+     *
+     * @param dataType the stored data type
+     * @param value the value's string representation
+     * @return the value, or {@code null} for any other data type
+     */
+    public static Boolean getBooleanValue(MetadataDataType dataType, String value) {
+
+        if (value != null && MetadataDataType.BOOLEAN == dataType) {
+            return Boolean.parseBoolean(value);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the data types of stored values that equal an Object. {@code Long} values were stored as strings before they
+     * had their own data type, so they match both.
+     *
+     * @param object the value object
+     * @return the data types
+     */
+    public static Set<MetadataDataType> getMatchingDataTypes(Object object) {
+
+        MetadataDataType dataType = getDataType(object);
+        if (MetadataDataType.LONG == dataType) {
+            return EnumSet.of(MetadataDataType.LONG, MetadataDataType.STRING);
+        }
+
+        return EnumSet.of(dataType);
+    }
+
     /**
      * Gets the database-compatible data type of an Object.
      *
@@ -112,6 +394,10 @@ public class MetadataValueParser {
             return MetadataDataType.INTEGER;
         }
 
+        if (object instanceof Long) {
+            return MetadataDataType.LONG;
+        }
+
         if (object instanceof Float) {
             return MetadataDataType.FLOAT;
         }
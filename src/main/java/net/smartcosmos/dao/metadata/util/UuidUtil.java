@@ -1,10 +1,16 @@
 package net.smartcosmos.dao.metadata.util;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Locale;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.fasterxml.uuid.Generators;
+import com.fasterxml.uuid.impl.NameBasedGenerator;
+import com.fasterxml.uuid.impl.TimeBasedGenerator;
 
 public class UuidUtil {
 
@@ -17,6 +23,10 @@ public class UuidUtil {
     private static final String USER_PREFIX = "user";
     private static final String THING_PREFIX = "thing";
 
+    private static final UUID OWNER_NAMESPACE = UUID.fromString("5b6f4d1e-8a0c-4f39-9d2e-3c7a1b9e6f20");
+    private static final NameBasedGenerator OWNER_ID_GENERATOR = Generators.nameBasedGenerator(OWNER_NAMESPACE);
+    private static final TimeBasedGenerator TIME_BASED_GENERATOR = Generators.timeBasedGenerator();
+
     public static UUID getUuidFromUrn(String urn) throws IllegalArgumentException {
 
         String urnScheme = "^urn:.*:uuid:([A-F0-9]{8}-[A-F0-9]{4}-[A-F0-9]{4}-[A-F0-9]{4}-[A-F0-9]{12})$";
@@ -47,6 +57,57 @@ public class UuidUtil {
         return getPrefixUrnFromUuid(USER_PREFIX, uuid);
     }
 
+    /**
+     * Gets the 16-byte big-endian representation of a UUID, as stored in {@code uuid-binary} columns.
+     *
+     * @param uuid the UUID
+     * @return the bytes
+     */
+    public static byte[] getBytesFromUuid(UUID uuid) {
+
+        return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+
+    /**
+     * Gets the name-based (version 5) internal ID of a metadata owner, which only depends on its tenant, type and ID.
+     * The type is normalized like the default MariaDB collation compares it, i.e. ignoring case, accents and trailing
+     * spaces, so that all spellings of a type matching the same owner row derive its internal ID.
+     *
+     * @param tenantId the tenant ID
+     * @param type the owner type
+     * @param id the owner ID
+     * @return the internal ID
+     */
+    public static UUID getOwnerInternalId(UUID tenantId, String type, UUID id) {
+
+        byte[] typeBytes = normalizeOwnerType(type).getBytes(StandardCharsets.UTF_8);
+
+        return OWNER_ID_GENERATOR.generate(ByteBuffer.allocate(32 + typeBytes.length)
+                                               .put(getBytesFromUuid(tenantId))
+                                               .put(getBytesFromUuid(id))
+                                               .put(typeBytes)
+                                               .array());
+    }
+
+    /**
+     * Normalizes an owner type like the default MariaDB collation compares it, see
+     * {@link #getOwnerInternalId(UUID, String, UUID)}.
+     *
+     * @param type the owner type
+     * @return the normalized owner type
+     */
+    public static String normalizeOwnerType(String type) {
+
+        String normalized = Normalizer.normalize(type, Normalizer.Form.NFD)
+            .replaceAll("\\p{M}", "")
+            .replaceAll(" +$", "");
+
+        return normalized.toUpperCase(Locale.ROOT);
+    }
+
     static String getPrefixUrnFromUuid(String prefix, UUID uuid) {
 
         return new StringBuilder(URN_PREFIX)
@@ -60,26 +121,20 @@ public class UuidUtil {
             .toLowerCase();
     }
 
+    /**
+     * Gets a new time-based UUID with the timestamp fields reordered from most to least significant, so that its binary
+     * form, as stored in {@code uuid-binary} columns, increases over time and new rows are appended to indexes.
+     *
+     * @return the UUID
+     */
     public static UUID getNewUuid() {
 
-        String baseUuidString = Generators.timeBasedGenerator()
-            .generate()
-            .toString();
-        String[] parts = baseUuidString.split("-");
-
-        String sortedUuidString = new StringBuilder(36)
-            .append(parts[2])
-            .append(parts[1])
-            .append("-")
-            .append(parts[0].substring(0, 4))
-            .append("-")
-            .append(parts[0].substring(4, 8))
-            .append("-")
-            .append(parts[3])
-            .append("-")
-            .append(parts[4])
-            .toString();
-
-        return UUID.fromString(sortedUuidString);
+        UUID timeBasedUuid = TIME_BASED_GENERATOR.generate();
+        long mostSignificantBits = timeBasedUuid.getMostSignificantBits();
+        long timeLow = mostSignificantBits >>> 32;
+        long timeMid = (mostSignificantBits >>> 16) & 0xFFFFL;
+        long timeHiAndVersion = mostSignificantBits & 0xFFFFL;
+
+        return new UUID(timeHiAndVersion << 48 | timeMid << 32 | timeLow, timeBasedUuid.getLeastSignificantBits());
     }
 }
@@ -8,8 +8,11 @@ import org.junit.runner.*;
 import org.mockito.*;
 import org.mockito.runners.*;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 
+import net.smartcosmos.dao.metadata.CountMode;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.repository.CountedPage;
 import net.smartcosmos.dao.metadata.util.MetadataPersistenceUtil;
 import net.smartcosmos.dto.metadata.MetadataResponse;
 import net.smartcosmos.dto.metadata.Page;
@@ -58,4 +61,23 @@ public class SpringPageToPageInformationConverterTest {
         Page<MetadataResponse> emptyPage = MetadataPersistenceUtil.emptyPage();
         assertEquals(emptyPage.getPage(), page);
     }
+
+    @Test
+    public void thatSkippedCountReportsUnknownTotals() {
+
+        List<MetadataEntity> content = new ArrayList<>();
+        content.add(mock(MetadataEntity.class));
+        content.add(mock(MetadataEntity.class));
+
+        CountedPage<MetadataEntity> entityPage = new CountedPage<>(content, new PageRequest(1, 2), 5, CountMode.SKIPPED, true);
+        PageInformation page = converter.convert(entityPage);
+
+        assertNotNull(page);
+        assertEquals(2, page.getNumber());
+        assertEquals(2, page.getSize());
+        assertEquals(SpringPageToPageInformationConverter.UNKNOWN_TOTAL, page.getTotalPages());
+        assertEquals(SpringPageToPageInformationConverter.UNKNOWN_TOTAL, page.getTotalElements());
+        assertEquals(CountedPage.UNKNOWN_TOTAL, entityPage.getTotalElements());
+        assertEquals(CountedPage.UNKNOWN_TOTAL, entityPage.getTotalPages());
+    }
 }
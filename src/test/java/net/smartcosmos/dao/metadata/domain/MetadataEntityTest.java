@@ -7,8 +7,11 @@ import javax.validation.Validator;
 import javax.validation.ValidatorFactory;
 
 import org.apache.commons.lang.RandomStringUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.*;
 
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
+
 import static org.junit.Assert.*;
 
 public class MetadataEntityTest {
@@ -209,5 +212,142 @@ public class MetadataEntityTest {
                          .toString());
     }
 
+    @Test
+    public void thatOnlyLargeJsonValuesAreCompressed() {
+
+        String json = "[\"" + StringUtils.repeat("x", 2000) + "\"]";
+
+        MetadataEntity jsonEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_ARRAY)
+            .value(json)
+            .build();
+        jsonEntity.compressValue(1024);
+        assertTrue(jsonEntity.isValueCompressed());
+        assertTrue(jsonEntity.getValue()
+                       .length() < json.length());
+        assertEquals(json, jsonEntity.getPlainValue());
+
+        jsonEntity.updateDerivedValues();
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash(json)), jsonEntity.getValueHash());
+
+        MetadataEntity smallJsonEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_ARRAY)
+            .value(json)
+            .build();
+        smallJsonEntity.compressValue(4096);
+        assertFalse(smallJsonEntity.isValueCompressed());
+
+        MetadataEntity stringEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.STRING)
+            .value(json)
+            .build();
+        stringEntity.compressValue(1024);
+        assertFalse(stringEntity.isValueCompressed());
+        assertEquals(json, stringEntity.getValue());
+    }
+
+    @Test
+    public void thatTooLongJsonValuesAreNotCompressed() {
+
+        MetadataEntity metadataEntity = MetadataEntity.builder()
+            .owner(OWNER)
+            .dataType(MetadataDataType.JSON_ARRAY)
+            .keyName(KEY_NAME)
+            .value("[\"" + VALUE_INVALID + "\"]")
+            .build();
+        metadataEntity.compressValue(1024);
+
+        assertFalse(metadataEntity.isValueCompressed());
+        assertFalse(validator.validate(metadataEntity)
+                        .isEmpty());
+    }
+
+    @Test
+    public void thatOnlyLargeValuesAreMovedOutOfRow() {
+
+        String value = StringUtils.repeat("x", 3000);
+
+        MetadataEntity largeEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.STRING)
+            .value(value)
+            .build();
+        largeEntity.moveValueOutOfRow(2048);
+        assertTrue(largeEntity.isValueOutOfRow());
+        assertNull(largeEntity.getValue());
+        assertEquals(value, largeEntity.getPlainValue());
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash(value)), largeEntity.getValueHash());
+
+        largeEntity.setOutOfRowValue(null);
+        try {
+            largeEntity.getPlainValue();
+            fail("Expected an unloaded out-of-row value to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        MetadataEntity smallEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.STRING)
+            .value(value)
+            .build();
+        smallEntity.moveValueOutOfRow(4096);
+        assertFalse(smallEntity.isValueOutOfRow());
+        assertEquals(value, smallEntity.getValue());
+
+        MetadataEntity disabledEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.STRING)
+            .value(value)
+            .build();
+        disabledEntity.moveValueOutOfRow(0);
+        assertFalse(disabledEntity.isValueOutOfRow());
+    }
+
     // endregion
+
+    @Test
+    public void thatOnlyLargeJsonValuesAreShared() {
+
+        String value = "{\"description\":\"" + RandomStringUtils.randomAlphanumeric(3000) + "\"}";
+
+        MetadataEntity largeEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(value)
+            .build();
+        largeEntity.shareValue(2048);
+        assertTrue(largeEntity.isValueShared());
+        assertTrue(largeEntity.isValueOutOfRow());
+        assertNull(largeEntity.getValue());
+        assertEquals(MetadataValueParser.getContentHash(value), largeEntity.getValueRef());
+        assertEquals(value, largeEntity.getPlainValue());
+
+        MetadataEntity sameEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(value)
+            .build();
+        sameEntity.shareValue(2048);
+        assertEquals(largeEntity.getValueRef(), sameEntity.getValueRef());
+        sameEntity.setOutOfRowValue(null);
+        assertTrue(largeEntity.hasSameValue(sameEntity));
+
+        MetadataEntity stringEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.STRING)
+            .value(value)
+            .build();
+        stringEntity.shareValue(2048);
+        assertFalse(stringEntity.isValueShared());
+
+        MetadataEntity smallEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(value)
+            .build();
+        smallEntity.shareValue(4096);
+        assertFalse(smallEntity.isValueShared());
+        assertEquals(value, smallEntity.getValue());
+
+        MetadataEntity disabledEntity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(value)
+            .build();
+        disabledEntity.shareValue(0);
+        assertFalse(disabledEntity.isValueShared());
+    }
 }
@@ -0,0 +1,106 @@
+package net.smartcosmos.dao.metadata.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import net.smartcosmos.dao.metadata.BulkUpsertEntry;
+import net.smartcosmos.dao.metadata.BulkUpsertResult;
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the throughput of bulk upserts to one upsert per owner. Not part of the regular build, run it with
+ * {@code mvn test -Pbenchmark}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false", "logging.level.ROOT=WARN",
+                   "logging.level.org.hibernate=WARN", "logging.level.net.smartcosmos=WARN" })
+public class BulkUpsertBenchmark {
+
+    private static final int OWNERS = 2000;
+    private static final int KEYS = 10;
+    private static final int WARMUP_OWNERS = 200;
+
+    @Autowired
+    MetadataPersistenceService metadataPersistenceService;
+
+    private final String tenantUrn = UuidUtil.getTenantUrnFromUuid(UUID.randomUUID());
+    private final String ownerType = "bulkBenchmark";
+
+    @Test
+    public void benchmarkBulkUpsert() {
+
+        upsertAll(createEntries(WARMUP_OWNERS));
+        upsertEach(createEntries(WARMUP_OWNERS));
+
+        List<BulkUpsertEntry> bulkEntries = createEntries(OWNERS);
+        long bulkNanos = upsertAll(bulkEntries);
+        // the same owners again, now updating existing rows
+        long bulkUpdateNanos = upsertAll(bulkEntries);
+        long singleNanos = upsertEach(createEntries(OWNERS));
+
+        System.out.printf("Upsert of %d owners with %d keys each: bulk %d rows/s (updates %d rows/s), single %d rows/s%n",
+                          OWNERS, KEYS,
+                          getRowsPerSecond(bulkNanos), getRowsPerSecond(bulkUpdateNanos), getRowsPerSecond(singleNanos));
+    }
+
+    private long upsertAll(List<BulkUpsertEntry> entries) {
+
+        long start = System.nanoTime();
+        List<BulkUpsertResult> results = metadataPersistenceService.upsertAll(tenantUrn, entries);
+        long nanos = System.nanoTime() - start;
+
+        assertTrue(results.stream()
+                       .allMatch(result -> result.getOutcome() == BulkUpsertResult.Outcome.CREATED
+                                           || result.getOutcome() == BulkUpsertResult.Outcome.UPDATED));
+
+        return nanos;
+    }
+
+    private long upsertEach(List<BulkUpsertEntry> entries) {
+
+        long start = System.nanoTime();
+        for (BulkUpsertEntry entry : entries) {
+            metadataPersistenceService.upsert(tenantUrn, entry.getOwnerType(), entry.getOwnerUrn(), entry.getMetadata());
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    private List<BulkUpsertEntry> createEntries(int owners) {
+
+        List<BulkUpsertEntry> entries = new ArrayList<>(owners);
+        for (int i = 0; i < owners; i++) {
+            Map<String, Object> metadata = new HashMap<>();
+            for (int key = 0; key < KEYS; key++) {
+                metadata.put("key" + key, i * KEYS + key);
+            }
+            entries.add(new BulkUpsertEntry(ownerType, UuidUtil.getThingUrnFromUuid(UUID.randomUUID()), metadata));
+        }
+
+        return entries;
+    }
+
+    private static long getRowsPerSecond(long nanos) {
+
+        return (long) OWNERS * KEYS * 1000000000L / Math.max(nanos, 1);
+    }
+}
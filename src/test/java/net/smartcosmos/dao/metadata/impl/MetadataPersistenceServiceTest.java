@@ -3,11 +3,18 @@ package net.smartcosmos.dao.metadata.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import javax.validation.ConstraintViolationException;
 
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -21,6 +28,7 @@ import org.mockito.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContext;
@@ -29,13 +37,23 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import net.smartcosmos.dao.metadata.BulkUpsertEntry;
+import net.smartcosmos.dao.metadata.BulkUpsertResult;
+import net.smartcosmos.dao.metadata.CountMode;
+import net.smartcosmos.dao.metadata.CursorPage;
 import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
 import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.SearchPage;
 import net.smartcosmos.dao.metadata.SortOrder;
+import net.smartcosmos.dao.metadata.ValueCondition;
 import net.smartcosmos.dao.metadata.domain.MetadataDataType;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
 import net.smartcosmos.dao.metadata.repository.MetadataRepository;
+import net.smartcosmos.dao.metadata.repository.OwnerLocks;
+import net.smartcosmos.dao.metadata.repository.SynchronousStatisticsConfig;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 import net.smartcosmos.dao.metadata.util.UuidUtil;
 import net.smartcosmos.dto.metadata.MetadataOwnerResponse;
 import net.smartcosmos.dto.metadata.MetadataResponse;
@@ -47,10 +65,13 @@ import net.smartcosmos.security.user.SmartCosmosUser;
 import static org.junit.Assert.*;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class,
+                                            SynchronousStatisticsConfig.class })
 @ActiveProfiles("test")
 @WebAppConfiguration
-@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false" })
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false",
+                   "smartcosmos.dao.metadata.write.compression-threshold=1024",
+                   "smartcosmos.dao.metadata.write.out-of-row-threshold=2048" })
 public class MetadataPersistenceServiceTest {
 
     private final UUID tenantId = UUID.randomUUID();
@@ -79,6 +100,15 @@ public class MetadataPersistenceServiceTest {
     @Autowired
     MetadataRepository metadataRepository;
 
+    @Autowired
+    MetadataPersistenceMetrics metrics;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    OwnerLocks ownerLocks;
+
     @Before
     public void setUp() throws Exception {
 
@@ -452,6 +482,121 @@ public class MetadataPersistenceServiceTest {
         assertEquals(1, entityList.size());
     }
 
+    @Test
+    public void testLargeJsonObjectIsStoredCompressed() {
+
+        final String ownerType = "Thing";
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            items.put(new JSONObject().put("index", i)
+                          .put("label", "item"));
+        }
+        final JSONObject jsonObject = new JSONObject().put("items", items);
+        assertTrue(jsonObject.toString()
+                       .length() > 1024);
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("compressedJson", jsonObject);
+        metadataPersistenceService.create(tenantUrn, ownerType, ownerUrn, keyValues);
+
+        MetadataEntity entity = metadataRepository
+            .findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, UuidUtil.getUuidFromUrn(ownerUrn), "compressedJson")
+            .get();
+        assertTrue(entity.isValueCompressed());
+        assertTrue(entity.getValue()
+                       .length() < jsonObject.toString()
+                       .length());
+
+        Optional<MetadataValueResponse> response = metadataPersistenceService.findByKey(tenantUrn, ownerType, ownerUrn, "compressedJson");
+        assertTrue(response.isPresent());
+        assertEquals(jsonObject.toString(),
+                     new JSONObject(response.get()
+                                        .getValue()
+                                        .toString()).toString());
+
+        Page<MetadataOwnerResponse> owners = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, ownerType, keyValues, 1, 10,
+                                                                                                      null, null);
+        assertEquals(1,
+                     owners.getData()
+                         .size());
+        assertEquals(ownerUrn,
+                     owners.getData()
+                         .get(0)
+                         .getOwnerUrn());
+    }
+
+    @Test
+    public void testLargeValueIsStoredOutOfRow() {
+
+        final String ownerType = "Thing";
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        final UUID ownerId = UuidUtil.getUuidFromUrn(ownerUrn);
+        final String largeValue = RandomStringUtils.randomAlphanumeric(3000);
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("largeValue", largeValue);
+        keyValues.put("smallValue", "small");
+        metadataPersistenceService.create(tenantUrn, ownerType, ownerUrn, keyValues);
+
+        MetadataEntity entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "largeValue")
+            .get();
+        assertTrue(entity.isValueOutOfRow());
+        assertNull(entity.getValue());
+
+        Optional<MetadataValueResponse> value = metadataPersistenceService.findByKey(tenantUrn, ownerType, ownerUrn, "largeValue");
+        assertTrue(value.isPresent());
+        assertEquals(largeValue,
+                     value.get()
+                         .getValue());
+
+        Optional<MetadataResponse> response = metadataPersistenceService.findByOwner(tenantUrn, ownerType, ownerUrn, null);
+        assertTrue(response.isPresent());
+        assertEquals(largeValue,
+                     response.get()
+                         .getMetadata()
+                         .get("largeValue"));
+        assertEquals("small",
+                     response.get()
+                         .getMetadata()
+                         .get("smallValue"));
+
+        Page<MetadataOwnerResponse> owners = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, ownerType,
+                                                                                                      Collections.singletonMap("largeValue",
+                                                                                                                               largeValue),
+                                                                                                      1, 10, null, null);
+        assertEquals(1,
+                     owners.getData()
+                         .size());
+
+        final String otherLargeValue = RandomStringUtils.randomAlphanumeric(3000);
+        metadataPersistenceService.upsert(tenantUrn, ownerType, ownerUrn, Collections.singletonMap("largeValue", otherLargeValue));
+        assertEquals(otherLargeValue,
+                     metadataPersistenceService.findByKey(tenantUrn, ownerType, ownerUrn, "largeValue")
+                         .get()
+                         .getValue());
+
+        metadataPersistenceService.update(tenantUrn, ownerType, ownerUrn, "largeValue", "now small");
+        entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "largeValue")
+            .get();
+        assertFalse(entity.isValueOutOfRow());
+        assertEquals("now small",
+                     metadataPersistenceService.findByKey(tenantUrn, ownerType, ownerUrn, "largeValue")
+                         .get()
+                         .getValue());
+
+        metadataPersistenceService.update(tenantUrn, ownerType, ownerUrn, "largeValue", largeValue);
+        List<MetadataResponse> deleted = metadataPersistenceService.delete(tenantUrn, ownerType, ownerUrn, "largeValue");
+        assertEquals(1, deleted.size());
+        assertEquals(largeValue,
+                     deleted.get(0)
+                         .getMetadata()
+                         .get("largeValue"));
+        assertFalse(metadataPersistenceService.findByKey(tenantUrn, ownerType, ownerUrn, "largeValue")
+                        .isPresent());
+    }
+
     @Test
     public void testCreateFailOnEmptyMetadataMap() {
 
@@ -562,6 +707,124 @@ public class MetadataPersistenceServiceTest {
             .get("duplicateUpsert"));
     }
 
+    @Test
+    public void testUpsertKeepsOtherKeysAndCreationDate() {
+
+        final String ownerType = "Thing";
+        final UUID ownerId = UUID.randomUUID();
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("untouchedKey", "untouched");
+        keyValues.put("upsertedKey", 1);
+        metadataPersistenceService.create(tenantUrn, ownerType, ownerUrn, keyValues);
+
+        MetadataEntity created = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId,
+                                                                                                           "upsertedKey")
+            .get();
+
+        Map<String, Object> upsertValues = new HashMap<>();
+        upsertValues.put("upsertedKey", 2);
+        upsertValues.put("addedKey", true);
+        Optional<MetadataResponse> response = metadataPersistenceService.upsert(tenantUrn, ownerType, ownerUrn, upsertValues);
+
+        assertTrue(response.isPresent());
+        assertEquals(upsertValues, response.get()
+            .getMetadata());
+
+        Optional<MetadataResponse> owner = metadataPersistenceService.findByOwner(tenantUrn, ownerType, ownerUrn, null);
+        assertTrue(owner.isPresent());
+        assertEquals(3, owner.get()
+            .getMetadata()
+            .size());
+        assertEquals("untouched", owner.get()
+            .getMetadata()
+            .get("untouchedKey"));
+        assertEquals(2, owner.get()
+            .getMetadata()
+            .get("upsertedKey"));
+
+        MetadataEntity updated = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId,
+                                                                                                           "upsertedKey")
+            .get();
+        assertEquals(created.getCreated(), updated.getCreated());
+        assertEquals(Long.valueOf(2L), updated.getLongValue());
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash("2")), updated.getValueHash());
+    }
+
+    @Test
+    public void testUpsertSkipsUnchangedValues() {
+
+        final String ownerType = "Thing";
+        final UUID ownerId = UUID.randomUUID();
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("unchangedKey", "Text");
+        keyValues.put("unchangedNull", null);
+        keyValues.put("changedCase", "Text");
+        metadataPersistenceService.upsert(tenantUrn, ownerType, ownerUrn, keyValues);
+
+        MetadataEntity unchanged = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId,
+                                                                                                             "unchangedKey")
+            .get();
+
+        long written = metrics.get(MetadataPersistenceMetrics.WRITTEN_ROWS);
+        long elided = metrics.get(MetadataPersistenceMetrics.ELIDED_ROWS);
+
+        keyValues.put("changedCase", "text");
+        Optional<MetadataResponse> response = metadataPersistenceService.upsert(tenantUrn, ownerType, ownerUrn, keyValues);
+
+        assertTrue(response.isPresent());
+        assertEquals(keyValues.keySet(), response.get()
+            .getMetadata()
+            .keySet());
+        assertEquals(written + 1, metrics.get(MetadataPersistenceMetrics.WRITTEN_ROWS));
+        assertEquals(elided + 2, metrics.get(MetadataPersistenceMetrics.ELIDED_ROWS));
+
+        MetadataEntity kept = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId,
+                                                                                                        "unchangedKey")
+            .get();
+        assertEquals(unchanged.getLastModified(), kept.getLastModified());
+        assertEquals("text", metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId,
+                                                                                                       "changedCase")
+            .get()
+            .getValue());
+    }
+
+    @Test
+    public void testUpsertAsync() {
+
+        final String ownerType = "Thing";
+        final UUID ownerId = UUID.randomUUID();
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("asyncKey", "async");
+
+        CompletableFuture<Optional<MetadataResponse>> future = metadataPersistenceService.upsertAsync(tenantUrn, ownerType, ownerUrn,
+                                                                                                      keyValues);
+
+        Optional<MetadataResponse> response = future.join();
+        assertTrue(response.isPresent());
+        assertEquals(keyValues, response.get()
+            .getMetadata());
+        assertTrue(metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "asyncKey")
+                       .isPresent());
+    }
+
+    @Test(expected = ConstraintViolationException.class)
+    public void testUpsertRejectsTooLongKey() {
+
+        final String ownerType = "Thing";
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put(RandomStringUtils.randomAlphanumeric(256), true);
+
+        metadataPersistenceService.upsert(tenantUrn, ownerType, ownerUrn, keyValues);
+    }
+
     @Test
     public void testUpsertFailOnEmptyMetadataMap() {
 
@@ -588,6 +851,119 @@ public class MetadataPersistenceServiceTest {
 
     // endregion */
 
+    // region Bulk Upsert
+
+    @Test
+    public void testUpsertAll() {
+
+        final String ownerType = "Thing";
+        final String existingOwnerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        final String newOwnerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        Map<String, Object> existingValues = new HashMap<>();
+        existingValues.put("bulkKept", "kept");
+        existingValues.put("bulkUpdated", 1);
+        metadataPersistenceService.create(tenantUrn, ownerType, existingOwnerUrn, existingValues);
+
+        Map<String, Object> updateValues = new HashMap<>();
+        updateValues.put("bulkUpdated", 2);
+        Map<String, Object> newValues = new HashMap<>();
+        newValues.put("bulkNew", true);
+        newValues.put("bulkNumber", 3.5);
+        Map<String, Object> invalidValues = new HashMap<>();
+        invalidValues.put(RandomStringUtils.randomAlphanumeric(256), true);
+
+        List<BulkUpsertEntry> entries = Arrays.asList(new BulkUpsertEntry(ownerType, existingOwnerUrn, updateValues),
+                                                      new BulkUpsertEntry(ownerType, newOwnerUrn, newValues),
+                                                      new BulkUpsertEntry(ownerType, newOwnerUrn, new HashMap<>()),
+                                                      new BulkUpsertEntry(ownerType, "no-urn", newValues),
+                                                      new BulkUpsertEntry(ownerType, UuidUtil.getThingUrnFromUuid(UUID.randomUUID()), invalidValues));
+
+        List<BulkUpsertResult> results = metadataPersistenceService.upsertAll(tenantUrn, entries);
+
+        assertEquals(5, results.size());
+        assertEquals(BulkUpsertResult.Outcome.UPDATED, results.get(0)
+            .getOutcome());
+        assertEquals(BulkUpsertResult.Outcome.CREATED, results.get(1)
+            .getOutcome());
+        assertEquals(newOwnerUrn, results.get(1)
+            .getOwnerUrn());
+        assertEquals(BulkUpsertResult.Outcome.SKIPPED, results.get(2)
+            .getOutcome());
+        assertEquals(BulkUpsertResult.Outcome.INVALID, results.get(3)
+            .getOutcome());
+        assertEquals(BulkUpsertResult.Outcome.INVALID, results.get(4)
+            .getOutcome());
+        assertTrue(results.get(4)
+                       .getMessage()
+                       .startsWith("keyName"));
+
+        Map<String, Object> existingOwner = metadataPersistenceService.findByOwner(tenantUrn, ownerType, existingOwnerUrn, null)
+            .get()
+            .getMetadata();
+        assertEquals("kept", existingOwner.get("bulkKept"));
+        assertEquals(2, existingOwner.get("bulkUpdated"));
+
+        assertEquals(newValues, metadataPersistenceService.findByOwner(tenantUrn, ownerType, newOwnerUrn, null)
+            .get()
+            .getMetadata());
+    }
+
+    @Test
+    public void testUpsertAllWithDuplicateOwners() {
+
+        final String ownerType = "Thing";
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        Map<String, Object> firstValues = new HashMap<>();
+        firstValues.put("bulkFirst", 1);
+        Map<String, Object> secondValues = new HashMap<>();
+        secondValues.put("bulkSecond", 2);
+
+        List<BulkUpsertResult> results = metadataPersistenceService.upsertAll(tenantUrn,
+                                                                              Arrays.asList(new BulkUpsertEntry(ownerType, ownerUrn, firstValues),
+                                                                                            new BulkUpsertEntry(ownerType, ownerUrn, secondValues)));
+
+        assertEquals(BulkUpsertResult.Outcome.CREATED, results.get(0)
+            .getOutcome());
+        assertEquals(BulkUpsertResult.Outcome.CREATED, results.get(1)
+            .getOutcome());
+        assertEquals(2, metadataPersistenceService.findByOwner(tenantUrn, ownerType, ownerUrn, null)
+            .get()
+            .getMetadata()
+            .size());
+    }
+
+    @Test
+    public void testUpsertAllWritesNothingOnFailure() {
+
+        final String ownerType = "Thing";
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        final String failingOwnerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        // valid for the DAO, but rejected by the database
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("ALTER TABLE metadata ADD CONSTRAINT bulk_failure_check CHECK (key_name <> 'bulkFailure')");
+        try {
+            metadataPersistenceService.upsertAll(tenantUrn,
+                                                 Arrays.asList(new BulkUpsertEntry(ownerType, ownerUrn, Collections.singletonMap("bulkWritten", 1)),
+                                                               new BulkUpsertEntry(ownerType, failingOwnerUrn,
+                                                                                   Collections.singletonMap("bulkFailure", 2))));
+            fail("the failing entry should fail the call");
+        } catch (RuntimeException e) {
+            // expected, native statements are not translated
+        } finally {
+            jdbcTemplate.execute("ALTER TABLE metadata DROP CONSTRAINT bulk_failure_check");
+        }
+
+        assertFalse(metadataPersistenceService.findByOwner(tenantUrn, ownerType, ownerUrn, null)
+                        .isPresent());
+        assertFalse(metadataPersistenceService.findByOwner(tenantUrn, ownerType, failingOwnerUrn, null)
+                        .isPresent());
+    }
+
+    // endregion */
+
     // region Update
 
     @Test
@@ -678,6 +1054,48 @@ public class MetadataPersistenceServiceTest {
                                             .toString()));
     }
 
+    @Test
+    public void testDeleteWaitsForWritesOfTheOwner() throws Exception {
+
+        final String ownerType = "Thing";
+        final UUID ownerId = UUID.randomUUID();
+        final String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+
+        metadataPersistenceService.create(tenantUrn, ownerType, ownerUrn, Collections.singletonMap("last", "value"));
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(() -> ownerLocks.write(tenantId, ownerType, ownerId, () -> {
+            locked.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+            }
+            return null;
+        }));
+        writer.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+        List<List<MetadataResponse>> deleted = Collections.synchronizedList(new ArrayList<>());
+        Thread delete = new Thread(() -> deleted.add(metadataPersistenceService.delete(tenantUrn, ownerType, ownerUrn, "last")));
+        Thread deleteAll = new Thread(() -> deleted.add(metadataPersistenceService.deleteAllByOwner(tenantUrn, ownerType, ownerUrn)));
+        delete.start();
+        deleteAll.start();
+        Thread.sleep(50);
+        assertTrue(deleted.isEmpty());
+
+        release.countDown();
+        writer.join(10000);
+        delete.join(10000);
+        deleteAll.join(10000);
+
+        assertEquals(2, deleted.size());
+        assertFalse(metadataPersistenceService.findByOwner(tenantUrn, ownerType, ownerUrn, null)
+                        .isPresent());
+    }
+
     @Test
     public void testDeleteNonexistent() {
 
@@ -740,6 +1158,63 @@ public class MetadataPersistenceServiceTest {
 
     // endregion */
 
+    // region Purge
+
+    @Test
+    public void testPurgeOwnerType() {
+
+        final UUID otherTenantId = UUID.randomUUID();
+        final String otherTenantUrn = UuidUtil.getTenantUrnFromUuid(otherTenantId);
+        final String deviceUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        final String otherThingUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("purge1", true);
+        keyValues.put("purge2", 42);
+
+        for (int i = 0; i < 3; i++) {
+            metadataPersistenceService.upsert(tenantUrn, "Thing", UuidUtil.getThingUrnFromUuid(UUID.randomUUID()), keyValues);
+        }
+        metadataPersistenceService.upsert(tenantUrn, "Device", deviceUrn, keyValues);
+        metadataPersistenceService.upsert(otherTenantUrn, "Thing", otherThingUrn, keyValues);
+
+        assertEquals(6, metadataPersistenceService.purgeOwnerType(tenantUrn, "Thing"));
+
+        assertEquals(0, metadataPersistenceService.findByOwnerType(tenantUrn, "Thing", 1, 10)
+            .getPage()
+            .getTotalElements());
+        assertTrue(metadataPersistenceService.findByKey(tenantUrn, "Device", deviceUrn, "purge1")
+                       .isPresent());
+        assertTrue(metadataPersistenceService.findByKey(otherTenantUrn, "Thing", otherThingUrn, "purge1")
+                       .isPresent());
+    }
+
+    @Test
+    public void testPurgeTenant() {
+
+        final UUID otherTenantId = UUID.randomUUID();
+        final String otherTenantUrn = UuidUtil.getTenantUrnFromUuid(otherTenantId);
+        final String thingUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        final String otherThingUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+
+        Map<String, Object> keyValues = new HashMap<>();
+        keyValues.put("purge1", true);
+
+        metadataPersistenceService.upsert(otherTenantUrn, "Thing", thingUrn, keyValues);
+        metadataPersistenceService.upsert(otherTenantUrn, "Device", UuidUtil.getThingUrnFromUuid(UUID.randomUUID()), keyValues);
+        metadataPersistenceService.upsert(tenantUrn, "Thing", otherThingUrn, keyValues);
+
+        assertEquals(2, metadataPersistenceService.purgeTenant(otherTenantUrn));
+
+        assertFalse(metadataPersistenceService.findByKey(otherTenantUrn, "Thing", thingUrn, "purge1")
+                        .isPresent());
+        assertTrue(metadataPersistenceService.findByKey(tenantUrn, "Thing", otherThingUrn, "purge1")
+                       .isPresent());
+        assertEquals(0, metadataPersistenceService.purgeTenant(otherTenantUrn));
+    }
+
+    // endregion
+
     // region Find by Key
 
     @Test
@@ -1212,6 +1687,57 @@ public class MetadataPersistenceServiceTest {
                          .getTotalPages());
     }
 
+    @Test
+    public void testFindByLongValueMatchesLegacyStrings() throws Exception {
+
+        final String ownerUrn = "urn:thing:uuid:1f0b6e2a-43a4-4d0e-9a3c-8a1d6f25c0b7";
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("legacyLong", 1234567890123L);
+        metadata.put("legacyName", "legacy");
+        metadataPersistenceService.create(tenantUrn, "legacyOwner", ownerUrn, metadata);
+
+        // Long values were stored as strings before they had their own data type
+        new JdbcTemplate(dataSource).update("UPDATE metadata SET data_type = ? WHERE key_name = 'legacyLong'",
+                                            MetadataDataType.STRING.getId());
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("legacyLong", 1234567890123L);
+
+        Page<MetadataOwnerResponse> responsePage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn,
+                                                                                                               "legacyOwner",
+                                                                                                               keyValuePairMap,
+                                                                                                               1,
+                                                                                                               10,
+                                                                                                               null,
+                                                                                                               null);
+
+        assertEquals(1,
+                     responsePage.getData()
+                         .size());
+        assertEquals(ownerUrn,
+                     responsePage.getData()
+                         .get(0)
+                         .getOwnerUrn());
+
+        keyValuePairMap.put("legacyName", "legacy");
+
+        responsePage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn,
+                                                                                   "legacyOwner",
+                                                                                   keyValuePairMap,
+                                                                                   1,
+                                                                                   10,
+                                                                                   null,
+                                                                                   null);
+
+        assertEquals(1,
+                     responsePage.getData()
+                         .size());
+        assertEquals(ownerUrn,
+                     responsePage.getData()
+                         .get(0)
+                         .getOwnerUrn());
+    }
+
     // endregion
 
     // region Find By Key-Value Pairs no tenant
@@ -1460,6 +1986,292 @@ public class MetadataPersistenceServiceTest {
 
     // endregion
 
+    // region Find By Key-Value Pairs with count mode
+
+    @Test
+    public void testFindByKeyValuePairsCountModes() throws Exception {
+
+        for (String urn : urns) {
+            createMetadataEntity("countOwner", urn, "countKey", 7);
+            createMetadataEntity("countOwner", urn, "countKey2", "Test");
+        }
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("countKey", 7);
+        keyValuePairMap.put("countKey2", "Test");
+
+        SearchPage<MetadataOwnerResponse> exactPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "countOwner",
+                                                                                                                 keyValuePairMap, 1, 5,
+                                                                                                                 null, null,
+                                                                                                                 CountMode.EXACT);
+        assertEquals(CountMode.EXACT, exactPage.getCountMode());
+        assertTrue(exactPage.isHasNext());
+        assertEquals(5,
+                     exactPage.getData()
+                         .size());
+        assertEquals(urns.length,
+                     exactPage.getPage()
+                         .getTotalElements());
+
+        SearchPage<MetadataOwnerResponse> skippedPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "countOwner",
+                                                                                                                   keyValuePairMap, 2, 5,
+                                                                                                                   null, null,
+                                                                                                                   CountMode.SKIPPED);
+        assertEquals(CountMode.SKIPPED, skippedPage.getCountMode());
+        assertTrue(skippedPage.isHasNext());
+        assertEquals(5,
+                     skippedPage.getData()
+                         .size());
+        assertEquals(2,
+                     skippedPage.getPage()
+                         .getNumber());
+        assertEquals(-1,
+                     skippedPage.getPage()
+                         .getTotalElements());
+
+        // the pair counts are loaded synchronously in this test, so the estimate is based on them right away
+        SearchPage<MetadataOwnerResponse> estimatedPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn,
+                                                                                                                     "countOwner",
+                                                                                                                     keyValuePairMap, 1, 5,
+                                                                                                                     null, null,
+                                                                                                                     CountMode.ESTIMATED);
+        assertEquals(CountMode.ESTIMATED, estimatedPage.getCountMode());
+        assertTrue(estimatedPage.isHasNext());
+        assertEquals(urns.length,
+                     estimatedPage.getPage()
+                         .getTotalElements());
+
+        SearchPage<MetadataOwnerResponse> lastPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "countOwner",
+                                                                                                                keyValuePairMap, 3, 5,
+                                                                                                                null, null,
+                                                                                                                CountMode.SKIPPED);
+        assertEquals(CountMode.EXACT, lastPage.getCountMode());
+        assertFalse(lastPage.isHasNext());
+        assertEquals(2,
+                     lastPage.getData()
+                         .size());
+        assertEquals(urns.length,
+                     lastPage.getPage()
+                         .getTotalElements());
+
+        // past the last page, the total is only known to be less than the offset
+        SearchPage<MetadataOwnerResponse> pastLastPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn,
+                                                                                                                    "countOwner",
+                                                                                                                    keyValuePairMap, 4, 5,
+                                                                                                                    null, null,
+                                                                                                                    CountMode.SKIPPED);
+        assertEquals(CountMode.SKIPPED, pastLastPage.getCountMode());
+        assertFalse(pastLastPage.isHasNext());
+        assertTrue(pastLastPage.getData()
+                       .isEmpty());
+        assertEquals(-1,
+                     pastLastPage.getPage()
+                         .getTotalElements());
+    }
+
+    // endregion
+
+    // region Find By Key-Value Pairs with value conditions
+
+    @Test
+    public void testFindByKeyValuePairsWithValueConditions() throws Exception {
+
+        for (int i = 0; i < urns.length; i++) {
+            // integers 0, 10, ..., 50 followed by doubles 60.5, 70.5, ..., 110.5
+            Object temperature = i < 6 ? (Object) (i * 10) : (Object) (i * 10 + 0.5);
+            createMetadataEntity("rangeOwner", urns[i], "temperature", temperature);
+            createMetadataEntity("rangeOwner", urns[i], "active", i % 2 == 0);
+        }
+
+        assertEquals(7, countOwnersByValueConditions("temperature", ValueCondition.greaterThan(40)));
+        assertEquals(5, countOwnersByValueConditions("temperature", ValueCondition.between(20, 60.5)));
+        assertEquals(2, countOwnersByValueConditions("temperature", ValueCondition.lessThan(10.5)));
+        assertEquals(1, countOwnersByValueConditions("temperature", ValueCondition.equalTo(30.0)));
+        assertEquals(1, countOwnersByValueConditions("temperature", ValueCondition.equalTo(70.5)));
+        assertEquals(6, countOwnersByValueConditions("active", ValueCondition.notEqualTo(true)));
+        assertEquals(3, countOwnersByValueConditions("temperature", ValueCondition.greaterThanOrEqualTo(50), "active", true));
+    }
+
+    @Test
+    public void testFindByKeyValuePairsWithValueConditionsOnLongAndFloat() throws Exception {
+
+        createMetadataEntity("rangeOwner", urns[0], "serial", 12345678901L);
+        createMetadataEntity("rangeOwner", urns[1], "serial", 12345678902L);
+        createMetadataEntity("rangeOwner", urns[0], "weight", 40.1f);
+        createMetadataEntity("rangeOwner", urns[1], "weight", 40.2f);
+
+        assertEquals(12345678901L,
+                     metadataPersistenceService.findByKey(tenantUrn, "rangeOwner", urns[0], "serial")
+                         .get()
+                         .getValue());
+        assertEquals(1, countOwnersByValueConditions("serial", ValueCondition.greaterThan(12345678901L)));
+        assertEquals(1, countOwnersByValueConditions("serial", ValueCondition.equalTo(12345678901L)));
+
+        // floats compare by the value they are written as, also against doubles
+        assertEquals(1, countOwnersByValueConditions("weight", ValueCondition.equalTo(40.1f)));
+        assertEquals(1, countOwnersByValueConditions("weight", ValueCondition.equalTo(40.1)));
+        assertEquals(2, countOwnersByValueConditions("weight", ValueCondition.between(40.1f, 40.2f)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueConditionRejectsStrings() throws Exception {
+
+        ValueCondition.equalTo("40");
+    }
+
+    private long countOwnersByValueConditions(Object... keyValuePairs) {
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        for (int i = 0; i < keyValuePairs.length; i += 2) {
+            keyValuePairMap.put((String) keyValuePairs[i], keyValuePairs[i + 1]);
+        }
+
+        Page<MetadataOwnerResponse> responsePage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "rangeOwner",
+                                                                                                               keyValuePairMap, 1, 20,
+                                                                                                               null, null);
+
+        return responsePage.getPage()
+            .getTotalElements();
+    }
+
+    // endregion
+
+    // region Find By Key-Value Pairs sorted by metadata value
+
+    @Test
+    public void testFindByKeyValuePairsSortedByMetadataValue() throws Exception {
+
+        Object[] priorities = { 3, 10.5, 1, null, 7 };
+        for (int i = 0; i < priorities.length; i++) {
+            createMetadataEntity("sortOwner", urns[i], "status", "active");
+            if (priorities[i] != null) {
+                createMetadataEntity("sortOwner", urns[i], "priority", priorities[i]);
+            }
+        }
+        createMetadataEntity("sortOwner", urns[5], "status", "inactive");
+        createMetadataEntity("sortOwner", urns[5], "priority", 0);
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("status", "active");
+
+        Page<MetadataOwnerResponse> ascendingPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "sortOwner",
+                                                                                                                keyValuePairMap, 1, 10,
+                                                                                                                SortOrder.ASC,
+                                                                                                                "metadata.priority");
+        assertEquals(5,
+                     ascendingPage.getPage()
+                         .getTotalElements());
+        assertEquals(Arrays.asList(urns[2], urns[0], urns[4], urns[1], urns[3]), getOwnerUrns(ascendingPage.getData()));
+
+        Page<MetadataOwnerResponse> descendingPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "sortOwner",
+                                                                                                                 keyValuePairMap, 1, 2,
+                                                                                                                 SortOrder.DESC,
+                                                                                                                 "metadata.priority");
+        assertEquals(5,
+                     descendingPage.getPage()
+                         .getTotalElements());
+        assertEquals(Arrays.asList(urns[1], urns[4]), getOwnerUrns(descendingPage.getData()));
+    }
+
+    private List<String> getOwnerUrns(List<MetadataOwnerResponse> owners) {
+
+        List<String> ownerUrns = new ArrayList<>();
+        for (MetadataOwnerResponse owner : owners) {
+            ownerUrns.add(owner.getOwnerUrn());
+        }
+
+        return ownerUrns;
+    }
+
+    // endregion
+
+    // region Find By Key-Value Pairs with continuation token
+
+    @Test
+    public void testFindByKeyValuePairsWithContinuationToken() throws Exception {
+
+        populateData();
+
+        for (String urn : urns) {
+            createMetadataEntity("cursorOwner", urn, "cursorKey", 7);
+            createMetadataEntity("cursorOwner", urn, "cursorKey2", "Test");
+        }
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("cursorKey", 7);
+        keyValuePairMap.put("cursorKey2", "Test");
+
+        List<String> foundUrns = new ArrayList<>();
+        String continuationToken = null;
+        int pageCount = 0;
+        do {
+            CursorPage<MetadataOwnerResponse> responsePage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn,
+                                                                                                                         "cursorOwner",
+                                                                                                                         keyValuePairMap,
+                                                                                                                         continuationToken,
+                                                                                                                         5);
+            assertFalse(responsePage.getData()
+                            .isEmpty());
+            assertTrue(responsePage.getData()
+                           .size() <= 5);
+
+            responsePage.getData()
+                .forEach(owner -> foundUrns.add(owner.getOwnerUrn()));
+            continuationToken = responsePage.getContinuationToken();
+            pageCount++;
+        } while (continuationToken != null);
+
+        assertEquals(3, pageCount);
+        assertEquals(urns.length, foundUrns.size());
+        assertEquals(new HashSet<>(Arrays.asList(urns)), new HashSet<>(foundUrns));
+    }
+
+    @Test
+    public void testFindByKeyValuePairsWithContinuationTokenNoTenant() throws Exception {
+
+        createMetadataEntity("cursorOwner", urns[0], "cursorKey", 7);
+        createMetadataEntityExplicitTenant(tenantId2, "cursorOwner", urns[1], "cursorKey", 7);
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("cursorKey", 7);
+
+        CursorPage<MetadataOwnerResponse> firstPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairsNoTenant("cursorOwner",
+                                                                                                                          keyValuePairMap,
+                                                                                                                          null,
+                                                                                                                          1);
+        assertEquals(1,
+                     firstPage.getData()
+                         .size());
+        assertNotNull(firstPage.getContinuationToken());
+
+        CursorPage<MetadataOwnerResponse> secondPage = metadataPersistenceService.findOwnersByTypeAndKeyValuePairsNoTenant("cursorOwner",
+                                                                                                                           keyValuePairMap,
+                                                                                                                           firstPage
+                                                                                                                               .getContinuationToken(),
+                                                                                                                           1);
+        assertEquals(1,
+                     secondPage.getData()
+                         .size());
+        assertNull(secondPage.getContinuationToken());
+        assertNotEquals(firstPage.getData()
+                            .get(0)
+                            .getTenantUrn(),
+                        secondPage.getData()
+                            .get(0)
+                            .getTenantUrn());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindByKeyValuePairsWithInvalidContinuationToken() throws Exception {
+
+        Map<String, Object> keyValuePairMap = new HashMap<>();
+        keyValuePairMap.put("cursorKey", 7);
+
+        metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, "cursorOwner", keyValuePairMap, "invalid", 10);
+    }
+
+    // endregion
+
     // region populateData
     private void populateData() throws Exception {
 
@@ -0,0 +1,191 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false" })
+public class GroupCommitQueueTest {
+
+    private final UUID tenantId = UUID.randomUUID();
+
+    @Autowired
+    NativeMetadataUpsert nativeUpsert;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    MetadataRepository metadataRepository;
+
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    private MetadataPersistenceMetrics metrics;
+    private GroupCommitQueue queue;
+
+    @Before
+    public void setUp() {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getWrite()
+            .getGroupCommit()
+            .setEnabled(true);
+        properties.getWrite()
+            .getGroupCommit()
+            .setMaxDelay(200L);
+
+        metrics = new MetadataPersistenceMetrics();
+        queue = new GroupCommitQueue(nativeUpsert, transactionManager, new OwnerLocks(metrics, properties), metrics, properties);
+        queue.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        queue.shutdown();
+        ownerRepository.deleteAll();
+    }
+
+    @Test
+    public void thatConcurrentWritesShareTransactions() {
+
+        assertTrue(queue.isActive());
+
+        List<UUID> ownerIds = new ArrayList<>();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ownerIds.add(UUID.randomUUID());
+            futures.add(queue.submit(getOwner("Thing", ownerIds.get(i), "value" + i)));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(futures.get(i)
+                           .join());
+            assertEquals("value" + i, getValue(ownerIds.get(i)));
+        }
+        assertEquals(20, metrics.get(GroupCommitQueue.WRITES));
+        assertTrue(metrics.get(GroupCommitQueue.COMMITS) < 20);
+    }
+
+    @Test
+    public void thatLaterWritesOfTheSameKeyWin() {
+
+        UUID ownerId = UUID.randomUUID();
+        CompletableFuture<Boolean> first = queue.submit(getOwner("Thing", ownerId, "first"));
+        CompletableFuture<Boolean> second = queue.submit(getOwner("Thing", ownerId, "second"));
+
+        first.join();
+        second.join();
+        assertEquals("second", getValue(ownerId));
+    }
+
+    @Test
+    public void thatFailedWriteDoesNotFailTheGroup() {
+
+        // bypasses the validation of the owner type length, so the database rejects it
+        CompletableFuture<Boolean> invalid = queue.submit(getOwner(StringUtils.repeat("x", 300), UUID.randomUUID(), "invalid"));
+        UUID validOwnerId = UUID.randomUUID();
+        CompletableFuture<Boolean> valid = queue.submit(getOwner("Thing", validOwnerId, "valid"));
+
+        assertTrue(valid.join());
+        try {
+            invalid.join();
+            fail("Expected the invalid write to fail");
+        } catch (CompletionException e) {
+            assertNotNull(e.getCause());
+        }
+        assertEquals("valid", getValue(validOwnerId));
+        assertEquals(2, metrics.get(GroupCommitQueue.RETRIES));
+    }
+
+    @Test
+    public void thatQueuedWritesAreCommittedOnShutdown() {
+
+        CompletableFuture<Boolean> future = queue.submit(getOwner("Thing", UUID.randomUUID(), "value"));
+        queue.shutdown();
+
+        assertTrue(future.isDone());
+        assertTrue(future.join());
+        assertFalse(queue.isActive());
+        assertTrue(queue.submit(getOwner("Thing", UUID.randomUUID(), "value"))
+                       .isCompletedExceptionally());
+    }
+
+    @Test
+    public void thatWritesSubmittedDuringShutdownComplete() throws Exception {
+
+        List<CompletableFuture<Boolean>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread submitter = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    futures.add(queue.submit(getOwner("Thing", UUID.randomUUID(), "value")));
+                }
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        queue.shutdown();
+        for (Thread submitter : submitters) {
+            submitter.join(10000);
+        }
+
+        assertEquals(200, futures.size());
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.isDone());
+        }
+    }
+
+    private String getValue(UUID ownerId) {
+
+        return metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, "Thing", ownerId, "key")
+            .get()
+            .getValue();
+    }
+
+    private MetadataOwnerEntity getOwner(String type, UUID ownerId, String value) {
+
+        MetadataOwnerEntity owner = MetadataOwnerEntity.builder()
+            .type(type)
+            .id(ownerId)
+            .tenantId(tenantId)
+            .build();
+        owner.getMetadataEntities()
+            .put("key", MetadataEntity.builder()
+                .keyName("key")
+                .value(value)
+                .dataType(MetadataDataType.STRING)
+                .build());
+
+        return owner;
+    }
+}
@@ -0,0 +1,151 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import net.smartcosmos.dao.metadata.CountMode;
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+/**
+ * Compares the CPU time per owner search with and without pre-rendered query templates, for searches with a varying
+ * number of key-value pairs. Not part of the regular build, run it with {@code mvn test -Pbenchmark}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false", "logging.level.ROOT=WARN",
+                   "logging.level.org.hibernate=WARN", "logging.level.net.smartcosmos=WARN" })
+public class KeyValueQueryTemplatesBenchmark {
+
+    private static final int OWNERS = 20;
+    private static final int MAX_PAIRS = 8;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 1000;
+
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    @Autowired
+    EntityManager entityManager;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    ValueHashBackfill valueHashBackfill;
+
+    @Autowired
+    MariaDbKeyValueSearch nativeSearch;
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String ownerType = "templateBenchmark";
+
+    @Before
+    public void setUp() {
+
+        for (int i = 0; i < OWNERS; i++) {
+            MetadataOwnerEntity owner = ownerRepository.save(MetadataOwnerEntity.builder()
+                                                                 .tenantId(tenantId)
+                                                                 .type(ownerType)
+                                                                 .id(UUID.randomUUID())
+                                                                 .build());
+
+            List<MetadataEntity> entities = new ArrayList<>();
+            for (int key = 0; key < MAX_PAIRS; key++) {
+                entities.add(MetadataEntity.builder()
+                                 .dataType(MetadataDataType.INTEGER)
+                                 .keyName("key" + key)
+                                 .value(String.valueOf(i % (key + 2)))
+                                 .build());
+            }
+            ownerRepository.addMetadataEntitiesToOwner(owner.getInternalId(), entities);
+        }
+    }
+
+    @Test
+    public void benchmarkQueryTemplates() {
+
+        MetadataRepositoryCustom criteriaRepository = createRepository(false);
+        MetadataRepositoryCustom templateRepository = createRepository(true);
+
+        run(criteriaRepository, WARMUP_ROUNDS);
+        run(templateRepository, WARMUP_ROUNDS);
+
+        long criteriaNanos = run(criteriaRepository, MEASURED_ROUNDS);
+        long templateNanos = run(templateRepository, MEASURED_ROUNDS);
+
+        System.out.printf("Owner search CPU time per query: criteria %d us, templates %d us, saved %d us (%.1f%%)%n",
+                          criteriaNanos / MEASURED_ROUNDS / 1000,
+                          templateNanos / MEASURED_ROUNDS / 1000,
+                          (criteriaNanos - templateNanos) / MEASURED_ROUNDS / 1000,
+                          100.0 * (criteriaNanos - templateNanos) / criteriaNanos);
+    }
+
+    /**
+     * Runs searches with 2 to {@code MAX_PAIRS} key-value pairs in turn.
+     *
+     * @return the CPU time of the current thread in nanoseconds
+     */
+    private long run(MetadataRepositoryCustom repository, int rounds) {
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long start = threadBean.getCurrentThreadCpuTime();
+
+        for (int round = 0; round < rounds; round++) {
+            int pairCount = 2 + round % (MAX_PAIRS - 1);
+            Map<String, Object> keyValuePairs = new LinkedHashMap<>();
+            for (int key = 0; key < pairCount; key++) {
+                // H2 returns the previous result of a statement executed again with the same parameters, so vary them
+                keyValuePairs.put("key" + key, round % 3);
+            }
+
+            repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs,
+                                                                           new PageRequest(0, 10, Sort.Direction.ASC, "owner.id"),
+                                                                           CountMode.EXACT);
+        }
+
+        return threadBean.getCurrentThreadCpuTime() - start;
+    }
+
+    private MetadataRepositoryCustom createRepository(boolean queryTemplates) {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getSearch()
+            .setQueryTemplates(queryTemplates);
+        // statistics would cache the per-pair counts of both runs alike, leave them out of the comparison
+        properties.getSearch()
+            .setOrderBySelectivity(false);
+
+        return new MetadataRepositoryImpl(entityManager,
+                                          properties,
+                                          new KeyValueStatistics(properties),
+                                          new CountQueryExecutor(entityManagerFactory, properties, new MetadataPersistenceMetrics()),
+                                          valueHashBackfill,
+                                          nativeSearch);
+    }
+}
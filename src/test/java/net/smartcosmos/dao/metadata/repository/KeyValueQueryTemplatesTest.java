@@ -0,0 +1,82 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.*;
+
+import net.smartcosmos.dao.metadata.ValueCondition;
+
+import static org.junit.Assert.*;
+
+public class KeyValueQueryTemplatesTest {
+
+    private KeyValueQueryTemplates templates;
+
+    @Before
+    public void setUp() {
+
+        templates = new KeyValueQueryTemplates();
+    }
+
+    @Test
+    public void thatPairCountsArePaddedToPowersOfTwo() {
+
+        assertEquals(1, KeyValueQueryTemplates.getBucketSize(1));
+        assertEquals(2, KeyValueQueryTemplates.getBucketSize(2));
+        assertEquals(4, KeyValueQueryTemplates.getBucketSize(3));
+        assertEquals(4, KeyValueQueryTemplates.getBucketSize(4));
+        assertEquals(8, KeyValueQueryTemplates.getBucketSize(5));
+        assertEquals(16, KeyValueQueryTemplates.getBucketSize(9));
+    }
+
+    @Test
+    public void thatTemplatesAreSharedPerShape() {
+
+        String query = templates.getPageQuery(true, 3, true, "owner.id", true);
+
+        assertSame(query, templates.getPageQuery(true, 4, true, "owner.id", true));
+        assertNotEquals(query, templates.getPageQuery(true, 5, true, "owner.id", true));
+        assertNotEquals(query, templates.getPageQuery(false, 4, true, "owner.id", true));
+        assertNotEquals(query, templates.getPageQuery(true, 4, true, "owner.id", false));
+        assertNotEquals(query, templates.getCountQuery(true, 4, true));
+        assertEquals(5, templates.size());
+    }
+
+    @Test
+    public void thatTemplatesRenderAllPairs() {
+
+        String query = templates.getPageQuery(false, 2, false, "created", false);
+
+        assertTrue(query.contains("s.keyName in (:key0, :key1)"));
+        assertTrue(query.contains("s.owner.tenantId is not null"));
+        assertFalse(query.contains(":valueHash"));
+        assertTrue(query.endsWith("order by m.created desc"));
+    }
+
+    @Test
+    public void thatValueConditionsAndInvalidSortPropertiesAreNotApplicable() {
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put("serial", "XYZ");
+
+        assertTrue(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id", 2048));
+        assertTrue(KeyValueQueryTemplates.isApplicable(keyValuePairs, null, 2048));
+        assertFalse(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id; drop table", 2048));
+
+        keyValuePairs.put("temperature", ValueCondition.greaterThan(40));
+        assertFalse(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id", 2048));
+    }
+
+    @Test
+    public void thatValuesStoredOutOfRowAreNotApplicable() {
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put("description", StringUtils.repeat("x", 2049));
+
+        assertFalse(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id", 2048));
+        assertTrue(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id", 4096));
+        assertTrue(KeyValueQueryTemplates.isApplicable(keyValuePairs, "owner.id", 0));
+    }
+}
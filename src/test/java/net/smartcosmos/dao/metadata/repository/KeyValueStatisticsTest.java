@@ -0,0 +1,114 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+
+import static org.junit.Assert.*;
+
+public class KeyValueStatisticsTest {
+
+    private final UUID tenantId = UUID.randomUUID();
+
+    private KeyValueStatistics statistics;
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+
+        // loads run right away instead of in the background
+        statistics = new KeyValueStatistics(new MetadataPersistenceProperties(), Runnable::run);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void thatCountsAreKept() {
+
+        assertEquals(OptionalLong.of(42), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(42)));
+        assertEquals(OptionalLong.of(42), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(7)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void thatCountsAreKeptPerValue() {
+
+        assertEquals(OptionalLong.of(42), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(42)));
+        assertEquals(OptionalLong.of(7), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "ABC", () -> load(7)));
+        assertEquals(OptionalLong.of(7), statistics.getMatchCount(null, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(7)));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void thatZeroCountsAreKept() {
+
+        assertEquals(OptionalLong.of(0), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(0)));
+        assertEquals(OptionalLong.of(0), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(1)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedCountsAreEvicted() {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getStatistics()
+            .setMaxEntries(2);
+        statistics = new KeyValueStatistics(properties, Runnable::run);
+
+        statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "A", () -> load(1));
+        statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "B", () -> load(2));
+        statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "A", () -> load(1));
+        statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "C", () -> load(3));
+        assertEquals(3, loads.get());
+
+        assertEquals(OptionalLong.of(1), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "A", () -> load(1)));
+        assertEquals(3, loads.get());
+        assertEquals(OptionalLong.of(2), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "B", () -> load(2)));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void thatUnknownCountsAreLoadedInTheBackground() {
+
+        List<Runnable> pending = new ArrayList<>();
+        statistics = new KeyValueStatistics(new MetadataPersistenceProperties(), pending::add);
+
+        assertFalse(statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(42))
+                        .isPresent());
+        assertFalse(statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(42))
+                        .isPresent());
+        assertEquals(1, pending.size());
+        assertEquals(0, loads.get());
+
+        pending.get(0)
+            .run();
+        assertEquals(OptionalLong.of(42), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(7)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void thatExpiredCountsAreReloaded() {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getStatistics()
+            .setTimeToLive(-1L);
+        statistics = new KeyValueStatistics(properties, Runnable::run);
+
+        assertEquals(OptionalLong.of(42), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(42)));
+        assertEquals(OptionalLong.of(7), statistics.getMatchCount(tenantId, "Thing", "serial", MetadataDataType.STRING, "XYZ", () -> load(7)));
+        assertEquals(2, loads.get());
+    }
+
+    private long load(long count) {
+
+        loads.incrementAndGet();
+
+        return count;
+    }
+}
@@ -1,12 +1,19 @@
 package net.smartcosmos.dao.metadata.repository;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,10 +25,13 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
 import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
 import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
 import net.smartcosmos.dao.metadata.domain.MetadataDataType;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataValueId;
 import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 import net.smartcosmos.util.UuidUtil;
 
@@ -40,6 +50,15 @@ public class MetadataOwnerRepositoryTest {
     @Autowired
     MetadataRepository metadataRepository;
 
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    MetadataPersistenceMetrics metrics;
+
+    @Autowired
+    OutOfRowValues outOfRowValues;
+
     private UUID tenantId;
     private UUID ownerId;
     private String ownerType = "Person";
@@ -86,6 +105,25 @@ public class MetadataOwnerRepositoryTest {
         repository.deleteAll();
     }
 
+    @Test
+    public void thatAssignedInternalIdIsKept() throws Exception {
+
+        UUID newOwnerId = UuidUtil.getNewUuid();
+        UUID assignedId = net.smartcosmos.dao.metadata.util.UuidUtil.getOwnerInternalId(tenantId, ownerType, newOwnerId);
+
+        MetadataOwnerEntity newOwner = repository.persist(MetadataOwnerEntity.builder()
+                                                               .internalId(assignedId)
+                                                               .id(newOwnerId)
+                                                               .tenantId(tenantId)
+                                                               .type(ownerType)
+                                                               .build());
+
+        assertEquals(assignedId, newOwner.getInternalId());
+        assertEquals(assignedId, repository.findByTenantIdAndTypeAndId(tenantId, ownerType, newOwnerId)
+            .get()
+            .getInternalId());
+    }
+
     @Test
     public void findByTenantIdAndTypeIgnoreCaseAndId() throws Exception {
 
@@ -121,6 +159,73 @@ public class MetadataOwnerRepositoryTest {
         assertTrue(entity.isPresent());
     }
 
+    @Test
+    public void deleteMetadataEntityKeepsOwnerWithOtherKeys() throws Exception {
+
+        List<MetadataEntity> deleted = repository.deleteMetadataEntity(tenantId, ownerType, ownerId, "key0");
+
+        assertEquals(1, deleted.size());
+        assertEquals("value0", deleted.get(0)
+            .getValue());
+        assertEquals(ownerId, deleted.get(0)
+            .getOwner()
+            .getId());
+        assertFalse(metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "key0")
+                        .isPresent());
+        assertTrue(repository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                       .isPresent());
+
+        assertTrue(repository.deleteMetadataEntity(tenantId, ownerType, ownerId, "key0")
+                       .isEmpty());
+    }
+
+    @Test
+    public void deleteMetadataEntityDeletesOrphanedOwner() throws Exception {
+
+        for (String key : keyValues.keySet()) {
+            repository.deleteMetadataEntity(tenantId, ownerType, ownerId, key);
+        }
+
+        assertFalse(repository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                        .isPresent());
+    }
+
+    @Test
+    public void deleteOwnerUsesOneStatementPerTable() throws Exception {
+
+        Collection<MetadataEntity> metadataEntities = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            metadataEntities.add(MetadataEntity.builder()
+                                     .keyName("bulkKey" + i)
+                                     .value("value" + i)
+                                     .dataType(MetadataDataType.STRING)
+                                     .build());
+        }
+        repository.addMetadataEntitiesToOwner(internalId, metadataEntities);
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class)
+            .getStatistics();
+        statistics.clear();
+        statistics.setStatisticsEnabled(true);
+        List<MetadataEntity> deleted;
+        try {
+            deleted = repository.deleteOwner(tenantId, ownerType, ownerId);
+            // one select of the returned data, one delete of the out-of-row values, one of the metadata and one of the owner
+            assertEquals(4, statistics.getPrepareStatementCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+
+        assertEquals(1005, deleted.size());
+        assertFalse(repository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                        .isPresent());
+        assertFalse(metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "bulkKey0")
+                        .isPresent());
+
+        assertTrue(repository.deleteOwner(tenantId, ownerType, ownerId)
+                       .isEmpty());
+    }
+
     @Test
     public void addMetadataEntitiesToOwner() throws Exception {
 
@@ -192,6 +297,72 @@ public class MetadataOwnerRepositoryTest {
                          .getDataType());
     }
 
+    @Test
+    public void updateMetadataEntityWithSameValueIsSkipped() throws Exception {
+
+        final String key = "key0";
+        MetadataEntity existing = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, key)
+            .get();
+        long elided = metrics.get(MetadataPersistenceMetrics.ELIDED_ROWS);
+
+        MetadataEntity sameMetadataEntity = MetadataEntity.builder()
+            .keyName(key)
+            .value(existing.getValue())
+            .dataType(existing.getDataType())
+            .owner(owner)
+            .build();
+
+        Optional<MetadataEntity> update = repository.updateMetadataEntity(internalId, sameMetadataEntity);
+
+        assertTrue(update.isPresent());
+        assertEquals(elided + 1, metrics.get(MetadataPersistenceMetrics.ELIDED_ROWS));
+        assertEquals(existing.getLastModified(),
+                     metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, key)
+                         .get()
+                         .getLastModified());
+
+        repository.addMetadataEntitiesToOwner(internalId, keyValues.values());
+        assertEquals(elided + 1 + keyValues.size(), metrics.get(MetadataPersistenceMetrics.ELIDED_ROWS));
+    }
+
+    @Test
+    public void thatValuesOutOfRowAreWrittenAndRemoved() throws Exception {
+
+        final String key = "largeKey";
+        final String largeValue = StringUtils.repeat("x", 3000);
+
+        MetadataEntity largeEntity = MetadataEntity.builder()
+            .keyName(key)
+            .value(largeValue)
+            .dataType(MetadataDataType.STRING)
+            .build();
+        largeEntity.moveValueOutOfRow(2048);
+        repository.addMetadataEntitiesToOwner(internalId, Collections.singletonList(largeEntity));
+
+        MetadataEntity stored = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, key)
+            .get();
+        assertTrue(stored.isValueOutOfRow());
+        assertNull(stored.getValue());
+        outOfRowValues.load(Collections.singletonList(stored));
+        assertEquals(largeValue, stored.getPlainValue());
+        assertNotNull(findValueEntity(key));
+
+        MetadataEntity smallEntity = MetadataEntity.builder()
+            .keyName(key)
+            .value("small")
+            .dataType(MetadataDataType.STRING)
+            .build();
+        smallEntity.moveValueOutOfRow(2048);
+        assertTrue(repository.updateMetadataEntity(internalId, smallEntity)
+                       .isPresent());
+
+        stored = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, key)
+            .get();
+        assertFalse(stored.isValueOutOfRow());
+        assertEquals("small", stored.getValue());
+        assertNull(findValueEntity(key));
+    }
+
     @Test
     public void updateMetadataEntityNonExistentKey() throws Exception {
 
@@ -219,4 +390,18 @@ public class MetadataOwnerRepositoryTest {
 
         Optional<MetadataEntity> update = repository.updateMetadataEntity(UUID.randomUUID(), updataMetadataEntity);
     }
+
+    private MetadataValueEntity findValueEntity(String key) {
+
+        MetadataValueId id = new MetadataValueId();
+        id.setOwnerInternalId(internalId);
+        id.setKeyName(key);
+
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return entityManager.find(MetadataValueEntity.class, id);
+        } finally {
+            entityManager.close();
+        }
+    }
 }
@@ -1,10 +1,20 @@
 package net.smartcosmos.dao.metadata.repository;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
@@ -13,15 +23,24 @@ import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import net.smartcosmos.dao.metadata.CountMode;
 import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
 import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.ValueCondition;
 import net.smartcosmos.dao.metadata.domain.MetadataDataType;
 import net.smartcosmos.dao.metadata.domain.MetadataEntity;
 import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataPurgeEntity;
+import net.smartcosmos.dao.metadata.util.MetadataValueParser;
 import net.smartcosmos.util.UuidUtil;
 
 import static org.junit.Assert.*;
@@ -42,6 +61,30 @@ public class MetadataRepositoryTest {
     @Autowired
     MetadataRepository metadataRepository;
 
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    @Autowired
+    EntityManager entityManager;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    ValueHashBackfill valueHashBackfill;
+
+    @Autowired
+    MariaDbKeyValueSearch nativeSearch;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    MetadataPurgeRepository purgeRepository;
+
     private UUID tenantId;
     private UUID ownerId;
     private String ownerType = "Person";
@@ -180,4 +223,526 @@ public class MetadataRepositoryTest {
         assertEquals(entityCount, entityList.getTotalElements());
     }
 
+    @Test
+    public void thatKeyValueSearchStrategiesFindTheSameOwners() throws Exception {
+
+        final UUID tenantId = UUID.randomUUID();
+        final String ownerType = "strategyTest";
+        List<UUID> matchingIds = new ArrayList<>();
+
+        for (int i = 0; i < 12; i++) {
+            MetadataOwnerEntity owner = ownerRepository.save(MetadataOwnerEntity.builder()
+                                                                 .tenantId(tenantId)
+                                                                 .type(ownerType)
+                                                                 .id(UUID.randomUUID())
+                                                                 .build());
+
+            List<MetadataEntity> entities = new ArrayList<>();
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.BOOLEAN)
+                             .keyName("active")
+                             .value("true")
+                             .build());
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.INTEGER)
+                             .keyName("level")
+                             .value(String.valueOf(i % 2))
+                             .build());
+            if (i % 3 == 0) {
+                entities.add(MetadataEntity.builder()
+                                 .dataType(MetadataDataType.STRING)
+                                 .keyName("group")
+                                 .value("A")
+                                 .build());
+                if (i % 2 == 0) {
+                    matchingIds.add(owner.getId());
+                }
+            }
+            ownerRepository.addMetadataEntitiesToOwner(owner.getInternalId(), entities);
+        }
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put("active", true);
+        keyValuePairs.put("level", 0);
+        keyValuePairs.put("group", "A");
+
+        for (KeyValueSearchStrategy strategy : KeyValueSearchStrategy.values()) {
+            for (boolean queryTemplates : new boolean[] { true, false }) {
+                MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+                properties.getSearch()
+                    .setStrategy(strategy);
+                properties.getSearch()
+                    .setQueryTemplates(queryTemplates);
+                MetadataRepositoryCustom repository = createRepository(properties);
+                String message = strategy.name() + (queryTemplates ? " with query templates" : "");
+
+                Page<MetadataOwnerEntity> ownerPage = repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId,
+                                                                                                                     ownerType,
+                                                                                                                     keyValuePairs,
+                                                                                                                     new PageRequest(0, 1,
+                                                                                                                                     Sort.Direction.ASC,
+                                                                                                                                     "owner.id"));
+
+                assertEquals(message, matchingIds.size(), ownerPage.getTotalElements());
+
+                ownerPage = repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId,
+                                                                                           ownerType,
+                                                                                           keyValuePairs,
+                                                                                           new PageRequest(0, 10, Sort.Direction.ASC,
+                                                                                                           "owner.id"));
+
+                assertEquals(message, matchingIds.size(), ownerPage.getTotalElements());
+                assertEquals(message,
+                             new HashSet<>(matchingIds),
+                             ownerPage.getContent()
+                                 .stream()
+                                 .map(MetadataOwnerEntity::getId)
+                                 .collect(Collectors.toSet()));
+            }
+        }
+    }
+
+    @Test
+    public void thatParallelCountMatchesSequentialCount() throws Exception {
+
+        final UUID tenantId = UUID.randomUUID();
+        final String ownerType = "parallelCountTest";
+
+        for (int i = 0; i < 5; i++) {
+            MetadataOwnerEntity owner = ownerRepository.save(MetadataOwnerEntity.builder()
+                                                                 .tenantId(tenantId)
+                                                                 .type(ownerType)
+                                                                 .id(UUID.randomUUID())
+                                                                 .build());
+
+            List<MetadataEntity> entities = new ArrayList<>();
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.BOOLEAN)
+                             .keyName("active")
+                             .value("true")
+                             .build());
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.STRING)
+                             .keyName("group")
+                             .value("A")
+                             .build());
+            ownerRepository.addMetadataEntitiesToOwner(owner.getInternalId(), entities);
+        }
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put("active", true);
+        keyValuePairs.put("group", "A");
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getSearch()
+            .getParallelCount()
+            .setEnabled(true);
+        MetadataPersistenceMetrics metrics = new MetadataPersistenceMetrics();
+        CountQueryExecutor countQueryExecutor = new CountQueryExecutor(entityManagerFactory, properties, metrics);
+        MetadataRepositoryCustom repository = new MetadataRepositoryImpl(entityManager,
+                                                                         properties,
+                                                                         new KeyValueStatistics(properties),
+                                                                         countQueryExecutor,
+                                                                         valueHashBackfill,
+                                                                         nativeSearch);
+
+        try {
+            Page<MetadataOwnerEntity> ownerPage = repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId,
+                                                                                                                 ownerType,
+                                                                                                                 keyValuePairs,
+                                                                                                                 new PageRequest(0, 2, Sort.Direction.ASC,
+                                                                                                                                 "owner.id"),
+                                                                                                                 CountMode.EXACT);
+
+            assertEquals(5, ownerPage.getTotalElements());
+            assertEquals(2,
+                         ownerPage.getContent()
+                             .size());
+            assertEquals(1, metrics.get(CountQueryExecutor.EXECUTIONS));
+            assertTrue(metrics.get(CountQueryExecutor.ELAPSED_TIME) > 0);
+
+            // within a transaction, the count runs on its connection
+            Long total = new TransactionTemplate(transactionManager).execute(
+                status -> repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs,
+                                                                                         new PageRequest(0, 2, Sort.Direction.ASC, "owner.id"),
+                                                                                         CountMode.EXACT)
+                    .getTotalElements());
+            assertEquals(Long.valueOf(5), total);
+            assertEquals(1, metrics.get(CountQueryExecutor.EXECUTIONS));
+        } finally {
+            countQueryExecutor.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void thatCancelledCountsReleaseTheirConnection() throws Exception {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getSearch()
+            .getParallelCount()
+            .setEnabled(true);
+        properties.getSearch()
+            .getParallelCount()
+            .setThreads(1);
+        CountQueryExecutor countQueryExecutor = new CountQueryExecutor(entityManagerFactory, properties, new MetadataPersistenceMetrics());
+
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountQueryExecutor.ParallelCount slowCount = countQueryExecutor.submit(countEntityManager -> {
+                started.countDown();
+                return ((Number) countEntityManager.createNativeQuery("SELECT COUNT(*) FROM SYSTEM_RANGE(1, 100000) a, SYSTEM_RANGE(1, 100000) b WHERE a.X + b.X > 0")
+                    .getSingleResult()).longValue();
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            slowCount.cancel();
+
+            // the only thread is free again once the slow statement was cancelled
+            assertEquals(1L,
+                         countQueryExecutor.submit(countEntityManager -> 1L)
+                             .join(0L));
+        } finally {
+            countQueryExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void thatValueHashIsMaintainedOnWrite() throws Exception {
+
+        MetadataEntity entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId,
+                                                                                                          ownerType,
+                                                                                                          ownerId,
+                                                                                                          keyName)
+            .get();
+
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash("true")), entity.getValueHash());
+
+        ownerRepository.updateMetadataEntity(entity.getOwner()
+                                                 .getInternalId(),
+                                             MetadataEntity.builder()
+                                                 .keyName(keyName)
+                                                 .value("false")
+                                                 .dataType(MetadataDataType.BOOLEAN)
+                                                 .build());
+
+        entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, keyName)
+            .get();
+
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash("false")), entity.getValueHash());
+    }
+
+    @Test
+    public void thatBackfillFillsMissingValueHashes() throws Exception {
+
+        new TransactionTemplate(transactionManager).execute(status -> entityManager
+            .createQuery("update metadata m set m.valueHash = null where m.keyName = :keyName")
+            .setParameter("keyName", keyName)
+            .executeUpdate());
+
+        MetadataEntity entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId,
+                                                                                                          ownerType,
+                                                                                                          ownerId,
+                                                                                                          keyName)
+            .get();
+        assertNull(entity.getValueHash());
+
+        assertTrue(valueHashBackfill.backfill() > 0);
+        assertTrue(valueHashBackfill.isLookupEnabled());
+
+        entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, keyName)
+            .get();
+
+        assertEquals(Long.valueOf(MetadataValueParser.getValueHash("true")), entity.getValueHash());
+    }
+
+    @Test
+    public void thatBackfillFillsMissingTypedValues() throws Exception {
+
+        new TransactionTemplate(transactionManager).execute(status -> entityManager
+            .createQuery("update metadata m set m.booleanValue = null where m.keyName = :keyName")
+            .setParameter("keyName", keyName)
+            .executeUpdate());
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        ValueHashBackfill backfill = new ValueHashBackfill(entityManager, transactionManager, properties);
+        MetadataRepositoryCustom repository = new MetadataRepositoryImpl(entityManager,
+                                                                         properties,
+                                                                         new KeyValueStatistics(properties),
+                                                                         new CountQueryExecutor(entityManagerFactory, properties,
+                                                                                                new MetadataPersistenceMetrics()),
+                                                                         backfill,
+                                                                         nativeSearch);
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put(keyName, ValueCondition.equalTo(true));
+        PageRequest pageRequest = new PageRequest(0, 10, Sort.Direction.ASC, "owner.id");
+
+        // conditions would miss the rows without typed values
+        assertFalse(backfill.isTypedValuesComplete());
+        try {
+            repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs, pageRequest);
+            fail("value conditions should be rejected before the backfill is complete");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertTrue(backfill.backfillTypedValues() > 0);
+        assertTrue(backfill.isTypedValuesComplete());
+
+        MetadataEntity entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, keyName)
+            .get();
+        assertEquals(Boolean.TRUE, entity.getBooleanValue());
+        assertEquals(1, repository.findProjectedByTenantIdAndOwnerTypeAndKeyValuePairs(tenantId, ownerType, keyValuePairs, pageRequest)
+            .getTotalElements());
+    }
+
+    @Test
+    public void thatNativeSearchIsInactiveOnH2() throws Exception {
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put(keyName, true);
+
+        assertFalse(nativeSearch.isActive());
+        assertFalse(nativeSearch.isApplicable(keyValuePairs, new Sort.Order(Sort.Direction.ASC, "owner.id")));
+    }
+
+    @Test
+    public void thatNativeSearchRendersPhysicalNames() throws Exception {
+
+        assertEquals("internal_id", nativeSearch.getSortColumn(new Sort.Order(Sort.Direction.ASC, "owner.internalId")));
+        assertEquals("tenant_id", nativeSearch.getSortColumn(new Sort.Order(Sort.Direction.ASC, "owner.tenantId")));
+        assertNull(nativeSearch.getSortColumn(new Sort.Order(Sort.Direction.ASC, "keyName")));
+        assertNull(nativeSearch.getSortColumn(new Sort.Order(Sort.Direction.ASC, "owner.metadataEntities")));
+
+        MariaDbKeyValueSearch mariaDbSearch = new MariaDbKeyValueSearch(entityManagerFactory, dataSource, new MetadataPersistenceProperties());
+        mariaDbSearch.init();
+        mariaDbSearch.activate(true);
+
+        String sql = mariaDbSearch.getPageSql(true, 2, true, "id", false);
+
+        assertTrue(sql.startsWith("SELECT STRAIGHT_JOIN o.* FROM (SELECT m.owner_internalId AS owner_id FROM metadata m"
+                                  + " FORCE INDEX (metadata_key_value_hash_idx) JOIN metadata_owner mo"));
+        assertTrue(sql.contains("(m.key_name, m.data_type, m.value_hash) IN ((:key0, :dataType0, :valueHash0), (:key1, :dataType1, :valueHash1))"));
+        assertTrue(sql.contains("(m.key_name, m.value) IN ((:key0, :value0), (:key1, :value1))"));
+        assertTrue(sql.contains("mo.tenant_id = :tenantId"));
+        assertTrue(sql.endsWith("HAVING COUNT(*) = :pairCount) matches JOIN metadata_owner o ON o.internal_id = matches.owner_id ORDER BY o.id DESC"));
+
+        String countSql = mariaDbSearch.getCountSql(false, 1, false);
+
+        assertTrue(countSql.contains("(m.key_name, m.data_type, m.value) IN ((:key0, :dataType0, :value0))"));
+        assertTrue(countSql.contains("mo.tenant_id IS NOT NULL"));
+        assertFalse(countSql.contains(":valueHash0"));
+        // the value hash index is not forced while values are compared directly
+        assertFalse(countSql.contains("FORCE INDEX"));
+
+        // H2 does not know the MariaDB optimizer hints
+        sql = nativeSearch.getPageSql(true, 1, true, "id", true);
+
+        assertTrue(sql.startsWith("SELECT o.* FROM (SELECT m.owner_internalId AS owner_id FROM metadata m JOIN metadata_owner mo"));
+    }
+
+    @Test
+    public void thatNativeSearchFindsTheMatchingOwners() throws Exception {
+
+        final UUID tenantId = UUID.randomUUID();
+        final String ownerType = "nativeSearchTest";
+        List<UUID> matchingIds = new ArrayList<>();
+
+        for (int i = 0; i < 6; i++) {
+            MetadataOwnerEntity owner = ownerRepository.save(MetadataOwnerEntity.builder()
+                                                                 .tenantId(tenantId)
+                                                                 .type(ownerType)
+                                                                 .id(UUID.randomUUID())
+                                                                 .build());
+
+            List<MetadataEntity> entities = new ArrayList<>();
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.BOOLEAN)
+                             .keyName("active")
+                             .value("true")
+                             .build());
+            entities.add(MetadataEntity.builder()
+                             .dataType(MetadataDataType.INTEGER)
+                             .keyName("level")
+                             .value(String.valueOf(i % 2))
+                             .build());
+            if (i % 2 == 0) {
+                matchingIds.add(owner.getId());
+            }
+            ownerRepository.addMetadataEntitiesToOwner(owner.getInternalId(), entities);
+        }
+
+        Map<String, Object> keyValuePairs = new HashMap<>();
+        keyValuePairs.put("active", true);
+        keyValuePairs.put("level", 0);
+        List<Map.Entry<String, Object>> pairs = new ArrayList<>(keyValuePairs.entrySet());
+
+        for (boolean valueHash : new boolean[] { true, false }) {
+            String message = valueHash ? "by value hash" : "by value";
+
+            @SuppressWarnings("unchecked")
+            List<MetadataOwnerEntity> owners = nativeSearch.createPageQuery(entityManager, tenantId, ownerType, pairs,
+                                                                            new Sort.Order(Sort.Direction.ASC, "owner.id"), valueHash)
+                .getResultList();
+            Number count = (Number) nativeSearch.createCountQuery(entityManager, tenantId, ownerType, pairs, valueHash)
+                .getSingleResult();
+
+            assertEquals(message, matchingIds.size(), count.longValue());
+            assertEquals(message,
+                         new HashSet<>(matchingIds),
+                         owners.stream()
+                             .map(MetadataOwnerEntity::getId)
+                             .collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void thatOwnerIdMigrationDerivesInternalIds() throws Exception {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getOwnerId()
+            .setMode(OwnerIdMode.NAME_BASED);
+        OwnerInternalIds ownerInternalIds = createOwnerInternalIds(properties);
+        OwnerInternalIds otherInstance = createOwnerInternalIds(properties);
+
+        UUID derivedId = net.smartcosmos.dao.metadata.util.UuidUtil.getOwnerInternalId(tenantId, ownerType, ownerId);
+        assertEquals(derivedId, ownerInternalIds.getNewInternalId(tenantId, ownerType, ownerId));
+        assertNotEquals(derivedId, ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+            .get()
+            .getInternalId());
+        assertFalse(ownerInternalIds.isDerivable());
+
+        assertTrue(ownerInternalIds.migrate() > 0);
+        assertTrue(ownerInternalIds.isDerivable());
+
+        assertEquals(derivedId, ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+            .get()
+            .getInternalId());
+        MetadataEntity entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, keyName)
+            .get();
+        assertEquals("true", entity.getValue());
+        assertEquals(derivedId, entity.getOwner()
+            .getInternalId());
+
+        // the owner table matches types case-insensitively on MariaDB, so other spellings derive the same ID
+        NativeMetadataUpsert upsert = new NativeMetadataUpsert(entityManager,
+                                                               entityManagerFactory,
+                                                               dataSource,
+                                                               transactionManager,
+                                                               ownerInternalIds,
+                                                               new SharedValues(entityManager, new MetadataPersistenceMetrics(), properties),
+                                                               new OwnerIdCache(new MetadataPersistenceMetrics(), properties),
+                                                               new SecondLevelCache(entityManagerFactory),
+                                                               new MetadataPersistenceMetrics(),
+                                                               properties);
+        upsert.init();
+        MetadataOwnerEntity otherSpelling = MetadataOwnerEntity.builder()
+            .tenantId(tenantId)
+            .type(ownerType.toLowerCase())
+            .id(ownerId)
+            .build();
+        upsert.upsert(otherSpelling, Collections.singletonList(MetadataEntity.builder()
+                                                                   .owner(otherSpelling)
+                                                                   .keyName("otherSpelling")
+                                                                   .value("1")
+                                                                   .dataType(MetadataDataType.INTEGER)
+                                                                   .build()));
+        entity = metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, ownerType, ownerId, "otherSpelling")
+            .get();
+        assertEquals(derivedId, entity.getOwner()
+            .getInternalId());
+
+        // owners are only migrated once, and other instances see the completion
+        assertEquals(0, ownerInternalIds.migrate());
+        assertEquals(0, otherInstance.migrate());
+        assertTrue(otherInstance.isDerivable());
+    }
+
+    private OwnerInternalIds createOwnerInternalIds(MetadataPersistenceProperties properties) {
+
+        MetadataPersistenceMetrics metrics = new MetadataPersistenceMetrics();
+        OwnerInternalIds ownerInternalIds = new OwnerInternalIds(entityManager, entityManagerFactory, transactionManager,
+                                                                 new OwnerIdCache(metrics, properties),
+                                                                 new SecondLevelCache(entityManagerFactory),
+                                                                 new OwnerLocks(metrics, properties), properties);
+        ownerInternalIds.init();
+
+        return ownerInternalIds;
+    }
+
+    @Test
+    public void thatPendingPurgesAreResumedInChunks() throws Exception {
+
+        List<MetadataEntity> entities = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            entities.add(MetadataEntity.builder()
+                             .keyName("purge" + i)
+                             .value(String.valueOf(i))
+                             .dataType(MetadataDataType.INTEGER)
+                             .build());
+        }
+        ownerRepository.addMetadataEntitiesToOwner(ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                                                       .get()
+                                                       .getInternalId(), entities);
+        MetadataPurgeEntity pending = purgeRepository.save(MetadataPurgeEntity.builder()
+                                                               .tenantId(tenantId)
+                                                               .created(new Date())
+                                                               .build());
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getPurge()
+            .setChunkSize(3);
+        properties.getPurge()
+            .setMaxRowsPerSecond(0);
+        MetadataPurge metadataPurge = new MetadataPurge(entityManager, transactionManager, purgeRepository,
+                                                        new SharedValues(entityManager, new MetadataPersistenceMetrics(), properties),
+                                                        new LocalMetadataValueCache(new MetadataPersistenceMetrics(), properties),
+                                                        new OwnerIdCache(new MetadataPersistenceMetrics(), properties), properties);
+
+        assertEquals(8, metadataPurge.resumeAll());
+
+        assertFalse(ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                        .isPresent());
+        assertNull(purgeRepository.findOne(pending.getId()));
+    }
+
+    @Test
+    public void thatPurgesLeasedByAnotherInstanceAreNotResumed() throws Exception {
+
+        MetadataPurgeEntity leased = purgeRepository.save(MetadataPurgeEntity.builder()
+                                                              .tenantId(tenantId)
+                                                              .created(new Date())
+                                                              .lockedBy("other")
+                                                              .lockedUntil(new Date(System.currentTimeMillis() + 60000L))
+                                                              .build());
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getPurge()
+            .setMaxRowsPerSecond(0);
+        MetadataPurge metadataPurge = new MetadataPurge(entityManager, transactionManager, purgeRepository,
+                                                        new SharedValues(entityManager, new MetadataPersistenceMetrics(), properties),
+                                                        new LocalMetadataValueCache(new MetadataPersistenceMetrics(), properties),
+                                                        new OwnerIdCache(new MetadataPersistenceMetrics(), properties), properties);
+
+        try {
+            assertEquals(0, metadataPurge.resumeAll());
+
+            assertTrue(ownerRepository.findByTenantIdAndTypeAndId(tenantId, ownerType, ownerId)
+                           .isPresent());
+            assertEquals("other",
+                         purgeRepository.findOne(leased.getId())
+                             .getLockedBy());
+        } finally {
+            purgeRepository.delete(leased.getId());
+        }
+    }
+
+    private MetadataRepositoryCustom createRepository(MetadataPersistenceProperties properties) {
+
+        return new MetadataRepositoryImpl(entityManager,
+                                          properties,
+                                          new KeyValueStatistics(properties),
+                                          new CountQueryExecutor(entityManagerFactory, properties, new MetadataPersistenceMetrics()),
+                                          valueHashBackfill,
+                                          nativeSearch);
+    }
 }
@@ -0,0 +1,299 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.impl.MetadataPersistenceService;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+import net.smartcosmos.dto.metadata.MetadataValueResponse;
+import net.smartcosmos.security.user.SmartCosmosUser;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false",
+                   "smartcosmos.dao.metadata.value-cache.enabled=true" })
+public class MetadataValueCacheTest {
+
+    private static final String OWNER_TYPE = "Thing";
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String tenantUrn = UuidUtil.getTenantUrnFromUuid(tenantId);
+
+    @Autowired
+    MetadataPersistenceService metadataPersistenceService;
+
+    @Autowired
+    MetadataPersistenceMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        Mockito.when(authentication.getPrincipal())
+            .thenReturn(new SmartCosmosUser(tenantUrn, "urn:userUrn", "username",
+                                            "password", Arrays.asList(new SimpleGrantedAuthority("USER"))));
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        Mockito.when(securityContext.getAuthentication())
+            .thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+    }
+
+    @Test
+    public void thatWritesInvalidateCachedValues() {
+
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "first"));
+
+        long hits = metrics.get(MetadataValueCache.HITS);
+        long misses = metrics.get(MetadataValueCache.MISSES);
+        assertEquals("first", getValue(ownerUrn, "key"));
+        assertEquals("first", getValue(ownerUrn, "key"));
+        assertEquals("first", metadataPersistenceService.findByKeyNoTenant(OWNER_TYPE, ownerUrn, "key")
+            .get()
+            .getValue());
+        assertEquals("first", metadataPersistenceService.findByKeyNoTenant(OWNER_TYPE, ownerUrn, "key")
+            .get()
+            .getValue());
+        assertEquals(hits + 2, metrics.get(MetadataValueCache.HITS));
+        assertEquals(misses + 2, metrics.get(MetadataValueCache.MISSES));
+
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "second"));
+        assertEquals("second", getValue(ownerUrn, "key"));
+        assertEquals("second", metadataPersistenceService.findByKeyNoTenant(OWNER_TYPE, ownerUrn, "key")
+            .get()
+            .getValue());
+
+        metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "third");
+        assertEquals("third", getValue(ownerUrn, "key"));
+
+        metadataPersistenceService.delete(tenantUrn, OWNER_TYPE, ownerUrn, "key");
+        assertFalse(metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, "key")
+                        .isPresent());
+
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "fourth"));
+        assertEquals("fourth", getValue(ownerUrn, "key"));
+
+        metadataPersistenceService.deleteAllByOwner(tenantUrn, OWNER_TYPE, ownerUrn);
+        assertFalse(metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, "key")
+                        .isPresent());
+        assertFalse(metadataPersistenceService.findByKeyNoTenant(OWNER_TYPE, ownerUrn, "key")
+                        .isPresent());
+    }
+
+    @Test
+    public void thatCachedJsonValuesAreCopied() {
+
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("json", new JSONObject().put("a", 1)));
+
+        ObjectNode first = (ObjectNode) metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, "json")
+            .get()
+            .getValue();
+        first.put("a", 2);
+
+        ObjectNode second = (ObjectNode) metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, "json")
+            .get()
+            .getValue();
+        assertEquals(1,
+                     second.get("a")
+                         .asInt());
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedValuesAreEvicted() {
+
+        MetadataPersistenceMetrics cacheMetrics = new MetadataPersistenceMetrics();
+        MetadataValueCache cache = new LocalMetadataValueCache(cacheMetrics, getProperties(16, 1600L, 60000L));
+        UUID ownerId = UUID.randomUUID();
+        AtomicInteger loads = new AtomicInteger();
+
+        // one entry per segment, so each segment evicts its previous key
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value", get(cache, ownerId, "key" + i, "value", loads));
+        }
+        assertEquals(1000, loads.get());
+        assertTrue(cacheMetrics.get(MetadataValueCache.EVICTIONS) >= 1000 - 16);
+
+        get(cache, ownerId, "small", "value", loads);
+        get(cache, ownerId, "small", "value", loads);
+        assertEquals(1001, loads.get());
+
+        // heavier than a segment may hold
+        String large = StringUtils.repeat("x", 200);
+        get(cache, ownerId, "large", large, loads);
+        get(cache, ownerId, "large", large, loads);
+        assertEquals(1003, loads.get());
+    }
+
+    @Test
+    public void thatExpiredValuesAreLoadedAgain() throws Exception {
+
+        MetadataValueCache cache = new LocalMetadataValueCache(new MetadataPersistenceMetrics(), getProperties(1000, 100000L, 1L));
+        UUID ownerId = UUID.randomUUID();
+        AtomicInteger loads = new AtomicInteger();
+
+        get(cache, ownerId, "key", "value", loads);
+        Thread.sleep(5L);
+        get(cache, ownerId, "key", "value", loads);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void thatValuesLoadedBeforeAnInvalidationAreNotCached() {
+
+        MetadataValueCache cache = new LocalMetadataValueCache(new MetadataPersistenceMetrics(), getProperties(1000, 100000L, 60000L));
+        UUID ownerId = UUID.randomUUID();
+        AtomicInteger loads = new AtomicInteger();
+
+        // a write commits and invalidates while the old value is loaded
+        Optional<MetadataValueResponse> stale = cache.get(tenantId, OWNER_TYPE, ownerId, "key", () -> {
+            loads.incrementAndGet();
+            cache.invalidate(tenantId, OWNER_TYPE, ownerId, Collections.singleton("key"));
+            return Optional.of(createEntity("old"));
+        });
+        assertEquals("old",
+                     stale.get()
+                         .getValue());
+
+        assertEquals("new", get(cache, ownerId, "key", "new", loads));
+        assertEquals("new", get(cache, ownerId, "key", "newer", loads));
+        assertEquals(2, loads.get());
+
+        cache.clear();
+        assertEquals("newer", get(cache, ownerId, "key", "newer", loads));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void thatValuesLoadedDuringAWriteTransactionAreNotCached() {
+
+        MetadataValueCache cache = new LocalMetadataValueCache(new MetadataPersistenceMetrics(), getProperties(1000, 100000L, 60000L));
+        UUID ownerId = UUID.randomUUID();
+        AtomicInteger loads = new AtomicInteger();
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.invalidate(tenantId, OWNER_TYPE, ownerId, Collections.singleton("key"));
+            // another transaction still reads the old value until the write committed
+            assertEquals("old", get(cache, ownerId, "key", "old", loads));
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                                                                  TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertEquals("new", get(cache, ownerId, "key", "new", loads));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void thatTenantInvalidationKeepsOtherTenants() {
+
+        MetadataValueCache cache = new LocalMetadataValueCache(new MetadataPersistenceMetrics(), getProperties(1000, 100000L, 60000L));
+        UUID ownerId = UUID.randomUUID();
+        UUID otherOwnerId = UUID.randomUUID();
+        UUID otherTenantId = UUID.randomUUID();
+        AtomicInteger loads = new AtomicInteger();
+
+        get(cache, ownerId, "key", "value", loads);
+        cache.get(otherTenantId, OWNER_TYPE, otherOwnerId, "key", () -> {
+            loads.incrementAndGet();
+            return Optional.of(createEntity(otherTenantId, "other"));
+        });
+        assertEquals(2, loads.get());
+
+        cache.invalidateTenant(tenantId, OWNER_TYPE.toLowerCase());
+
+        assertEquals("value", get(cache, ownerId, "key", "value", loads));
+        assertEquals(3, loads.get());
+        cache.get(otherTenantId, OWNER_TYPE, otherOwnerId, "key", () -> {
+            loads.incrementAndGet();
+            return Optional.of(createEntity(otherTenantId, "other"));
+        });
+        assertEquals(3, loads.get());
+    }
+
+    private Object getValue(String ownerUrn, String key) {
+
+        return metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, key)
+            .get()
+            .getValue();
+    }
+
+    private Object get(MetadataValueCache cache, UUID ownerId, String key, String value, AtomicInteger loads) {
+
+        return cache.get(tenantId, OWNER_TYPE, ownerId, key, () -> {
+            loads.incrementAndGet();
+            return Optional.of(createEntity(value));
+        })
+            .get()
+            .getValue();
+    }
+
+    private MetadataEntity createEntity(String value) {
+
+        return createEntity(tenantId, value);
+    }
+
+    private MetadataEntity createEntity(UUID tenantId, String value) {
+
+        return MetadataEntity.builder()
+            .owner(MetadataOwnerEntity.builder()
+                       .tenantId(tenantId)
+                       .type(OWNER_TYPE)
+                       .build())
+            .keyName("key")
+            .dataType(MetadataDataType.STRING)
+            .value(value)
+            .build();
+    }
+
+    private static MetadataPersistenceProperties getProperties(int maxEntries, long maxWeight, long timeToLive) {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getValueCache()
+            .setEnabled(true);
+        properties.getValueCache()
+            .setMaxEntries(maxEntries);
+        properties.getValueCache()
+            .setMaxWeight(maxWeight);
+        properties.getValueCache()
+            .setTimeToLive(timeToLive);
+
+        return properties;
+    }
+}
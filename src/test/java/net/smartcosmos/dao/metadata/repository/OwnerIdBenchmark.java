@@ -0,0 +1,151 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the insert throughput of new owners with random and time-ordered internal IDs as the tables grow. Both
+ * strategies insert alternating chunks, so that they see tables of the same size. Not part of the regular build, run it
+ * with {@code mvn test -Pbenchmark}.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false", "logging.level.ROOT=WARN",
+                   "logging.level.org.hibernate=WARN", "logging.level.net.smartcosmos=WARN" })
+public class OwnerIdBenchmark {
+
+    private static final int OWNERS = 50000;
+    private static final int KEYS = 4;
+    private static final int CHUNK = 1000;
+
+    @Autowired
+    EntityManager entityManager;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    public void benchmarkOwnerIds() {
+
+        NativeMetadataUpsert random = createUpsert(OwnerIdMode.RANDOM);
+        NativeMetadataUpsert timeOrdered = createUpsert(OwnerIdMode.TIME_ORDERED);
+        assertTrue(random.isActive());
+
+        UUID randomTenantId = UUID.randomUUID();
+        UUID timeOrderedTenantId = UUID.randomUUID();
+
+        long randomNanos = 0;
+        long timeOrderedNanos = 0;
+        long lastRandomNanos = 0;
+        long lastTimeOrderedNanos = 0;
+        int chunks = OWNERS / CHUNK;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            long nanos = insert(random, randomTenantId);
+            randomNanos += nanos;
+            lastRandomNanos = nanos;
+
+            nanos = insert(timeOrdered, timeOrderedTenantId);
+            timeOrderedNanos += nanos;
+            lastTimeOrderedNanos = nanos;
+        }
+
+        System.out.printf("Insert of %d owners with %d keys each: random %d rows/s (last chunk %d rows/s), "
+                          + "time-ordered %d rows/s (last chunk %d rows/s)%n",
+                          OWNERS, KEYS,
+                          getRowsPerSecond(OWNERS, randomNanos), getRowsPerSecond(CHUNK, lastRandomNanos),
+                          getRowsPerSecond(OWNERS, timeOrderedNanos), getRowsPerSecond(CHUNK, lastTimeOrderedNanos));
+    }
+
+    private NativeMetadataUpsert createUpsert(OwnerIdMode mode) {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getOwnerId()
+            .setMode(mode);
+
+        OwnerInternalIds ownerInternalIds = new OwnerInternalIds(entityManager, entityManagerFactory, transactionManager,
+                                                                 new OwnerIdCache(new MetadataPersistenceMetrics(), properties),
+                                                                 new SecondLevelCache(entityManagerFactory),
+                                                                 new OwnerLocks(new MetadataPersistenceMetrics(), properties), properties);
+        ownerInternalIds.init();
+        NativeMetadataUpsert upsert = new NativeMetadataUpsert(entityManager,
+                                                               entityManagerFactory,
+                                                               dataSource,
+                                                               transactionManager,
+                                                               ownerInternalIds,
+                                                               new SharedValues(entityManager, new MetadataPersistenceMetrics(), properties),
+                                                               new OwnerIdCache(new MetadataPersistenceMetrics(), properties),
+                                                               new SecondLevelCache(entityManagerFactory),
+                                                               new MetadataPersistenceMetrics(),
+                                                               properties);
+        upsert.init();
+
+        return upsert;
+    }
+
+    private long insert(NativeMetadataUpsert upsert, UUID tenantId) {
+
+        List<MetadataOwnerEntity> owners = new ArrayList<>(CHUNK);
+        for (int i = 0; i < CHUNK; i++) {
+            MetadataOwnerEntity owner = MetadataOwnerEntity.builder()
+                .type("ownerIdBenchmark")
+                .id(UUID.randomUUID())
+                .tenantId(tenantId)
+                .build();
+            for (int key = 0; key < KEYS; key++) {
+                owner.getMetadataEntities()
+                    .put("key" + key, MetadataEntity.builder()
+                        .keyName("key" + key)
+                        .value(String.valueOf(i * KEYS + key))
+                        .dataType(MetadataDataType.INTEGER)
+                        .build());
+            }
+            owners.add(owner);
+        }
+
+        long start = System.nanoTime();
+        List<Boolean> created = upsert.upsertAll(tenantId, owners);
+        long nanos = System.nanoTime() - start;
+
+        assertTrue(created.stream()
+                       .allMatch(Boolean::booleanValue));
+
+        return nanos;
+    }
+
+    private static long getRowsPerSecond(int owners, long nanos) {
+
+        return (long) owners * (KEYS + 1) * 1000000000L / Math.max(nanos, 1);
+    }
+}
@@ -0,0 +1,191 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.impl.MetadataPersistenceService;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+import net.smartcosmos.security.user.SmartCosmosUser;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false",
+                   "smartcosmos.dao.metadata.write.native-upsert=false",
+                   "smartcosmos.dao.metadata.owner-id.cache.negative-time-to-live=5000" })
+public class OwnerIdCacheTest {
+
+    private static final String OWNER_TYPE = "Thing";
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String tenantUrn = UuidUtil.getTenantUrnFromUuid(tenantId);
+
+    @Autowired
+    MetadataPersistenceService metadataPersistenceService;
+
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    @Autowired
+    OwnerIdCache ownerIdCache;
+
+    @Autowired
+    MetadataPersistenceMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        Mockito.when(authentication.getPrincipal())
+            .thenReturn(new SmartCosmosUser(tenantUrn, "urn:userUrn", "username",
+                                            "password", Arrays.asList(new SimpleGrantedAuthority("USER"))));
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        Mockito.when(securityContext.getAuthentication())
+            .thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+    }
+
+    @Test
+    public void thatWritesUseCachedInternalIds() {
+
+        UUID ownerId = UUID.randomUUID();
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+
+        long hits = metrics.get(OwnerIdCache.HITS);
+        long misses = metrics.get(OwnerIdCache.MISSES);
+        assertFalse(metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "value")
+                        .isPresent());
+        assertFalse(metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "value")
+                        .isPresent());
+        assertEquals(misses + 1, metrics.get(OwnerIdCache.MISSES));
+        assertEquals(hits + 1, metrics.get(OwnerIdCache.HITS));
+
+        // the absence is cached, so the create only looks up the owner once it was evicted
+        ownerIdCache.evict(tenantId, OWNER_TYPE, ownerId);
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "first"));
+        misses = metrics.get(OwnerIdCache.MISSES);
+        assertTrue(metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "second")
+                       .isPresent());
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("other", "value"));
+        assertEquals(misses, metrics.get(OwnerIdCache.MISSES));
+
+        metadataPersistenceService.deleteAllByOwner(tenantUrn, OWNER_TYPE, ownerUrn);
+        assertFalse(metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "third")
+                        .isPresent());
+        assertEquals(misses + 1, metrics.get(OwnerIdCache.MISSES));
+    }
+
+    @Test
+    public void thatStaleInternalIdsAreLookedUpAgain() {
+
+        UUID ownerId = UUID.randomUUID();
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "first"));
+
+        // e.g. the owner was deleted and created again by another instance
+        ownerIdCache.put(tenantId, OWNER_TYPE, ownerId, UUID.randomUUID());
+        assertTrue(metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "second")
+                       .isPresent());
+
+        ownerIdCache.put(tenantId, OWNER_TYPE, ownerId, UUID.randomUUID());
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "third"));
+        assertEquals("third", metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, "key")
+            .get()
+            .getValue());
+    }
+
+    @Test
+    public void thatOrphanDeleteEvictsTheOwner() {
+
+        UUID ownerId = UUID.randomUUID();
+        MetadataOwnerEntity owner = ownerRepository.persist(MetadataOwnerEntity.builder()
+                                                                .tenantId(tenantId)
+                                                                .type(OWNER_TYPE)
+                                                                .id(ownerId)
+                                                                .build());
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(owner.getInternalId(), getInternalId(ownerId, loads).get());
+
+        ownerRepository.orphanDelete(tenantId, OWNER_TYPE, ownerId);
+        assertFalse(getInternalId(ownerId, loads).isPresent());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedOwnersAreEvicted() throws Exception {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getOwnerId()
+            .getCache()
+            .setMaxEntries(2);
+        properties.getOwnerId()
+            .getCache()
+            .setNegativeTimeToLive(1L);
+        MetadataPersistenceMetrics cacheMetrics = new MetadataPersistenceMetrics();
+        OwnerIdCache cache = new OwnerIdCache(cacheMetrics, properties);
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.put(tenantId, OWNER_TYPE, first, first);
+        cache.put(tenantId, OWNER_TYPE, second, second);
+        assertEquals(first, cache.get(tenantId, OWNER_TYPE, first, Optional::empty)
+            .get());
+        cache.put(tenantId, OWNER_TYPE, third, third);
+        assertEquals(1, cacheMetrics.get(OwnerIdCache.EVICTIONS));
+        assertFalse(cache.get(tenantId, OWNER_TYPE, second, Optional::empty)
+                        .isPresent());
+
+        // absent owners expire sooner
+        Thread.sleep(5L);
+        assertEquals(second, cache.get(tenantId, OWNER_TYPE, second, () -> Optional.of(second))
+            .get());
+    }
+
+    @Test
+    public void thatAbsentOwnersAreNotCachedByDefault() throws Exception {
+
+        OwnerIdCache cache = new OwnerIdCache(new MetadataPersistenceMetrics(), new MetadataPersistenceProperties());
+
+        UUID ownerId = UUID.randomUUID();
+        assertFalse(cache.get(tenantId, OWNER_TYPE, ownerId, Optional::empty)
+                        .isPresent());
+        // e.g. the owner was created by another instance
+        assertEquals(ownerId, cache.get(tenantId, OWNER_TYPE, ownerId, () -> Optional.of(ownerId))
+            .get());
+    }
+
+    private Optional<UUID> getInternalId(UUID ownerId, AtomicInteger loads) {
+
+        return ownerIdCache.get(tenantId, OWNER_TYPE, ownerId, () -> {
+            loads.incrementAndGet();
+            return ownerRepository.findByTenantIdAndTypeAndId(tenantId, OWNER_TYPE, ownerId)
+                .map(MetadataOwnerEntity::getInternalId);
+        });
+    }
+}
@@ -0,0 +1,169 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.orm.jpa.JpaSystemException;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceMetrics;
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+
+import static org.junit.Assert.*;
+
+public class OwnerLocksTest {
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final UUID ownerId = UUID.randomUUID();
+
+    private MetadataPersistenceMetrics metrics;
+    private OwnerLocks ownerLocks;
+    private AtomicInteger attempts;
+
+    @Before
+    public void setUp() {
+
+        MetadataPersistenceProperties properties = new MetadataPersistenceProperties();
+        properties.getWrite()
+            .getOwnerLocks()
+            .setRetryDelay(1L);
+
+        metrics = new MetadataPersistenceMetrics();
+        ownerLocks = new OwnerLocks(metrics, properties);
+        attempts = new AtomicInteger();
+    }
+
+    @Test
+    public void thatWritesOfTheSameOwnerAreSerialized() throws Exception {
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> ownerLocks.write(tenantId, "Thing", ownerId, () -> {
+            locked.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+            }
+            return null;
+        }));
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+        Thread waiter = new Thread(() -> ownerLocks.write(tenantId, "thing", ownerId, attempts::incrementAndGet));
+        waiter.start();
+        Thread.sleep(50);
+        assertEquals(0, attempts.get());
+
+        release.countDown();
+        holder.join(10000);
+        waiter.join(10000);
+
+        assertEquals(1, attempts.get());
+        assertEquals(2, metrics.get(OwnerLocks.ACQUISITIONS));
+        assertEquals(1, metrics.get(OwnerLocks.CONTENTIONS));
+        assertTrue(metrics.get(OwnerLocks.WAIT_TIME) > 0);
+    }
+
+    @Test
+    public void thatWritesOfManyOwnersWaitForEachOwner() throws Exception {
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> ownerLocks.write(tenantId, "Thing", ownerId, () -> {
+            locked.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread()
+                    .interrupt();
+            }
+            return null;
+        }));
+        holder.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+        List<MetadataOwnerEntity> owners = new ArrayList<>();
+        for (UUID id : Arrays.asList(UUID.randomUUID(), ownerId, UUID.randomUUID(), ownerId)) {
+            owners.add(MetadataOwnerEntity.builder()
+                           .tenantId(tenantId)
+                           .type("Thing")
+                           .id(id)
+                           .build());
+        }
+        Thread waiter = new Thread(() -> ownerLocks.writeAll(owners, attempts::incrementAndGet));
+        waiter.start();
+        Thread.sleep(50);
+        assertEquals(0, attempts.get());
+
+        release.countDown();
+        holder.join(10000);
+        waiter.join(10000);
+
+        assertEquals(1, attempts.get());
+        assertEquals(1, metrics.get(OwnerLocks.CONTENTIONS));
+    }
+
+    @Test
+    public void thatTransientConflictsAreRetried() {
+
+        String result = ownerLocks.write(tenantId, "Thing", ownerId, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new DeadlockLoserDataAccessException("deadlock", null);
+            }
+            return "written";
+        });
+
+        assertEquals("written", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, metrics.get(OwnerLocks.RETRIES));
+    }
+
+    @Test
+    public void thatRetriesAreBounded() {
+
+        try {
+            ownerLocks.write(tenantId, "Thing", ownerId, () -> {
+                attempts.incrementAndGet();
+                throw new DeadlockLoserDataAccessException("deadlock", null);
+            });
+            fail("Expected the write to fail");
+        } catch (DeadlockLoserDataAccessException e) {
+            assertEquals(4, attempts.get());
+        }
+    }
+
+    @Test
+    public void thatOtherFailuresAreNotRetried() {
+
+        try {
+            ownerLocks.write(tenantId, "Thing", ownerId, () -> {
+                attempts.incrementAndGet();
+                throw new IllegalArgumentException("invalid");
+            });
+            fail("Expected the write to fail");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1, attempts.get());
+            assertEquals(0, metrics.get(OwnerLocks.RETRIES));
+        }
+    }
+
+    @Test
+    public void thatTransientConflictsAreRecognizedByTheirSqlErrors() {
+
+        assertTrue(OwnerLocks.isTransientConflict(new JpaSystemException(new RuntimeException(new SQLException("Deadlock found", "40001", 1213)))));
+        assertTrue(OwnerLocks.isTransientConflict(new RuntimeException(new SQLException("Lock wait timeout exceeded", "HY000", 1205))));
+        assertTrue(OwnerLocks.isTransientConflict(new RuntimeException(new SQLException("Timeout trying to lock table", "HYT00", 50200))));
+        assertTrue(OwnerLocks.isTransientConflict(new RuntimeException(new SQLException("Unique index or primary key violation", "23505", 23505))));
+        assertFalse(OwnerLocks.isTransientConflict(new RuntimeException(new SQLException("Value too long", "22001", 22001))));
+    }
+}
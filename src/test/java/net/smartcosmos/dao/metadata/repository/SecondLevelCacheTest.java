@@ -0,0 +1,196 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import net.smartcosmos.dao.metadata.BulkUpsertEntry;
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataId;
+import net.smartcosmos.dao.metadata.domain.MetadataOwnerEntity;
+import net.smartcosmos.dao.metadata.impl.MetadataPersistenceService;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+import net.smartcosmos.dto.metadata.MetadataResponse;
+import net.smartcosmos.security.user.SmartCosmosUser;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false",
+                   "smartcosmos.dao.metadata.second-level-cache.enabled=true",
+                   "spring.jpa.properties.hibernate.generate_statistics=true",
+                   "smartcosmos.dao.metadata.search.value-hash.backfill-on-startup=false",
+                   "smartcosmos.dao.metadata.purge.resume-on-startup=false" })
+public class SecondLevelCacheTest {
+
+    private static final String OWNER_TYPE = "Thing";
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String tenantUrn = UuidUtil.getTenantUrnFromUuid(tenantId);
+
+    @Autowired
+    MetadataPersistenceService metadataPersistenceService;
+
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    @Autowired
+    SecondLevelCache secondLevelCache;
+
+    @Autowired
+    OwnerIdCache ownerIdCache;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        Mockito.when(authentication.getPrincipal())
+            .thenReturn(new SmartCosmosUser(tenantUrn, "urn:userUrn", "username",
+                                            "password", Arrays.asList(new SimpleGrantedAuthority("USER"))));
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        Mockito.when(securityContext.getAuthentication())
+            .thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+
+        statistics = entityManagerFactory.unwrap(SessionFactory.class)
+            .getStatistics();
+    }
+
+    @Test
+    public void thatRepeatedOwnerLookupsIssueNoStatements() {
+
+        assertTrue(secondLevelCache.isEnabled());
+
+        UUID ownerId = UUID.randomUUID();
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(ownerId);
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "value"));
+
+        MetadataOwnerEntity owner = ownerRepository.findByNaturalId(tenantId, OWNER_TYPE, ownerId)
+            .get();
+
+        statistics.clear();
+        assertEquals(owner.getInternalId(),
+                     ownerRepository.findByNaturalId(tenantId, OWNER_TYPE, ownerId)
+                         .get()
+                         .getInternalId());
+        assertEquals(owner.getInternalId(),
+                     ownerRepository.findOne(owner.getInternalId())
+                         .getInternalId());
+        assertEquals(0, statistics.getPrepareStatementCount());
+        assertEquals(1, statistics.getNaturalIdCacheHitCount());
+        assertTrue(statistics.getSecondLevelCacheHitCount() >= 2);
+
+        assertFalse(ownerRepository.findByNaturalId(tenantId, OWNER_TYPE, UUID.randomUUID())
+                        .isPresent());
+    }
+
+    @Test
+    public void thatRepeatedMetadataReadsIssueNoStatements() {
+
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("first", "value");
+        metadata.put("second", 2);
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, metadata);
+        getMetadata(ownerUrn);
+
+        statistics.clear();
+        assertEquals(metadata, getMetadata(ownerUrn));
+        assertEquals(Collections.singletonMap("second", 2),
+                     metadataPersistenceService.findByOwner(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singleton("second"))
+                         .get()
+                         .getMetadata());
+        assertEquals(0, statistics.getPrepareStatementCount());
+        assertEquals(2,
+                     statistics.getSecondLevelCacheStatistics(MetadataOwnerEntity.METADATA_ENTITIES_CACHE_REGION)
+                         .getHitCount());
+
+        // owners looked up by their natural ID again are resolved by the cache as well
+        ownerIdCache.clear();
+        assertEquals(metadata, getMetadata(ownerUrn));
+        assertEquals(0, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    public void thatWritesEvictCachedMetadata() {
+
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "first"));
+        assertEquals(Collections.singletonMap("key", "first"), getMetadata(ownerUrn));
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("key", "second");
+        expected.put("other", true);
+        // native upserts bypass Hibernate, so they evict the written entries themselves
+        MetadataId metadataId = new MetadataId();
+        metadataId.setOwner(ownerRepository.findByNaturalId(tenantId, OWNER_TYPE, UuidUtil.getUuidFromUrn(ownerUrn))
+                                .get()
+                                .getInternalId());
+        metadataId.setKeyName("key");
+        Cache cache = entityManagerFactory.unwrap(SessionFactory.class)
+            .getCache();
+        assertTrue(cache.containsEntity(MetadataEntity.class, metadataId));
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrn, expected);
+        assertFalse(cache.containsEntity(MetadataEntity.class, metadataId));
+        assertEquals(expected, getMetadata(ownerUrn));
+
+        expected.put("key", "third");
+        metadataPersistenceService.update(tenantUrn, OWNER_TYPE, ownerUrn, "key", "third");
+        assertEquals(expected, getMetadata(ownerUrn));
+
+        expected.remove("other");
+        metadataPersistenceService.delete(tenantUrn, OWNER_TYPE, ownerUrn, "other");
+        assertEquals(expected, getMetadata(ownerUrn));
+
+        List<BulkUpsertEntry> entries = new ArrayList<>();
+        entries.add(new BulkUpsertEntry(OWNER_TYPE, ownerUrn, Collections.singletonMap("key", "fourth")));
+        metadataPersistenceService.upsertAll(tenantUrn, entries);
+        assertEquals(Collections.singletonMap("key", "fourth"), getMetadata(ownerUrn));
+
+        metadataPersistenceService.deleteAllByOwner(tenantUrn, OWNER_TYPE, ownerUrn);
+        assertFalse(metadataPersistenceService.findByOwner(tenantUrn, OWNER_TYPE, ownerUrn, null)
+                        .isPresent());
+        assertFalse(ownerRepository.findByNaturalId(tenantId, OWNER_TYPE, UuidUtil.getUuidFromUrn(ownerUrn))
+                        .isPresent());
+    }
+
+    private Map<String, Object> getMetadata(String ownerUrn) {
+
+        MetadataResponse response = metadataPersistenceService.findByOwner(tenantUrn, OWNER_TYPE, ownerUrn, null)
+            .get();
+
+        return response.getMetadata();
+    }
+}
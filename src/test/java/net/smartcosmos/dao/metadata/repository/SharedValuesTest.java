@@ -0,0 +1,217 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.json.JSONObject;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import net.smartcosmos.dao.metadata.BulkUpsertEntry;
+import net.smartcosmos.dao.metadata.MetadataPersistenceConfig;
+import net.smartcosmos.dao.metadata.MetadataPersistenceTestApplication;
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+import net.smartcosmos.dao.metadata.domain.MetadataSharedValueEntity;
+import net.smartcosmos.dao.metadata.impl.MetadataPersistenceService;
+import net.smartcosmos.dao.metadata.util.UuidUtil;
+import net.smartcosmos.dto.metadata.MetadataOwnerResponse;
+import net.smartcosmos.dto.metadata.Page;
+import net.smartcosmos.security.user.SmartCosmosUser;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = { MetadataPersistenceTestApplication.class, MetadataPersistenceConfig.class })
+@ActiveProfiles("test")
+@WebAppConfiguration
+@IntegrationTest({ "spring.cloud.config.enabled=false", "eureka.client.enabled:false",
+                   "smartcosmos.dao.metadata.write.shared-value-threshold=1024" })
+public class SharedValuesTest {
+
+    private static final String KEY = "descriptor";
+    private static final String OWNER_TYPE = "Thing";
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final String tenantUrn = UuidUtil.getTenantUrnFromUuid(tenantId);
+
+    @Autowired
+    MetadataPersistenceService metadataPersistenceService;
+
+    @Autowired
+    MetadataRepository metadataRepository;
+
+    @Autowired
+    MetadataOwnerRepository ownerRepository;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    private JSONObject descriptor;
+
+    @Before
+    public void setUp() throws Exception {
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        Mockito.when(authentication.getPrincipal())
+            .thenReturn(new SmartCosmosUser(tenantUrn, "urn:userUrn", "username",
+                                            "password", Arrays.asList(new SimpleGrantedAuthority("USER"))));
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        Mockito.when(securityContext.getAuthentication())
+            .thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+
+        // random text barely compresses, so the stored value stays above the threshold
+        descriptor = new JSONObject().put("description", RandomStringUtils.randomAlphanumeric(3000));
+    }
+
+    @Test
+    public void thatEqualValuesAreStoredOnce() {
+
+        List<String> ownerUrns = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+            metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap(KEY, descriptor));
+            ownerUrns.add(ownerUrn);
+        }
+
+        MetadataEntity entity = getEntity(ownerUrns.get(0));
+        assertTrue(entity.isValueShared());
+        assertTrue(entity.isValueOutOfRow());
+        assertNull(entity.getValue());
+        for (String ownerUrn : ownerUrns) {
+            assertEquals(entity.getValueRef(), getEntity(ownerUrn).getValueRef());
+            assertEquals(descriptor.toString(),
+                         new JSONObject(metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, KEY)
+                                            .get()
+                                            .getValue()
+                                            .toString()).toString());
+        }
+        assertEquals(3, getReferences(entity.getValueRef()));
+
+        Page<MetadataOwnerResponse> owners = metadataPersistenceService.findOwnersByTypeAndKeyValuePairs(tenantUrn, OWNER_TYPE,
+                                                                                                      Collections.singletonMap(KEY, descriptor),
+                                                                                                      1, 10, null, null);
+        assertEquals(3,
+                     owners.getData()
+                         .size());
+
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrns.get(0), Collections.singletonMap(KEY, "small"));
+        assertEquals(2, getReferences(entity.getValueRef()));
+
+        metadataPersistenceService.upsert(tenantUrn, OWNER_TYPE, ownerUrns.get(1), Collections.singletonMap(KEY, descriptor));
+        assertEquals(2, getReferences(entity.getValueRef()));
+
+        metadataPersistenceService.delete(tenantUrn, OWNER_TYPE, ownerUrns.get(1), KEY);
+        assertEquals(1, getReferences(entity.getValueRef()));
+
+        metadataPersistenceService.deleteAllByOwner(tenantUrn, OWNER_TYPE, ownerUrns.get(2));
+        assertEquals(-1, getReferences(entity.getValueRef()));
+    }
+
+    @Test
+    public void thatMergedWritesCountReferences() {
+
+        String ownerUrn = UuidUtil.getThingUrnFromUuid(UUID.randomUUID());
+        metadataPersistenceService.create(tenantUrn, OWNER_TYPE, ownerUrn, Collections.singletonMap("other", "value"));
+        UUID internalId = ownerRepository.findByTenantIdAndTypeAndId(tenantId, OWNER_TYPE, UuidUtil.getUuidFromUrn(ownerUrn))
+            .get()
+            .getInternalId();
+
+        MetadataEntity sharedEntity = createSharedEntity(KEY, descriptor);
+        ownerRepository.addMetadataEntitiesToOwner(internalId, Arrays.asList(sharedEntity, createSharedEntity("copy", descriptor)));
+        assertEquals(2, getReferences(sharedEntity.getValueRef()));
+
+        JSONObject otherDescriptor = new JSONObject().put("description", RandomStringUtils.randomAlphanumeric(3000));
+        MetadataEntity otherEntity = createSharedEntity(KEY, otherDescriptor);
+        assertTrue(ownerRepository.updateMetadataEntity(internalId, otherEntity)
+                       .isPresent());
+        assertEquals(1, getReferences(sharedEntity.getValueRef()));
+        assertEquals(1, getReferences(otherEntity.getValueRef()));
+        assertEquals(otherDescriptor.toString(),
+                     new JSONObject(metadataPersistenceService.findByKey(tenantUrn, OWNER_TYPE, ownerUrn, KEY)
+                                        .get()
+                                        .getValue()
+                                        .toString()).toString());
+
+        ownerRepository.deleteOwner(tenantId, OWNER_TYPE, UuidUtil.getUuidFromUrn(ownerUrn));
+        assertEquals(-1, getReferences(sharedEntity.getValueRef()));
+        assertEquals(-1, getReferences(otherEntity.getValueRef()));
+    }
+
+    @Test
+    public void thatBulkUpsertsAndPurgesCountReferences() {
+
+        List<BulkUpsertEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(KEY, descriptor);
+            entries.add(new BulkUpsertEntry(OWNER_TYPE, UuidUtil.getThingUrnFromUuid(UUID.randomUUID()), metadata));
+        }
+        metadataPersistenceService.upsertAll(tenantUrn, entries);
+
+        String hash = getEntity(entries.get(0)
+                                    .getOwnerUrn()).getValueRef();
+        assertEquals(5, getReferences(hash));
+
+        metadataPersistenceService.upsertAll(tenantUrn, entries.subList(0, 2));
+        assertEquals(5, getReferences(hash));
+
+        metadataPersistenceService.purgeTenant(tenantUrn);
+        assertEquals(-1, getReferences(hash));
+    }
+
+    private MetadataEntity createSharedEntity(String keyName, JSONObject value) {
+
+        MetadataEntity metadataEntity = MetadataEntity.builder()
+            .keyName(keyName)
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(value.toString())
+            .build();
+        metadataEntity.compressValue(1024);
+        metadataEntity.shareValue(1024);
+        assertTrue(metadataEntity.isValueShared());
+
+        return metadataEntity;
+    }
+
+    private MetadataEntity getEntity(String ownerUrn) {
+
+        return metadataRepository.findByOwner_TenantIdAndOwner_TypeAndOwner_IdAndKeyName(tenantId, OWNER_TYPE, UuidUtil.getUuidFromUrn(ownerUrn), KEY)
+            .get();
+    }
+
+    /**
+     * Gets the reference count of a shared value, {@code -1} if it does not exist.
+     */
+    private long getReferences(String hash) {
+
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            MetadataSharedValueEntity sharedValue = entityManager.find(MetadataSharedValueEntity.class, hash);
+
+            return sharedValue != null ? sharedValue.getRefCount() : -1;
+        } finally {
+            entityManager.close();
+        }
+    }
+}
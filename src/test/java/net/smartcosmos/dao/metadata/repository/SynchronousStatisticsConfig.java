@@ -0,0 +1,20 @@
+package net.smartcosmos.dao.metadata.repository;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import net.smartcosmos.dao.metadata.MetadataPersistenceProperties;
+
+/**
+ * Loads the key-value pair counts of {@link KeyValueStatistics} in the calling thread, so that estimated counts are
+ * known right after the first search. Not annotated as a configuration, so that only tests listing it use it.
+ */
+public class SynchronousStatisticsConfig {
+
+    @Bean
+    @Primary
+    public KeyValueStatistics synchronousKeyValueStatistics(MetadataPersistenceProperties properties) {
+
+        return new KeyValueStatistics(properties, Runnable::run);
+    }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.apache.commons.lang.RandomStringUtils;
 import org.junit.*;
 
 import net.smartcosmos.dao.metadata.domain.MetadataDataType;
@@ -81,6 +82,31 @@ public class MetadataValueParserTest {
         assertTrue(input.equals(o));
     }
 
+    @Test
+    public void thatLongCanBeParsed() {
+
+        Long input = 12345678901L;
+        MetadataEntity entity = MetadataEntity.builder()
+            .dataType(MetadataValueParser.getDataType(input))
+            .value(input.toString())
+            .build();
+
+        assertEquals(MetadataDataType.LONG, entity.getDataType());
+        assertEquals(input, MetadataValueParser.parseValue(entity));
+        assertEquals(input, MetadataValueParser.getLongValue(entity.getDataType(), entity.getValue()));
+    }
+
+    @Test
+    public void thatFloatKeepsItsDecimalValue() {
+
+        Float input = 40.1f;
+
+        assertEquals(MetadataDataType.FLOAT, MetadataValueParser.getDataType(input));
+        assertEquals(40.1, MetadataValueParser.toDouble(input), 0.0);
+        assertEquals(MetadataValueParser.toDouble(input),
+                     MetadataValueParser.getDoubleValue(MetadataDataType.FLOAT, MetadataValueParser.getValue(input)), 0.0);
+    }
+
     @Test
     public void thatJsonCanBeParsed() throws Exception {
 
@@ -125,4 +151,82 @@ public class MetadataValueParserTest {
                          .asInt());
     }
 
+    @Test
+    public void thatValueHashIsStable() throws Exception {
+
+        assertEquals(MetadataValueParser.getValueHash("XYZ"), MetadataValueParser.getValueHash("XYZ"));
+        assertNotEquals(MetadataValueParser.getValueHash("XYZ"), MetadataValueParser.getValueHash("XYz"));
+        assertEquals(0L, MetadataValueParser.getValueHash(null));
+    }
+
+    @Test
+    public void thatTypedValuesMatchDataType() throws Exception {
+
+        assertEquals(Long.valueOf(42L), MetadataValueParser.getLongValue(MetadataDataType.INTEGER, "42"));
+        assertNull(MetadataValueParser.getLongValue(MetadataDataType.STRING, "42"));
+        assertEquals(Double.valueOf(4.2), MetadataValueParser.getDoubleValue(MetadataDataType.DOUBLE, "4.2"));
+        assertNull(MetadataValueParser.getDoubleValue(MetadataDataType.INTEGER, "42"));
+        assertEquals(Boolean.TRUE, MetadataValueParser.getBooleanValue(MetadataDataType.BOOLEAN, "true"));
+        assertNull(MetadataValueParser.getBooleanValue(MetadataDataType.STRING, "true"));
+    }
+
+    @Test
+    public void thatCompressedValuesCanBeParsed() throws Exception {
+
+        StringBuilder input = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            input.append(i > 0 ? "," : "")
+                .append("{\"x\":")
+                .append(i)
+                .append(",\"label\":\"Ä ")
+                .append(i)
+                .append("\"}");
+        }
+        input.append("]");
+
+        String compressed = MetadataValueParser.compress(input.toString());
+        assertTrue(compressed.length() < input.length() / 2);
+        assertEquals(input.toString(), MetadataValueParser.decompress(compressed));
+
+        MetadataEntity entity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_ARRAY)
+            .value(input.toString())
+            .build();
+        entity.compressValue(1024);
+        assertTrue(entity.isValueCompressed());
+
+        Object o = MetadataValueParser.parseValue(entity);
+        assertTrue(o instanceof ArrayNode);
+        assertEquals(199,
+                     ((ArrayNode) o).get(199)
+                         .get("x")
+                         .asInt());
+        assertEquals("Ä 199",
+                     ((ArrayNode) o).get(199)
+                         .get("label")
+                         .asText());
+    }
+
+    @Test
+    public void thatParsedSharedValuesAreCopied() throws Exception {
+
+        String input = "{\"description\":\"" + RandomStringUtils.randomAlphanumeric(3000) + "\"}";
+
+        MetadataEntity entity = MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_OBJECT)
+            .value(input)
+            .build();
+        entity.shareValue(1024);
+        assertTrue(entity.isValueShared());
+        assertEquals(64,
+                     entity.getValueRef()
+                         .length());
+
+        ObjectNode first = (ObjectNode) MetadataValueParser.parseValue(entity);
+        first.put("description", "changed");
+
+        ObjectNode second = (ObjectNode) MetadataValueParser.parseValue(entity);
+        assertNotSame(first, second);
+        assertEquals(input, second.toString());
+    }
 }
@@ -19,6 +19,51 @@ public class UuidUtilTest {
         assertEquals(expectedUuid, uuid.toString());
     }
 
+    @Test
+    public void getBytesFromUuid() throws Exception {
+
+        byte[] bytes = UuidUtil.getBytesFromUuid(UUID.fromString("00010203-0405-0607-0809-0a0b0c0d0e0f"));
+
+        assertEquals(16, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(i, bytes[i]);
+        }
+    }
+
+    @Test
+    public void getNewUuidIsOrderedInBinaryForm() throws Exception {
+
+        UUID previous = UuidUtil.getNewUuid();
+        for (int i = 0; i < 10000; i++) {
+            UUID next = UuidUtil.getNewUuid();
+
+            // the version nibble of the time-based UUID leads the reordered timestamp
+            assertEquals(1, next.getMostSignificantBits() >>> 60);
+            assertTrue(Long.compareUnsigned(previous.getMostSignificantBits(), next.getMostSignificantBits()) < 0);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void getOwnerInternalId() throws Exception {
+
+        UUID tenantId = UUID.randomUUID();
+        UUID id = UUID.randomUUID();
+
+        UUID internalId = UuidUtil.getOwnerInternalId(tenantId, "Thing", id);
+
+        assertEquals(5, internalId.version());
+        assertEquals(internalId, UuidUtil.getOwnerInternalId(tenantId, "Thing", id));
+        assertNotEquals(internalId, UuidUtil.getOwnerInternalId(tenantId, "Device", id));
+        assertNotEquals(internalId, UuidUtil.getOwnerInternalId(UUID.randomUUID(), "Thing", id));
+        assertNotEquals(internalId, UuidUtil.getOwnerInternalId(tenantId, "Thing", UUID.randomUUID()));
+
+        // types are compared like the owner table collation does
+        assertEquals(internalId, UuidUtil.getOwnerInternalId(tenantId, "thing", id));
+        assertEquals(internalId, UuidUtil.getOwnerInternalId(tenantId, "THING ", id));
+        assertEquals(UuidUtil.getOwnerInternalId(tenantId, "Beh\u00e4lter", id), UuidUtil.getOwnerInternalId(tenantId, "Behalter", id));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void getUuidFromInvaldiUrn() throws Exception {
 
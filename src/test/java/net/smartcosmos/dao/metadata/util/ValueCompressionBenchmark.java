@@ -0,0 +1,94 @@
+package net.smartcosmos.dao.metadata.util;
+
+import org.junit.*;
+
+import net.smartcosmos.dao.metadata.domain.MetadataDataType;
+import net.smartcosmos.dao.metadata.domain.MetadataEntity;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the stored size of JSON values with and without compression, and the time it takes to compress them on
+ * write and to decompress and parse them on read. Not part of the regular build, run it with
+ * {@code mvn test -Pbenchmark}.
+ */
+public class ValueCompressionBenchmark {
+
+    private static final int[] ITEMS = { 10, 40, 150 };
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void benchmarkCompression() {
+
+        for (int items : ITEMS) {
+            String json = createJson(items);
+            String compressed = MetadataValueParser.compress(json);
+            assertEquals(json, MetadataValueParser.decompress(compressed));
+
+            MetadataEntity plainEntity = createEntity(json);
+            MetadataEntity compressedEntity = createEntity(json);
+            compressedEntity.compressValue(1);
+            assertTrue(compressedEntity.isValueCompressed());
+
+            // warm up
+            for (int i = 0; i < ITERATIONS; i++) {
+                MetadataValueParser.compress(json);
+                MetadataValueParser.parseValue(compressedEntity);
+                MetadataValueParser.parseValue(plainEntity);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                MetadataValueParser.compress(json);
+            }
+            long compressNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                MetadataValueParser.parseValue(plainEntity);
+            }
+            long parseNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                MetadataValueParser.parseValue(compressedEntity);
+            }
+            long decompressAndParseNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.printf("JSON value of %d bytes: stored %d bytes compressed (%.1f%%), compress %d ns, "
+                              + "parse %d ns plain, %d ns compressed%n",
+                              json.length(), compressed.length(), 100.0 * compressed.length() / json.length(),
+                              compressNanos, parseNanos, decompressAndParseNanos);
+        }
+    }
+
+    private static MetadataEntity createEntity(String json) {
+
+        return MetadataEntity.builder()
+            .dataType(MetadataDataType.JSON_ARRAY)
+            .value(json)
+            .build();
+    }
+
+    private static String createJson(int items) {
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            json.append(i > 0 ? "," : "")
+                .append("{\"sequence\":")
+                .append(i)
+                .append(",\"serialNumber\":\"SN-")
+                .append(100000 + i * 7)
+                .append("\",\"location\":{\"site\":\"warehouse-")
+                .append(i % 5)
+                .append("\",\"shelf\":")
+                .append(i % 40)
+                .append("},\"active\":")
+                .append(i % 3 != 0)
+                .append("}");
+        }
+
+        return json.append("]")
+            .toString();
+    }
+}